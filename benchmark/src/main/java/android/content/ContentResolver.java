@@ -0,0 +1,29 @@
+package android.content;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+/**
+ * Replaces the framework class, whose methods are final and go through binder. Benchmarks
+ * subclass it to serve synthetic provider data.
+ */
+public abstract class ContentResolver {
+    public static final String SCHEME_CONTENT = "content";
+    public static final String SCHEME_ANDROID_RESOURCE = "android.resource";
+    public static final String SCHEME_FILE = "file";
+
+    public ContentResolver(Context context) {
+    }
+
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return null;
+    }
+
+    public InputStream openInputStream(Uri uri) throws FileNotFoundException {
+        throw new FileNotFoundException(String.valueOf(uri));
+    }
+}
@@ -0,0 +1,50 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replaces the framework class, which reads the properties natively. Only the properties
+ * needed to initialise {@link Build} are set.
+ */
+public class SystemProperties {
+    private static final Map<String, String> PROPERTIES = new HashMap<String, String>();
+    static {
+        PROPERTIES.put("ro.build.version.sdk", "18");
+        PROPERTIES.put("ro.build.version.release", "4.3");
+    }
+
+    public static String get(String key) {
+        return get(key, "");
+    }
+
+    public static String get(String key, String def) {
+        final String value = PROPERTIES.get(key);
+        return value == null ? def : value;
+    }
+
+    public static int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(get(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        try {
+            return Long.parseLong(get(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        final String value = PROPERTIES.get(key);
+        return value == null ? def : "1".equals(value) || "true".equals(value);
+    }
+
+    public static void set(String key, String val) {
+        PROPERTIES.put(key, val);
+    }
+}
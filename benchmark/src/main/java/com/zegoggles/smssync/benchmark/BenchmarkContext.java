@@ -0,0 +1,59 @@
+package com.zegoggles.smssync.benchmark;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A {@link Context} which works outside of Android: in-memory preferences, placeholder
+ * strings and a synthetic content resolver.
+ */
+public final class BenchmarkContext {
+    public static final String PACKAGE_NAME = "com.zegoggles.smssync";
+    public static final String USER_EMAIL = "me@example.com";
+
+    private BenchmarkContext() {
+    }
+
+    public static Context create(ContentResolver resolver) throws Exception {
+        final Context context = mock(Context.class);
+        final Resources resources = mock(Resources.class);
+        final PackageManager packageManager = mock(PackageManager.class);
+
+        final PackageInfo packageInfo = new PackageInfo();
+        packageInfo.versionCode = 1510;
+        packageInfo.versionName = "1.5.10";
+
+        when(resources.getString(anyInt())).thenReturn("%s");
+        when(resources.getString(anyInt(), anyVararg())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                return "String " + Arrays.toString(Arrays.copyOfRange(args, 1, args.length));
+            }
+        });
+        when(packageManager.getPackageInfo(anyString(), anyInt())).thenReturn(packageInfo);
+
+        when(context.getApplicationContext()).thenReturn(context);
+        when(context.getPackageName()).thenReturn(PACKAGE_NAME);
+        when(context.getResources()).thenReturn(resources);
+        when(context.getPackageManager()).thenReturn(packageManager);
+        when(context.getContentResolver()).thenReturn(resolver);
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(new MemorySharedPreferences());
+        when(context.getCacheDir()).thenReturn(new File(System.getProperty("java.io.tmpdir")));
+        return context;
+    }
+}
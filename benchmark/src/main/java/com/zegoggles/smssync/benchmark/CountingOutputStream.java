@@ -0,0 +1,28 @@
+package com.zegoggles.smssync.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Discards everything written to it, only the number of bytes is kept.
+ */
+public class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+}
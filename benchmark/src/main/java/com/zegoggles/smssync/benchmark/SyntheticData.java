@@ -0,0 +1,156 @@
+package com.zegoggles.smssync.benchmark;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.CallLog;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.mail.DataType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic provider rows for the benchmarks. A quarter of the addresses do not belong to
+ * a contact, see {@link #isContact(String)}.
+ */
+public final class SyntheticData {
+    private static final long SEED = 42;
+    private static final long START_DATE = 1420070400000L;
+
+    static final String[] SMS_COLUMNS = {
+            SmsConsts.ID, SmsConsts.THREAD_ID, SmsConsts.ADDRESS, SmsConsts.PERSON, SmsConsts.DATE,
+            SmsConsts.PROTOCOL, SmsConsts.READ, SmsConsts.STATUS, SmsConsts.TYPE,
+            SmsConsts.SERVICE_CENTER, SmsConsts.BODY
+    };
+    static final String[] MMS_COLUMNS = {
+            MmsConsts.ID, MmsConsts.THREAD_ID, MmsConsts.DATE, "msg_box", MmsConsts.READ,
+            MmsConsts.MESSAGE_ID, MmsConsts.SUBJECT, MmsConsts.TYPE
+    };
+    static final String[] CALLLOG_COLUMNS = {
+            CallLog.Calls._ID, CallLog.Calls.NUMBER, CallLog.Calls.DURATION, CallLog.Calls.DATE,
+            CallLog.Calls.TYPE
+    };
+
+    private static final String[] WORDS = {
+            "ok", "see", "you", "later", "tonight", "meeting", "running", "late", "thanks", "call",
+            "me", "when", "you're", "free", "über", "café", "😀", "train", "home", "dinner"
+    };
+
+    private SyntheticData() {
+    }
+
+    public static MatrixCursor cursor(DataType type, int rows) {
+        switch (type) {
+            case SMS:     return sms(rows);
+            case MMS:     return mms(rows);
+            case CALLLOG: return calls(rows);
+            default: throw new IllegalArgumentException("unsupported type " + type);
+        }
+    }
+
+    public static MatrixCursor sms(int rows) {
+        final Random random = new Random(SEED);
+        final MatrixCursor cursor = new MatrixCursor(SMS_COLUMNS, rows);
+        for (int i = 0; i < rows; i++) {
+            final int contact = random.nextInt(200);
+            cursor.addRow(new Object[]{
+                    String.valueOf(i + 1),
+                    String.valueOf(contact),
+                    address(contact),
+                    null,
+                    String.valueOf(date(i)),
+                    "0",
+                    "1",
+                    "-1",
+                    random.nextBoolean() ? "1" : "2",
+                    null,
+                    body(random)
+            });
+        }
+        return cursor;
+    }
+
+    public static MatrixCursor mms(int rows) {
+        final Random random = new Random(SEED);
+        final MatrixCursor cursor = new MatrixCursor(MMS_COLUMNS, rows);
+        for (int i = 0; i < rows; i++) {
+            cursor.addRow(new Object[]{
+                    String.valueOf(i + 1),
+                    String.valueOf(random.nextInt(200)),
+                    String.valueOf(date(i) / 1000),
+                    random.nextBoolean() ? "1" : "2",
+                    "1",
+                    "mid" + i,
+                    null,
+                    "132"
+            });
+        }
+        return cursor;
+    }
+
+    public static MatrixCursor calls(int rows) {
+        final Random random = new Random(SEED);
+        final MatrixCursor cursor = new MatrixCursor(CALLLOG_COLUMNS, rows);
+        for (int i = 0; i < rows; i++) {
+            cursor.addRow(new Object[]{
+                    String.valueOf(i + 1),
+                    address(random.nextInt(200)),
+                    String.valueOf(random.nextInt(600)),
+                    String.valueOf(date(i)),
+                    String.valueOf(1 + random.nextInt(3))
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the rows as column name to value maps, like {@code MessageConverter} reads them
+     */
+    public static List<Map<String, String>> rows(Cursor cursor) {
+        final List<Map<String, String>> rows = new ArrayList<Map<String, String>>(cursor.getCount());
+        final String[] columns = cursor.getColumnNames();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final Map<String, String> row = new HashMap<String, String>(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                row.put(columns[i], cursor.getString(i));
+            }
+            rows.add(row);
+        }
+        cursor.moveToPosition(-1);
+        return rows;
+    }
+
+    public static String address(int n) {
+        return String.format(Locale.ENGLISH, "+4930%07d", n);
+    }
+
+    public static boolean isContact(String address) {
+        return address.hashCode() % 4 != 0;
+    }
+
+    public static byte[] bytes(int size) {
+        final byte[] data = new byte[size];
+        new Random(SEED).nextBytes(data);
+        return data;
+    }
+
+    private static long date(int i) {
+        return START_DATE + i * 60000L;
+    }
+
+    private static String body(Random random) {
+        final int words = 1 + random.nextInt(30);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.zegoggles.smssync.benchmark;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import com.zegoggles.smssync.MmsConsts;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Serves contacts lookups and MMS addresses / parts. Every MMS has a SMIL part, a text part
+ * and an image attachment of {@link #attachmentSize} bytes.
+ */
+public class SyntheticResolver extends ContentResolver {
+    private final byte[] attachment;
+
+    public SyntheticResolver(int attachmentSize) {
+        super(null);
+        attachment = SyntheticData.bytes(attachmentSize);
+    }
+
+    public int attachmentSize() {
+        return attachment.length;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        final List<String> segments = uri.getPathSegments();
+        if ("com.android.contacts".equals(uri.getAuthority())) {
+            if ("phone_lookup".equals(segments.get(0))) {
+                return contact(uri.getLastPathSegment());
+            } else {
+                return email(selectionArgs[0]);
+            }
+        } else if ("mms".equals(uri.getAuthority()) && segments.size() == 2) {
+            final int id = Integer.parseInt(segments.get(0));
+            if ("addr".equals(segments.get(1))) {
+                return addresses(id);
+            } else if ("part".equals(segments.get(1))) {
+                return parts(id);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public InputStream openInputStream(Uri uri) {
+        return new ByteArrayInputStream(attachment);
+    }
+
+    private static Cursor contact(String address) {
+        final MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "display_name"});
+        if (SyntheticData.isContact(address)) {
+            cursor.addRow(new Object[]{Math.abs(address.hashCode()), "Contact " + address});
+        }
+        return cursor;
+    }
+
+    private static Cursor email(String contactId) {
+        final MatrixCursor cursor = new MatrixCursor(new String[]{"data1"});
+        cursor.addRow(new Object[]{"contact" + contactId + "@example.com"});
+        cursor.addRow(new Object[]{"contact" + contactId + "@gmail.com"});
+        return cursor;
+    }
+
+    private static Cursor addresses(int id) {
+        final MatrixCursor cursor = new MatrixCursor(new String[]{"address", "type"});
+        if (id % 2 == 0) {
+            // sent
+            cursor.addRow(new Object[]{MmsConsts.INSERT_ADDRESS_TOKEN, "137"});
+            cursor.addRow(new Object[]{SyntheticData.address(id % 200), "151"});
+        } else {
+            cursor.addRow(new Object[]{SyntheticData.address(id % 200), "137"});
+        }
+        return cursor;
+    }
+
+    private static Cursor parts(int id) {
+        final MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "ct", "cl", "text"});
+        cursor.addRow(new Object[]{String.valueOf(id * 3), "application/smil", "smil.xml", "<smil/>"});
+        cursor.addRow(new Object[]{String.valueOf(id * 3 + 1), "text/plain", "text_0.txt", "Look at this"});
+        cursor.addRow(new Object[]{String.valueOf(id * 3 + 2), "image/jpeg", "IMG_" + id + ".jpg", null});
+        return cursor;
+    }
+}
@@ -0,0 +1,76 @@
+package com.zegoggles.smssync.mail;
+
+import android.net.Uri;
+import com.fsck.k9.mail.internet.MimeBodyPart;
+import com.zegoggles.smssync.benchmark.CountingOutputStream;
+import com.zegoggles.smssync.benchmark.SyntheticData;
+import com.zegoggles.smssync.benchmark.SyntheticResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 encoding of MMS attachments, read from the resolver (in memory) or from a file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AttachmentBenchmark {
+    private static final Uri PART_URI = Uri.parse("content://mms/part/1");
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private SyntheticResolver resolver;
+    private File file;
+    private final CountingOutputStream out = new CountingOutputStream();
+
+    @Setup
+    public void setup() throws Exception {
+        resolver = new SyntheticResolver(size);
+        file = File.createTempFile("attachment", ".jpg");
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(SyntheticData.bytes(size));
+        } finally {
+            fos.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long encodeFromResolver() throws Exception {
+        final MimeBodyPart part = Attachment.createPartFromUri(resolver, PART_URI, "IMG_0001.jpg", "image/jpeg");
+        out.reset();
+        part.writeTo(out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long encodeFromFile() throws Exception {
+        final MimeBodyPart part = Attachment.createPartFromFile(file, "image/jpeg");
+        out.reset();
+        part.writeTo(out);
+        return out.getCount();
+    }
+}
@@ -0,0 +1,61 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.benchmark.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header generation including the message id digest. {@link #newMessage()} is the baseline
+ * cost of the empty message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HeaderGeneratorBenchmark {
+    @Param({"SMS", "MMS", "CALLLOG"})
+    public DataType dataType;
+
+    private final HeaderGenerator generator = new HeaderGenerator("reference", "1510");
+    private final PersonRecord record = new PersonRecord(1, "Contact", "contact@example.com", "+49301234567");
+    private List<Map<String, String>> maps;
+    private int index;
+
+    @Setup
+    public void setup() {
+        maps = SyntheticData.rows(SyntheticData.cursor(dataType, 100));
+    }
+
+    @Benchmark
+    public Message newMessage() {
+        return new MimeMessage();
+    }
+
+    @Benchmark
+    public Message setHeaders() throws Exception {
+        final Map<String, String> map = maps.get(index);
+        index = (index + 1) % maps.size();
+
+        final Message message = new MimeMessage();
+        generator.setHeaders(message, map, dataType, record.getNumber(), record, new Date(1420070400000L + index), 1);
+        return message;
+    }
+}
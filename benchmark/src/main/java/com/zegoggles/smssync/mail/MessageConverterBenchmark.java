@@ -0,0 +1,58 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.database.Cursor;
+import com.zegoggles.smssync.benchmark.BenchmarkContext;
+import com.zegoggles.smssync.benchmark.SyntheticData;
+import com.zegoggles.smssync.benchmark.SyntheticResolver;
+import com.zegoggles.smssync.preferences.Preferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursor row to MIME message, the per item cost of a backup without the upload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MessageConverterBenchmark {
+    @Param({"SMS", "MMS", "CALLLOG"})
+    public DataType dataType;
+
+    @Param({"1000"})
+    public int rows;
+
+    private MessageConverter converter;
+    private Cursor cursor;
+
+    @Setup
+    public void setup() throws Exception {
+        final SyntheticResolver resolver = new SyntheticResolver(16 * 1024);
+        final Context context = BenchmarkContext.create(resolver);
+        converter = new MessageConverter(context, new Preferences(context),
+                BenchmarkContext.USER_EMAIL, new PersonLookup(resolver));
+        cursor = SyntheticData.cursor(dataType, rows);
+    }
+
+    @Benchmark
+    public ConversionResult convertMessages() throws Exception {
+        if (!cursor.moveToNext()) {
+            cursor.moveToFirst();
+        }
+        return converter.convertMessages(cursor, dataType);
+    }
+}
@@ -0,0 +1,70 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.benchmark.BenchmarkContext;
+import com.zegoggles.smssync.benchmark.SyntheticData;
+import com.zegoggles.smssync.benchmark.SyntheticResolver;
+import com.zegoggles.smssync.preferences.AddressStyle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message generation from already read rows, with a warm contacts cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MessageGeneratorBenchmark {
+    @Param({"SMS", "MMS", "CALLLOG"})
+    public DataType dataType;
+
+    @Param({"1000"})
+    public int rows;
+
+    private MessageGenerator generator;
+    private List<Map<String, String>> maps;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        final SyntheticResolver resolver = new SyntheticResolver(16 * 1024);
+        final Context context = BenchmarkContext.create(resolver);
+        final PersonLookup personLookup = new PersonLookup(resolver);
+        generator = new MessageGenerator(context,
+                new Address(BenchmarkContext.USER_EMAIL),
+                AddressStyle.NAME,
+                new HeaderGenerator("reference", "1510"),
+                personLookup,
+                false,
+                new MmsSupport(resolver, personLookup));
+        maps = SyntheticData.rows(SyntheticData.cursor(dataType, rows));
+        for (Map<String, String> map : maps) {
+            generator.messageForDataType(map, dataType);
+        }
+    }
+
+    @Benchmark
+    public Message messageForDataType() throws Exception {
+        final Map<String, String> map = maps.get(index);
+        index = (index + 1) % maps.size();
+        return generator.messageForDataType(map, dataType);
+    }
+}
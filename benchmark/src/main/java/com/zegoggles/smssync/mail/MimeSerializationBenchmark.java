@@ -0,0 +1,74 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.benchmark.BenchmarkContext;
+import com.zegoggles.smssync.benchmark.CountingOutputStream;
+import com.zegoggles.smssync.benchmark.SyntheticData;
+import com.zegoggles.smssync.benchmark.SyntheticResolver;
+import com.zegoggles.smssync.preferences.AddressStyle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * k9 MIME serialization of generated messages, which is what gets sent with APPEND.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MimeSerializationBenchmark {
+    @Param({"SMS", "MMS", "CALLLOG"})
+    public DataType dataType;
+
+    @Param({"100"})
+    public int rows;
+
+    private final List<Message> messages = new ArrayList<Message>();
+    private final CountingOutputStream out = new CountingOutputStream();
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        final SyntheticResolver resolver = new SyntheticResolver(16 * 1024);
+        final Context context = BenchmarkContext.create(resolver);
+        final PersonLookup personLookup = new PersonLookup(resolver);
+        final MessageGenerator generator = new MessageGenerator(context,
+                new Address(BenchmarkContext.USER_EMAIL),
+                AddressStyle.NAME,
+                new HeaderGenerator("reference", "1510"),
+                personLookup,
+                false,
+                new MmsSupport(resolver, personLookup));
+        for (Map<String, String> map : SyntheticData.rows(SyntheticData.cursor(dataType, rows))) {
+            final Message message = generator.messageForDataType(map, dataType);
+            if (message != null) messages.add(message);
+        }
+    }
+
+    @Benchmark
+    public long writeTo() throws Exception {
+        final Message message = messages.get(index);
+        index = (index + 1) % messages.size();
+        out.reset();
+        message.writeTo(out);
+        return out.getCount();
+    }
+}
@@ -0,0 +1,73 @@
+package com.zegoggles.smssync.mail;
+
+import com.zegoggles.smssync.benchmark.SyntheticData;
+import com.zegoggles.smssync.benchmark.SyntheticResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contact lookups served from the cache (hit) and from the resolver (miss). The miss case
+ * cycles through more addresses than the cache holds, so every lookup queries the resolver.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PersonLookupBenchmark {
+    @Param({"100"})
+    public int cachedAddresses;
+
+    @Param({"1000"})
+    public int uncachedAddresses;
+
+    private PersonLookup lookup;
+    private String[] cached;
+    private String[] uncached;
+    private int cachedIndex;
+    private int uncachedIndex;
+
+    @Setup
+    public void setup() {
+        lookup = new PersonLookup(new SyntheticResolver(0));
+        cached = addresses(0, cachedAddresses);
+        uncached = addresses(cachedAddresses, uncachedAddresses);
+        for (String address : cached) {
+            lookup.lookupPerson(address);
+        }
+    }
+
+    @Benchmark
+    public PersonRecord hit() {
+        final String address = cached[cachedIndex];
+        cachedIndex = (cachedIndex + 1) % cached.length;
+        return lookup.lookupPerson(address);
+    }
+
+    @Benchmark
+    public PersonRecord miss() {
+        final String address = uncached[uncachedIndex];
+        uncachedIndex = (uncachedIndex + 1) % uncached.length;
+        return lookup.lookupPerson(address);
+    }
+
+    private static String[] addresses(int offset, int count) {
+        final String[] addresses = new String[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = SyntheticData.address(offset + i);
+        }
+        return addresses;
+    }
+}
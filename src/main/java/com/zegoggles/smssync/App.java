@@ -20,12 +20,14 @@ import android.app.Application;
 import com.fsck.k9.mail.K9MailLib;
 import com.squareup.otto.Bus;
 import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.service.ChangeObserverService;
 
 public class App extends Application {
     public static final boolean DEBUG = BuildConfig.DEBUG;
     public static final boolean LOCAL_LOGV = DEBUG;
     public static final String TAG = "SMSBackup+";
     public static final String LOG = "sms_backup_plus.log";
+    public static final String TRACE = "sms_backup_plus_trace.json";
 
     public static final Bus bus = new Bus();
 
@@ -44,5 +46,6 @@ public class App extends Application {
                 return false;
             }
         });
+        ChangeObserverService.update(this);
     }
 }
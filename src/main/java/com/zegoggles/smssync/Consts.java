@@ -30,6 +30,11 @@ public final class Consts {
      */
     public static final String KEY_SKIP_MESSAGES = "com.zegoggles.smssync.SkipMessages";
 
+    /**
+     * Key in the intent extras for running the backup without uploading anything, to
+     * measure local throughput.
+     */
+
     /**
      * Key in the intent extras for storing the previously set default sms provider,
      * allowing it to be restored after the restore finishes.
@@ -46,6 +51,8 @@ public final class Consts {
     public static final String MMS_PART      = "part";
     public static final Uri SMS_PROVIDER     = Uri.parse("content://sms");
     public static final Uri CALLLOG_PROVIDER = CallLog.Calls.CONTENT_URI;
+    public static final Uri CANONICAL_ADDRESSES_PROVIDER = Uri.parse("content://mms-sms/canonical-addresses");
+    public static final Uri THREADS_PROVIDER = Uri.parse("content://mms-sms/conversations?simple=true");
 
     public static class Billing {
         public static final String PUBLIC_KEY = "MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQCNglCUwSijU3RAODpyY" +
@@ -17,6 +17,8 @@ enum Dialogs {
     UPGRADE_FROM_SMSBACKUP,
     BROKEN_DROIDX,
     VIEW_LOG,
+    RUN_HISTORY,
     CONFIRM_ACTION,
-    SMS_DEFAULT_PACKAGE_CHANGE
+    SMS_DEFAULT_PACKAGE_CHANGE,
+    RESUME_RESTORE
 }
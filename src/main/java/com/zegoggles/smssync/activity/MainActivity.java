@@ -26,8 +26,10 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteException;
 import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -40,6 +42,7 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -59,14 +62,20 @@ import com.zegoggles.smssync.auth.OAuth2Client;
 import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.BackupManifest;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.ImapConnectionManager;
+import com.zegoggles.smssync.metrics.RunHistory;
 import com.zegoggles.smssync.preferences.AuthMode;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.BackupManagerWrapper;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.receiver.SmsBroadcastReceiver;
 import com.zegoggles.smssync.service.Alarms;
+import com.zegoggles.smssync.service.BackfillWatermarks;
 import com.zegoggles.smssync.service.BackupType;
+import com.zegoggles.smssync.service.ChangeObserverService;
+import com.zegoggles.smssync.service.RestoreCheckpoint;
 import com.zegoggles.smssync.service.SmsBackupService;
 import com.zegoggles.smssync.service.SmsRestoreService;
 import com.zegoggles.smssync.service.state.RestoreState;
@@ -109,6 +118,8 @@ public class MainActivity extends PreferenceActivity {
     private static final int REQUEST_CHANGE_DEFAULT_SMS_PACKAGE = 1;
     private static final int REQUEST_PICK_ACCOUNT = 2;
     private static final int REQUEST_WEB_AUTH = 3;
+    /** runs listed individually in the run history */
+    private static final int RUN_HISTORY_RECENT_RUNS = 20;
 
     enum Actions {
         Backup,
@@ -211,6 +222,12 @@ public class MainActivity extends PreferenceActivity {
             case R.id.menu_reset:
                 show(Dialogs.RESET);
                 return true;
+            case R.id.menu_run_history:
+                show(Dialogs.RUN_HISTORY);
+                return true;
+            case R.id.menu_dry_run:
+                startDryRun();
+                return true;
             case R.id.menu_view_log:
                 show(Dialogs.VIEW_LOG);
 
@@ -263,7 +280,8 @@ public class MainActivity extends PreferenceActivity {
     @Subscribe public void onOAuth2Callback(OAuth2CallbackTask.OAuth2CallbackEvent event) {
         dismiss(Dialogs.ACCESS_TOKEN);
         if (event.valid()) {
-            authPreferences.setOauth2Token(event.token.userName, event.token.accessToken, event.token.refreshToken);
+            authPreferences.setOauth2Token(event.token.userName, event.token.accessToken, event.token.refreshToken,
+                    event.token.expiresIn);
             onAuthenticated();
         } else {
             show(Dialogs.ACCESS_TOKEN_ERROR);
@@ -271,6 +289,8 @@ public class MainActivity extends PreferenceActivity {
     }
 
     private void onAuthenticated() {
+        // a different account might have been selected
+        ImapConnectionManager.reset();
         updateConnected();
         // Invite use to perform a backup, but only once
         if (preferences.isFirstUse()) {
@@ -435,7 +455,11 @@ public class MainActivity extends PreferenceActivity {
 
     private void initiateRestore() {
         if (checkLoginInformation()) {
-            startRestore();
+            if (RestoreCheckpoint.exists(this)) {
+                show(Dialogs.RESUME_RESTORE);
+            } else {
+                startRestore();
+            }
         }
     }
 
@@ -484,6 +508,12 @@ public class MainActivity extends PreferenceActivity {
         startService(intent);
     }
 
+    private void startDryRun() {
+        final Intent intent = new Intent(this, SmsBackupService.class);
+        intent.putExtra(BackupType.EXTRA, BackupType.DRY_RUN.name());
+        startService(intent);
+    }
+
     @TargetApi(Build.VERSION_CODES.KITKAT)
     private void startRestore() {
         final Intent intent = new Intent(this, SmsRestoreService.class);
@@ -522,9 +552,59 @@ public class MainActivity extends PreferenceActivity {
                 if (view instanceof TextView) {
                     AppLog.readLog(App.LOG, (TextView) view);
                 }
+                break;
+            case RUN_HISTORY:
+                ((AlertDialog) dialog).setMessage(getString(R.string.loading));
+                loadRunHistory((AlertDialog) dialog);
+                break;
+            case CONFIRM_ACTION:
+                ((AlertDialog) dialog).setMessage(getString(R.string.ui_dialog_confirm_action_msg));
+                if (Actions.Restore.equals(mActions)) {
+                    estimateRestore((AlertDialog) dialog);
+                }
+                break;
         }
     }
 
+    /**
+     * Fills in the restore estimate once computed, the manifest query can take a while for
+     * large backups.
+     */
+    private void estimateRestore(final AlertDialog dialog) {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return getRestoreConfirmMessage();
+            }
+
+            @Override
+            protected void onPostExecute(String message) {
+                if (dialog.isShowing() && Actions.Restore.equals(mActions)) {
+                    dialog.setMessage(message);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Fills in the run history once loaded, it is read from a database.
+     */
+    private void loadRunHistory(final AlertDialog dialog) {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return getRunHistory();
+            }
+
+            @Override
+            protected void onPostExecute(String history) {
+                if (dialog.isShowing()) {
+                    dialog.setMessage(history);
+                }
+            }
+        }.execute();
+    }
+
     @Override
     protected Dialog onCreateDialog(final int id) {
         String title, msg;
@@ -581,6 +661,13 @@ public class MainActivity extends PreferenceActivity {
             case VIEW_LOG:
                 return AppLog.displayAsDialog(App.LOG, this);
 
+            case RUN_HISTORY:
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.menu_run_history)
+                        .setMessage(R.string.loading)
+                        .setPositiveButton(android.R.string.ok, null)
+                        .create();
+
             case RESET:
                 return new AlertDialog.Builder(this)
                         .setTitle(R.string.ui_dialog_reset_title)
@@ -658,7 +745,10 @@ public class MainActivity extends PreferenceActivity {
                             public void onClick(DialogInterface dialog, int which) {
                                 authPreferences.clearOAuth1Data();
                                 authPreferences.clearOauth2Data();
+                                ImapConnectionManager.reset();
                                 DataType.clearLastSyncData(MainActivity.this);
+                                BackfillWatermarks.clear(MainActivity.this);
+                                clearManifest();
                                 updateConnected();
                             }
                         }).create();
@@ -693,6 +783,23 @@ public class MainActivity extends PreferenceActivity {
                         })
                         .setMessage(R.string.ui_dialog_sms_default_package_change_msg)
                         .create();
+            case RESUME_RESTORE:
+                DialogInterface.OnClickListener resumeListener =
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                if (which == DialogInterface.BUTTON_NEGATIVE) {
+                                    RestoreCheckpoint.clear(MainActivity.this);
+                                }
+                                startRestore();
+                            }
+                        };
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.ui_dialog_resume_restore_title)
+                        .setMessage(R.string.ui_dialog_resume_restore_msg)
+                        .setPositiveButton(R.string.ui_resume, resumeListener)
+                        .setNegativeButton(R.string.ui_start_over, resumeListener)
+                        .create();
 
             default:
                 return null;
@@ -700,9 +807,68 @@ public class MainActivity extends PreferenceActivity {
         return createMessageDialog(id, title, msg);
     }
 
+    /**
+     * @return a confirmation message including an estimate of what is going to be restored,
+     *         based on the local manifest of the backup folders
+     */
+    private String getRestoreConfirmMessage() {
+        int count = 0;
+        long size = 0;
+        final BackupManifest manifest = new BackupManifest(this);
+        try {
+            for (DataType type : DataType.values()) {
+                if (type.isRestoreEnabled(this)) {
+                    BackupManifest.Estimate estimate = manifest.estimate(type);
+                    count += estimate.count;
+                    size += estimate.size;
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, e);
+        } finally {
+            manifest.close();
+        }
+        final int maxRestore = preferences.getMaxItemsPerRestore();
+        if (maxRestore > 0 && count > maxRestore) {
+            size = size / count * maxRestore;
+            count = maxRestore;
+        }
+        if (count > 0) {
+            return getString(R.string.ui_dialog_confirm_restore_msg, count, Formatter.formatShortFileSize(this, size));
+        } else {
+            return getString(R.string.ui_dialog_confirm_action_msg);
+        }
+    }
+
+    private String getRunHistory() {
+        final RunHistory history = new RunHistory(this);
+        try {
+            return history.summary(this, RUN_HISTORY_RECENT_RUNS);
+        } catch (SQLiteException e) {
+            Log.w(TAG, e);
+            return getString(R.string.run_history_empty);
+        } finally {
+            history.close();
+        }
+    }
+
+    private void clearManifest() {
+        final BackupManifest manifest = new BackupManifest(this);
+        try {
+            manifest.clear();
+        } catch (SQLiteException e) {
+            Log.w(TAG, e);
+        } finally {
+            manifest.close();
+        }
+    }
+
     private void reset() {
         DataType.clearLastSyncData(MainActivity.this);
+        BackfillWatermarks.clear(MainActivity.this);
+        RestoreCheckpoint.clear(MainActivity.this);
         preferences.reset();
+        ImapConnectionManager.reset();
     }
 
     private Dialog createMessageDialog(final int id, String title, String msg) {
@@ -790,6 +956,12 @@ public class MainActivity extends PreferenceActivity {
                                 PackageManager.DONT_KILL_APP);
 
                         if (!isEnabled) new Alarms(MainActivity.this).cancel();
+                        // preference value gets persisted after this returns
+                        new Handler().post(new Runnable() {
+                            @Override public void run() {
+                                ChangeObserverService.update(MainActivity.this);
+                            }
+                        });
                         return true;
                     }
                 });
@@ -834,6 +1006,7 @@ public class MainActivity extends PreferenceActivity {
                 .setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
                     public boolean onPreferenceChange(Preference preference, Object newValue) {
                         authPreferences.setImapPassword(newValue.toString());
+                        ImapConnectionManager.reset();
                         return true;
                     }
                 });
@@ -12,8 +12,11 @@ import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.service.BackupType;
 import com.zegoggles.smssync.service.SmsBackupService;
 import com.zegoggles.smssync.service.SmsRestoreService;
 import com.zegoggles.smssync.service.UserCanceled;
@@ -138,7 +141,8 @@ class StatusPreference extends Preference implements View.OnClickListener {
             case BACKUP:
                 mRestoreButton.setEnabled(false);
                 mBackupButton.setText(R.string.ui_sync_button_label_syncing);
-                mStatusLabel.setText(R.string.status_backup);
+                mStatusLabel.setText(newState.backupType == BackupType.DRY_RUN ?
+                        R.string.status_dry_run : R.string.status_backup);
                 mSyncDetailsLabel.setText(newState.getNotificationLabel(getContext().getResources()));
                 mProgressBar.setIndeterminate(false);
                 mProgressBar.setProgress(newState.currentSyncedItems);
@@ -173,7 +177,9 @@ class StatusPreference extends Preference implements View.OnClickListener {
     private void finishedBackup(BackupState state) {
         int backedUpCount = state.currentSyncedItems;
         String text = null;
-        if (backedUpCount == new Preferences(getContext()).getMaxItemsPerSync()) {
+        if (state.backupType == BackupType.DRY_RUN) {
+            text = getContext().getString(R.string.status_dry_run_done_details, backedUpCount);
+        } else if (backedUpCount == new Preferences(getContext()).getMaxItemsPerSync()) {
             text = getContext().getString(R.string.status_backup_done_details_max_per_sync, backedUpCount);
         } else if (backedUpCount > 0) {
             text = getContext().getResources().getQuantityString(R.plurals.status_backup_done_details, backedUpCount,
@@ -181,7 +187,7 @@ class StatusPreference extends Preference implements View.OnClickListener {
         } else if (backedUpCount == 0) {
             text = getContext().getString(R.string.status_backup_done_details_noitems);
         }
-        mSyncDetailsLabel.setText(text);
+        mSyncDetailsLabel.setText(withMetrics(text));
         mStatusLabel.setText(R.string.status_done);
         mStatusLabel.setTextColor(getContext().getResources().getColor(R.color.status_done));
     }
@@ -189,11 +195,26 @@ class StatusPreference extends Preference implements View.OnClickListener {
     private void finishedRestore(RestoreState newState) {
         mStatusLabel.setTextColor(getContext().getResources().getColor(R.color.status_done));
         mStatusLabel.setText(R.string.status_done);
-        mSyncDetailsLabel.setText(getContext().getResources().getQuantityString(
+        mSyncDetailsLabel.setText(withMetrics(getContext().getResources().getQuantityString(
                 R.plurals.status_restore_done_details,
                 newState.actualRestoredCount,
                 newState.actualRestoredCount,
-                newState.duplicateCount));
+                newState.duplicateCount)));
+    }
+
+    /**
+     * Appends run time and dominant stage of the last run, the full breakdown is in the app log.
+     */
+    private String withMetrics(String text) {
+        final RunMetrics metrics = RunMetrics.getLast();
+        final Stage dominant = metrics == null ? null : metrics.getDominantStage();
+        if (dominant == null) return text;
+
+        return getContext().getString(R.string.status_metrics_summary,
+                text,
+                metrics.getDurationMillis() / 1000f,
+                getContext().getString(dominant.resId),
+                metrics.getPercentage(dominant));
     }
 
     private void idle() {
@@ -21,6 +21,11 @@ import static com.zegoggles.smssync.activity.auth.AccountManagerAuthActivity.GOO
 
 @TargetApi(5)
 public class TokenRefresher {
+    /** tokens get refreshed this long before they expire */
+    static final long EXPIRY_MARGIN = 5 * 60 * 1000L;
+    /** shared by all instances, so that backup and restore never refresh at the same time */
+    private static final Object REFRESH_LOCK = new Object();
+
     private @Nullable final AccountManager accountManager;
     private final OAuth2Client oauth2Client;
     private AuthPreferences authPreferences;
@@ -37,19 +42,56 @@ public class TokenRefresher {
     }
 
     public void refreshOAuth2Token() throws TokenRefreshException{
-        final String token = authPreferences.getOauth2Token();
-        final String refreshToken = authPreferences.getOauth2RefreshToken();
-        final String name = authPreferences.getUsername();
+        refreshOAuth2Token(authPreferences.getOauth2Token());
+    }
 
-        if (isEmpty(token)) {
-            throw new TokenRefreshException("no current token set");
-        }
+    /**
+     * Refreshes the token ahead of time if it is about to expire, so that logins don't have to
+     * fail first.
+     *
+     * @return true if a new token has been obtained
+     */
+    public boolean refreshOAuth2TokenIfExpiring() throws TokenRefreshException {
+        if (!isOAuth2TokenExpiring()) return false;
+        refreshOAuth2Token();
+        return true;
+    }
+
+    /**
+     * @return true if the token expires within {@link #EXPIRY_MARGIN}. Tokens with unknown
+     *         expiry are only refreshed after a failed login.
+     */
+    public boolean isOAuth2TokenExpiring() {
+        final long expiry = authPreferences.getOauth2TokenExpiry();
+        return expiry > 0 &&
+               !isEmpty(authPreferences.getOauth2Token()) &&
+               System.currentTimeMillis() + EXPIRY_MARGIN >= expiry;
+    }
 
-        if (!isEmpty(refreshToken)) {
-            // user authenticated using webflow
-            refreshUsingOAuth2Client(name, refreshToken);
-        } else {
-            refreshUsingAccountManager(token, name);
+    /**
+     * @param staleToken the token known to the caller. If it has been replaced while waiting
+     *                   for another refresh to finish, the new token is used as it is.
+     */
+    private void refreshOAuth2Token(String staleToken) throws TokenRefreshException {
+        synchronized (REFRESH_LOCK) {
+            final String token = authPreferences.getOauth2Token();
+            final String refreshToken = authPreferences.getOauth2RefreshToken();
+            final String name = authPreferences.getUsername();
+
+            if (isEmpty(token)) {
+                throw new TokenRefreshException("no current token set");
+            }
+            if (!token.equals(staleToken)) {
+                Log.d(TAG, "token has already been refreshed");
+                return;
+            }
+
+            if (!isEmpty(refreshToken)) {
+                // user authenticated using webflow
+                refreshUsingOAuth2Client(name, refreshToken);
+            } else {
+                refreshUsingAccountManager(token, name);
+            }
         }
     }
 
@@ -107,7 +149,9 @@ public class TokenRefresher {
     private void refreshUsingOAuth2Client(String name, String refreshToken) throws TokenRefreshException {
         try {
             final OAuth2Token token = oauth2Client.refreshToken(refreshToken);
-            authPreferences.setOauth2Token(name, token.accessToken, isEmpty(token.refreshToken) ? refreshToken : token.refreshToken);
+            authPreferences.setOauth2Token(name, token.accessToken,
+                    isEmpty(token.refreshToken) ? refreshToken : token.refreshToken,
+                    token.expiresIn);
         } catch (IOException e) {
             throw new TokenRefreshException(e);
         }
@@ -0,0 +1,39 @@
+package com.zegoggles.smssync.collections;
+
+/**
+ * Sizing and hashing shared by the open addressing collections.
+ */
+final class Hashing {
+    /** tables are kept at most half full, which keeps probe sequences short */
+    static final float LOAD_FACTOR = 0.5f;
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private Hashing() {
+    }
+
+    /**
+     * @return a power of two table size which holds the given number of elements
+     */
+    static int capacityFor(int expectedSize) {
+        final long needed = (long) Math.ceil(Math.max(expectedSize, 2) / LOAD_FACTOR);
+        if (needed > MAX_CAPACITY) throw new IllegalArgumentException("too many elements: " + expectedSize);
+
+        int capacity = 2;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int maxFill(int capacity) {
+        return (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Spreads the bits of the key, ids are often sequential.
+     */
+    static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
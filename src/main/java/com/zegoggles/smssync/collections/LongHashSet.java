@@ -0,0 +1,107 @@
+package com.zegoggles.smssync.collections;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive longs using open addressing with linear probing. Avoids boxing and the
+ * per-entry objects of {@link java.util.HashSet}, which adds up for large id sets on low-end
+ * devices. Elements cannot be removed, only cleared.
+ */
+public class LongHashSet {
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /** 0 marks a free slot, the value 0 itself is tracked separately */
+    private long[] keys;
+    private boolean hasZero;
+    private int size;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of elements which fit without resizing
+     */
+    public LongHashSet(int expectedSize) {
+        keys = new long[Hashing.capacityFor(expectedSize)];
+    }
+
+    /**
+     * @return true if the value was not in the set yet
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (hasZero) return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        final int index = indexOf(keys, value);
+        if (keys[index] == value) return false;
+
+        keys[index] = value;
+        if (++size > Hashing.maxFill(keys.length)) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        return value == 0 ? hasZero : keys[indexOf(keys, value)] == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    /**
+     * @return the elements in no particular order
+     */
+    public long[] toArray() {
+        final long[] result = new long[size];
+        int i = 0;
+        if (hasZero) result[i++] = 0;
+        for (long key : keys) {
+            if (key != 0) result[i++] = key;
+        }
+        return result;
+    }
+
+    @Override public String toString() {
+        final long[] values = toArray();
+        Arrays.sort(values);
+        return Arrays.toString(values);
+    }
+
+    private void rehash(int capacity) {
+        final long[] old = keys;
+        keys = new long[capacity];
+        for (long key : old) {
+            if (key != 0) {
+                keys[indexOf(keys, key)] = key;
+            }
+        }
+    }
+
+    /**
+     * @return the slot holding the value, or the free slot where it belongs
+     */
+    private static int indexOf(long[] keys, long value) {
+        final int mask = keys.length - 1;
+        int index = Hashing.hash(value) & mask;
+        while (keys[index] != 0 && keys[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,116 @@
+package com.zegoggles.smssync.collections;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Map from primitive longs to objects using open addressing with linear probing, the
+ * counterpart of {@link LongHashSet}. Null values are allowed, use {@link #containsKey(long)}
+ * to tell them from missing keys. Entries cannot be removed, only cleared.
+ */
+public class LongObjectHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /** 0 marks a free slot, the key 0 itself is tracked separately */
+    private long[] keys;
+    private Object[] values;
+    private boolean hasZeroKey;
+    private Object zeroValue;
+    private int size;
+
+    public LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of entries which fit without resizing
+     */
+    public LongObjectHashMap(int expectedSize) {
+        final int capacity = Hashing.capacityFor(expectedSize);
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * @return the previous value, or null if there was none
+     */
+    public @Nullable V put(long key, @Nullable V value) {
+        if (key == 0) {
+            final V previous = cast(zeroValue);
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return previous;
+        }
+        final int index = indexOf(keys, key);
+        if (keys[index] == key) {
+            final V previous = cast(values[index]);
+            values[index] = value;
+            return previous;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > Hashing.maxFill(keys.length)) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    public @Nullable V get(long key) {
+        if (key == 0) return cast(zeroValue);
+
+        final int index = indexOf(keys, key);
+        return keys[index] == key ? this.<V>cast(values[index]) : null;
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZeroKey : keys[indexOf(keys, key)] == key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasZeroKey = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                final int index = indexOf(keys, oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T cast(Object value) {
+        return (T) value;
+    }
+
+    private static int indexOf(long[] keys, long key) {
+        final int mask = keys.length - 1;
+        int index = Hashing.hash(key) & mask;
+        while (keys[index] != 0 && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+}
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Groups;
 import com.zegoggles.smssync.R;
@@ -58,9 +59,30 @@ public class ContactAccessorPost20 implements ContactAccessor {
             contactIds.add(c.getLong(0), c.getLong(1));
         }
         if (c != null) c.close();
+
+        if (!contactIds.isEmpty()) {
+            addPhoneNumbers(resolver, contactIds);
+        }
         return contactIds;
     }
 
+    /**
+     * Loads the numbers of all group members in one query, so items can be matched against
+     * the group without looking up each address.
+     */
+    private void addPhoneNumbers(ContentResolver resolver, ContactGroupIds contactIds) {
+        final Cursor c = resolver.query(
+                Data.CONTENT_URI,
+                new String[]{ Phone.NUMBER },
+                Data.MIMETYPE + " = ? AND " + Data.CONTACT_ID + " IN (" + ContactGroupIds.join(contactIds.getIds()) + ")",
+                new String[]{ Phone.CONTENT_ITEM_TYPE },
+                null);
+        while (c != null && c.moveToNext()) {
+            contactIds.addNumber(c.getString(0));
+        }
+        if (c != null) c.close();
+    }
+
     public Map<Integer, Group> getGroups(ContentResolver resolver, Resources resources) {
         final Map<Integer, Group> map = new LinkedHashMap<Integer, Group>();
 
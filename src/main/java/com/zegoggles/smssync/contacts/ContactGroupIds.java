@@ -1,36 +1,100 @@
 package com.zegoggles.smssync.contacts;
 
+import com.zegoggles.smssync.collections.LongHashSet;
 import com.zegoggles.smssync.mail.PersonRecord;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
 public class ContactGroupIds {
-    private final Set<Long> ids = new HashSet<Long>();
-    private final Set<Long> rawIds = new HashSet<Long>();
+    /** number of trailing digits compared, like the loose matching in PhoneNumberUtils */
+    static final int MIN_MATCH = 7;
+
+    private final LongHashSet ids = new LongHashSet();
+    private final LongHashSet rawIds = new LongHashSet();
+    private final Set<String> numbers = new HashSet<String>();
 
     public void add(long id, long rawId) {
         this.ids.add(id);
         this.rawIds.add(rawId);
     }
 
+    public void addNumber(String number) {
+        final String normalized = normalizeNumber(number);
+        if (normalized != null) {
+            numbers.add(normalized);
+        }
+    }
+
     public boolean contains(PersonRecord personRecord) {
         return ids.contains(personRecord.getContactId());
     }
 
+    /**
+     * @return true if the number belongs to one of the contacts, without a contact lookup
+     */
+    public boolean containsNumber(@Nullable String number) {
+        final String normalized = normalizeNumber(number);
+        return normalized != null && numbers.contains(normalized);
+    }
+
     public boolean isEmpty() {
         return ids.isEmpty() && rawIds.isEmpty();
     }
 
-    public Set<Long> getIds() {
-        return new HashSet<Long>(ids);
+    /**
+     * @return the contact ids, sorted
+     */
+    public long[] getIds() {
+        return sorted(ids);
+    }
+
+    /**
+     * @return the raw contact ids, sorted
+     */
+    public long[] getRawIds() {
+        return sorted(rawIds);
     }
 
-    public Set<Long> getRawIds() {
-        return new HashSet<Long>(rawIds);
+    /**
+     * @return the ids as a comma separated list, for use in an <code>IN (...)</code> selection
+     */
+    public static String join(long[] ids) {
+        final StringBuilder sb = new StringBuilder(ids.length * 4);
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(ids[i]);
+        }
+        return sb.toString();
     }
 
     public String toString() {
-        return getClass().getSimpleName() + "[ids: " + ids + " rawIds: " + rawIds + "]";
+        return getClass().getSimpleName() + "[ids: " + ids + " rawIds: " + rawIds + " numbers: " + numbers.size() + "]";
+    }
+
+    private static long[] sorted(LongHashSet set) {
+        final long[] values = set.toArray();
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * @return the trailing digits of the number, which ignores formatting and country prefixes,
+     * or null if there are no digits
+     */
+    static @Nullable String normalizeNumber(@Nullable String number) {
+        if (number == null) return null;
+
+        final StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        if (digits.length() == 0) return null;
+        return digits.length() > MIN_MATCH ? digits.substring(digits.length() - MIN_MATCH) : digits.toString();
     }
 }
@@ -16,24 +16,33 @@
 package com.zegoggles.smssync.mail;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Folder.FolderType;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
 import com.fsck.k9.mail.ssl.DefaultTrustedSocketFactory;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+import com.fsck.k9.mail.store.imap.ImapList;
 import com.fsck.k9.mail.store.imap.ImapResponse;
 import com.fsck.k9.mail.store.imap.ImapStore;
 import com.zegoggles.smssync.MmsConsts;
 import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
+import com.zegoggles.smssync.preferences.Preferences;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -42,10 +51,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -54,37 +68,159 @@ import static java.util.Collections.sort;
 
 public class BackupImapStore extends ImapStore {
     private final Context context;
-    private final Map<DataType, BackupFolder> openFolders = new HashMap<DataType, BackupFolder>();
+    /** folders opened during the current run, keyed by label, shared between data types. Guarded by this */
+    private final Map<String, BackupFolder> openFolders = new HashMap<String, BackupFolder>();
+    /** labels known to exist on the server, so they don't need to be LISTed again */
+    private final Set<String> existingFolders = new HashSet<String>();
+    private final BackupManifest manifest;
+    private final UploadRateLimiter rateLimiter;
+    private volatile long lastUsed;
+    /** runs currently using this store, guarded by this */
+    private int users;
+    /** the store has been dropped while in use, the last run disconnects it. Guarded by this */
+    private boolean disconnectWhenReleased;
+    /** connections handed back to k9's pool by closing folders, guarded by this */
+    private int pooledConnections;
+    /** largest literal which can be sent without waiting for the server, -1 if not known yet */
+    private volatile int literalLimit = -1;
+
+    /** Number of messages per header fetch when refreshing the manifest */
+    private static final int MANIFEST_FETCH_SIZE = 250;
+    /** Message-IDs looked up per search, each one adds a level of OR nesting */
+    private static final int SEARCH_BATCH_SIZE = 50;
+    /** Largest message appended with its keyword in one command, larger ones are streamed by k9 */
+    private static final int KEYWORD_APPEND_MAX_SIZE = 64 * 1024;
+    /** Literal size limit of servers announcing LITERAL- (RFC 7888) */
+    private static final int LITERAL_MINUS_MAX_SIZE = 4096;
+    private static final String MANIFEST_HEADERS = String.format(Locale.ENGLISH, "%s %s %s %s %s",
+            Headers.MESSAGE_ID, Headers.DATATYPE, Headers.TYPE, Headers.DATE, Headers.ADDRESS).toUpperCase(Locale.ENGLISH);
 
     public BackupImapStore(final Context context, final String uri) throws MessagingException {
         super(new BackupStoreConfig(uri),
                 getTrustedSocketFactory(context, uri),
                 (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE));
         this.context = context;
+        this.manifest = new BackupManifest(context);
+        final Preferences preferences = new Preferences(context);
+        this.rateLimiter = new UploadRateLimiter(
+                preferences.getUploadMessagesPerSecond(),
+                preferences.getUploadBytesPerSecond());
+        this.lastUsed = SystemClock.elapsedRealtime();
     }
 
-    public BackupFolder getFolder(DataType type) throws MessagingException {
-        BackupFolder folder = openFolders.get(type);
-        if (folder == null) {
-            String label = type.getFolder(context);
-            if (label == null) throw new IllegalStateException("label is null");
+    /**
+     * @return the opened folder for the given type. Types backed up to the same label share
+     *         one folder (and with it one selected connection).
+     */
+    public synchronized BackupFolder getFolder(DataType type) throws MessagingException {
+        String label = type.getFolder(context);
+        if (label == null) throw new IllegalStateException("label is null");
 
-            folder = createAndOpenFolder(type, label);
-            openFolders.put(type, folder);
+        BackupFolder folder = openFolders.get(label);
+        if (folder == null) {
+            final long start = RunMetrics.begin(Stage.SELECT);
+            try {
+                folder = createAndOpenFolder(label);
+                pooledConnections = Math.max(0, pooledConnections - 1);
+            } finally {
+                RunMetrics.end(Stage.SELECT, start);
+            }
+            openFolders.put(label, folder);
         }
+        lastUsed = SystemClock.elapsedRealtime();
         return folder;
     }
 
-    public void closeFolders() {
-        Collection<BackupFolder> folders = openFolders.values();
-        for (BackupFolder folder : folders) {
+    @Override
+    public void checkSettings() throws MessagingException {
+        final long start = RunMetrics.begin(Stage.LOGIN);
+        try {
+            super.checkSettings();
+        } finally {
+            RunMetrics.end(Stage.LOGIN, start);
+        }
+    }
+
+    /**
+     * To be called when a run starts using this store, the store is shared between concurrent
+     * runs (e.g. a backup started during a restore).
+     */
+    public synchronized void acquire() {
+        users++;
+    }
+
+    /**
+     * To be called when a run is done with this store. The folders are closed once no other run
+     * uses them, and a store dropped in the meantime gets disconnected.
+     */
+    public synchronized void release() {
+        users = Math.max(0, users - 1);
+        if (users == 0) {
+            closeFolders();
+            if (disconnectWhenReleased) {
+                disconnect();
+            }
+        }
+    }
+
+    /**
+     * Closes all folders opened during this run, unless another run still uses them. The
+     * underlying connections are handed back to the store's pool and stay logged in, see
+     * {@link ImapConnectionManager}. The manifest database gets closed as well, it is reopened
+     * on demand.
+     */
+    public synchronized void closeFolders() {
+        lastUsed = SystemClock.elapsedRealtime();
+        if (users > 1) {
+            if (LOCAL_LOGV) Log.v(TAG, "store in use by " + users + " runs, keeping folders open");
+            return;
+        }
+        for (BackupFolder folder : openFolders.values()) {
             try {
                 folder.close();
+                pooledConnections++;
             } catch (Exception e) {
                 Log.w(TAG, e);
             }
         }
         openFolders.clear();
+        manifest.close();
+    }
+
+    /**
+     * Closes the folders and logs out all pooled connections, for a store which is not going to
+     * be used anymore. Deferred until the last run using the store has released it.
+     */
+    public synchronized void disconnect() {
+        if (users > 0) {
+            disconnectWhenReleased = true;
+            return;
+        }
+        for (BackupFolder folder : openFolders.values()) {
+            folder.logout();
+            folder.close();
+        }
+        openFolders.clear();
+        manifest.close();
+
+        // k9 has no API to shut down its pool, opening a folder takes a pooled connection out again
+        final Iterator<String> labels = existingFolders.iterator();
+        if (labels.hasNext()) {
+            final String label = labels.next();
+            for (; pooledConnections > 0; pooledConnections--) {
+                final BackupFolder folder = new BackupFolder(this, label);
+                try {
+                    folder.open(Folder.OPEN_MODE_RO);
+                    folder.logout();
+                } catch (MessagingException e) {
+                    Log.w(TAG, "error closing connection", e);
+                } finally {
+                    folder.close();
+                }
+            }
+        }
+        pooledConnections = 0;
+        disconnectWhenReleased = false;
     }
 
     @Override public String toString() {
@@ -113,19 +249,33 @@ public class BackupImapStore extends ImapStore {
         }
     }
 
+    /**
+     * @return time (in {@link SystemClock#elapsedRealtime()}) this store was last used
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
     /* package, for testing */ TrustedSocketFactory getTrustedSocketFactory() {
         return mTrustedSocketFactory;
     }
 
-    private @NotNull BackupFolder createAndOpenFolder(DataType type, @NotNull String label) throws MessagingException {
+    private @NotNull BackupFolder createAndOpenFolder(@NotNull String label) throws MessagingException {
         try {
-            BackupFolder folder = new BackupFolder(this, label, type);
-            if (!folder.exists()) {
-                Log.i(TAG, "Label '" + label + "' does not exist yet. Creating.");
-                folder.create(FolderType.HOLDS_MESSAGES);
+            BackupFolder folder = new BackupFolder(this, label);
+            if (!existingFolders.contains(label)) {
+                if (!folder.exists()) {
+                    Log.i(TAG, "Label '" + label + "' does not exist yet. Creating.");
+                    folder.create(FolderType.HOLDS_MESSAGES);
+                }
+                existingFolders.add(label);
             }
             folder.open(Folder.OPEN_MODE_RW);
             return folder;
+        } catch (MessagingException e) {
+            // label might have been removed on the server, check again next time
+            existingFolders.remove(label);
+            throw e;
         } catch (IllegalArgumentException e) {
             // thrown inside K9
             Log.e(TAG, "K9 error", e);
@@ -138,34 +288,30 @@ public class BackupImapStore extends ImapStore {
     }
 
     public class BackupFolder extends ImapFolder {
-        private final DataType type;
-
-        public BackupFolder(ImapStore store, String name, DataType type) {
+        public BackupFolder(ImapStore store, String name) {
             super(store, name);
-            this.type = type;
         }
 
-        public List<ImapMessage> getMessages(final int max, final boolean flagged, final Date since)
+        public List<ImapMessage> getMessages(final DataType type, final int max, final boolean flagged, final Date since)
                 throws MessagingException {
             if (LOCAL_LOGV)
-                Log.v(TAG, String.format(Locale.ENGLISH, "getMessages(%d, %b, %s)", max, flagged, since));
-
-            final List<ImapMessage> messages;
-            final ImapSearcher searcher = new ImapSearcher() {
-                @Override
-                public List<ImapResponse> search() throws IOException, MessagingException {
-                    final StringBuilder sb = new StringBuilder("UID SEARCH 1:*")
-                            .append(' ')
-                            .append(getQuery())
-                            .append(" UNDELETED");
-                    if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.format(since));
-                    if (flagged) sb.append(" FLAGGED");
+                Log.v(TAG, String.format(Locale.ENGLISH, "getMessages(%s, %d, %b, %s)", type, max, flagged, since));
 
-                    return executeSimpleCommand(sb.toString().trim());
+            if (!flagged && since == null) {
+                try {
+                    return getMessagesFromManifest(type, max);
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "error reading manifest, searching server", e);
                 }
-            };
+            }
 
-            final List<ImapMessage> msgs = search(searcher, null);
+            final List<ImapMessage> messages;
+            final List<ImapMessage> msgs;
+            if (useKeywords()) {
+                msgs = searchWithKeywords(type, flagged, since);
+            } else {
+                msgs = search(newSearcher("1:*", getQuery(type), flagged, since), null);
+            }
 
             Log.i(TAG, "Found " + msgs.size() + " msgs" + (since == null ? "" : " (since " + since + ")"));
             if (max > 0 && msgs.size() > max) {
@@ -187,13 +333,348 @@ public class BackupImapStore extends ImapStore {
                 messages = msgs;
             }
 
+            fetchSizes(messages);
             Collections.reverse(messages);
 
             return messages;
         }
 
-        private String getQuery() {
-            switch (this.type) {
+        /**
+         * Sets the sizes of the messages, so {@link #fetchInMemory} can pick the fetch path
+         * without another round trip.
+         */
+        private void fetchSizes(List<ImapMessage> messages) throws MessagingException {
+            final Map<String, ImapMessage> byUid = new HashMap<String, ImapMessage>(messages.size());
+            for (ImapMessage message : messages) {
+                byUid.put(message.getUid(), message);
+            }
+            final List<String> uids = new ArrayList<String>(byUid.keySet());
+            for (int start = 0; start < uids.size(); start += MANIFEST_FETCH_SIZE) {
+                final List<String> chunk = uids.subList(start, Math.min(uids.size(), start + MANIFEST_FETCH_SIZE));
+                final List<ImapResponse> responses;
+                try {
+                    responses = executeSimpleCommand(String.format(Locale.ENGLISH,
+                            "UID FETCH %s (UID RFC822.SIZE)", TextUtils.join(",", chunk)));
+                } catch (IOException e) {
+                    throw new MessagingException("error fetching sizes", e);
+                }
+                for (ImapResponse response : responses) {
+                    if (response.getTag() != null || response.size() < 3 ||
+                        !"FETCH".equalsIgnoreCase(String.valueOf(response.get(1))) ||
+                        !(response.get(2) instanceof ImapList)) {
+                        continue;
+                    }
+                    final ImapList fetchList = (ImapList) response.get(2);
+                    final ImapMessage message = byUid.get(fetchList.getKeyedString("UID"));
+                    if (message != null && fetchList.containsKey("RFC822.SIZE")) {
+                        message.setSize(fetchList.getNumber("RFC822.SIZE"));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Ends the session of the folder's connection, errors are only logged.
+         */
+        void logout() {
+            try {
+                executeSimpleCommand("LOGOUT");
+            } catch (IOException e) {
+                Log.w(TAG, "error logging out", e);
+            } catch (MessagingException e) {
+                Log.w(TAG, "error logging out", e);
+            }
+        }
+
+        /**
+         * Finds tagged messages with a keyword search, which does not need to look at the messages
+         * themselves. Messages can lack a keyword anywhere in the folder (older backups, the option
+         * toggled), those are listed with a flag search and only their UIDs get searched by header.
+         */
+        private List<ImapMessage> searchWithKeywords(DataType type, boolean flagged, Date since)
+                throws MessagingException {
+            final List<ImapMessage> messages = new ArrayList<ImapMessage>(
+                    search(newSearcher("1:*", getKeywordQuery(type), flagged, since), null));
+
+            final StringBuilder untaggedQuery = new StringBuilder();
+            for (DataType t : DataType.values()) {
+                if (untaggedQuery.length() > 0) untaggedQuery.append(' ');
+                untaggedQuery.append("UN").append(getKeywordQuery(t));
+            }
+            final List<Long> untagged = new ArrayList<Long>();
+            for (ImapMessage message : search(newSearcher("1:*", untaggedQuery.toString(), flagged, since), null)) {
+                final long uid = BackupManifest.parseUid(message.getUid());
+                if (uid > 0) untagged.add(uid);
+            }
+            if (!untagged.isEmpty()) {
+                messages.addAll(search(newSearcher("UID " + toSequenceSet(untagged), getQuery(type), flagged, since), null));
+                sort(messages, UidComparator.INSTANCE);
+            }
+            return messages;
+        }
+
+        private ImapSearcher newSearcher(final String uidRange, final String query, final boolean flagged, final Date since) {
+            return new ImapSearcher() {
+                @Override
+                public List<ImapResponse> search() throws IOException, MessagingException {
+                    final StringBuilder sb = new StringBuilder("UID SEARCH ")
+                            .append(uidRange)
+                            .append(' ')
+                            .append(query)
+                            .append(" UNDELETED");
+                    if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.format(since));
+                    if (flagged) sb.append(" FLAGGED");
+
+                    return executeSimpleCommand(sb.toString().trim());
+                }
+            };
+        }
+
+        /**
+         * Lists the messages to restore from the local manifest, after refreshing it with the
+         * messages added to (or removed from) the folder since the last refresh.
+         */
+        private List<ImapMessage> getMessagesFromManifest(DataType type, int max) throws MessagingException {
+            refreshManifest();
+
+            final List<BackupManifest.Entry> entries = manifest.getEntries(getName(), type, max);
+            final List<ImapMessage> messages = new ArrayList<ImapMessage>(entries.size());
+            for (BackupManifest.Entry entry : entries) {
+                final ImapMessage message = getMessage(String.valueOf(entry.uid));
+                if (entry.size > 0) {
+                    message.setSize((int) entry.size);
+                }
+                messages.add(message);
+            }
+            Log.i(TAG, "Found " + messages.size() + " msgs in manifest");
+            return messages;
+        }
+
+        /**
+         * Fetches the headers of all messages not yet in the manifest. Only UIDs are transferred
+         * for messages already known, and no header search is needed on the server.
+         */
+        public void refreshManifest() throws MessagingException {
+            final long uidValidity = queryUidValidity();
+            if (uidValidity == -1) {
+                // don't drop a valid manifest just because STATUS failed
+                Log.w(TAG, "UIDVALIDITY unknown, not validating manifest of " + getName());
+            } else {
+                manifest.validate(getName(), uidValidity);
+            }
+
+            final Set<Long> uids = new HashSet<Long>();
+            try {
+                for (ImapResponse response : executeSimpleCommand("UID SEARCH 1:* UNDELETED")) {
+                    if (response.getTag() != null || response.size() < 1 ||
+                        !"SEARCH".equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                        continue;
+                    }
+                    for (int i = 1; i < response.size(); i++) {
+                        final long uid = BackupManifest.parseUid(response.getString(i));
+                        if (uid > 0) uids.add(uid);
+                    }
+                }
+            } catch (IOException e) {
+                throw new MessagingException("error listing uids", e);
+            }
+
+            final List<Long> missing = new ArrayList<Long>(manifest.sync(getName(), uids));
+            if (LOCAL_LOGV) Log.v(TAG, "refreshing manifest, " + missing.size() + " new message(s)");
+
+            for (int start = 0; start < missing.size(); start += MANIFEST_FETCH_SIZE) {
+                final List<Long> chunk = missing.subList(start, Math.min(missing.size(), start + MANIFEST_FETCH_SIZE));
+                manifest.insert(getName(), fetchManifestEntries(chunk));
+            }
+        }
+
+        private List<BackupManifest.Entry> fetchManifestEntries(List<Long> uids) throws MessagingException {
+            final List<ImapResponse> responses;
+            try {
+                responses = executeSimpleCommand(String.format(Locale.ENGLISH,
+                        "UID FETCH %s (UID RFC822.SIZE BODY.PEEK[HEADER.FIELDS (%s)])",
+                        TextUtils.join(",", uids), MANIFEST_HEADERS));
+            } catch (IOException e) {
+                throw new MessagingException("error fetching headers", e);
+            }
+
+            final List<BackupManifest.Entry> entries = new ArrayList<BackupManifest.Entry>(uids.size());
+            for (ImapResponse response : responses) {
+                if (response.getTag() != null || response.size() < 3 ||
+                    !"FETCH".equalsIgnoreCase(String.valueOf(response.get(1))) ||
+                    !(response.get(2) instanceof ImapList)) {
+                    continue;
+                }
+                final ImapList fetchList = (ImapList) response.get(2);
+                if (!fetchList.containsKey("UID")) continue;
+
+                String headers = "";
+                for (int i = 0; i < fetchList.size(); i++) {
+                    final Object value = fetchList.getObject(i);
+                    // the header literal is the only value spanning lines
+                    if (value instanceof String && ((String) value).indexOf('\n') != -1) {
+                        headers = (String) value;
+                        break;
+                    }
+                }
+                final long uid = BackupManifest.parseUid(fetchList.getKeyedString("UID"));
+                final long size = fetchList.containsKey("RFC822.SIZE") ?
+                        fetchList.getNumber("RFC822.SIZE") : BackupManifest.UNKNOWN_SIZE;
+                entries.add(BackupManifest.Entry.fromHeaders(uid, size, headers));
+            }
+            return entries;
+        }
+
+        /**
+         * @return the UIDVALIDITY of this folder, or -1 if it could not be determined
+         */
+        public long queryUidValidity() {
+            try {
+                for (ImapResponse response : executeSimpleCommand("STATUS " + quote(getName()) + " (UIDVALIDITY)")) {
+                    if (response.getTag() == null && response.size() > 2 &&
+                        "STATUS".equalsIgnoreCase(String.valueOf(response.get(0))) &&
+                        response.get(2) instanceof ImapList) {
+                        return Long.parseLong(((ImapList) response.get(2)).getKeyedString("UIDVALIDITY"));
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "error querying UIDVALIDITY", e);
+            } catch (MessagingException e) {
+                Log.w(TAG, "error querying UIDVALIDITY", e);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "error querying UIDVALIDITY", e);
+            }
+            return -1;
+        }
+
+        /**
+         * Checks which of the given messages are already stored in this folder.
+         *
+         * @param messageIds Message-ID header values
+         * @return the subset of messageIds found on the server
+         */
+        public Set<String> findMessageIds(Collection<String> messageIds) throws MessagingException {
+            final List<String> ids = new ArrayList<String>(messageIds);
+            final Set<String> found = new HashSet<String>();
+            for (int start = 0; start < ids.size(); start += SEARCH_BATCH_SIZE) {
+                final List<String> chunk = ids.subList(start, Math.min(ids.size(), start + SEARCH_BATCH_SIZE));
+                final List<Long> uids = searchMessageIds(chunk);
+                if (uids.isEmpty()) continue;
+
+                // the search result does not say which term matched, fetch the ids back
+                for (BackupManifest.Entry entry : fetchManifestEntries(uids)) {
+                    if (entry.messageId != null && chunk.contains(entry.messageId)) {
+                        found.add(entry.messageId);
+                    }
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return the uids of messages matching any of the given Message-IDs, using a single
+         *         <code>UID SEARCH OR ...</code>
+         */
+        private List<Long> searchMessageIds(List<String> messageIds) throws MessagingException {
+            final StringBuilder query = new StringBuilder();
+            for (int i = 0; i < messageIds.size(); i++) {
+                if (i < messageIds.size() - 1) query.append("OR ");
+                query.append(String.format(Locale.ENGLISH, "HEADER MESSAGE-ID \"%s\" ",
+                        messageIds.get(i).replace("\\", "\\\\").replace("\"", "\\\"")));
+            }
+            final List<ImapResponse> responses;
+            try {
+                responses = executeSimpleCommand("UID SEARCH " + query.toString().trim());
+            } catch (IOException e) {
+                throw new MessagingException("error searching for message ids", e);
+            }
+            final List<Long> uids = new ArrayList<Long>();
+            for (ImapResponse response : responses) {
+                if (response.getTag() != null || response.size() < 2 ||
+                    !"SEARCH".equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                    continue;
+                }
+                for (int i = 1; i < response.size(); i++) {
+                    final long uid = BackupManifest.parseUid(response.getString(i));
+                    if (uid > 0) uids.add(uid);
+                }
+            }
+            return uids;
+        }
+
+        /**
+         * Fetches a complete message into memory, without going through k9's temp file bodies.
+         * Only done for messages known to fit into the pool's buffers, so large messages are
+         * not transferred twice.
+         *
+         * @return false if the message size is unknown or larger than the pool's buffer size,
+         *         in which case a regular fetch is needed
+         */
+        public boolean fetchInMemory(final ImapMessage message, final BodyBufferPool pool) throws MessagingException {
+            if (message.getSize() <= 0 || message.getSize() > pool.getBufferSize()) {
+                return false;
+            }
+            final List<ImapResponse> responses;
+            try {
+                responses = executeSimpleCommand(String.format(Locale.ENGLISH,
+                        "UID FETCH %s (UID RFC822.SIZE BODY.PEEK[]<0.%d>)", message.getUid(), pool.getBufferSize()));
+            } catch (IOException e) {
+                throw new MessagingException("error fetching message " + message.getUid(), e);
+            }
+
+            for (ImapResponse response : responses) {
+                if (response.getTag() != null || response.size() < 3 ||
+                    !"FETCH".equalsIgnoreCase(String.valueOf(response.get(1))) ||
+                    !(response.get(2) instanceof ImapList)) {
+                    continue;
+                }
+                final ImapList fetchList = (ImapList) response.get(2);
+                if (!fetchList.containsKey("BODY") ||
+                    (fetchList.containsKey("UID") && !message.getUid().equals(fetchList.getKeyedString("UID")))) {
+                    continue;
+                }
+                if (fetchList.getNumber("RFC822.SIZE") > pool.getBufferSize()) {
+                    return false;
+                }
+                // BODY [] <0> {literal}
+                for (int i = fetchList.getKeyIndex("BODY") + 2; i < fetchList.size(); i++) {
+                    final Object value = fetchList.getObject(i);
+                    if (value instanceof String && !((String) value).startsWith("<")) {
+                        return InMemoryBody.parse(message, (String) value, pool);
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tags messages appended by k9 with the keyword of their data type. Keywords can't be
+         * passed to k9's APPEND, so they get added with a separate STORE.
+         */
+        private void addKeyword(DataType type, List<? extends Message> messages) {
+            final List<String> uids = new ArrayList<String>(messages.size());
+            for (Message message : messages) {
+                if (BackupManifest.parseUid(message.getUid()) > 0) {
+                    uids.add(message.getUid());
+                }
+            }
+            if (uids.isEmpty()) return;
+            try {
+                executeSimpleCommand(String.format(Locale.ENGLISH, "UID STORE %s +FLAGS.SILENT (%s)",
+                        TextUtils.join(",", uids), type.getKeyword()));
+            } catch (IOException e) {
+                Log.w(TAG, "error setting keyword", e);
+            } catch (MessagingException e) {
+                Log.w(TAG, "error setting keyword", e);
+            }
+        }
+
+        private String getKeywordQuery(DataType type) {
+            return "KEYWORD " + type.getKeyword();
+        }
+
+        private String getQuery(DataType type) {
+            switch (type) {
             /* MMS/SMS are special cases since we need to support legacy backup headers */
                 case SMS:
                     return
@@ -227,7 +708,266 @@ public class BackupImapStore extends ImapStore {
 
         @Override
         public Map<String, String> appendMessages(List<? extends Message> messages) throws MessagingException {
-            return super.appendMessages(messages);
+            final Map<DataType, List<Message>> byType = groupByType(messages);
+            final Map<Message, Long> sizes = new IdentityHashMap<Message, Long>(messages.size());
+            final long serializeStart = RunMetrics.begin(Stage.SERIALIZE);
+            final long size;
+            try {
+                // counts the serialized bytes without keeping them
+                size = calculateSize(messages, byType, sizes);
+            } finally {
+                RunMetrics.end(Stage.SERIALIZE, serializeStart);
+            }
+
+            final Map<String, String> uids = appendRateLimited(messages, size, sizes);
+            for (Map.Entry<DataType, List<Message>> entry : byType.entrySet()) {
+                try {
+                    // uids have been set from APPENDUID responses
+                    manifest.recordAppended(getName(), entry.getKey(), entry.getValue());
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "error updating manifest", e);
+                }
+            }
+            return uids;
+        }
+
+        private Map<String, String> appendRateLimited(List<? extends Message> messages, long size,
+                                                      Map<Message, Long> sizes) throws MessagingException {
+            final long waitStart = RunMetrics.begin(Stage.WAIT);
+            try {
+                rateLimiter.acquire(messages.size(), size);
+            } catch (InterruptedException e) {
+                throw new MessagingException("interrupted while waiting for upload budget");
+            } finally {
+                RunMetrics.end(Stage.WAIT, waitStart);
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            final long appendStart = RunMetrics.begin(Stage.APPEND);
+            try {
+                final Map<String, String> uids = useKeywords() ?
+                        appendWithKeywords(messages, sizes) : super.appendMessages(messages);
+                rateLimiter.onSuccess(messages.size(), SystemClock.elapsedRealtime() - start);
+                return uids;
+            } catch (MessagingException e) {
+                rateLimiter.onError(e);
+                throw e;
+            } finally {
+                RunMetrics.end(Stage.APPEND, appendStart);
+            }
+        }
+
+        /**
+         * Appends the messages with the keyword of their data type in the APPEND flag list. k9's
+         * APPEND only passes system flags, so the command is sent as a whole, with the message as
+         * non-synchronizing literal. Servers without LITERAL+ (or LITERAL- for small messages)
+         * would wait for the literal, there and for large or 8bit messages k9 appends and the
+         * keyword is added with a STORE.
+         */
+        private Map<String, String> appendWithKeywords(List<? extends Message> messages, Map<Message, Long> sizes)
+                throws MessagingException {
+            // names are sent as they are, without k9's modified UTF-7 encoding
+            final int limit = isAscii(getName()) ? Math.min(getLiteralLimit(), KEYWORD_APPEND_MAX_SIZE) : 0;
+            final Map<String, String> uids = new HashMap<String, String>();
+            final List<Message> untagged = new ArrayList<Message>();
+            for (Message message : messages) {
+                final DataType type = getDataType(message);
+                final Long size = sizes.get(message);
+                final byte[] data = type == null || size == null || size > limit ? null : serialize(message);
+                if (data == null) {
+                    untagged.add(message);
+                    continue;
+                }
+                // keep the order of the messages
+                appendUntagged(untagged, uids);
+
+                final String oldUid = message.getUid();
+                final String uid = append(message, type, data);
+                if (uid != null) {
+                    message.setUid(uid);
+                    uids.put(oldUid, uid);
+                }
+            }
+            appendUntagged(untagged, uids);
+            return uids;
+        }
+
+        private void appendUntagged(List<Message> messages, Map<String, String> uids) throws MessagingException {
+            if (messages.isEmpty()) return;
+
+            uids.putAll(super.appendMessages(messages));
+            for (Map.Entry<DataType, List<Message>> entry : groupByType(messages).entrySet()) {
+                addKeyword(entry.getKey(), entry.getValue());
+            }
+            messages.clear();
+        }
+
+        /**
+         * @return the uid from the APPENDUID response, or null
+         */
+        private String append(Message message, DataType type, byte[] data) throws MessagingException {
+            final String flags = message.isSet(Flag.SEEN) ? "\\Seen " + type.getKeyword() : type.getKeyword();
+            final List<ImapResponse> responses;
+            try {
+                responses = executeSimpleCommand(String.format(Locale.ENGLISH, "APPEND %s (%s) {%d+}\r\n%s",
+                        quote(getName()), flags, data.length, new String(data, "US-ASCII")));
+            } catch (IOException e) {
+                throw new MessagingException("error appending message", e);
+            } catch (MessagingException e) {
+                // k9 puts the command, i.e. the whole message, into the error
+                final String error = String.valueOf(e.getMessage());
+                final int response = error.lastIndexOf("response:");
+                throw new MessagingException("APPEND failed" + (response == -1 ? "" : ", " + error.substring(response)),
+                        e.getCause());
+            }
+            for (ImapResponse response : responses) {
+                // tagged OK [APPENDUID uidvalidity uid]
+                if (response.getTag() != null && response.size() > 1 && response.get(1) instanceof ImapList) {
+                    final ImapList code = (ImapList) response.get(1);
+                    if (code.size() > 2 && "APPENDUID".equalsIgnoreCase(code.getString(0))) {
+                        return code.getString(2);
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the message with CRLF line endings, or null if it is not plain ASCII
+         */
+        private byte[] serialize(Message message) throws MessagingException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+                message.writeTo(eolOut);
+                eolOut.flush();
+            } catch (IOException e) {
+                throw new MessagingException("error serializing message", e);
+            }
+            final byte[] data = out.toByteArray();
+            for (byte b : data) {
+                if (b < 0) return null;
+            }
+            return data;
+        }
+
+        /**
+         * @return the largest literal the server accepts without a continuation, 0 if it needs one
+         *         for every literal
+         */
+        private int getLiteralLimit() {
+            if (literalLimit == -1) {
+                try {
+                    int limit = 0;
+                    for (ImapResponse response : executeSimpleCommand("CAPABILITY")) {
+                        if (response.getTag() != null || response.size() < 1 ||
+                            !"CAPABILITY".equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                            continue;
+                        }
+                        for (int i = 1; i < response.size(); i++) {
+                            final String capability = response.getString(i);
+                            if ("LITERAL+".equalsIgnoreCase(capability)) {
+                                limit = Integer.MAX_VALUE;
+                            } else if ("LITERAL-".equalsIgnoreCase(capability)) {
+                                limit = Math.max(limit, LITERAL_MINUS_MAX_SIZE);
+                            }
+                        }
+                    }
+                    literalLimit = limit;
+                } catch (IOException e) {
+                    Log.w(TAG, "error querying capabilities", e);
+                    return 0;
+                } catch (MessagingException e) {
+                    Log.w(TAG, "error querying capabilities", e);
+                    return 0;
+                }
+            }
+            return literalLimit;
+        }
+
+        /**
+         * @return the total size of the messages, sizes per type are counted in the run metrics
+         */
+        private long calculateSize(List<? extends Message> messages, Map<DataType, List<Message>> byType,
+                                   Map<Message, Long> sizes) throws MessagingException {
+            long size = 0;
+            for (Message message : messages) {
+                final long messageSize = message.calculateSize();
+                sizes.put(message, messageSize);
+                size += messageSize;
+            }
+            for (Map.Entry<DataType, List<Message>> entry : byType.entrySet()) {
+                long typeSize = 0;
+                for (Message message : entry.getValue()) {
+                    typeSize += sizes.get(message);
+                }
+                RunMetrics.count(entry.getKey(), entry.getValue().size(), typeSize);
+            }
+            return size;
+        }
+
+        private Map<DataType, List<Message>> groupByType(List<? extends Message> messages) {
+            final Map<DataType, List<Message>> byType = new EnumMap<DataType, List<Message>>(DataType.class);
+            for (Message message : messages) {
+                final DataType type = getDataType(message);
+                if (type == null) continue;
+
+                List<Message> list = byType.get(type);
+                if (list == null) {
+                    list = new ArrayList<Message>();
+                    byType.put(type, list);
+                }
+                list.add(message);
+            }
+            return byType;
+        }
+    }
+
+    private static DataType getDataType(Message message) {
+        return BackupManifest.getDataType(
+                Headers.get(message, Headers.DATATYPE),
+                Headers.get(message, Headers.TYPE));
+    }
+
+    private static String quote(String name) {
+        return "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static boolean isAscii(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < 0x20 || name.charAt(i) > 0x7e) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the uids as IMAP sequence set, with consecutive uids collapsed into ranges
+     */
+    static String toSequenceSet(Collection<Long> uids) {
+        final List<Long> sorted = new ArrayList<Long>(uids);
+        Collections.sort(sorted);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sorted.size(); i++) {
+            final long start = sorted.get(i);
+            while (i + 1 < sorted.size() && sorted.get(i + 1) <= sorted.get(i) + 1) i++;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(start);
+            if (sorted.get(i) > start) sb.append(':').append(sorted.get(i));
+        }
+        return sb.toString();
+    }
+
+    private boolean useKeywords() {
+        return new Preferences(context).isKeywordFlagsEnabled();
+    }
+
+    static class UidComparator implements Comparator<Message> {
+        static final UidComparator INSTANCE = new UidComparator();
+
+        public int compare(final Message m1, final Message m2) {
+            final long uid1 = BackupManifest.parseUid(m1.getUid());
+            final long uid2 = BackupManifest.parseUid(m2.getUid());
+            return uid1 < uid2 ? -1 : (uid1 == uid2 ? 0 : 1);
         }
     }
 
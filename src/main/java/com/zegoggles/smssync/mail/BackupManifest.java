@@ -0,0 +1,366 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.SmsConsts;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Local index of the messages stored on the server, per IMAP folder. Kept up to date from
+ * APPEND results during backup and refreshed incrementally (new UIDs only) before a restore,
+ * so restores can be planned without a full header search on the server.
+ */
+public class BackupManifest extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "manifest.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String MESSAGES = "messages";
+    private static final String FOLDERS = "folders";
+
+    private static final String FOLDER = "folder";
+    private static final String UID = "uid";
+    private static final String MESSAGE_ID = "message_id";
+    private static final String DATA_TYPE = "data_type";
+    private static final String DATE = "date";
+    private static final String ADDRESS = "address";
+    private static final String SIZE = "size";
+    private static final String UID_VALIDITY = "uid_validity";
+
+    /** size of messages which have not been refreshed from the server yet */
+    public static final int UNKNOWN_SIZE = -1;
+
+    public BackupManifest(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MESSAGES + " (" +
+                FOLDER + " TEXT NOT NULL, " +
+                UID + " INTEGER NOT NULL, " +
+                MESSAGE_ID + " TEXT, " +
+                DATA_TYPE + " TEXT, " +
+                DATE + " INTEGER, " +
+                ADDRESS + " TEXT, " +
+                SIZE + " INTEGER, " +
+                "PRIMARY KEY (" + FOLDER + ", " + UID + "))");
+        db.execSQL("CREATE INDEX idx_message_id ON " + MESSAGES + " (" + MESSAGE_ID + ")");
+        db.execSQL("CREATE TABLE " + FOLDERS + " (" +
+                FOLDER + " TEXT PRIMARY KEY, " +
+                UID_VALIDITY + " INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + MESSAGES);
+        db.execSQL("DROP TABLE IF EXISTS " + FOLDERS);
+        onCreate(db);
+    }
+
+    /**
+     * Makes sure the folder's entries belong to the given UIDVALIDITY, dropping them otherwise.
+     *
+     * @return true if the existing entries are still valid
+     */
+    public boolean validate(@NotNull String folder, long uidValidity) {
+        final SQLiteDatabase db = getWritableDatabase();
+        final Cursor cursor = db.query(FOLDERS, new String[]{UID_VALIDITY}, FOLDER + " = ?",
+                new String[]{folder}, null, null, null);
+        try {
+            if (cursor.moveToFirst() && cursor.getLong(0) == uidValidity && uidValidity != -1) {
+                return true;
+            }
+        } finally {
+            cursor.close();
+        }
+        db.beginTransaction();
+        try {
+            db.delete(MESSAGES, FOLDER + " = ?", new String[]{folder});
+            final ContentValues values = new ContentValues();
+            values.put(FOLDER, folder);
+            values.put(UID_VALIDITY, uidValidity);
+            db.replace(FOLDERS, null, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return false;
+    }
+
+    /**
+     * Brings the folder's entries in line with the UIDs currently on the server: entries of
+     * deleted messages are dropped.
+     *
+     * @param uids all UIDs currently in the folder
+     * @return the UIDs which are not known yet and need to be fetched
+     */
+    public Set<Long> sync(@NotNull String folder, @NotNull Set<Long> uids) {
+        final Set<Long> missing = new TreeSet<Long>(uids);
+        final List<Long> stale = new ArrayList<Long>();
+        final Cursor cursor = getReadableDatabase().query(MESSAGES, new String[]{UID}, FOLDER + " = ?",
+                new String[]{folder}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                final long uid = cursor.getLong(0);
+                if (!missing.remove(uid)) {
+                    stale.add(uid);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!stale.isEmpty()) {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Long uid : stale) {
+                    db.delete(MESSAGES, FOLDER + " = ? AND " + UID + " = ?", new String[]{folder, String.valueOf(uid)});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Records messages which have just been appended to the server.
+     *
+     * @param messages messages with the uids assigned by the server
+     */
+    public void recordAppended(@NotNull String folder, @NotNull DataType type, @NotNull Collection<? extends Message> messages) {
+        final List<Entry> entries = new ArrayList<Entry>(messages.size());
+        for (Message message : messages) {
+            final long uid = parseUid(message.getUid());
+            if (uid <= 0) continue;
+
+            entries.add(new Entry(uid,
+                    Headers.get(message, Headers.MESSAGE_ID),
+                    type,
+                    parseLong(Headers.get(message, Headers.DATE)),
+                    Headers.get(message, Headers.ADDRESS),
+                    UNKNOWN_SIZE));
+        }
+        insert(folder, entries);
+    }
+
+    public void insert(@NotNull String folder, @NotNull List<Entry> entries) {
+        if (entries.isEmpty()) return;
+
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final ContentValues values = new ContentValues();
+            for (Entry entry : entries) {
+                values.clear();
+                values.put(FOLDER, folder);
+                values.put(UID, entry.uid);
+                values.put(MESSAGE_ID, entry.messageId);
+                values.put(DATA_TYPE, entry.type == null ? null : entry.type.name());
+                values.put(DATE, entry.date);
+                values.put(ADDRESS, entry.address);
+                values.put(SIZE, entry.size);
+                db.replace(MESSAGES, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Plans a restore: returns the UIDs of the newest messages of a type, oldest first. Messages
+     * stored more than once on the server (same Message-ID) are only returned once.
+     *
+     * @param max maximum number of uids to return, or <= 0 for all
+     */
+    public List<String> getUids(@NotNull String folder, @NotNull DataType type, int max) {
+        final List<Entry> entries = getEntries(folder, type, max);
+        final List<String> uids = new ArrayList<String>(entries.size());
+        for (Entry entry : entries) {
+            uids.add(String.valueOf(entry.uid));
+        }
+        return uids;
+    }
+
+    /**
+     * Like {@link #getUids(String, DataType, int)}, with date and size of the messages.
+     */
+    public List<Entry> getEntries(@NotNull String folder, @NotNull DataType type, int max) {
+        final Cursor cursor = getReadableDatabase().rawQuery(String.format(Locale.ENGLISH,
+                "SELECT MIN(%1$s) AS min_uid, MAX(%2$s) AS max_date, MAX(%7$s) FROM %3$s " +
+                "WHERE %4$s = ? AND %5$s = ? " +
+                "GROUP BY IFNULL(%6$s, CAST(%1$s AS TEXT)) " +
+                "ORDER BY max_date DESC, min_uid DESC" + (max > 0 ? " LIMIT " + max : ""),
+                UID, DATE, MESSAGES, FOLDER, DATA_TYPE, MESSAGE_ID, SIZE),
+                new String[]{folder, type.name()});
+        try {
+            final List<Entry> entries = new ArrayList<Entry>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), null, type, cursor.getLong(1), null, cursor.getLong(2)));
+            }
+            Collections.reverse(entries);
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the number of distinct messages of a type stored on the server, and their
+     *         known total size in bytes
+     */
+    public Estimate estimate(@NotNull DataType type) {
+        final Cursor cursor = getReadableDatabase().rawQuery(String.format(Locale.ENGLISH,
+                "SELECT COUNT(DISTINCT IFNULL(%1$s, %2$s || '/' || CAST(%3$s AS TEXT))), SUM(CASE WHEN %4$s > 0 THEN %4$s ELSE 0 END) " +
+                "FROM %5$s WHERE %6$s = ?",
+                MESSAGE_ID, FOLDER, UID, SIZE, MESSAGES, DATA_TYPE),
+                new String[]{type.name()});
+        try {
+            return cursor.moveToFirst() ? new Estimate(cursor.getInt(0), cursor.getLong(1)) : new Estimate(0, 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if a message with this Message-ID is known to be on the server already
+     */
+    public boolean contains(@Nullable String messageId) {
+        if (messageId == null) return false;
+        final Cursor cursor = getReadableDatabase().query(MESSAGES, new String[]{UID}, MESSAGE_ID + " = ?",
+                new String[]{messageId}, null, null, null, "1");
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void clear() {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.delete(MESSAGES, null, null);
+        db.delete(FOLDERS, null, null);
+    }
+
+    /**
+     * Determines the type of a backed up message, with the same rules as the server side
+     * search in {@link BackupImapStore.BackupFolder} (including legacy headers).
+     */
+    static @Nullable DataType getDataType(@Nullable String dataTypeHeader, @Nullable String typeHeader) {
+        if (dataTypeHeader != null) {
+            try {
+                return DataType.valueOf(dataTypeHeader.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        } else if (typeHeader != null) {
+            final String type = typeHeader.trim();
+            if (type.equals(String.valueOf(SmsConsts.MESSAGE_TYPE_INBOX)) ||
+                type.equals(String.valueOf(SmsConsts.MESSAGE_TYPE_SENT))) {
+                return DataType.SMS;
+            } else if (type.equals(MmsConsts.LEGACY_HEADER)) {
+                return DataType.MMS;
+            }
+        }
+        return null;
+    }
+
+    static long parseUid(@Nullable String uid) {
+        try {
+            return uid == null ? -1 : Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseLong(@Nullable String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static class Entry {
+        public final long uid;
+        public final @Nullable String messageId;
+        public final @Nullable DataType type;
+        public final long date;
+        public final @Nullable String address;
+        public final long size;
+
+        public Entry(long uid,
+                     @Nullable String messageId,
+                     @Nullable DataType type,
+                     long date,
+                     @Nullable String address,
+                     long size) {
+            this.uid = uid;
+            this.messageId = messageId;
+            this.type = type;
+            this.date = date;
+            this.address = address;
+            this.size = size;
+        }
+
+        static Entry fromHeaders(long uid, long size, String headers) {
+            String messageId = null, dataType = null, type = null, date = null, address = null;
+            for (String line : headers.replaceAll("\r?\n[ \t]+", " ").split("\r?\n")) {
+                final int colon = line.indexOf(':');
+                if (colon <= 0) continue;
+                final String name = line.substring(0, colon).trim();
+                final String value = line.substring(colon + 1).trim();
+
+                if (Headers.MESSAGE_ID.equalsIgnoreCase(name)) {
+                    messageId = value;
+                } else if (Headers.DATATYPE.equalsIgnoreCase(name)) {
+                    dataType = value;
+                } else if (Headers.TYPE.equalsIgnoreCase(name)) {
+                    type = value;
+                } else if (Headers.DATE.equalsIgnoreCase(name)) {
+                    date = value;
+                } else if (Headers.ADDRESS.equalsIgnoreCase(name)) {
+                    address = value;
+                }
+            }
+            return new Entry(uid, messageId, getDataType(dataType, type), parseLong(date), address, size);
+        }
+
+        @Override public String toString() {
+            return "Entry{" +
+                    "uid=" + uid +
+                    ", messageId='" + messageId + '\'' +
+                    ", type=" + type +
+                    ", date=" + date +
+                    ", address='" + address + '\'' +
+                    ", size=" + size +
+                    '}';
+        }
+    }
+
+    public static class Estimate {
+        public final int count;
+        public final long size;
+
+        public Estimate(int count, long size) {
+            this.count = count;
+            this.size = size;
+        }
+    }
+}
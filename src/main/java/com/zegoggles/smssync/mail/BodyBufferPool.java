@@ -0,0 +1,43 @@
+package com.zegoggles.smssync.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recycles fixed size byte buffers used to keep restored message bodies in memory.
+ * Messages larger than {@link #getBufferSize()} are not held in memory but go through
+ * k9's temp file based bodies instead.
+ */
+public class BodyBufferPool {
+    private static final int MAX_POOLED = 4;
+
+    private final int bufferSize;
+    private final List<byte[]> buffers = new ArrayList<byte[]>(MAX_POOLED);
+
+    public BodyBufferPool(int bufferSize) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize <= 0");
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized byte[] acquire() {
+        if (buffers.isEmpty()) {
+            return new byte[bufferSize];
+        } else {
+            return buffers.remove(buffers.size() - 1);
+        }
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize && buffers.size() < MAX_POOLED) {
+            buffers.add(buffer);
+        }
+    }
+
+    /* package, for testing */ synchronized int pooled() {
+        return buffers.size();
+    }
+}
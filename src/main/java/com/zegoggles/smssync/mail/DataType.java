@@ -92,6 +92,13 @@ public enum DataType {
         return prefs(context).edit().putLong(maxSyncedPreference, max).commit();
     }
 
+    /**
+     * @return the IMAP keyword used to tag backed up messages of this type
+     */
+    public String getKeyword() {
+        return "$SmsBackup" + name();
+    }
+
     private SharedPreferences prefs(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context);
     }
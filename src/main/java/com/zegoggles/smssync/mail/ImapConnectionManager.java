@@ -0,0 +1,52 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import org.jetbrains.annotations.NotNull;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Hands out the store used for backups and restores. The store is kept between runs for a
+ * configurable idle period: k9 pools the authenticated connections of a store (checking them
+ * with a NOOP before reuse), so subsequent runs skip the TLS handshake, LOGIN / XOAUTH2 and
+ * CAPABILITY, and labels already known to exist are not LISTed again. Runs using the store
+ * {@link BackupImapStore#acquire() acquire} and {@link BackupImapStore#release() release} it,
+ * so concurrent runs don't close each other's folders.
+ */
+public class ImapConnectionManager {
+    private static BackupImapStore store;
+
+    private ImapConnectionManager() {}
+
+    /**
+     * @param uri the store uri, a different uri (e.g. after a token refresh) results in a new store
+     * @param keepAliveSeconds how long an unused store may be reused, 0 or less to always create a new one
+     */
+    public static synchronized @NotNull BackupImapStore getStore(Context context,
+                                                                  @NotNull String uri,
+                                                                  int keepAliveSeconds) throws MessagingException {
+        if (store != null && uri.equals(store.getStoreUri()) && keepAliveSeconds > 0 &&
+            SystemClock.elapsedRealtime() - store.getLastUsed() <= keepAliveSeconds * 1000L) {
+            if (LOCAL_LOGV) Log.v(TAG, "reusing " + store);
+            return store;
+        }
+        reset();
+        store = new BackupImapStore(context.getApplicationContext(), uri);
+        return store;
+    }
+
+    /**
+     * Drops the current store and closes its pooled connections, once the runs still using it
+     * are done. To be called when the account changes or the user logs out.
+     */
+    public static synchronized void reset() {
+        if (store != null) {
+            store.disconnect();
+            store = null;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.zegoggles.smssync.mail;
+
+import android.util.Log;
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Multipart;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.internet.MimeHeader;
+import com.fsck.k9.mail.internet.MimeMessage;
+import org.apache.james.mime4j.codec.Base64InputStream;
+import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
+import org.apache.james.mime4j.util.MimeUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * A message body held in a pooled buffer. Used during restore for small messages, which
+ * would otherwise each end up in a temp file via {@link BinaryTempFileBody}.
+ */
+public class InMemoryBody implements Body {
+    private final BodyBufferPool pool;
+    private final int length;
+    private final String transferEncoding;
+    private byte[] buffer;
+
+    InMemoryBody(BodyBufferPool pool, byte[] buffer, int length, String transferEncoding) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.length = length;
+        this.transferEncoding = transferEncoding;
+    }
+
+    /**
+     * @return the decoded body content
+     */
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        if (buffer == null) throw new MessagingException("body already released");
+
+        final InputStream in = new ByteArrayInputStream(buffer, 0, length);
+        if (MimeUtil.isQuotedPrintableEncoded(transferEncoding)) {
+            return new QuotedPrintableInputStream(in);
+        } else if (MimeUtil.isBase64Encoding(transferEncoding)) {
+            return new Base64InputStream(in);
+        } else {
+            return in;
+        }
+    }
+
+    @Override
+    public void setEncoding(String s) throws MessagingException {
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException, MessagingException {
+        if (buffer == null) throw new MessagingException("body already released");
+        outputStream.write(buffer, 0, length);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Parses a raw RFC822 message into the headers of the given message and an in-memory body.
+     * Headers already present on the message (e.g. from an envelope fetch) are replaced.
+     *
+     * @param message the message to populate
+     * @param raw the raw message, as returned by the server
+     * @param pool the pool providing the body buffer
+     * @return false if the body does not fit into a pooled buffer or the message is not 7bit,
+     *         in which case message is left untouched
+     */
+    public static boolean parse(@NotNull MimeMessage message, @NotNull String raw, @NotNull BodyBufferPool pool)
+            throws MessagingException {
+        if (!is7Bit(raw)) return false;
+
+        int separator = 4;
+        int headerEnd = raw.indexOf("\r\n\r\n");
+        if (headerEnd == -1) {
+            separator = 2;
+            headerEnd = raw.indexOf("\n\n");
+        }
+        final String headers = headerEnd == -1 ? raw : raw.substring(0, headerEnd);
+        final int bodyStart = headerEnd == -1 ? raw.length() : headerEnd + separator;
+        final int length = raw.length() - bodyStart;
+        if (length > pool.getBufferSize()) return false;
+
+        final List<String[]> parsed = new ArrayList<String[]>();
+        String name = null;
+        StringBuilder value = null;
+        for (String line : headers.split("\r?\n")) {
+            if (line.length() > 0 && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                // folded header
+                if (value != null) value.append(line);
+                continue;
+            }
+            if (name != null) {
+                parsed.add(new String[]{name, value.toString().trim()});
+            }
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                name = line.substring(0, colon).trim();
+                value = new StringBuilder(line.substring(colon + 1));
+            } else {
+                name = null;
+                value = null;
+            }
+        }
+        if (name != null) {
+            parsed.add(new String[]{name, value.toString().trim()});
+        }
+
+        final Set<String> replaced = new HashSet<String>();
+        for (String[] header : parsed) {
+            if (replaced.add(header[0].toLowerCase(Locale.ENGLISH))) {
+                message.removeHeader(header[0]);
+            }
+            message.addHeader(header[0], header[1]);
+        }
+
+        final byte[] buffer = pool.acquire();
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) raw.charAt(bodyStart + i);
+        }
+        message.setBody(new InMemoryBody(pool, buffer, length,
+                Headers.get(message, MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)));
+        return true;
+    }
+
+    private static boolean is7Bit(String raw) {
+        for (int i = 0; i < raw.length(); i++) {
+            if (raw.charAt(i) > 0x7f) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases all body resources held by a message once it has been processed: pooled buffers
+     * are recycled and temp files are deleted right away.
+     */
+    public static void release(@NotNull Message message) {
+        release(message.getBody());
+    }
+
+    private static void release(Body body) {
+        if (body instanceof InMemoryBody) {
+            ((InMemoryBody) body).release();
+        } else if (body instanceof BinaryTempFileBody) {
+            try {
+                // closing the stream deletes the underlying temp file
+                body.getInputStream().close();
+            } catch (IOException e) {
+                Log.w(TAG, "error releasing body", e);
+            } catch (MessagingException e) {
+                // temp file already gone
+                Log.w(TAG, "error releasing body", e);
+            }
+        } else if (body instanceof Multipart) {
+            final Multipart multipart = (Multipart) body;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                release(multipart.getBodyPart(i).getBody());
+            }
+        }
+    }
+}
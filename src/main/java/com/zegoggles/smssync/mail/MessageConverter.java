@@ -22,7 +22,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.provider.CallLog;
-import android.util.Log;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Message;
@@ -30,9 +29,8 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.zegoggles.smssync.MmsConsts;
 import com.zegoggles.smssync.SmsConsts;
-import com.zegoggles.smssync.contacts.ContactAccessor;
-import com.zegoggles.smssync.contacts.ContactGroup;
-import com.zegoggles.smssync.contacts.ContactGroupIds;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
 import com.zegoggles.smssync.preferences.AddressStyle;
 import com.zegoggles.smssync.preferences.MarkAsReadTypes;
 import com.zegoggles.smssync.preferences.Preferences;
@@ -47,9 +45,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 
-import static com.zegoggles.smssync.App.LOCAL_LOGV;
-import static com.zegoggles.smssync.App.TAG;
-
 public class MessageConverter {
     //ContactsContract.CommonDataKinds.Email.CONTENT_URI
     public static final Uri ECLAIR_CONTENT_URI =
@@ -65,8 +60,7 @@ public class MessageConverter {
 
     public MessageConverter(Context context, Preferences preferences,
                             String userEmail,
-                            PersonLookup personLookup,
-                            ContactAccessor contactAccessor) {
+                            PersonLookup personLookup) {
         mContext = context;
         mMarkAsReadType = preferences.getMarkAsReadType();
         mPersonLookup = personLookup;
@@ -78,17 +72,12 @@ public class MessageConverter {
             preferences.setReferenceUid(referenceUid);
         }
 
-        final ContactGroup backupContactGroup = preferences.getBackupContactGroup();
-        ContactGroupIds allowedIds = contactAccessor.getGroupContactIds(context.getContentResolver(), backupContactGroup);
-        if (LOCAL_LOGV) Log.v(TAG, "whitelisted ids for backup: " + allowedIds);
-
         mMessageGenerator = new MessageGenerator(mContext,
                 new Address(userEmail),
                 AddressStyle.getEmailAddressStyle(preferences),
                 new HeaderGenerator(referenceUid, preferences.getVersion(true)),
                 mPersonLookup,
                 preferences.getMailSubjectPrefix(),
-                allowedIds,
                 new MmsSupport(mContext.getContentResolver(), mPersonLookup));
     }
 
@@ -114,8 +103,21 @@ public class MessageConverter {
     public @NotNull ConversionResult convertMessages(final Cursor cursor, DataType dataType)
             throws MessagingException {
 
-        final Map<String, String> msgMap = getMessageMap(cursor);
-        final Message m = mMessageGenerator.messageForDataType(msgMap, dataType);
+        final long readStart = RunMetrics.begin(Stage.READ_ROW);
+        final Map<String, String> msgMap;
+        try {
+            msgMap = getMessageMap(cursor);
+        } finally {
+            RunMetrics.end(Stage.READ_ROW, readStart);
+        }
+
+        final long buildStart = RunMetrics.begin(Stage.MIME_BUILD);
+        final Message m;
+        try {
+            m = mMessageGenerator.messageForDataType(msgMap, dataType);
+        } finally {
+            RunMetrics.end(Stage.MIME_BUILD, buildStart);
+        }
         final ConversionResult result = new ConversionResult(dataType);
         if (m != null) {
             m.setFlag(Flag.SEEN, markAsSeen(dataType, msgMap));
@@ -139,7 +141,13 @@ public class MessageConverter {
                 if (is == null) {
                     throw new MessagingException("body.getInputStream() is null for " + message.getBody());
                 }
-                final String body = IOUtils.toString(is);
+                final String body;
+                try {
+                    body = IOUtils.toString(is);
+                } finally {
+                    // temp file bodies get deleted on close
+                    IOUtils.closeQuietly(is);
+                }
                 final String address = Headers.get(message, Headers.ADDRESS);
                 values.put(SmsConsts.BODY, body);
                 values.put(SmsConsts.ADDRESS, address);
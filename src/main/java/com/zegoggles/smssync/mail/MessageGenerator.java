@@ -15,7 +15,6 @@ import com.fsck.k9.mail.internet.TextBody;
 import com.zegoggles.smssync.Consts;
 import com.zegoggles.smssync.MmsConsts;
 import com.zegoggles.smssync.SmsConsts;
-import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.preferences.AddressStyle;
 import com.zegoggles.smssync.preferences.CallLogTypes;
 import com.zegoggles.smssync.preferences.Preferences;
@@ -37,7 +36,6 @@ class MessageGenerator {
     private final Address mUserAddress;
     private final PersonLookup mPersonLookup;
     private final boolean mPrefix;
-    private final @Nullable ContactGroupIds mContactsToBackup;
     private final CallFormatter mCallFormatter;
     private final AddressStyle mAddressStyle;
     private final MmsSupport mMmsSupport;
@@ -49,7 +47,6 @@ class MessageGenerator {
                             HeaderGenerator headerGenerator,
                             PersonLookup personLookup,
                             boolean mailSubjectPrefix,
-                            @Nullable ContactGroupIds contactsToBackup,
                             MmsSupport mmsSupport) {
         mHeaderGenerator = headerGenerator;
         mUserAddress = userAddress;
@@ -57,7 +54,6 @@ class MessageGenerator {
         mContext = context;
         mPersonLookup = personLookup;
         mPrefix = mailSubjectPrefix;
-        mContactsToBackup = contactsToBackup;
         mCallFormatter = new CallFormatter(mContext.getResources());
         mMmsSupport = mmsSupport;
         mCallLogTypes = CallLogTypes.getCallLogType(new Preferences(context));
@@ -77,7 +73,6 @@ class MessageGenerator {
         if (TextUtils.isEmpty(address)) return null;
 
         PersonRecord record = mPersonLookup.lookupPerson(address);
-        if (!includePersonInBackup(record, DataType.SMS)) return null;
 
         final Message msg = new MimeMessage();
         msg.setSubject(getSubject(DataType.SMS, record));
@@ -115,9 +110,6 @@ class MessageGenerator {
         if (details.isEmpty()) {
             Log.w(TAG, "no recipients found");
             return null;
-        } else if (!includeInBackup(DataType.MMS, details.records)) {
-            Log.w(TAG, "no recipients included");
-            return null;
         }
 
         final Message msg = new MimeMessage();
@@ -161,7 +153,6 @@ class MessageGenerator {
             return null;
         }
         PersonRecord record = mPersonLookup.lookupPerson(address);
-        if (!includePersonInBackup(record, DataType.CALLLOG)) return null;
 
         final Message msg = new MimeMessage();
         msg.setSubject(getSubject(DataType.CALLLOG, record));
@@ -205,22 +196,6 @@ class MessageGenerator {
                 mContext.getString(type.withField, record.getName());
     }
 
-    private boolean includeInBackup(DataType type, Iterable<PersonRecord> records) {
-        for (PersonRecord r : records) {
-            if (includePersonInBackup(r, type)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean includePersonInBackup(PersonRecord record, DataType type) {
-        final boolean backup = mContactsToBackup == null || mContactsToBackup.contains(record);
-        //noinspection PointlessBooleanExpression,ConstantConditions
-        if (LOCAL_LOGV && !backup) Log.v(TAG, "not backing up " + type + " / " + record);
-        return backup;
-    }
-
     private static int toInt(String s) {
         try {
              return Integer.valueOf(s);
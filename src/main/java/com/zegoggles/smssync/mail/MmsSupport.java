@@ -12,6 +12,8 @@ import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.TextBody;
 import com.zegoggles.smssync.Consts;
 import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
 import com.zegoggles.smssync.preferences.AddressStyle;
 import org.jetbrains.annotations.NotNull;
 
@@ -115,6 +117,15 @@ class MmsSupport {
     }
 
     public List<BodyPart> getMMSBodyParts(final Uri uriPart) throws MessagingException {
+        final long start = RunMetrics.begin(Stage.MMS_PARTS);
+        try {
+            return readMMSBodyParts(uriPart);
+        } finally {
+            RunMetrics.end(Stage.MMS_PARTS, start);
+        }
+    }
+
+    private List<BodyPart> readMMSBodyParts(final Uri uriPart) throws MessagingException {
         final List<BodyPart> parts = new ArrayList<BodyPart>();
         Cursor curPart = resolver.query(uriPart, null, null, null, null);
 
@@ -8,6 +8,9 @@ import android.os.Build;
 import android.provider.ContactsContract;
 import android.text.TextUtils;
 import android.util.Log;
+import com.zegoggles.smssync.collections.LongObjectHashMap;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.LinkedHashMap;
@@ -39,6 +42,9 @@ public class PersonLookup {
                 }
             };
 
+    // primary email by contact id, several numbers of a contact share the same address
+    private final LongObjectHashMap<String> mEmailCache = new LongObjectHashMap<String>();
+
     private final ContentResolver mResolver;
 
     public PersonLookup(ContentResolver resolver) {
@@ -47,38 +53,54 @@ public class PersonLookup {
     }
 
     /* Look up a person */
-    @SuppressWarnings("deprecation")
     public @NotNull PersonRecord lookupPerson(final String address) {
         if (TextUtils.isEmpty(address)) {
             return new PersonRecord(0, null, null, "-1");
         } else if (!mPeopleCache.containsKey(address)) {
-            Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
-                    android.provider.Contacts.Phones.CONTENT_FILTER_URL, Uri.encode(address));
-
-            Cursor c = mResolver.query(personUri, PHONE_PROJECTION, null, null, null);
-            final PersonRecord record;
-            if (c != null && c.moveToFirst()) {
-                long id = c.getLong(c.getColumnIndex(PHONE_PROJECTION[0]));
-                String number = NEW_CONTACT_API ? address : c.getString(c.getColumnIndex(PHONE_PROJECTION[2]));
-
-                record = new PersonRecord(
-                    id,
-                    c.getString(c.getColumnIndex(PHONE_PROJECTION[1])),
-                    getPrimaryEmail(id, number),
-                    number
-                );
-
-            } else {
-                if (LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
-                record = new PersonRecord(0, null, null, address);
+            final long start = RunMetrics.begin(Stage.CONTACT_LOOKUP);
+            try {
+                mPeopleCache.put(address, queryPerson(address));
+            } finally {
+                RunMetrics.end(Stage.CONTACT_LOOKUP, start);
             }
-            mPeopleCache.put(address, record);
-
-            if (c != null) c.close();
         }
         return mPeopleCache.get(address);
     }
 
+    @SuppressWarnings("deprecation")
+    private PersonRecord queryPerson(final String address) {
+        Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
+                android.provider.Contacts.Phones.CONTENT_FILTER_URL, Uri.encode(address));
+
+        Cursor c = mResolver.query(personUri, PHONE_PROJECTION, null, null, null);
+        final PersonRecord record;
+        if (c != null && c.moveToFirst()) {
+            long id = c.getLong(c.getColumnIndex(PHONE_PROJECTION[0]));
+            String number = NEW_CONTACT_API ? address : c.getString(c.getColumnIndex(PHONE_PROJECTION[2]));
+
+            record = new PersonRecord(
+                id,
+                c.getString(c.getColumnIndex(PHONE_PROJECTION[1])),
+                getCachedPrimaryEmail(id, number),
+                number
+            );
+
+        } else {
+            if (LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
+            record = new PersonRecord(0, null, null, address);
+        }
+
+        if (c != null) c.close();
+        return record;
+    }
+
+    private String getCachedPrimaryEmail(final long personId, final String number) {
+        if (!mEmailCache.containsKey(personId)) {
+            mEmailCache.put(personId, getPrimaryEmail(personId, number));
+        }
+        return mEmailCache.get(personId);
+    }
+
     @TargetApi(Build.VERSION_CODES.ECLAIR)
     @SuppressWarnings("deprecation")
     private String getPrimaryEmail(final long personId, final String number) {
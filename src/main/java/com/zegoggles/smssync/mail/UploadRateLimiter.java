@@ -0,0 +1,202 @@
+package com.zegoggles.smssync.mail;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Token buckets limiting the upload rate in messages and bytes per second. The effective
+ * rate adapts to the server: it is halved when the server reports throttling (Gmail answers
+ * with <code>[THROTTLED]</code>), reduced on dropped connections and slow appends, and
+ * slowly raised back towards the budget after appends which went through quickly. Without a
+ * configured budget uploads are not limited until the server throttles or drops the session,
+ * from then on the upload rate observed so far is used as budget.
+ */
+public class UploadRateLimiter {
+    /** seconds of budget which can be used up at once */
+    static final int BURST_SECONDS = 2;
+    static final double MIN_FACTOR = 0.05;
+    static final double INCREASE = 0.05;
+    /** appends taking longer than this per message count as slow */
+    static final long SLOW_APPEND_MS = 5000;
+    /** message budget if the server throttles before anything was sent */
+    static final double FALLBACK_MESSAGES_PER_SECOND = 2;
+
+    private final Bucket messages;
+    private final Bucket bytes;
+    private double factor = 1.0;
+    /** time of the first upload, -1 before */
+    private long started = -1;
+    private long sentMessages;
+    private long sentBytes;
+
+    /**
+     * @param messagesPerSecond message budget, 0 or less for no limit
+     * @param bytesPerSecond byte budget, 0 or less for no limit
+     */
+    public UploadRateLimiter(double messagesPerSecond, double bytesPerSecond) {
+        final long now = now();
+        this.messages = new Bucket(messagesPerSecond, now);
+        this.bytes = new Bucket(bytesPerSecond, now);
+    }
+
+    /**
+     * Blocks until the budget allows sending the given amount of data.
+     */
+    public synchronized void acquire(int messageCount, long byteCount) throws InterruptedException {
+        long delay;
+        while ((delay = Math.max(messages.getDelay(messageCount, factor, now()),
+                                 bytes.getDelay(byteCount, factor, now()))) > 0) {
+            if (LOCAL_LOGV) Log.v(TAG, "rate limit, waiting " + delay + "ms");
+            sleep(delay);
+        }
+        messages.take(messageCount);
+        bytes.take(byteCount);
+        if (started < 0) started = now();
+        sentMessages += messageCount;
+        sentBytes += byteCount;
+    }
+
+    /**
+     * @param messageCount number of messages appended
+     * @param elapsed time the append took, in ms
+     */
+    public synchronized void onSuccess(int messageCount, long elapsed) {
+        if (messageCount > 0 && elapsed / messageCount > SLOW_APPEND_MS) {
+            setFactor(factor * 0.9);
+        } else {
+            setFactor(factor + INCREASE);
+        }
+    }
+
+    public synchronized void onError(MessagingException e) {
+        if (isThrottled(e)) {
+            Log.w(TAG, "server is throttling uploads");
+            limitToObservedRate();
+            setFactor(factor / 2);
+        } else if (isBye(e)) {
+            Log.w(TAG, "server dropped the session");
+            limitToObservedRate();
+            setFactor(factor * 0.75);
+        } else if (hasIOExceptionCause(e)) {
+            setFactor(factor * 0.75);
+        }
+    }
+
+    /**
+     * @return true if uploads are currently limited
+     */
+    public synchronized boolean isLimited() {
+        return messages.maxRate > 0 || bytes.maxRate > 0;
+    }
+
+    public synchronized double getFactor() {
+        return factor;
+    }
+
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    protected void sleep(long ms) throws InterruptedException {
+        Thread.sleep(ms);
+    }
+
+    private void limitToObservedRate() {
+        if (isLimited()) return;
+
+        // rate of everything sent so far, counted over at least a second
+        final long now = now();
+        final double seconds = started < 0 ? 1 : Math.max(1000, now - started) / 1000d;
+        final double messageRate = sentMessages > 0 ? sentMessages / seconds : FALLBACK_MESSAGES_PER_SECOND;
+        final double byteRate = sentBytes / seconds;
+        if (LOCAL_LOGV) {
+            Log.v(TAG, String.format(Locale.ENGLISH, "limiting uploads to %.1f messages/s, %.0f bytes/s",
+                    messageRate, byteRate));
+        }
+        messages.setMaxRate(messageRate, now);
+        bytes.setMaxRate(byteRate, now);
+    }
+
+    private void setFactor(double factor) {
+        this.factor = Math.max(MIN_FACTOR, Math.min(1.0, factor));
+        if (LOCAL_LOGV) Log.v(TAG, String.format(Locale.ENGLISH, "upload rate factor: %.2f", this.factor));
+    }
+
+    /**
+     * @return true if the server answered with the <code>[THROTTLED]</code> response code
+     */
+    public static boolean isThrottled(MessagingException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().toUpperCase(Locale.ENGLISH).contains("[THROTTLED]")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the server closed the session with an untagged <code>BYE</code> response
+     */
+    public static boolean isBye(MessagingException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().toUpperCase(Locale.ENGLISH).startsWith("* BYE")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasIOExceptionCause(MessagingException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException) return true;
+        }
+        return false;
+    }
+
+    private static class Bucket {
+        private double maxRate;
+        private double tokens;
+        private long lastRefill;
+
+        Bucket(double maxRate, long now) {
+            this.maxRate = maxRate;
+            this.tokens = maxRate * BURST_SECONDS;
+            this.lastRefill = now;
+        }
+
+        /**
+         * @return ms to wait until cost can be taken, costs larger than the bucket only need a full bucket
+         */
+        long getDelay(double cost, double factor, long now) {
+            if (maxRate <= 0) return 0;
+
+            final double rate = maxRate * factor;
+            final double capacity = rate * BURST_SECONDS;
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1000d);
+            lastRefill = now;
+
+            final double needed = Math.min(cost, capacity);
+            return tokens >= needed ? 0 : (long) Math.ceil((needed - tokens) * 1000d / rate);
+        }
+
+        void setMaxRate(double maxRate, long now) {
+            this.maxRate = maxRate;
+            this.tokens = maxRate * BURST_SECONDS;
+            this.lastRefill = now;
+        }
+
+        void take(double cost) {
+            if (maxRate > 0) {
+                // might go negative for large messages, which delays the next upload
+                tokens -= cost;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.zegoggles.smssync.metrics;
+
+/**
+ * Latency histogram with power of two buckets in microseconds. Fixed size and allocation free,
+ * percentiles are accurate to the bucket (within a factor of two).
+ */
+public class Histogram {
+    static final int BUCKETS = 32;
+
+    private final int[] buckets = new int[BUCKETS];
+    private int count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[bucketFor(nanos / 1000)]++;
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) maxNanos = nanos;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, in microseconds
+     */
+    public long getPercentileMicros(double percentile) {
+        if (count == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundMicros(i), Math.max(1, maxNanos / 1000));
+            }
+        }
+        return maxNanos / 1000;
+    }
+
+    static int bucketFor(long micros) {
+        if (micros <= 1) return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+    }
+
+    static long upperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+}
@@ -0,0 +1,385 @@
+package com.zegoggles.smssync.metrics;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.format.DateFormat;
+import com.zegoggles.smssync.R;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.service.BackupType;
+import com.zegoggles.smssync.service.state.SmsSyncState;
+import com.zegoggles.smssync.service.state.State;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Local record of past backup and restore runs, used to spot changes in throughput and run
+ * time after app or server changes. Only the most recent {@link #MAX_RUNS} runs are kept.
+ */
+public class RunHistory extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "run_history.db";
+    private static final int DATABASE_VERSION = 1;
+
+    static final int MAX_RUNS = 500;
+    /** number of runs compared against the ones before them for the trend */
+    static final int TREND_WINDOW = 10;
+
+    private static final String RUNS = "runs";
+
+    private static final String ID = "_id";
+    private static final String KIND = "kind";
+    private static final String TRIGGER = "trigger";
+    private static final String STATE = "state";
+    private static final String STARTED = "started";
+    private static final String DURATION = "duration";
+    private static final String SMS_ITEMS = "sms_items";
+    private static final String MMS_ITEMS = "mms_items";
+    private static final String CALLLOG_ITEMS = "calllog_items";
+    private static final String BYTES = "bytes";
+    private static final String RETRIES = "retries";
+    private static final String ERROR = "error";
+
+    private static final String[] PROJECTION = {
+            KIND, TRIGGER, STATE, STARTED, DURATION, SMS_ITEMS, MMS_ITEMS, CALLLOG_ITEMS, BYTES, RETRIES, ERROR
+    };
+
+    public enum Kind {
+        BACKUP,
+        RESTORE,
+        /** backup without upload, see {@link com.zegoggles.smssync.service.BackupConfig#dryRun} */
+        DRY_RUN;
+
+        int getLabel() {
+            switch (this) {
+                case BACKUP:  return R.string.run_history_backups;
+                case RESTORE: return R.string.run_history_restores;
+                default:      return R.string.run_history_dry_runs;
+            }
+        }
+    }
+
+    public RunHistory(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + RUNS + " (" +
+                ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                KIND + " TEXT NOT NULL, " +
+                TRIGGER + " TEXT, " +
+                STATE + " TEXT, " +
+                STARTED + " INTEGER NOT NULL, " +
+                DURATION + " INTEGER NOT NULL, " +
+                SMS_ITEMS + " INTEGER NOT NULL, " +
+                MMS_ITEMS + " INTEGER NOT NULL, " +
+                CALLLOG_ITEMS + " INTEGER NOT NULL, " +
+                BYTES + " INTEGER NOT NULL, " +
+                RETRIES + " INTEGER NOT NULL, " +
+                ERROR + " TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + RUNS);
+        onCreate(db);
+    }
+
+    public void record(@NotNull Run run) {
+        final ContentValues values = new ContentValues();
+        values.put(KIND, run.kind.name());
+        values.put(TRIGGER, run.trigger == null ? null : run.trigger.name());
+        values.put(STATE, run.state == null ? null : run.state.name());
+        values.put(STARTED, run.started);
+        values.put(DURATION, run.duration);
+        values.put(SMS_ITEMS, run.smsItems);
+        values.put(MMS_ITEMS, run.mmsItems);
+        values.put(CALLLOG_ITEMS, run.callLogItems);
+        values.put(BYTES, run.bytes);
+        values.put(RETRIES, run.retries);
+        values.put(ERROR, run.error);
+
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.insert(RUNS, null, values);
+            db.delete(RUNS, ID + " NOT IN (SELECT " + ID + " FROM " + RUNS +
+                    " ORDER BY " + ID + " DESC LIMIT " + MAX_RUNS + ")", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the most recent runs of the given kind, newest first
+     */
+    public @NotNull List<Run> getRuns(@Nullable Kind kind, int limit) {
+        final List<Run> runs = new ArrayList<Run>();
+        final Cursor cursor = getReadableDatabase().query(RUNS, PROJECTION,
+                kind == null ? null : KIND + " = ?",
+                kind == null ? null : new String[]{kind.name()},
+                null, null, ID + " DESC", String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                runs.add(new Run(
+                        Kind.valueOf(cursor.getString(0)),
+                        cursor.isNull(1) ? null : valueOf(BackupType.class, cursor.getString(1)),
+                        cursor.isNull(2) ? null : valueOf(SmsSyncState.class, cursor.getString(2)),
+                        cursor.getLong(3),
+                        cursor.getLong(4),
+                        cursor.getInt(5),
+                        cursor.getInt(6),
+                        cursor.getInt(7),
+                        cursor.getLong(8),
+                        cursor.getInt(9),
+                        cursor.getString(10)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return runs;
+    }
+
+    public @NotNull Stats getStats(@NotNull Kind kind) {
+        return new Stats(getRuns(kind, MAX_RUNS));
+    }
+
+    public void clear() {
+        getWritableDatabase().delete(RUNS, null, null);
+    }
+
+    /**
+     * Run time percentiles and throughput trend, followed by the most recent runs.
+     */
+    public String summary(Context context, int recentRuns) {
+        final StringBuilder sb = new StringBuilder();
+        for (Kind kind : Kind.values()) {
+            final Stats stats = getStats(kind);
+            if (stats.count == 0) continue;
+
+            sb.append(context.getString(R.string.run_history_stats,
+                    context.getString(kind.getLabel()),
+                    stats.count,
+                    stats.getDurationPercentile(50) / 1000f,
+                    stats.getDurationPercentile(90) / 1000f,
+                    stats.getDurationPercentile(100) / 1000f));
+            if (stats.getPreviousThroughput() > 0) {
+                sb.append('\n').append(context.getString(R.string.run_history_trend,
+                        stats.getRecentThroughput(),
+                        stats.getPreviousThroughput(),
+                        Math.round(stats.getTrend() * 100)));
+            }
+            sb.append("\n\n");
+        }
+        final List<Run> runs = getRuns(null, recentRuns);
+        for (Run run : runs) {
+            sb.append(DateFormat.format("MM-dd kk:mm", new Date(run.started)))
+              .append(' ')
+              .append(context.getString(getLabel(run)))
+              .append(": ")
+              .append(context.getString(R.string.run_history_run,
+                      run.getItems(),
+                      run.duration / 1000f,
+                      run.getThroughput()));
+            if (run.retries > 0) {
+                sb.append(' ').append(context.getString(R.string.run_history_retries, run.retries));
+            }
+            if (run.error != null) {
+                sb.append(' ').append(run.error);
+            }
+            sb.append('\n');
+        }
+        return sb.length() == 0 ? context.getString(R.string.run_history_empty) : sb.toString().trim();
+    }
+
+    private static int getLabel(Run run) {
+        if (run.kind == Kind.DRY_RUN) {
+            return R.string.run_history_dry_run;
+        } else if (run.trigger == null) {
+            return R.string.run_history_restore;
+        } else {
+            return run.trigger.resId;
+        }
+    }
+
+    private static <T extends Enum<T>> T valueOf(Class<T> type, String name) {
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static class Run {
+        public final Kind kind;
+        public final @Nullable BackupType trigger;
+        public final @Nullable SmsSyncState state;
+        public final long started;
+        /** in ms */
+        public final long duration;
+        public final int smsItems;
+        public final int mmsItems;
+        public final int callLogItems;
+        public final long bytes;
+        public final int retries;
+        public final @Nullable String error;
+
+        public Run(Kind kind,
+                   @Nullable BackupType trigger,
+                   @Nullable SmsSyncState state,
+                   long started,
+                   long duration,
+                   int smsItems,
+                   int mmsItems,
+                   int callLogItems,
+                   long bytes,
+                   int retries,
+                   @Nullable String error) {
+            this.kind = kind;
+            this.trigger = trigger;
+            this.state = state;
+            this.started = started;
+            this.duration = duration;
+            this.smsItems = smsItems;
+            this.mmsItems = mmsItems;
+            this.callLogItems = callLogItems;
+            this.bytes = bytes;
+            this.retries = retries;
+            this.error = error;
+        }
+
+        /**
+         * @param trigger what started the run, null for restores
+         * @param result the final state of the run, null if it did not complete
+         */
+        public static Run from(@NotNull RunMetrics metrics,
+                               @NotNull Kind kind,
+                               @Nullable BackupType trigger,
+                               @Nullable State result) {
+            final long duration = metrics.getDurationMillis();
+            long bytes = 0;
+            for (DataType type : DataType.values()) {
+                bytes += metrics.getBytes(type);
+            }
+            final String error;
+            if (result == null) {
+                error = "incomplete";
+            } else if (result.exception != null) {
+                error = String.valueOf(result.exception.getMessage());
+            } else {
+                error = null;
+            }
+            return new Run(kind,
+                    trigger,
+                    result == null ? null : result.state,
+                    System.currentTimeMillis() - duration,
+                    duration,
+                    (int) metrics.getItems(DataType.SMS),
+                    (int) metrics.getItems(DataType.MMS),
+                    (int) metrics.getItems(DataType.CALLLOG),
+                    bytes,
+                    metrics.getRetries(),
+                    error);
+        }
+
+        public int getItems() {
+            return smsItems + mmsItems + callLogItems;
+        }
+
+        /**
+         * @return items per second
+         */
+        public float getThroughput() {
+            return duration <= 0 ? 0 : getItems() * 1000f / duration;
+        }
+
+        @Override
+        public String toString() {
+            return "Run{" +
+                    "kind=" + kind +
+                    ", trigger=" + trigger +
+                    ", state=" + state +
+                    ", duration=" + duration +
+                    ", items=" + getItems() +
+                    ", bytes=" + bytes +
+                    ", retries=" + retries +
+                    ", error='" + error + '\'' +
+                    '}';
+        }
+    }
+
+    public static class Stats {
+        public final int count;
+        private final long[] durations;
+        private final float recentThroughput;
+        private final float previousThroughput;
+
+        /**
+         * @param runs newest first
+         */
+        Stats(List<Run> runs) {
+            count = runs.size();
+            durations = new long[count];
+            final List<Run> withItems = new ArrayList<Run>();
+            for (int i = 0; i < count; i++) {
+                final Run run = runs.get(i);
+                durations[i] = run.duration;
+                if (run.getItems() > 0) withItems.add(run);
+            }
+            Arrays.sort(durations);
+
+            final int recent = Math.min(TREND_WINDOW, withItems.size());
+            recentThroughput = medianThroughput(withItems.subList(0, recent));
+            previousThroughput = medianThroughput(withItems.subList(recent, Math.min(withItems.size(), 2 * TREND_WINDOW)));
+        }
+
+        /**
+         * @param percentile between 0 and 100, nearest rank
+         * @return the run time in ms
+         */
+        public long getDurationPercentile(int percentile) {
+            if (count == 0) return 0;
+            final int rank = (int) Math.ceil(count * percentile / 100d);
+            return durations[Math.max(0, Math.min(count, rank) - 1)];
+        }
+
+        /**
+         * @return median items per second of the most recent runs which backed up anything
+         */
+        public float getRecentThroughput() {
+            return recentThroughput;
+        }
+
+        /**
+         * @return median items per second of the runs before the recent ones, 0 if there are none
+         */
+        public float getPreviousThroughput() {
+            return previousThroughput;
+        }
+
+        /**
+         * @return relative change of the recent throughput, e.g. -0.25 if it dropped by a quarter
+         */
+        public float getTrend() {
+            return previousThroughput <= 0 ? 0 : (recentThroughput - previousThroughput) / previousThroughput;
+        }
+
+        private static float medianThroughput(List<Run> runs) {
+            if (runs.isEmpty()) return 0;
+            final float[] throughput = new float[runs.size()];
+            for (int i = 0; i < throughput.length; i++) {
+                throughput[i] = runs.get(i).getThroughput();
+            }
+            Arrays.sort(throughput);
+            return throughput[(throughput.length - 1) / 2];
+        }
+    }
+}
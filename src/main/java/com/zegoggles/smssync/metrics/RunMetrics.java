@@ -0,0 +1,248 @@
+package com.zegoggles.smssync.metrics;
+
+import android.content.Context;
+import com.zegoggles.smssync.mail.DataType;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Stage timings and item / byte counts of a single backup or restore run.
+ * <p>
+ * The run is bound to the thread it was started on, the static recording methods do nothing
+ * if there is no active run on the calling thread. This keeps the instrumented classes free of
+ * extra parameters and makes recording from tests or unrelated callers harmless.
+ * <pre>
+ *     final long start = RunMetrics.begin(Stage.QUERY);
+ *     try {
+ *         ...
+ *     } finally {
+ *         RunMetrics.end(Stage.QUERY, start);
+ *     }
+ * </pre>
+ * Stages have to be ended in reverse order of beginning them when the run is traced, see
+ * {@link RunTrace}.
+ */
+public class RunMetrics {
+    private static final ThreadLocal<RunMetrics> CURRENT = new ThreadLocal<RunMetrics>();
+    private static volatile RunMetrics last;
+
+    private final Map<Stage, Histogram> stages = new EnumMap<Stage, Histogram>(Stage.class);
+    private final Map<DataType, long[]> counts = new EnumMap<DataType, long[]>(DataType.class);
+    private final long startNanos;
+    private final @Nullable RunTrace trace;
+    private long durationNanos = -1;
+    private int retries;
+
+    RunMetrics(long startNanos) {
+        this(startNanos, null);
+    }
+
+    RunMetrics(long startNanos, @Nullable RunTrace trace) {
+        this.startNanos = startNanos;
+        this.trace = trace;
+    }
+
+    /**
+     * Starts a new run on the calling thread, replacing any unfinished one.
+     */
+    public static RunMetrics start() {
+        return start(false);
+    }
+
+    /**
+     * @param trace also record a timeline of the run
+     */
+    public static RunMetrics start(boolean trace) {
+        final long now = now();
+        final RunMetrics metrics = new RunMetrics(now, trace ? new RunTrace(now) : null);
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * Finishes the run of the calling thread, it becomes available as {@link #getLast()}.
+     *
+     * @return the finished run, or null if none was started
+     */
+    public static @Nullable RunMetrics finish() {
+        final RunMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            CURRENT.remove();
+            final long now = now();
+            metrics.durationNanos = now - metrics.startNanos;
+            if (metrics.trace != null) {
+                metrics.trace.finish(now);
+            }
+            last = metrics;
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the most recently finished run
+     */
+    public static @Nullable RunMetrics getLast() {
+        return last;
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return the start time to pass to {@link #end(Stage, long)}
+     */
+    public static long begin(Stage stage) {
+        final RunMetrics metrics = CURRENT.get();
+        if (metrics != null && metrics.trace != null) {
+            metrics.trace.begin(stage);
+        }
+        return now();
+    }
+
+    /**
+     * Records the time passed since {@code startNanos} for the given stage.
+     */
+    public static void end(Stage stage, long startNanos) {
+        final RunMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            final long now = now();
+            metrics.add(stage, now - startNanos);
+            if (metrics.trace != null) {
+                metrics.trace.end(stage, startNanos, now);
+            }
+        }
+    }
+
+    /**
+     * Adds processed items of a data type.
+     */
+    public static void count(@Nullable DataType type, int items, long bytes) {
+        final RunMetrics metrics = CURRENT.get();
+        if (metrics != null && type != null) {
+            metrics.addCount(type, items, bytes);
+        }
+    }
+
+    /**
+     * Counts a retried operation, e.g. an upload after a connection error.
+     */
+    public static void retry() {
+        final RunMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            metrics.retries++;
+        }
+    }
+
+    void add(Stage stage, long nanos) {
+        Histogram histogram = stages.get(stage);
+        if (histogram == null) {
+            histogram = new Histogram();
+            stages.put(stage, histogram);
+        }
+        histogram.record(nanos);
+    }
+
+    void addCount(DataType type, int items, long bytes) {
+        long[] count = counts.get(type);
+        if (count == null) {
+            count = new long[2];
+            counts.put(type, count);
+        }
+        count[0] += items;
+        count[1] += bytes;
+    }
+
+    /**
+     * @return the timeline, or null if the run was not traced
+     */
+    public @Nullable RunTrace getTrace() {
+        return trace;
+    }
+
+    public @Nullable Histogram getHistogram(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getItems(DataType type) {
+        final long[] count = counts.get(type);
+        return count == null ? 0 : count[0];
+    }
+
+    public long getBytes(DataType type) {
+        final long[] count = counts.get(type);
+        return count == null ? 0 : count[1];
+    }
+
+    /**
+     * @return the run time in ms, or the time passed so far if the run is still active
+     */
+    public long getDurationMillis() {
+        return (durationNanos >= 0 ? durationNanos : now() - startNanos) / 1000000L;
+    }
+
+    /**
+     * @return the stage with the largest total time, or null if nothing was recorded
+     */
+    public @Nullable Stage getDominantStage() {
+        Stage dominant = null;
+        long max = -1;
+        for (Map.Entry<Stage, Histogram> entry : stages.entrySet()) {
+            if (entry.getValue().getTotalNanos() > max) {
+                max = entry.getValue().getTotalNanos();
+                dominant = entry.getKey();
+            }
+        }
+        return dominant;
+    }
+
+    /**
+     * @return share of the run time spent in the stage, 0-100
+     */
+    public int getPercentage(Stage stage) {
+        final Histogram histogram = stages.get(stage);
+        final long duration = durationNanos >= 0 ? durationNanos : now() - startNanos;
+        if (histogram == null || duration <= 0) return 0;
+        return (int) Math.min(100, histogram.getTotalNanos() * 100 / duration);
+    }
+
+    /**
+     * One line per data type and stage, for the app log.
+     */
+    public String summary(Context context) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "%d ms", getDurationMillis()));
+        for (Map.Entry<DataType, long[]> entry : counts.entrySet()) {
+            sb.append(String.format(Locale.ENGLISH, "\n%s: %d items, %d bytes",
+                    context.getString(entry.getKey().resId),
+                    entry.getValue()[0],
+                    entry.getValue()[1]));
+        }
+        for (Map.Entry<Stage, Histogram> entry : stages.entrySet()) {
+            final Histogram histogram = entry.getValue();
+            sb.append(String.format(Locale.ENGLISH, "\n%s: n=%d total=%d ms p50=%d µs p95=%d µs max=%d µs",
+                    context.getString(entry.getKey().resId),
+                    histogram.getCount(),
+                    histogram.getTotalNanos() / 1000000L,
+                    histogram.getPercentileMicros(50),
+                    histogram.getPercentileMicros(95),
+                    histogram.getMaxNanos() / 1000L));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "RunMetrics{" +
+                "stages=" + stages.keySet() +
+                ", durationMillis=" + getDurationMillis() +
+                '}';
+    }
+}
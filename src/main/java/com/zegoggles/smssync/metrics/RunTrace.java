@@ -0,0 +1,153 @@
+package com.zegoggles.smssync.metrics;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Timeline of the stages of a single run, exported in the Chrome trace event format (load it
+ * in chrome://tracing or Perfetto). Spans are also emitted as {@link Trace} sections on devices
+ * which support it, so they show up in systrace captures.
+ */
+public class RunTrace {
+    /** at most ~1 MB worth of spans, later ones get dropped */
+    static final int MAX_SPANS = 50000;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final boolean SYSTEM_TRACE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private final long startNanos;
+    private final boolean systemTrace;
+    private final long threadId;
+    private final String threadName;
+    private long durationNanos = -1;
+
+    private Stage[] stages = new Stage[INITIAL_CAPACITY];
+    private long[] starts = new long[INITIAL_CAPACITY];
+    private long[] durations = new long[INITIAL_CAPACITY];
+    private int size;
+    private int dropped;
+
+    RunTrace(long startNanos) {
+        this(startNanos, SYSTEM_TRACE);
+    }
+
+    RunTrace(long startNanos, boolean systemTrace) {
+        this.startNanos = startNanos;
+        this.systemTrace = systemTrace;
+        this.threadId = Thread.currentThread().getId();
+        this.threadName = Thread.currentThread().getName();
+    }
+
+    void begin(Stage stage) {
+        if (systemTrace) beginSection(stage);
+    }
+
+    void end(Stage stage, long start, long end) {
+        if (systemTrace) endSection();
+
+        if (size == MAX_SPANS) {
+            dropped++;
+            return;
+        }
+        if (size == stages.length) {
+            final int capacity = Math.min(MAX_SPANS, size * 2);
+            // no Arrays.copyOf before API 9
+            final Stage[] newStages = new Stage[capacity];
+            final long[] newStarts = new long[capacity];
+            final long[] newDurations = new long[capacity];
+            System.arraycopy(stages, 0, newStages, 0, size);
+            System.arraycopy(starts, 0, newStarts, 0, size);
+            System.arraycopy(durations, 0, newDurations, 0, size);
+            stages = newStages;
+            starts = newStarts;
+            durations = newDurations;
+        }
+        stages[size] = stage;
+        starts[size] = start;
+        durations[size] = end - start;
+        size++;
+    }
+
+    void finish(long endNanos) {
+        durationNanos = endNanos - startNanos;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDropped() {
+        return dropped;
+    }
+
+    public void writeTo(File file) throws IOException {
+        final Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the spans as complete ("X") events with microsecond timestamps relative to the
+     * start of the run.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writer.write("{\"traceEvents\":[\n");
+        writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + threadId +
+                ",\"args\":{\"name\":\"" + escape(threadName) + "\"}}");
+        writeEvent(writer, "run", "run", startNanos, durationNanos >= 0 ? durationNanos : 0);
+        for (int i = 0; i < size; i++) {
+            writeEvent(writer, stages[i].name(), "stage", starts[i], durations[i]);
+        }
+        writer.write("\n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"dropped\":\"" + dropped + "\"}}\n");
+    }
+
+    private void writeEvent(Writer writer, String name, String category, long start, long duration)
+            throws IOException {
+        writer.write(",\n{\"name\":\"");
+        writer.write(name);
+        writer.write("\",\"cat\":\"");
+        writer.write(category);
+        writer.write("\",\"ph\":\"X\",\"ts\":");
+        writer.write(Long.toString((start - startNanos) / 1000L));
+        writer.write(",\"dur\":");
+        writer.write(Long.toString(duration / 1000L));
+        writer.write(",\"pid\":1,\"tid\":");
+        writer.write(Long.toString(threadId));
+        writer.write('}');
+    }
+
+    static String escape(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.ENGLISH, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(Stage stage) {
+        Trace.beginSection(stage.name());
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSection() {
+        Trace.endSection();
+    }
+}
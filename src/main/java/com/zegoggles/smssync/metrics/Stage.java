@@ -0,0 +1,32 @@
+package com.zegoggles.smssync.metrics;
+
+import com.zegoggles.smssync.R;
+
+/**
+ * The timed steps of a backup or restore. Some of them nest (a MIME build includes contact
+ * lookups and MMS part reads), so their times do not add up to the run time.
+ * {@link #WAIT} covers time spent sleeping, in backoff or waiting for upload budget.
+ */
+public enum Stage {
+    QUERY(R.string.stage_query),
+    READ_ROW(R.string.stage_read_row),
+    CONTACT_LOOKUP(R.string.stage_contact_lookup),
+    MMS_PARTS(R.string.stage_mms_parts),
+    MIME_BUILD(R.string.stage_mime_build),
+    SERIALIZE(R.string.stage_serialize),
+    LOGIN(R.string.stage_login),
+    SELECT(R.string.stage_select),
+    SEARCH(R.string.stage_search),
+    APPEND(R.string.stage_append),
+    FETCH(R.string.stage_fetch),
+    INSERT(R.string.stage_insert),
+    UPDATE_THREADS(R.string.stage_update_threads),
+    COMMIT(R.string.stage_commit),
+    WAIT(R.string.stage_wait);
+
+    public final int resId;
+
+    Stage(int resId) {
+        this.resId = resId;
+    }
+}
@@ -49,6 +49,7 @@ public class AuthPreferences {
     private static final String OAUTH2_USER = "oauth2_user";
     private static final String OAUTH2_TOKEN = "oauth2_token";
     private static final String OAUTH2_REFRESH_TOKEN = "oauth2_refresh_token";
+    private static final String OAUTH2_TOKEN_EXPIRY = "oauth2_token_expiry";
 
     /**
      * IMAP URI.
@@ -100,7 +101,21 @@ public class AuthPreferences {
         return hasOauthTokens() && !hasOAuth2Tokens();
     }
 
+    /**
+     * @return time (in ms since the epoch) the current OAuth2 token expires, or -1 if unknown
+     */
+    public long getOauth2TokenExpiry() {
+        return getCredentials().getLong(OAUTH2_TOKEN_EXPIRY, -1);
+    }
+
     public void setOauth2Token(String username, String accessToken, String refreshToken) {
+        setOauth2Token(username, accessToken, refreshToken, -1);
+    }
+
+    /**
+     * @param expiresIn lifetime of the access token in seconds, as returned by the server, or -1 if unknown
+     */
+    public void setOauth2Token(String username, String accessToken, String refreshToken, int expiresIn) {
         preferences.edit()
                 .putString(OAUTH2_USER, username)
                 .commit();
@@ -111,6 +126,14 @@ public class AuthPreferences {
         getCredentials().edit()
                 .putString(OAUTH2_REFRESH_TOKEN, refreshToken)
                 .commit();
+
+        final SharedPreferences.Editor editor = getCredentials().edit();
+        if (expiresIn > 0) {
+            editor.putLong(OAUTH2_TOKEN_EXPIRY, System.currentTimeMillis() + expiresIn * 1000L);
+        } else {
+            editor.remove(OAUTH2_TOKEN_EXPIRY);
+        }
+        editor.commit();
     }
 
     @Deprecated
@@ -132,6 +155,7 @@ public class AuthPreferences {
         getCredentials().edit()
                 .remove(OAUTH2_TOKEN)
                 .remove(OAUTH2_REFRESH_TOKEN)
+                .remove(OAUTH2_TOKEN_EXPIRY)
                 .commit();
 
         if (!TextUtils.isEmpty(oauth2token)) {
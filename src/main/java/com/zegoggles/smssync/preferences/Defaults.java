@@ -17,6 +17,18 @@ class Defaults {
      * Default value for {@link Preferences#REGULAR_TIMEOUT_SECONDS}.
      */
     public static final int REGULAR_TIMEOUT_SECONDS = 2 * 60 * 60; // 2h
+    /**
+     * Default value for {@link Preferences#IMAP_KEEP_ALIVE_SECONDS}.
+     */
+    public static final int IMAP_KEEP_ALIVE_SECONDS = 60 * 3;
+    /**
+     * Default value for {@link Preferences#UPLOAD_MESSAGES_PER_SECOND}.
+     */
+    public static final int UPLOAD_MESSAGES_PER_SECOND = 0;
+    /**
+     * Default value for {@link Preferences#UPLOAD_BYTES_PER_SECOND}.
+     */
+    public static final int UPLOAD_BYTES_PER_SECOND = 0;
     /**
      * Default value for {@link Preferences#MAX_ITEMS_PER_SYNC}.
      */
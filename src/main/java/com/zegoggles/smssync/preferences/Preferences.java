@@ -32,13 +32,17 @@ import java.util.Locale;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG_DEBUG;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG_TRACE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_CONTACT_GROUP;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR_ENABLED;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CONFIRM_ACTION;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.ENABLE_AUTO_BACKUP;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.FIRST_USE;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.IMAP_KEEP_ALIVE_SECONDS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.INCOMING_TIMEOUT_SECONDS;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.INSTANT_BACKUP;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.KEYWORD_FLAGS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.LAST_VERSION_CODE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MAIL_SUBJECT_PREFIX;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MARK_AS_READ;
@@ -53,6 +57,8 @@ import static com.zegoggles.smssync.preferences.Preferences.Keys.RESTORE_STARRED
 import static com.zegoggles.smssync.preferences.Preferences.Keys.SMS_DEFAULT_PACKAGE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.SMS_DEFAULT_PACKAGE_CHANGE_SEEN;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.THIRD_PARTY_INTEGRATION;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.UPLOAD_BYTES_PER_SECOND;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.UPLOAD_MESSAGES_PER_SECOND;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.WIFI_ONLY;
 
 public class Preferences {
@@ -85,6 +91,7 @@ public class Preferences {
         THIRD_PARTY_INTEGRATION("third_party_integration"),
         APP_LOG("app_log"),
         APP_LOG_DEBUG("app_log_debug"),
+        APP_LOG_TRACE("app_log_trace"),
         LAST_VERSION_CODE("last_version_code"),
         CONFIRM_ACTION("confirm_action"),
         NOTIFICATIONS("notifications"),
@@ -94,6 +101,11 @@ public class Preferences {
         BACKUP_SETTINGS_SCREEN("auto_backup_settings_screen"),
         SMS_DEFAULT_PACKAGE("sms_default_package"),
         SMS_DEFAULT_PACKAGE_CHANGE_SEEN("sms_default_package_change_seen"),
+        KEYWORD_FLAGS("keyword_flags"),
+        IMAP_KEEP_ALIVE_SECONDS("imap_keep_alive"),
+        INSTANT_BACKUP("instant_backup"),
+        UPLOAD_MESSAGES_PER_SECOND("upload_messages_per_second"),
+        UPLOAD_BYTES_PER_SECOND("upload_bytes_per_second"),
         ;
 
         public final String key;
@@ -111,6 +123,11 @@ public class Preferences {
                 preferences.getBoolean(APP_LOG_DEBUG.key, false);
     }
 
+    public boolean isAppLogTrace() {
+        return  isAppLogEnabled() &&
+                preferences.getBoolean(APP_LOG_TRACE.key, false);
+    }
+
     public ContactGroup getBackupContactGroup() {
         return new ContactGroup(getStringAsInt(BACKUP_CONTACT_GROUP, -1));
     }
@@ -129,6 +146,13 @@ public class Preferences {
         return preferences.getBoolean(RESTORE_STARRED_ONLY.key, false);
     }
 
+    /**
+     * @return true if backed up messages should be tagged with a keyword per data type
+     */
+    public boolean isKeywordFlagsEnabled() {
+        return preferences.getBoolean(KEYWORD_FLAGS.key, false);
+    }
+
     public String getReferenceUid() {
         return preferences.getString(REFERENCE_UID.key, null);
     }
@@ -186,6 +210,34 @@ public class Preferences {
         return getStringAsInt(REGULAR_TIMEOUT_SECONDS, Defaults.REGULAR_TIMEOUT_SECONDS);
     }
 
+    /**
+     * @return true if incoming SMS should be backed up right away, in addition to the incoming schedule
+     */
+    public boolean isInstantBackupEnabled() {
+        return preferences.getBoolean(INSTANT_BACKUP.key, false);
+    }
+
+    /**
+     * @return maximum number of messages uploaded per second, 0 or less for no limit
+     */
+    public int getUploadMessagesPerSecond() {
+        return getStringAsInt(UPLOAD_MESSAGES_PER_SECOND, Defaults.UPLOAD_MESSAGES_PER_SECOND);
+    }
+
+    /**
+     * @return maximum number of bytes uploaded per second, 0 or less for no limit
+     */
+    public int getUploadBytesPerSecond() {
+        return getStringAsInt(UPLOAD_BYTES_PER_SECOND, Defaults.UPLOAD_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @return how long an idle IMAP session is kept for reuse, -1 to disable
+     */
+    public int getImapKeepAliveSecs() {
+        return getStringAsInt(IMAP_KEEP_ALIVE_SECONDS, Defaults.IMAP_KEEP_ALIVE_SECONDS);
+    }
+
     public void migrateMarkAsRead() {
         if (preferences.contains(MARK_AS_READ.key)) {
             SharedPreferences.Editor editor = preferences.edit();
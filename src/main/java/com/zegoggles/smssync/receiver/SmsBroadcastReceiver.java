@@ -23,6 +23,7 @@ import android.util.Log;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.Alarms;
+import com.zegoggles.smssync.service.ChangeObserverService;
 import com.zegoggles.smssync.utils.AppLog;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -45,6 +46,7 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
     private void bootup(Context context) {
         if (shouldSchedule(context)) {
             getAlarms(context).scheduleBootupBackup();
+            startChangeObserver(context);
         } else {
             Log.i(TAG, "Received bootup but not set up to back up.");
         }
@@ -52,7 +54,10 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
 
     private void incomingSMS(Context context) {
         if (shouldSchedule(context)) {
-            getAlarms(context).scheduleIncomingBackup();
+            final Alarms alarms = getAlarms(context);
+            alarms.scheduleInstantBackup();
+            // also acts as fallback if the instant backup fails
+            alarms.scheduleIncomingBackup();
         } else {
             Log.i(TAG, "Received SMS but not set up to back up.");
         }
@@ -82,11 +87,15 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
     private void log(Context context, String message, boolean appLog) {
         Log.d(TAG, message);
         if (appLog) {
-            new AppLog(DateFormat.getDateFormatOrder(context))
+            new AppLog(context, DateFormat.getDateFormatOrder(context))
                     .appendAndClose(message);
         }
     }
 
+    protected void startChangeObserver(Context context) {
+        ChangeObserverService.update(context);
+    }
+
     protected Alarms getAlarms(Context context) {
         return new Alarms(context);
     }
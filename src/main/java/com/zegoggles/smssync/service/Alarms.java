@@ -20,6 +20,7 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.util.Log;
 import com.zegoggles.smssync.preferences.Preferences;
 
@@ -32,6 +33,18 @@ import static com.zegoggles.smssync.service.BackupType.*;
 
 public class Alarms {
     private static final int BOOT_BACKUP_DELAY = 60;
+    private static final int FOLLOW_UP_BACKUP_DELAY = 10;
+    /** gives the SMS app a moment to write the received message to the provider */
+    private static final int INSTANT_BACKUP_DELAY = 1;
+
+    /**
+     * Incoming backups get pushed back by every new trigger, but run at the latest after
+     * this many incoming timeouts since the first pending trigger
+     */
+    static final int MAX_INCOMING_DELAY_FACTOR = 3;
+
+    private static final String PREFS = "alarms";
+    private static final String PENDING_INCOMING_SINCE = "pending_incoming_since";
 
     private final Preferences mPreferences;
     private Context mContext;
@@ -45,8 +58,37 @@ public class Alarms {
         mPreferences = preferences;
     }
 
+    /**
+     * Schedules a backup after an incoming message. Triggers arriving while a backup is
+     * already pending are coalesced into that backup.
+     */
     public long scheduleIncomingBackup() {
-        return scheduleBackup(mPreferences.getIncomingTimeoutSecs(), INCOMING, false);
+        return scheduleCoalescedBackup(mPreferences.getIncomingTimeoutSecs());
+    }
+
+    /**
+     * Schedules an immediate backup of the SMS which just arrived. The regular incoming backup
+     * should be scheduled as well, it picks up everything the instant backup does not cover.
+     * A burst of messages results in a single instant backup.
+     */
+    public long scheduleInstantBackup() {
+        if (!mPreferences.isInstantBackupEnabled()) return -1;
+        return scheduleBackup(INSTANT_BACKUP_DELAY, INSTANT, false,
+                createCoalescingPendingIntent(mContext, INSTANT));
+    }
+
+    /**
+     * Schedules a single extra run for triggers which arrived while a backup was running.
+     */
+    public long scheduleFollowUpBackup() {
+        return scheduleCoalescedBackup(FOLLOW_UP_BACKUP_DELAY);
+    }
+
+    /**
+     * To be called when a backup starts, it covers all pending triggers.
+     */
+    public void clearPendingBackup() {
+        prefs().edit().remove(PENDING_INCOMING_SINCE).commit();
     }
 
     public long scheduleRegularBackup() {
@@ -63,16 +105,51 @@ public class Alarms {
 
     public void cancel() {
         getAlarmManager(mContext).cancel(createPendingIntent(mContext, UNKNOWN));
+        getAlarmManager(mContext).cancel(createCoalescingPendingIntent(mContext, INCOMING));
+        getAlarmManager(mContext).cancel(createCoalescingPendingIntent(mContext, INSTANT));
+        clearPendingBackup();
+    }
+
+    private long scheduleCoalescedBackup(int inSeconds) {
+        final int incomingTimeout = mPreferences.getIncomingTimeoutSecs();
+        if (!mPreferences.isEnableAutoSync() || inSeconds <= 0 || incomingTimeout <= 0) {
+            if (LOCAL_LOGV) Log.v(TAG, "Not scheduling backup because auto sync is disabled.");
+            return -1;
+        }
+
+        final long now = System.currentTimeMillis();
+        long pendingSince = prefs().getLong(PENDING_INCOMING_SINCE, -1);
+        if (pendingSince <= 0 || pendingSince > now) {
+            pendingSince = now;
+            prefs().edit().putLong(PENDING_INCOMING_SINCE, pendingSince).commit();
+        }
+        final long latest = pendingSince + MAX_INCOMING_DELAY_FACTOR * incomingTimeout * 1000l;
+        final long atTime = Math.max(now, Math.min(now + inSeconds * 1000l, latest));
+
+        // same pending intent every time, so the alarm replaces any earlier one
+        getAlarmManager(mContext).set(AlarmManager.RTC_WAKEUP, atTime, createCoalescingPendingIntent(mContext, INCOMING));
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Scheduled coalesced backup due in " + (atTime - now) + "ms (pending since " + pendingSince + ")");
+        }
+        return atTime;
+    }
+
+    private SharedPreferences prefs() {
+        return mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
     }
 
     private long scheduleBackup(int inSeconds, BackupType backupType, boolean force) {
+        return scheduleBackup(inSeconds, backupType, force, createPendingIntent(mContext, backupType));
+    }
+
+    private long scheduleBackup(int inSeconds, BackupType backupType, boolean force, PendingIntent operation) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "scheduleBackup(" + mContext + ", " + inSeconds + ", " + backupType + ", " + force + ")");
         }
 
         if (force || (mPreferences.isEnableAutoSync() && inSeconds > 0)) {
             final long atTime = System.currentTimeMillis() + (inSeconds * 1000l);
-            getAlarmManager(mContext).set(AlarmManager.RTC_WAKEUP, atTime, createPendingIntent(mContext, backupType));
+            getAlarmManager(mContext).set(AlarmManager.RTC_WAKEUP, atTime, operation);
             if (LOCAL_LOGV) {
                 Log.v(TAG, "Scheduled backup due " + (inSeconds > 0 ? "in " + inSeconds + " seconds" : "now"));
             }
@@ -96,4 +173,12 @@ public class Alarms {
 
         return PendingIntent.getService(ctx, 0, intent, 0);
     }
+
+    private static PendingIntent createCoalescingPendingIntent(Context ctx, BackupType backupType) {
+        final Intent intent = (new Intent(ctx, SmsBackupService.class))
+            .setAction(backupType.name())
+            .putExtra(BackupType.EXTRA, backupType.name());
+
+        return PendingIntent.getService(ctx, 0, intent, 0);
+    }
 }
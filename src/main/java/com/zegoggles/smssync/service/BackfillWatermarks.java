@@ -0,0 +1,120 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.zegoggles.smssync.mail.DataType;
+
+import java.util.Collection;
+
+/**
+ * Persisted range of history still to be backed up by the backfill lane, per data type.
+ * Everything after the upper bound is handled by the regular backup (the max synced date),
+ * everything up to the lower bound has been uploaded already. Dates are in the units of the
+ * provider, like the max synced date (seconds for MMS). Items sharing the lower date are
+ * told apart by their id, so a batch can end in the middle of them.
+ */
+public class BackfillWatermarks {
+    private static final String PREFS = "backfill";
+    private static final String LOWER = "_lower";
+    private static final String LOWER_ID = "_lower_id";
+    private static final String UPPER = "_upper";
+    private static final String OBSERVED = "_observed";
+
+    private final SharedPreferences preferences;
+
+    BackfillWatermarks(Context context) {
+        this.preferences = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Hands the range (lower, upper] over to the backfill lane.
+     */
+    void start(DataType type, long lower, long upper) {
+        preferences.edit()
+                .putLong(type.name() + LOWER, lower)
+                .remove(type.name() + LOWER_ID)
+                .putLong(type.name() + UPPER, upper)
+                .commit();
+    }
+
+    boolean isActive(DataType type) {
+        return preferences.contains(type.name() + UPPER);
+    }
+
+    boolean isActive(Collection<DataType> types) {
+        for (DataType type : types) {
+            if (isActive(type)) return true;
+        }
+        return false;
+    }
+
+    long getLower(DataType type) {
+        return preferences.getLong(type.name() + LOWER, DataType.Defaults.MAX_SYNCED_DATE);
+    }
+
+    /**
+     * @return id of the last uploaded item at the lower date, or {@link BackupQueryBuilder#ALL_IDS}
+     * if all items at that date have been uploaded
+     */
+    long getLowerId(DataType type) {
+        return preferences.getLong(type.name() + LOWER_ID, BackupQueryBuilder.ALL_IDS);
+    }
+
+    long getUpper(DataType type) {
+        return preferences.getLong(type.name() + UPPER, DataType.Defaults.MAX_SYNCED_DATE);
+    }
+
+    /**
+     * Moves the lower bound after a batch has been uploaded, the range is dropped once complete.
+     */
+    void advance(DataType type, long date) {
+        advance(type, date, BackupQueryBuilder.ALL_IDS);
+    }
+
+    /**
+     * Moves the lower bound past the item with the given date and id.
+     */
+    void advance(DataType type, long date, long id) {
+        if (!isActive(type)) return;
+        final long lower = getLower(type);
+        if (date < lower || (date == lower && id <= getLowerId(type))) return;
+
+        final long upper = getUpper(type);
+        if (date > upper || (date == upper && id == BackupQueryBuilder.ALL_IDS)) {
+            finish(type);
+        } else {
+            preferences.edit()
+                    .putLong(type.name() + LOWER, date)
+                    .putLong(type.name() + LOWER_ID, id)
+                    .commit();
+        }
+    }
+
+    /**
+     * @return date of the newest item the last completed backup saw in the provider, anything
+     * after it has arrived since
+     */
+    long getObserved(DataType type) {
+        return preferences.getLong(type.name() + OBSERVED, DataType.Defaults.MAX_SYNCED_DATE);
+    }
+
+    void setObserved(DataType type, long date) {
+        preferences.edit().putLong(type.name() + OBSERVED, date).commit();
+    }
+
+    void finish(DataType type) {
+        preferences.edit()
+                .remove(type.name() + LOWER)
+                .remove(type.name() + LOWER_ID)
+                .remove(type.name() + UPPER)
+                .commit();
+    }
+
+    void clear() {
+        preferences.edit().clear().commit();
+    }
+
+    public static void clear(Context context) {
+        new BackfillWatermarks(context).clear();
+    }
+}
@@ -0,0 +1,71 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.UploadRateLimiter;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.cert.CertificateException;
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff for retrying server operations which failed because of a
+ * transient problem (connection reset, timeout, server closing or throttling the session).
+ */
+class Backoff {
+    static final int MAX_RETRIES = 5;
+    static final long BASE_DELAY = 2000;
+    static final long MAX_DELAY = 60 * 1000;
+
+    private final long baseDelay;
+    private final Random random;
+
+    Backoff() {
+        this(BASE_DELAY, new Random());
+    }
+
+    Backoff(long baseDelay, Random random) {
+        this.baseDelay = baseDelay;
+        this.random = random;
+    }
+
+    /**
+     * @param attempt the number of the failed attempt, starting at 0
+     * @return the time to wait in ms, between half and the full exponential delay
+     */
+    long getDelay(int attempt) {
+        final long delay = Math.min(MAX_DELAY, baseDelay << Math.min(attempt, 16));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    void sleep(int attempt) throws InterruptedException {
+        final long delay = getDelay(attempt);
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * @return true if the operation might succeed on a new connection
+     */
+    static boolean isTransient(MessagingException e) {
+        if (e instanceof AuthenticationFailedException) return false;
+        // certificate problems won't go away on reconnect, whatever they are wrapped in
+        if (hasCause(e, CertificateException.class)) return false;
+
+        // untagged BYE is sent by servers dropping the session, [THROTTLED] by Gmail when
+        // uploading too fast; other I/O errors (e.g. a malformed response) would just repeat
+        return UploadRateLimiter.isThrottled(e) ||
+               UploadRateLimiter.isBye(e) ||
+               hasCause(e, SocketTimeoutException.class) ||
+               hasCause(e, SocketException.class);
+    }
+
+    private static boolean hasCause(Throwable throwable, Class<? extends Throwable> cause) {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (cause.isInstance(t)) return true;
+        }
+        return false;
+    }
+}
@@ -4,10 +4,12 @@ import com.zegoggles.smssync.contacts.ContactGroup;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.EnumSet;
 
 public class BackupConfig {
+    /** null for dry runs */
     public final BackupImapStore imapStore;
     public final boolean skip;
     public final int currentTry;
@@ -16,6 +18,11 @@ public class BackupConfig {
     public final BackupType backupType;
     public final boolean debug;
     public final EnumSet<DataType> typesToBackup;
+    /**
+     * Fetch, convert and serialize the items without uploading them or moving the watermarks,
+     * to measure local throughput.
+     */
+    public final boolean dryRun;
 
     public BackupConfig(@NotNull BackupImapStore imapStore,
                         int currentTry,
@@ -25,7 +32,20 @@ public class BackupConfig {
                         @NotNull BackupType backupType,
                         @NotNull EnumSet<DataType> typesToBackup,
                         boolean debug) {
-        if (imapStore == null) throw new IllegalArgumentException("need imapstore");
+        this(imapStore, currentTry, skip, maxItemsPerSync, groupToBackup, backupType, typesToBackup, debug, false);
+    }
+
+    public BackupConfig(@Nullable BackupImapStore imapStore,
+                        int currentTry,
+                        boolean skip,
+                        int maxItemsPerSync,
+                        @NotNull ContactGroup groupToBackup,
+                        @NotNull BackupType backupType,
+                        @NotNull EnumSet<DataType> typesToBackup,
+                        boolean debug,
+                        boolean dryRun) {
+        if (imapStore == null && !dryRun) throw new IllegalArgumentException("need imapstore");
+        if (skip && dryRun) throw new IllegalArgumentException("cannot skip in a dry run");
         if (typesToBackup == null || typesToBackup.isEmpty()) throw new IllegalArgumentException("need to specify types to backup");
         if (currentTry < 0) throw new IllegalArgumentException("currentTry < 0");
 
@@ -37,6 +57,19 @@ public class BackupConfig {
         this.backupType = backupType;
         this.debug = debug;
         this.typesToBackup = typesToBackup;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * @return the same config with a new store, e.g. after the credentials have been refreshed
+     */
+    public BackupConfig withStore(BackupImapStore store) {
+        return new BackupConfig(store, currentTry,
+                skip,
+                maxItemsPerSync,
+                groupToBackup,
+                backupType,
+                typesToBackup, debug, dryRun);
     }
 
     public BackupConfig retryWithStore(BackupImapStore store) {
@@ -45,7 +78,7 @@ public class BackupConfig {
                 maxItemsPerSync,
                 groupToBackup,
                 backupType,
-                typesToBackup, debug);
+                typesToBackup, debug, dryRun);
     }
 
 
@@ -59,6 +92,7 @@ public class BackupConfig {
                 ", backupType=" + backupType +
                 ", debug=" + debug +
                 ", typesToBackup=" + typesToBackup +
+                ", dryRun=" + dryRun +
                 '}';
     }
 }
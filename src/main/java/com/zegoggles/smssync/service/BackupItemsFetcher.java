@@ -6,8 +6,11 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.util.Log;
+import com.zegoggles.smssync.SmsConsts;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -37,10 +40,64 @@ public class BackupItemsFetcher {
         return performQuery(queryBuilder.buildQueryForDataType(dataType, group, max));
     }
 
+    /**
+     * @return items in the range (after, until], in provider date units
+     */
+    public
+    @NotNull
+    Cursor getItemsForDataType(DataType dataType, ContactGroupIds group, long after, long until, int max) {
+        if (LOCAL_LOGV) Log.v(TAG, "getItemsForDataType(type=" + dataType + ", after=" + after + ", until=" + until + ")");
+        return performQuery(queryBuilder.buildRangeQueryForDataType(dataType, group, after, until, max));
+    }
+
+    /**
+     * @return items in the range (after, until], plus the items dated <code>after</code> with an
+     * id greater than <code>afterId</code>, ordered by date and id
+     */
+    public
+    @NotNull
+    Cursor getItemsForDataType(DataType dataType, ContactGroupIds group, long after, long afterId, long until, int max) {
+        if (LOCAL_LOGV) Log.v(TAG, "getItemsForDataType(type=" + dataType + ", after=" + after + ", afterId=" + afterId + ", until=" + until + ")");
+        return performQuery(queryBuilder.buildRangeQueryForDataType(dataType, group, after, afterId, until, max));
+    }
+
+    /**
+     * @return date (in provider units) of the oldest item not backed up yet, or -1 if there is none
+     */
+    public long getOldestUnsyncedTimestamp(DataType dataType) {
+        Cursor cursor = performQuery(queryBuilder.buildQueryForDataType(dataType, null, 1));
+        try {
+            final int index = cursor.getColumnIndex(SmsConsts.DATE);
+            if (index != -1 && cursor.moveToFirst()) {
+                return cursor.getLong(index);
+            } else {
+                return DataType.Defaults.MAX_SYNCED_DATE;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     public long getMostRecentTimestamp(DataType dataType) {
         return getMostRecentTimestampForQuery(queryBuilder.buildMostRecentQueryForDataType(dataType));
     }
 
+    /**
+     * Cheap pre-flight check, reads at most one row.
+     *
+     * @return true if the provider has items newer than the last backed up one
+     */
+    public boolean hasNewItems(DataType dataType) {
+        long mostRecent = getMostRecentTimestamp(dataType);
+        if (dataType == DataType.MMS && mostRecent > 0) {
+            // NB: MMS dates are stored in seconds
+            mostRecent *= 1000L;
+        }
+        final long maxSynced = dataType.getMaxSyncedDate(context);
+        if (LOCAL_LOGV) Log.v(TAG, "hasNewItems(" + dataType + "): mostRecent=" + mostRecent + ", maxSynced=" + maxSynced);
+        return mostRecent > maxSynced;
+    }
+
     private long getMostRecentTimestampForQuery(BackupQueryBuilder.Query query) {
         Cursor cursor = performQuery(query);
         try {
@@ -58,6 +115,7 @@ public class BackupItemsFetcher {
     @NotNull
     Cursor performQuery(@Nullable BackupQueryBuilder.Query query) {
         if (query == null) return emptyCursor();
+        final long start = RunMetrics.begin(Stage.QUERY);
         try {
             final Cursor cursor = resolver.query(
                     query.uri,
@@ -73,6 +131,8 @@ public class BackupItemsFetcher {
         } catch (NullPointerException e) {
             Log.w(TAG, "error querying DB", e);
             return emptyCursor();
+        } finally {
+            RunMetrics.end(Stage.QUERY, start);
         }
     }
 
@@ -3,7 +3,6 @@ package com.zegoggles.smssync.service;
 import android.content.Context;
 import android.net.Uri;
 import android.provider.CallLog;
-import android.text.TextUtils;
 import android.util.Log;
 import com.zegoggles.smssync.Consts;
 import com.zegoggles.smssync.MmsConsts;
@@ -12,8 +11,10 @@ import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.DataType;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
-import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -32,6 +33,10 @@ class BackupQueryBuilder {
         CallLog.Calls.TYPE
     };
 
+    static final long NO_LIMIT = -1;
+    /** afterId which excludes all items at the after date */
+    static final long ALL_IDS = Long.MAX_VALUE;
+
     public BackupQueryBuilder(Context context) {
         this.context = context;
     }
@@ -50,18 +55,39 @@ class BackupQueryBuilder {
             this.selectionArgs = selectionArgs;
             this.sortOrder = sortOrder;
         }
+    }
 
-        Query(Uri uri, String[] projection, String selection, String[] selectionArgs, int max) {
-            this(uri, projection, selection, selectionArgs,
-                    max > 0 ? SmsConsts.DATE + " LIMIT "+max : SmsConsts.DATE);
+    public @Nullable Query buildQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds, int max) {
+        long maxSynced = type.getMaxSyncedDate(context);
+        if (type == MMS && maxSynced > 0) {
+            // NB: max synced date is stored in seconds since epoch in database
+            maxSynced = (long) (maxSynced / 1000d);
         }
+        return buildRangeQueryForDataType(type, groupIds, maxSynced, NO_LIMIT, max);
     }
 
-    public @Nullable Query buildQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds, int max) {
+    /**
+     * @param after  only items after this date (in provider units)
+     * @param until  only items up to and including this date, or {@link #NO_LIMIT}
+     */
+    public @Nullable Query buildRangeQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds,
+                                                      long after, long until, int max) {
+        return buildRangeQueryForDataType(type, groupIds, after, ALL_IDS, until, max);
+    }
+
+    /**
+     * Like {@link #buildRangeQueryForDataType(DataType, ContactGroupIds, long, long, int)}, but also
+     * includes the items dated exactly <code>after</code> whose id is greater than <code>afterId</code>,
+     * ordered by (date, id) so that batches can be paged without skipping items sharing a date.
+     *
+     * @param afterId only items at the after date with a greater id, or {@link #ALL_IDS}
+     */
+    public @Nullable Query buildRangeQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds,
+                                                      long after, long afterId, long until, int max) {
         switch (type) {
-            case SMS:     return getQueryForSMS(groupIds, max);
-            case MMS:     return getQueryForMMS(groupIds, max);
-            case CALLLOG: return getQueryForCallLog(max);
+            case SMS:     return getQueryForSMS(groupIds, after, afterId, until, max);
+            case MMS:     return getQueryForMMS(groupIds, after, afterId, until, max);
+            case CALLLOG: return getQueryForCallLog(after, afterId, until, max);
             default:      return null;
         }
     }
@@ -94,50 +120,70 @@ class BackupQueryBuilder {
         }
     }
 
-    private Query getQueryForSMS(@Nullable ContactGroupIds groupIds, int max) {
+    private Query getQueryForSMS(@Nullable ContactGroupIds groupIds, long after, long afterId, long until, int max) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder selection = new StringBuilder(afterSelection(SmsConsts.DATE, SmsConsts.ID, after, afterId, args));
+        selection.append(" AND ").append(SmsConsts.TYPE).append(" <> ?");
+        args.add(String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT));
+        selection.append(untilSelection(SmsConsts.DATE, until, args))
+                 .append(' ').append(groupSelection(SMS, groupIds));
         return new Query(Consts.SMS_PROVIDER,
             null,
-            String.format(Locale.ENGLISH,
-                "%s > ? AND %s <> ? %s",
-                    SmsConsts.DATE,
-                    SmsConsts.TYPE,
-                    groupSelection(SMS, groupIds)).trim(),
-            new String[] {
-                String.valueOf(SMS.getMaxSyncedDate(context)),
-                String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT)
-            },
-            max);
+            selection.toString().trim(),
+            args.toArray(new String[args.size()]),
+            sortOrder(SmsConsts.DATE, SmsConsts.ID, afterId, max));
     }
 
-    private Query getQueryForMMS(@Nullable ContactGroupIds group, int max) {
-        long maxSynced = MMS.getMaxSyncedDate(context);
-        if (maxSynced > 0) {
-            // NB: max synced date is stored in seconds since epoch in database
-            maxSynced = (long) (maxSynced / 1000d);
-        }
+    private Query getQueryForMMS(@Nullable ContactGroupIds group, long after, long afterId, long until, int max) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder selection = new StringBuilder(afterSelection(MmsConsts.DATE, MmsConsts.ID, after, afterId, args));
+        selection.append(" AND ").append(MmsConsts.TYPE).append(" <> ?");
+        args.add(MmsConsts.DELIVERY_REPORT);
+        selection.append(untilSelection(MmsConsts.DATE, until, args))
+                 .append(' ').append(groupSelection(DataType.MMS, group));
         return new Query(
             Consts.MMS_PROVIDER,
             null,
-            String.format(Locale.ENGLISH, "%s > ? AND %s <> ? %s",
-                    SmsConsts.DATE,
-                    MmsConsts.TYPE,
-                    groupSelection(DataType.MMS, group)).trim(),
-            new String[] {
-                String.valueOf(maxSynced),
-                MmsConsts.DELIVERY_REPORT
-            },
-            max);
+            selection.toString().trim(),
+            args.toArray(new String[args.size()]),
+            sortOrder(MmsConsts.DATE, MmsConsts.ID, afterId, max));
     }
 
-    private Query getQueryForCallLog(int max) {
+    private Query getQueryForCallLog(long after, long afterId, long until, int max) {
+        List<String> args = new ArrayList<String>();
+        final String selection = afterSelection(CallLog.Calls.DATE, CallLog.Calls._ID, after, afterId, args) +
+                untilSelection(CallLog.Calls.DATE, until, args);
         return new Query(
             Consts.CALLLOG_PROVIDER,
             CALLLOG_PROJECTION,
-            String.format(Locale.ENGLISH, "%s > ?", CallLog.Calls.DATE),
-            new String[] {
-                String.valueOf(CALLLOG.getMaxSyncedDate(context))
-            },
-            max);
+            selection,
+            args.toArray(new String[args.size()]),
+            sortOrder(CallLog.Calls.DATE, CallLog.Calls._ID, afterId, max));
+    }
+
+    private static String afterSelection(String dateColumn, String idColumn, long after, long afterId, List<String> args) {
+        args.add(String.valueOf(after));
+        if (afterId == ALL_IDS) {
+            return String.format(Locale.ENGLISH, "%s > ?", dateColumn);
+        } else {
+            args.add(String.valueOf(after));
+            args.add(String.valueOf(afterId));
+            return String.format(Locale.ENGLISH, "(%s > ? OR (%s = ? AND %s > ?))", dateColumn, dateColumn, idColumn);
+        }
+    }
+
+    private static String untilSelection(String column, long until, List<String> args) {
+        if (until == NO_LIMIT) {
+            return "";
+        } else {
+            args.add(String.valueOf(until));
+            return String.format(Locale.ENGLISH, " AND %s <= ?", column);
+        }
+    }
+
+    private static String sortOrder(String dateColumn, String idColumn, long afterId, int max) {
+        final String order = afterId == ALL_IDS ? dateColumn : dateColumn + ", " + idColumn;
+        return max > 0 ? order + " LIMIT " + max : order;
     }
 
     private String groupSelection(DataType type, @Nullable ContactGroupIds group) {
@@ -146,13 +192,13 @@ class BackupQueryBuilder {
             return "";
         }
 
-        final Set<Long> ids = group.getRawIds();
+        final long[] ids = group.getRawIds();
 
-        if (LOCAL_LOGV) Log.v(TAG, "only selecting contacts matching " + ids);
+        if (LOCAL_LOGV) Log.v(TAG, "only selecting contacts matching " + Arrays.toString(ids));
         return String.format(Locale.ENGLISH, " AND (%s = %d OR %s IN (%s))",
             SmsConsts.TYPE,
             SmsConsts.MESSAGE_TYPE_SENT,
             SmsConsts.PERSON,
-            TextUtils.join(",", ids.toArray(new Long[ids.size()])));
+            ContactGroupIds.join(ids));
     }
 }
@@ -1,7 +1,10 @@
 package com.zegoggles.smssync.service;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Message;
@@ -10,6 +13,7 @@ import com.fsck.k9.mail.store.XOAuth2AuthenticationFailedException;
 import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.R;
+import com.zegoggles.smssync.SmsConsts;
 import com.zegoggles.smssync.auth.OAuth2Client;
 import com.zegoggles.smssync.auth.TokenRefreshException;
 import com.zegoggles.smssync.auth.TokenRefresher;
@@ -20,16 +24,27 @@ import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.CallFormatter;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.mail.PersonLookup;
+import com.zegoggles.smssync.metrics.RunHistory;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.state.BackupState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -45,6 +60,17 @@ import static com.zegoggles.smssync.service.state.SmsSyncState.FINISHED_BACKUP;
 import static com.zegoggles.smssync.service.state.SmsSyncState.LOGIN;
 
 class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
+    /** how often to check for the received message to show up in the provider */
+    static final int INSTANT_POLL_COUNT = 10;
+    static final int INSTANT_POLL_INTERVAL_MS = 500;
+    /** items newer than this go through the priority lane, older ones are left to the backfill lane */
+    static final long RECENT_WINDOW_MS = 7 * 24 * 60 * 60 * 1000L;
+    /** how long the backfill lane may run per backup */
+    static final long BACKFILL_SLICE_MS = 2 * 60 * 1000L;
+    static final int BACKFILL_BATCH_SIZE = 50;
+    /** cursor items appended and journaled together */
+    static final int UPLOAD_BATCH_SIZE = 20;
+
     private final SmsBackupService service;
     private final BackupItemsFetcher fetcher;
     private final MessageConverter converter;
@@ -53,7 +79,15 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
     private final Preferences preferences;
     private final ContactAccessor contactAccessor;
     private final TokenRefresher tokenRefresher;
-
+    private final UploadJournal journal;
+    private final Backoff backoff;
+    private final BackfillWatermarks backfill;
+    private final RunHistory runHistory;
+    private final ProgressThrottle progressThrottle = new ProgressThrottle();
+    /** contact group snapshot, loaded once per run */
+    private ContactGroupFilter groupFilter;
+    /** items converted but not uploaded yet */
+    private UploadBatch batch;
 
     BackupTask(@NotNull SmsBackupService service) {
         final Context context = service.getApplicationContext();
@@ -67,7 +101,7 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
 
         PersonLookup personLookup = new PersonLookup(service.getContentResolver());
 
-        this.converter = new MessageConverter(context, preferences, authPreferences.getUserEmail(), personLookup, ContactAccessor.Get.instance());
+        this.converter = new MessageConverter(context, preferences, authPreferences.getUserEmail(), personLookup);
         this.contactAccessor = ContactAccessor.Get.instance();
 
         if (preferences.isCallLogCalendarSyncEnabled()) {
@@ -82,6 +116,10 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
             calendarSyncer = null;
         }
         this.tokenRefresher = new TokenRefresher(service, new OAuth2Client(authPreferences.getOAuth2ClientId()), authPreferences);
+        this.journal = new UploadJournal(context);
+        this.backoff = new Backoff();
+        this.backfill = new BackfillWatermarks(context);
+        this.runHistory = new RunHistory(context);
     }
 
     BackupTask(SmsBackupService service,
@@ -92,6 +130,18 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                Preferences preferences,
                ContactAccessor accessor,
                TokenRefresher refresher) {
+        this(service, fetcher, messageConverter, syncer, authPreferences, preferences, accessor, refresher, new Backoff());
+    }
+
+    BackupTask(SmsBackupService service,
+               BackupItemsFetcher fetcher,
+               MessageConverter messageConverter,
+               CalendarSyncer syncer,
+               AuthPreferences authPreferences,
+               Preferences preferences,
+               ContactAccessor accessor,
+               TokenRefresher refresher,
+               Backoff backoff) {
         this.service = service;
         this.fetcher = fetcher;
         this.converter = messageConverter;
@@ -100,6 +150,10 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         this.preferences = preferences;
         this.contactAccessor = accessor;
         this.tokenRefresher = refresher;
+        this.journal = new UploadJournal(service.getApplicationContext());
+        this.backoff = backoff;
+        this.backfill = new BackfillWatermarks(service.getApplicationContext());
+        this.runHistory = new RunHistory(service.getApplicationContext());
     }
 
     @Override
@@ -117,14 +171,40 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         if (config.skip) {
             return skip(config.typesToBackup);
         } else {
-            return acquireLocksAndBackup(config);
+            RunMetrics.start(preferences.isAppLogTrace());
+            BackupState result = null;
+            try {
+                result = acquireLocksAndBackup(config);
+                return result;
+            } finally {
+                finishRun(config, result);
+            }
+        }
+    }
+
+    private void finishRun(BackupConfig config, BackupState result) {
+        final RunMetrics metrics = RunMetrics.finish();
+        if (metrics == null) return;
+
+        appLog(R.string.app_log_metrics, metrics.summary(service));
+        if (metrics.getTrace() != null) {
+            service.appLogTrace(metrics.getTrace());
+        }
+        try {
+            runHistory.record(RunHistory.Run.from(metrics,
+                    config.dryRun ? RunHistory.Kind.DRY_RUN : RunHistory.Kind.BACKUP,
+                    config.backupType, result));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error recording run", e);
+        } finally {
+            runHistory.close();
         }
     }
 
     private BackupState acquireLocksAndBackup(BackupConfig config) {
         try {
             service.acquireLocks();
-            return fetchAndBackupItems(config);
+            return config.dryRun ? dryRun(config) : fetchAndBackupItems(refreshTokenIfExpiring(config));
         } finally {
             service.releaseLocks();
         }
@@ -132,19 +212,41 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
 
     private BackupState fetchAndBackupItems(BackupConfig config) {
         BackupCursors cursors = null;
+        config.imapStore.acquire();
         try {
-            final ContactGroupIds groupIds = contactAccessor.getGroupContactIds(service.getContentResolver(), config.groupToBackup);
+            final Set<String> alreadyUploaded = reconcileJournal(config.imapStore);
+            if (config.backupType != BackupType.INSTANT && isBackfillSliced(config)) {
+                splitBacklog(config.typesToBackup);
+            }
+            final EnumSet<DataType> typesWithNewItems = config.backupType == BackupType.INSTANT ?
+                    waitForNewItems(config.typesToBackup) :
+                    getTypesWithNewItems(config.typesToBackup);
+            if (config.backupType == BackupType.INSTANT && isBackfillSliced(config)) {
+                splitBacklogAtObserved(typesWithNewItems);
+            }
+            final Map<DataType, Long> observed = new EnumMap<DataType, Long>(DataType.class);
+            for (DataType type : typesWithNewItems) {
+                observed.put(type, fetcher.getMostRecentTimestamp(type));
+            }
+            final int itemsToSync;
+            if (typesWithNewItems.isEmpty()) {
+                // skip contact lookup and cursor setup
+                itemsToSync = 0;
+            } else {
+                final ContactGroupIds groupIds = getGroupFilter(config).getGroupIds();
 
-            cursors = new BulkFetcher(fetcher).fetch(config.typesToBackup, groupIds, config.maxItemsPerSync);
-            final int itemsToSync = cursors.count();
+                cursors = new BulkFetcher(fetcher).fetch(typesWithNewItems, groupIds, config.maxItemsPerSync);
+                itemsToSync = cursors.count();
+            }
 
+            final BackupState state;
             if (itemsToSync > 0) {
                 appLog(R.string.app_log_backup_messages, cursors.count(SMS), cursors.count(MMS), cursors.count(CALLLOG));
                 if (config.debug) {
                     appLog(R.string.app_log_backup_messages_with_config, config);
                 }
 
-                return backupCursors(cursors, config.imapStore, config.backupType, itemsToSync);
+                state = backupCursors(cursors, config.imapStore, config.backupType, itemsToSync, alreadyUploaded);
             } else {
                 appLog(R.string.app_log_skip_backup_no_items);
 
@@ -155,8 +257,13 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                     MMS.setMaxSyncedDate(service, Defaults.MAX_SYNCED_DATE);
                 }
                 Log.i(TAG, "Nothing to do.");
-                return transition(FINISHED_BACKUP, null);
+                state = transition(FINISHED_BACKUP, null);
             }
+            // items up to here are either backed up or left for a regular backup
+            for (Map.Entry<DataType, Long> entry : observed.entrySet()) {
+                backfill.setObserved(entry.getKey(), entry.getValue());
+            }
+            return backfill(config, state, alreadyUploaded);
         } catch (XOAuth2AuthenticationFailedException e) {
             return handleAuthError(config, e);
         } catch (AuthenticationFailedException e) {
@@ -167,6 +274,199 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
             if (cursors != null) {
                 cursors.close();
             }
+            config.imapStore.release();
+        }
+    }
+
+    /**
+     * Fetches, converts and serializes items like a backup, but only counts the bytes instead of
+     * uploading them. Watermarks, upload journal and backfill lane are left alone, and items are
+     * taken from the start of the history, so repeated runs measure the same work.
+     */
+    private BackupState dryRun(BackupConfig config) {
+        BackupCursors cursors = null;
+        try {
+            cursors = new BulkFetcher(fetcher).fetchFromStart(config.typesToBackup,
+                    getGroupFilter(config).getGroupIds(), config.maxItemsPerSync);
+            int itemsToSync = cursors.count();
+            appLog(R.string.app_log_backup_messages, cursors.count(SMS), cursors.count(MMS), cursors.count(CALLLOG));
+
+            publish(CALC);
+            final long start = RunMetrics.now();
+            int items = 0;
+            long bytes = 0;
+            while (!isCancelled() && cursors.hasNext()) {
+                final BackupCursors.CursorAndType cursor = cursors.next();
+                final long size = serializeItem(cursor.cursor, cursor.type);
+                if (size >= 0) {
+                    items++;
+                    bytes += size;
+                } else {
+                    itemsToSync -= 1;
+                }
+                publishThrottled(new BackupState(BACKUP, items, itemsToSync, config.backupType, cursor.type, null));
+            }
+            final long ms = Math.max(1, (RunMetrics.now() - start) / 1000000L);
+            appLog(R.string.app_log_dry_run, items, bytes, ms, items * 1000f / ms);
+            return new BackupState(FINISHED_BACKUP, items, itemsToSync, config.backupType, null, null);
+        } catch (MessagingException e) {
+            return transition(ERROR, e);
+        } finally {
+            if (cursors != null) {
+                cursors.close();
+            }
+        }
+    }
+
+    /**
+     * Converts the item at the current cursor position and serializes it into a counting sink,
+     * which includes reading MMS attachments.
+     *
+     * @return the serialized size, or -1 if the item was not converted
+     */
+    private long serializeItem(Cursor cursor, DataType type) throws MessagingException {
+        if (!groupFilter.include(cursor, type)) return -1;
+
+        final ConversionResult result = converter.convertMessages(cursor, type);
+        if (result.isEmpty()) return -1;
+
+        long size = 0;
+        final long start = RunMetrics.begin(Stage.SERIALIZE);
+        try {
+            for (Message message : result.getMessages()) {
+                size += message.calculateSize();
+            }
+        } finally {
+            RunMetrics.end(Stage.SERIALIZE, start);
+        }
+        RunMetrics.count(type, result.size(), size);
+        return size;
+    }
+
+    private ContactGroupFilter getGroupFilter(BackupConfig config) {
+        if (groupFilter == null) {
+            final ContactGroupIds groupIds = contactAccessor.getGroupContactIds(service.getContentResolver(), config.groupToBackup);
+            if (LOCAL_LOGV) Log.v(TAG, "whitelisted ids for backup: " + groupIds);
+            groupFilter = new ContactGroupFilter(service.getContentResolver(), groupIds);
+        }
+        return groupFilter;
+    }
+
+    private EnumSet<DataType> getTypesWithNewItems(EnumSet<DataType> types) {
+        final EnumSet<DataType> typesWithNewItems = EnumSet.noneOf(DataType.class);
+        for (DataType type : types) {
+            if (fetcher.hasNewItems(type)) {
+                typesWithNewItems.add(type);
+            }
+        }
+        return typesWithNewItems;
+    }
+
+    /**
+     * Hands history older than {@link #RECENT_WINDOW_MS} over to the backfill lane, so that the
+     * regular backup only has to deal with recent items and stays up to date during a large
+     * initial import.
+     */
+    private void splitBacklog(EnumSet<DataType> types) {
+        final long now = System.currentTimeMillis();
+        for (DataType type : types) {
+            if (backfill.isActive(type)) continue;
+
+            // MMS dates are stored in seconds
+            final long splitPoint = type == MMS ? (now - RECENT_WINDOW_MS) / 1000 : now - RECENT_WINDOW_MS;
+            final long oldest = fetcher.getOldestUnsyncedTimestamp(type);
+            if (oldest > 0 && oldest < splitPoint) {
+                handOverBacklog(type, splitPoint);
+            }
+        }
+    }
+
+    /**
+     * Instant backups are only meant for the items which triggered them, i.e. the ones which
+     * arrived after the last completed backup had a look at the provider. Older items still
+     * waiting are handed over to the backfill lane, unless it is busy with another range, in
+     * which case they get uploaded first as usual.
+     */
+    private void splitBacklogAtObserved(EnumSet<DataType> types) {
+        for (DataType type : types) {
+            if (backfill.isActive(type)) continue;
+
+            final long observed = backfill.getObserved(type);
+            if (observed > getMaxSyncedDate(type)) {
+                handOverBacklog(type, observed);
+            }
+        }
+    }
+
+    private void handOverBacklog(DataType type, long splitPoint) {
+        final long lower = getMaxSyncedDate(type);
+        appLogDebug("backfilling %s from %d to %d", type, lower, splitPoint);
+        backfill.start(type, lower, splitPoint);
+        type.setMaxSyncedDate(service, splitPoint);
+    }
+
+    /**
+     * @return the max synced date in provider units (seconds for MMS)
+     */
+    private long getMaxSyncedDate(DataType type) {
+        final long maxSynced = type.getMaxSyncedDate(service);
+        return type == MMS && maxSynced > 0 ? maxSynced / 1000 : maxSynced;
+    }
+
+    /**
+     * The SMS_RECEIVED broadcast can arrive before the SMS app has written the message, so
+     * instant backups wait a little for it to appear.
+     */
+    private EnumSet<DataType> waitForNewItems(EnumSet<DataType> types) {
+        EnumSet<DataType> typesWithNewItems = getTypesWithNewItems(types);
+        for (int i = 1; i < INSTANT_POLL_COUNT && typesWithNewItems.isEmpty() && !isCancelled(); i++) {
+            try {
+                Thread.sleep(INSTANT_POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            typesWithNewItems = getTypesWithNewItems(types);
+        }
+        return typesWithNewItems;
+    }
+
+    /**
+     * Settles a batch left in the upload journal by an interrupted backup.
+     *
+     * @return Message-IDs of messages already on the server, which must not be uploaded again
+     */
+    private Set<String> reconcileJournal(BackupImapStore store) throws MessagingException {
+        final UploadJournal.Entry pending = journal.getPending();
+        if (pending == null) return Collections.emptySet();
+
+        appLogDebug("reconciling interrupted upload: %s", pending);
+        final Set<String> found;
+        final boolean complete;
+        if (pending.isAppended()) {
+            // server confirmed the append, only the watermark is missing
+            found = new HashSet<String>(pending.messageIds);
+            complete = true;
+        } else {
+            found = pending.messageIds.isEmpty() ? Collections.<String>emptySet() :
+                    store.getFolder(pending.type).findMessageIds(pending.messageIds);
+            complete = pending.isConfirmedBy(found);
+        }
+
+        if (complete && pending.backfill) {
+            // the date alone could skip items sharing it, the backfill lane moves past the
+            // item once it gets to it again and commits the entry then
+            return found;
+        } else if (complete) {
+            // the watermark might have been written after the entry was dropped
+            if (pending.maxDate > pending.type.getMaxSyncedDate(service)) {
+                pending.type.setMaxSyncedDate(service, pending.maxDate);
+            }
+            journal.commit();
+            return Collections.emptySet();
+        } else {
+            // partially uploaded, the rest of the batch gets picked up again. The entry stays
+            // until the next batch replaces it.
+            return found;
         }
     }
 
@@ -194,10 +494,29 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         return transition(ERROR, e);
     }
 
+    /**
+     * @return config with a store using a new token, if the current one was about to expire
+     */
+    private BackupConfig refreshTokenIfExpiring(BackupConfig config) {
+        try {
+            if (tokenRefresher.refreshOAuth2TokenIfExpiring()) {
+                appLogDebug("token about to expire, refreshed");
+                return config.withStore(service.getBackupImapStore());
+            }
+        } catch (TokenRefreshException e) {
+            // keep the current token, a failed login triggers another refresh attempt
+            appLogDebug("error refreshing token: "+e+", cause="+e.getCause());
+        } catch (MessagingException e) {
+            Log.w(TAG, e);
+        }
+        return config;
+    }
+
     private BackupState skip(Iterable<DataType> types) {
         appLog(R.string.app_log_skip_backup_skip_messages);
         for (DataType type : types) {
             type.setMaxSyncedDate(service, fetcher.getMostRecentTimestamp(type));
+            backfill.finish(type);
         }
         Log.i(TAG, "All messages skipped.");
         return new BackupState(FINISHED_BACKUP, 0, 0, BackupType.MANUAL, null, null);
@@ -241,11 +560,19 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         App.bus.post(state);
     }
 
-    private BackupState backupCursors(BackupCursors cursors, BackupImapStore store, BackupType backupType, int itemsToSync)
+    private BackupState backupCursors(BackupCursors cursors,
+                                      BackupImapStore store,
+                                      BackupType backupType,
+                                      int itemsToSync,
+                                      Set<String> alreadyUploaded)
             throws MessagingException {
         Log.i(TAG, String.format(Locale.ENGLISH, "Starting backup (%d messages)", itemsToSync));
         publish(LOGIN);
-        store.checkSettings();
+        // checkSettings always opens a new connection, instant backups go straight to the
+        // pooled ones (login problems still surface when the folder gets opened)
+        if (backupType != BackupType.INSTANT) {
+            store.checkSettings();
+        }
 
         try {
             publish(CALC);
@@ -254,37 +581,291 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                 BackupCursors.CursorAndType cursor = cursors.next();
                 if (LOCAL_LOGV) Log.v(TAG, "backing up: " + cursor);
 
-                ConversionResult result = converter.convertMessages(cursor.cursor, cursor.type);
-                if (!result.isEmpty()) {
-                    List<Message> messages = result.getMessages();
-
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
-                                messages.size(), cursor.type));
-                    }
-
-                    store.getFolder(cursor.type).appendMessages(messages);
-
-                    if (cursor.type == CALLLOG && calendarSyncer != null) {
-                        calendarSyncer.syncCalendar(result);
-                    }
-                    cursor.type.setMaxSyncedDate(service, result.getMaxDate());
-                    backedUpItems += messages.size();
+                final int count = backupItem(cursor.cursor, cursor.type, store, alreadyUploaded, false);
+                if (count > 0) {
+                    backedUpItems += count;
                 } else {
-                    Log.w(TAG, "no messages converted");
                     itemsToSync -= 1;
                 }
 
-                publishProgress(new BackupState(BACKUP, backedUpItems, itemsToSync, backupType, cursor.type, null));
+                publishThrottled(new BackupState(BACKUP, backedUpItems, itemsToSync, backupType, cursor.type, null));
             }
+            flushBatch(store);
 
             return new BackupState(FINISHED_BACKUP,
                     backedUpItems,
                     itemsToSync,
                     backupType, null, null);
         } finally {
+            // a batch left after an error has not advanced any watermark, it gets picked up again
+            batch = null;
+            store.closeFolders();
+        }
+    }
+
+    /**
+     * Works through the history handed over to the backfill lane, oldest first, until it is
+     * complete or the time slice is used up. The lower watermark keeps track of the progress,
+     * the next backup continues from there. Advancing it is part of committing each upload batch.
+     */
+    private BackupState backfill(BackupConfig config, BackupState state, Set<String> alreadyUploaded)
+            throws MessagingException {
+        if (config.backupType == BackupType.INSTANT ||
+            !backfill.isActive(config.typesToBackup) ||
+            isCancelled() ||
+            state.state != FINISHED_BACKUP) {
+            return state;
+        }
+
+        final long deadline = isBackfillSliced(config) ?
+                SystemClock.elapsedRealtime() + BACKFILL_SLICE_MS : Long.MAX_VALUE;
+        final ContactGroupIds groupIds = getGroupFilter(config).getGroupIds();
+        final BackupImapStore store = config.imapStore;
+        int backedUpItems = state.currentSyncedItems;
+        int itemsToSync = state.itemsToSync;
+        try {
+            for (DataType type : config.typesToBackup) {
+                while (backfill.isActive(type) && canBackfill(config, deadline, backedUpItems)) {
+                    final Cursor cursor = fetcher.getItemsForDataType(type, groupIds,
+                            backfill.getLower(type), backfill.getLowerId(type), backfill.getUpper(type),
+                            BACKFILL_BATCH_SIZE);
+                    try {
+                        if (cursor.getCount() == 0) {
+                            backfill.finish(type);
+                            break;
+                        }
+                        itemsToSync += cursor.getCount();
+                        while (cursor.moveToNext() && canBackfill(config, deadline, backedUpItems)) {
+                            backedUpItems += backupItem(cursor, type, store, alreadyUploaded, true);
+
+                            publishThrottled(new BackupState(BACKUP, backedUpItems, itemsToSync, config.backupType, type, null));
+                        }
+                        // the next query starts from the watermark
+                        flushBatch(store);
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+        } finally {
+            batch = null;
             store.closeFolders();
         }
+        appLog(R.string.app_log_backfill, backedUpItems - state.currentSyncedItems);
+        return new BackupState(FINISHED_BACKUP, backedUpItems, itemsToSync, config.backupType, null, null);
+    }
+
+    /**
+     * The backfill lane only gets a slice of the run if follow-up backups continue it, which
+     * are not scheduled for manual runs or with auto sync disabled. Those back up all of the
+     * history in one go.
+     */
+    private boolean isBackfillSliced(BackupConfig config) {
+        return config.backupType.isBackground() && preferences.isEnableAutoSync();
+    }
+
+    private boolean canBackfill(BackupConfig config, long deadline, int backedUpItems) {
+        return !isCancelled() &&
+                SystemClock.elapsedRealtime() < deadline &&
+                (config.maxItemsPerSync <= 0 || backedUpItems < config.maxItemsPerSync);
+    }
+
+    private static long getDate(Cursor cursor) {
+        final int index = cursor.getColumnIndex(SmsConsts.DATE);
+        return index == -1 ? Defaults.MAX_SYNCED_DATE : cursor.getLong(index);
+    }
+
+    private static long getId(Cursor cursor) {
+        final int index = cursor.getColumnIndex(SmsConsts.ID);
+        return index == -1 ? BackupQueryBuilder.ALL_IDS : cursor.getLong(index);
+    }
+
+    /**
+     * Converts the item at the current cursor position and adds it to the upload batch of the
+     * lane, which gets uploaded once full.
+     *
+     * @return the number of messages converted, 0 if the item could not be converted
+     */
+    private int backupItem(Cursor cursor,
+                           DataType type,
+                           BackupImapStore store,
+                           Set<String> alreadyUploaded,
+                           boolean backfillLane) throws MessagingException {
+        final UploadBatch batch = getBatch(store, type, backfillLane);
+        // the batch also moves past items which are skipped or could not be converted
+        batch.add(getDate(cursor), getId(cursor));
+        try {
+            if (!groupFilter.include(cursor, type)) {
+                if (LOCAL_LOGV) Log.v(TAG, "not backing up " + type + ", not in contact group");
+                // nothing to upload, but no need to look at the item again either
+                batch.advanceTo(getDate(cursor));
+                return 0;
+            }
+            ConversionResult result = converter.convertMessages(cursor, type);
+            if (result.isEmpty()) {
+                Log.w(TAG, "no messages converted");
+                return 0;
+            }
+            batch.add(result, withoutUploaded(result.getMessages(), alreadyUploaded));
+            return result.getMessages().size();
+        } finally {
+            if (batch.items >= UPLOAD_BATCH_SIZE) {
+                flushBatch(store);
+            }
+        }
+    }
+
+    /**
+     * @return the current batch, after uploading it if it belongs to a different type or lane
+     */
+    private UploadBatch getBatch(BackupImapStore store, DataType type, boolean backfillLane)
+            throws MessagingException {
+        if (batch != null && (batch.type != type || batch.backfillLane != backfillLane)) {
+            flushBatch(store);
+        }
+        if (batch == null) {
+            batch = new UploadBatch(type, backfillLane);
+        }
+        return batch;
+    }
+
+    /**
+     * Uploads the current batch with a single journal entry, then moves the watermark of its
+     * lane past it.
+     */
+    private void flushBatch(BackupImapStore store) throws MessagingException {
+        final UploadBatch batch = this.batch;
+        if (batch == null) return;
+
+        if (!batch.messages.isEmpty()) {
+            if (LOCAL_LOGV) {
+                Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
+                        batch.messages.size(), batch.type));
+            }
+            journal.begin(batch.type, batch.maxDate, batch.messages, batch.backfillLane);
+            Map<String, String> uids = append(store, batch.type, batch.messages);
+            journal.appended(uids == null ? null : uids.values());
+        }
+
+        if (batch.type == CALLLOG && calendarSyncer != null) {
+            for (ConversionResult result : batch.results) {
+                calendarSyncer.syncCalendar(result);
+            }
+        }
+        final long commitStart = RunMetrics.begin(Stage.COMMIT);
+        try {
+            if (batch.backfillLane) {
+                backfill.advance(batch.type, batch.lastDate, batch.lastId);
+            } else if (batch.maxDate > Defaults.MAX_SYNCED_DATE) {
+                batch.type.setMaxSyncedDate(service, batch.maxDate);
+            }
+            journal.commit();
+        } finally {
+            RunMetrics.end(Stage.COMMIT, commitStart);
+        }
+        this.batch = null;
+    }
+
+    /**
+     * Consecutive cursor items of one type and lane, uploaded together.
+     */
+    private static class UploadBatch {
+        final DataType type;
+        final boolean backfillLane;
+        final List<Message> messages = new ArrayList<Message>();
+        final List<ConversionResult> results = new ArrayList<ConversionResult>();
+        int items;
+        /** watermark of the regular lane */
+        long maxDate = Defaults.MAX_SYNCED_DATE;
+        /** position of the last item, for the backfill lane */
+        long lastDate = Defaults.MAX_SYNCED_DATE;
+        long lastId = BackupQueryBuilder.ALL_IDS;
+
+        UploadBatch(DataType type, boolean backfillLane) {
+            this.type = type;
+            this.backfillLane = backfillLane;
+        }
+
+        void add(long date, long id) {
+            items++;
+            lastDate = date;
+            lastId = id;
+        }
+
+        void add(ConversionResult result, List<Message> toUpload) {
+            results.add(result);
+            messages.addAll(toUpload);
+            advanceTo(result.getMaxDate());
+        }
+
+        void advanceTo(long date) {
+            maxDate = Math.max(maxDate, date);
+        }
+    }
+
+    /**
+     * Appends a batch, reconnecting with backoff on transient errors. The cursor stays where
+     * it is, so the run continues with the failed batch instead of starting over.
+     */
+    private Map<String, String> append(BackupImapStore store, DataType type, List<Message> messages)
+            throws MessagingException {
+        List<Message> pending = messages;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                final BackupImapStore.BackupFolder folder = store.getFolder(type);
+                if (attempt > 0) {
+                    // the server might have stored part of the batch before the connection dropped
+                    final long start = RunMetrics.begin(Stage.SEARCH);
+                    try {
+                        pending = withoutUploaded(pending, folder.findMessageIds(getMessageIds(pending)));
+                    } finally {
+                        RunMetrics.end(Stage.SEARCH, start);
+                    }
+                    if (pending.isEmpty()) return null;
+                }
+                return folder.appendMessages(pending);
+            } catch (MessagingException e) {
+                if (attempt >= Backoff.MAX_RETRIES || isCancelled() || !Backoff.isTransient(e)) {
+                    throw e;
+                }
+                Log.w(TAG, "transient error, retrying", e);
+                RunMetrics.retry();
+                appLog(R.string.app_log_backup_retry, attempt + 1, e.getMessage());
+                // drop the broken connection, folders get reopened on the next attempt
+                store.closeFolders();
+                final long start = RunMetrics.begin(Stage.WAIT);
+                try {
+                    backoff.sleep(attempt);
+                } catch (InterruptedException interrupted) {
+                    throw e;
+                } finally {
+                    RunMetrics.end(Stage.WAIT, start);
+                }
+            }
+        }
+    }
+
+    private static Set<String> getMessageIds(List<Message> messages) {
+        final Set<String> messageIds = new HashSet<String>(messages.size());
+        for (Message message : messages) {
+            final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+            if (messageId != null) {
+                messageIds.add(messageId);
+            }
+        }
+        return messageIds;
+    }
+
+    private static List<Message> withoutUploaded(List<Message> messages, Set<String> alreadyUploaded) {
+        if (alreadyUploaded.isEmpty()) return messages;
+
+        final List<Message> filtered = new ArrayList<Message>(messages.size());
+        for (Message message : messages) {
+            if (!alreadyUploaded.contains(Headers.get(message, Headers.MESSAGE_ID))) {
+                filtered.add(message);
+            }
+        }
+        return filtered;
     }
 
     private void publish(SmsSyncState state) {
@@ -292,6 +873,12 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
     }
 
     private void publish(SmsSyncState state, Exception exception) {
-        publishProgress(service.transition(state, exception));
+        publishThrottled(service.transition(state, exception));
+    }
+
+    private void publishThrottled(BackupState state) {
+        if (progressThrottle.shouldPublish(state)) {
+            publishProgress(state);
+        }
     }
 }
@@ -6,9 +6,12 @@ import com.zegoggles.smssync.R;
 public enum BackupType {
     BROADCAST_INTENT(R.string.source_3rd_party),
     INCOMING(R.string.source_incoming),
+    INSTANT(R.string.source_instant),
     REGULAR(R.string.source_regular),
     UNKNOWN(R.string.source_unknown),
-    MANUAL(R.string.source_manual);
+    MANUAL(R.string.source_manual),
+    /** started by the user, converts items without uploading them */
+    DRY_RUN(R.string.source_dry_run);
 
     public final int resId;
 
@@ -33,6 +36,6 @@ public enum BackupType {
     }
 
     public boolean isBackground() {
-        return this != MANUAL;
+        return this != MANUAL && this != DRY_RUN;
     }
 }
@@ -8,6 +8,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.EnumSet;
 
+import static com.zegoggles.smssync.mail.DataType.Defaults;
+
 public class BulkFetcher {
 
     private BackupItemsFetcher itemsFetcher;
@@ -19,11 +21,26 @@ public class BulkFetcher {
     public @NotNull BackupCursors fetch(final @NotNull EnumSet<DataType> types,
                                         final @Nullable ContactGroupIds groups,
                                         final int maxItems) {
+        return fetch(types, groups, maxItems, false);
+    }
+
+    /**
+     * Like {@link #fetch(EnumSet, ContactGroupIds, int)}, but starting with the oldest item,
+     * regardless of what has been backed up already.
+     */
+    public @NotNull BackupCursors fetchFromStart(final @NotNull EnumSet<DataType> types,
+                                                 final @Nullable ContactGroupIds groups,
+                                                 final int maxItems) {
+        return fetch(types, groups, maxItems, true);
+    }
 
+    private BackupCursors fetch(EnumSet<DataType> types, ContactGroupIds groups, int maxItems, boolean fromStart) {
         int max = maxItems;
         BackupCursors cursors = new BackupCursors();
         for (DataType type : types) {
-            Cursor cursor = itemsFetcher.getItemsForDataType(type, groups, max);
+            Cursor cursor = fromStart ?
+                    itemsFetcher.getItemsForDataType(type, groups, Defaults.MAX_SYNCED_DATE, BackupQueryBuilder.NO_LIMIT, max) :
+                    itemsFetcher.getItemsForDataType(type, groups, max);
             cursors.add(type, cursor);
 
             if (max > 0) {
@@ -0,0 +1,39 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import com.zegoggles.smssync.mail.DataType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Compares the newest item of each provider with what has been backed up already, using a
+ * single one-row query per type.
+ */
+class ChangeDetector {
+    private final BackupItemsFetcher fetcher;
+
+    ChangeDetector(@NotNull BackupItemsFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    ChangeDetector(Context context) {
+        this(new BackupItemsFetcher(context, context.getContentResolver(), new BackupQueryBuilder(context)));
+    }
+
+    /**
+     * @return true if any of the types has items newer than the last backup
+     */
+    public boolean hasChanges(Collection<DataType> types) {
+        for (DataType type : types) {
+            if (hasChanges(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasChanges(DataType type) {
+        return fetcher.hasNewItems(type);
+    }
+}
@@ -0,0 +1,103 @@
+package com.zegoggles.smssync.service;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.Preferences;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Watches the SMS, MMS and call log providers and schedules a backup once something new shows
+ * up. Unlike SMS_RECEIVED this also catches sent messages and calls.
+ */
+public class ChangeObserverService extends Service {
+    /** Wait for bursts of provider notifications to settle before checking for changes */
+    private static final long SETTLE_DELAY_MILLIS = 5000;
+
+    private static final Uri[] OBSERVED = {
+        Consts.SMS_PROVIDER,
+        Consts.MMS_PROVIDER,
+        Consts.CALLLOG_PROVIDER
+    };
+
+    private Handler handler;
+    private ContentObserver observer;
+    private ChangeDetector changeDetector;
+
+    private final Runnable checkForChanges = new Runnable() {
+        @Override
+        public void run() {
+            if (SmsBackupService.isServiceWorking() || SmsRestoreService.isServiceWorking()) {
+                return;
+            }
+            if (changeDetector.hasChanges(DataType.enabled(ChangeObserverService.this))) {
+                if (LOCAL_LOGV) Log.v(TAG, "provider changed, scheduling backup");
+                getAlarms().scheduleIncomingBackup();
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        handler = new Handler();
+        changeDetector = new ChangeDetector(this);
+        observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                handler.removeCallbacks(checkForChanges);
+                handler.postDelayed(checkForChanges, SETTLE_DELAY_MILLIS);
+            }
+        };
+        for (Uri uri : OBSERVED) {
+            try {
+                getContentResolver().registerContentObserver(uri, true, observer);
+            } catch (SecurityException e) {
+                Log.w(TAG, "cannot observe " + uri, e);
+            }
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(checkForChanges);
+        getContentResolver().unregisterContentObserver(observer);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    protected Alarms getAlarms() {
+        return new Alarms(this);
+    }
+
+    /**
+     * Starts or stops observing, depending on whether automatic backups are set up.
+     */
+    public static void update(Context context) {
+        final Intent intent = new Intent(context, ChangeObserverService.class);
+        if (new Preferences(context).isEnableAutoSync() && new AuthPreferences(context).isLoginInformationSet()) {
+            context.startService(intent);
+        } else {
+            context.stopService(intent);
+        }
+    }
+}
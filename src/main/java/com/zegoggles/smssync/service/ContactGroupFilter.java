@@ -0,0 +1,157 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CallLog;
+import android.util.Log;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.collections.LongHashSet;
+import com.zegoggles.smssync.contacts.ContactGroupIds;
+import com.zegoggles.smssync.mail.DataType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Checks provider rows against the contact group to back up, using the numbers of the group
+ * members. Runs straight after the cursor read, so excluded items never get looked up or
+ * converted.
+ */
+class ContactGroupFilter {
+    private final ContentResolver resolver;
+    private final @Nullable ContactGroupIds group;
+    /** conversations with a group member among the recipients, null if they could not be loaded */
+    private @Nullable LongHashSet groupThreads;
+    private boolean threadsLoaded;
+
+    /**
+     * @param group snapshot of the group members, null to back up everybody
+     */
+    ContactGroupFilter(ContentResolver resolver, @Nullable ContactGroupIds group) {
+        this.resolver = resolver;
+        this.group = group;
+    }
+
+    @Nullable ContactGroupIds getGroupIds() {
+        return group;
+    }
+
+    /**
+     * @return true if the item at the current cursor position should be backed up
+     */
+    boolean include(@NotNull Cursor cursor, @NotNull DataType type) {
+        if (group == null) return true;
+
+        switch (type) {
+            case SMS:     return group.containsNumber(getString(cursor, SmsConsts.ADDRESS));
+            case MMS:     return includeMms(cursor);
+            case CALLLOG: return group.containsNumber(getString(cursor, CallLog.Calls.NUMBER));
+            default:      return true;
+        }
+    }
+
+    /**
+     * MMS addresses live in their own table, which can only be queried per message. Instead the
+     * recipients of all conversations are loaded once, and messages are matched by their thread.
+     */
+    private boolean includeMms(Cursor cursor) {
+        final LongHashSet threads = getGroupThreads();
+        final String threadId = getString(cursor, MmsConsts.THREAD_ID);
+        if (threads != null && threadId != null) {
+            try {
+                return threads.contains(Long.parseLong(threadId));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "invalid thread id " + threadId);
+            }
+        }
+        return includeMmsAddresses(getString(cursor, MmsConsts.ID));
+    }
+
+    private @Nullable LongHashSet getGroupThreads() {
+        if (!threadsLoaded) {
+            threadsLoaded = true;
+            try {
+                groupThreads = loadGroupThreads();
+            } catch (RuntimeException e) {
+                // providers differ between vendors, not all of them know these tables
+                Log.w(TAG, "error loading conversations, checking MMS addresses per message", e);
+            }
+        }
+        return groupThreads;
+    }
+
+    private @Nullable LongHashSet loadGroupThreads() {
+        if (group == null) return null;
+
+        final LongHashSet members = new LongHashSet();
+        final Cursor addresses = resolver.query(Consts.CANONICAL_ADDRESSES_PROVIDER,
+                new String[] { "_id", SmsConsts.ADDRESS }, null, null, null);
+        if (addresses == null) return null;
+        try {
+            while (addresses.moveToNext()) {
+                if (group.containsNumber(addresses.getString(1))) {
+                    members.add(addresses.getLong(0));
+                }
+            }
+        } finally {
+            addresses.close();
+        }
+
+        final LongHashSet threads = new LongHashSet();
+        if (members.isEmpty()) return threads;
+
+        final Cursor conversations = resolver.query(Consts.THREADS_PROVIDER,
+                new String[] { "_id", "recipient_ids" }, null, null, null);
+        if (conversations == null) return null;
+        try {
+            while (conversations.moveToNext()) {
+                final String recipients = conversations.getString(1);
+                if (recipients == null) continue;
+                for (String recipient : recipients.trim().split(" +")) {
+                    try {
+                        if (members.contains(Long.parseLong(recipient))) {
+                            threads.add(conversations.getLong(0));
+                            break;
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        } finally {
+            conversations.close();
+        }
+        return threads;
+    }
+
+    /**
+     * Fallback if the conversations can't be read: one small query is still a lot cheaper than
+     * looking up all recipients and loading the parts.
+     */
+    private boolean includeMmsAddresses(@Nullable String id) {
+        if (id == null || group == null) return false;
+
+        final Cursor cursor = resolver.query(
+                Uri.withAppendedPath(Uri.withAppendedPath(Consts.MMS_PROVIDER, id), "addr"),
+                new String[] { SmsConsts.ADDRESS }, null, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                final String address = cursor.getString(0);
+                if (!MmsConsts.INSERT_ADDRESS_TOKEN.equals(address) && group.containsNumber(address)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private static @Nullable String getString(Cursor cursor, String column) {
+        final int index = cursor.getColumnIndex(column);
+        return index == -1 ? null : cursor.getString(index);
+    }
+}
@@ -0,0 +1,50 @@
+package com.zegoggles.smssync.service;
+
+import android.os.SystemClock;
+import com.zegoggles.smssync.service.state.State;
+
+/**
+ * Limits the rate of progress updates posted to the bus. Every update re-renders the status
+ * and possibly the notification on the main thread, which adds up when thousands of items get
+ * processed per minute. State transitions, data type changes and errors always get through.
+ */
+class ProgressThrottle {
+    static final long MIN_INTERVAL_MS = 250;
+
+    private final long minInterval;
+    private State lastPublished;
+    private long lastPublishedTime;
+
+    ProgressThrottle() {
+        this(MIN_INTERVAL_MS);
+    }
+
+    ProgressThrottle(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    boolean shouldPublish(State state) {
+        return shouldPublish(state, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param now current time in ms
+     * @return true if the update should be published, which gets recorded
+     */
+    boolean shouldPublish(State state, long now) {
+        if (state == null) return true;
+
+        if (lastPublished == null ||
+            state.state != lastPublished.state ||
+            state.dataType != lastPublished.dataType ||
+            state.exception != null ||
+            now - lastPublishedTime >= minInterval) {
+
+            lastPublished = state;
+            lastPublishedTime = now;
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Durable record of how far a restore got, so that an interrupted restore can be resumed
+ * after the last committed message instead of starting over.
+ */
+public class RestoreCheckpoint {
+    private static final String PREFS = "restore_checkpoint";
+    private static final String FOLDER = "folder";
+    private static final String UID_VALIDITY = "uid_validity";
+    private static final String UID = "uid";
+    private static final String PROCESSED = "processed";
+    private static final String RESTORED = "restored";
+
+    /** value used if the server did not report a UIDVALIDITY */
+    public static final long UNKNOWN_UID_VALIDITY = -1;
+
+    /** name of the folder containing the last committed message */
+    public final String folder;
+    public final long uidValidity;
+    /** the uid of the last committed message */
+    public final String uid;
+    /** number of messages looked at so far */
+    public final int processedCount;
+    /** number of messages actually inserted so far */
+    public final int restoredCount;
+
+    public RestoreCheckpoint(@NotNull String folder,
+                             long uidValidity,
+                             @NotNull String uid,
+                             int processedCount,
+                             int restoredCount) {
+        this.folder = folder;
+        this.uidValidity = uidValidity;
+        this.uid = uid;
+        this.processedCount = processedCount;
+        this.restoredCount = restoredCount;
+    }
+
+    public boolean save(Context context) {
+        return prefs(context).edit()
+                .putString(FOLDER, folder)
+                .putLong(UID_VALIDITY, uidValidity)
+                .putString(UID, uid)
+                .putInt(PROCESSED, processedCount)
+                .putInt(RESTORED, restoredCount)
+                .commit();
+    }
+
+    public static @Nullable RestoreCheckpoint load(Context context) {
+        final SharedPreferences prefs = prefs(context);
+        final String folder = prefs.getString(FOLDER, null);
+        final String uid = prefs.getString(UID, null);
+        if (folder == null || uid == null) return null;
+
+        return new RestoreCheckpoint(folder,
+                prefs.getLong(UID_VALIDITY, UNKNOWN_UID_VALIDITY),
+                uid,
+                prefs.getInt(PROCESSED, 0),
+                prefs.getInt(RESTORED, 0));
+    }
+
+    public static boolean exists(Context context) {
+        return load(context) != null;
+    }
+
+    public static boolean clear(Context context) {
+        return prefs(context).edit().clear().commit();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    @Override public String toString() {
+        return "RestoreCheckpoint{" +
+                "folder='" + folder + '\'' +
+                ", uidValidity=" + uidValidity +
+                ", uid='" + uid + '\'' +
+                ", processedCount=" + processedCount +
+                ", restoredCount=" + restoredCount +
+                '}';
+    }
+}
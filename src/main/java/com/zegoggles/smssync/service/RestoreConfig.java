@@ -1,6 +1,7 @@
 package com.zegoggles.smssync.service;
 
 import com.zegoggles.smssync.mail.BackupImapStore;
+import org.jetbrains.annotations.Nullable;
 
 public class RestoreConfig {
     final int tries;
@@ -10,6 +11,9 @@ public class RestoreConfig {
     final int maxRestore;
     final int currentRestoredItem;
     final BackupImapStore imapStore;
+    final @Nullable RestoreCheckpoint resumeFrom;
+    /** record a timeline of the run, see {@link com.zegoggles.smssync.metrics.RunTrace} */
+    final boolean trace;
 
     public RestoreConfig(BackupImapStore imapStore,
                          int tries,
@@ -18,6 +22,30 @@ public class RestoreConfig {
                          boolean restoreOnlyStarred,
                          int maxRestore,
                          int currentRestoredItem) {
+        this(imapStore, tries, restoreSms, restoreCallLog, restoreOnlyStarred, maxRestore, currentRestoredItem, null);
+    }
+
+    public RestoreConfig(BackupImapStore imapStore,
+                         int tries,
+                         boolean restoreSms,
+                         boolean restoreCallLog,
+                         boolean restoreOnlyStarred,
+                         int maxRestore,
+                         int currentRestoredItem,
+                         @Nullable RestoreCheckpoint resumeFrom) {
+        this(imapStore, tries, restoreSms, restoreCallLog, restoreOnlyStarred, maxRestore, currentRestoredItem,
+                resumeFrom, false);
+    }
+
+    public RestoreConfig(BackupImapStore imapStore,
+                         int tries,
+                         boolean restoreSms,
+                         boolean restoreCallLog,
+                         boolean restoreOnlyStarred,
+                         int maxRestore,
+                         int currentRestoredItem,
+                         @Nullable RestoreCheckpoint resumeFrom,
+                         boolean trace) {
 
         this.tries = tries;
         this.imapStore = imapStore;
@@ -26,6 +54,25 @@ public class RestoreConfig {
         this.restoreOnlyStarred = restoreOnlyStarred;
         this.maxRestore = maxRestore;
         this.currentRestoredItem = currentRestoredItem;
+        this.resumeFrom = resumeFrom;
+        this.trace = trace;
+    }
+
+    /**
+     * @return the same config with a new store, e.g. after the credentials have been refreshed
+     */
+    public RestoreConfig withStore(BackupImapStore backupImapStore) {
+        return new RestoreConfig(
+                backupImapStore,
+                tries,
+                restoreSms,
+                restoreCallLog,
+                restoreOnlyStarred,
+                maxRestore,
+                currentRestoredItem,
+                resumeFrom,
+                trace
+        );
     }
 
     public RestoreConfig retryWithStore(int currentItem, BackupImapStore backupImapStore) {
@@ -36,7 +83,9 @@ public class RestoreConfig {
                 restoreCallLog,
                 restoreOnlyStarred,
                 maxRestore,
-                currentItem
+                currentItem,
+                resumeFrom,
+                trace
         );
     }
 
@@ -48,6 +97,8 @@ public class RestoreConfig {
                 ", restoreOnlyStarred=" + restoreOnlyStarred +
                 ", maxRestore=" + maxRestore +
                 ", currentRestoredItem=" + currentRestoredItem +
+                ", resumeFrom=" + resumeFrom +
+                ", trace=" + trace +
                 ", imapStore=" + imapStore +
                 '}';
     }
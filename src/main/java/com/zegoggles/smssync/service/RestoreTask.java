@@ -1,36 +1,48 @@
 package com.zegoggles.smssync.service;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.provider.CallLog;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.XOAuth2AuthenticationFailedException;
+import com.fsck.k9.mail.store.imap.ImapStore;
 import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.SmsConsts;
 import com.zegoggles.smssync.auth.TokenRefreshException;
 import com.zegoggles.smssync.auth.TokenRefresher;
+import com.zegoggles.smssync.collections.LongHashSet;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.BodyBufferPool;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.InMemoryBody;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.metrics.RunHistory;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.metrics.Stage;
 import com.zegoggles.smssync.service.state.RestoreState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -45,14 +57,28 @@ import static com.zegoggles.smssync.service.state.SmsSyncState.RESTORE;
 import static com.zegoggles.smssync.service.state.SmsSyncState.UPDATING_THREADS;
 
 class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
-    private Set<String> smsIds = new HashSet<String>();
-    private Set<String> callLogIds = new HashSet<String>();
-    private Set<String> uids = new HashSet<String>();
+    /** Messages up to this size are restored without touching the file system */
+    static final int MAX_IN_MEMORY_BODY_SIZE = 32 * 1024;
+
+    /** How often (in messages) restore progress gets written to disk */
+    static final int CHECKPOINT_INTERVAL = 25;
+
+    private final BodyBufferPool bodyBufferPool = new BodyBufferPool(MAX_IN_MEMORY_BODY_SIZE);
+    private final Map<String, Long> uidValidities = new HashMap<String, Long>();
+    private @Nullable RestoreCheckpoint resumedFrom;
+    private @Nullable RestoreCheckpoint checkpoint;
+    private final LongHashSet smsIds = new LongHashSet();
+    private final LongHashSet callLogIds = new LongHashSet();
+    private final LongHashSet uids = new LongHashSet();
+    private final ProgressThrottle progressThrottle = new ProgressThrottle();
+    /** messages without a numeric UID, not expected from IMAP servers */
+    private int otherUids;
 
     private final SmsRestoreService service;
     private final ContentResolver resolver;
     private final MessageConverter converter;
     private final TokenRefresher tokenRefresher;
+    private final RunHistory runHistory;
 
     public RestoreTask(SmsRestoreService service,
                        MessageConverter converter,
@@ -62,6 +88,7 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         this.converter = converter;
         this.resolver = resolver;
         this.tokenRefresher = tokenRefresher;
+        this.runHistory = new RunHistory(service.getApplicationContext());
     }
 
     @Override
@@ -80,11 +107,16 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         if (!config.restoreSms && !config.restoreCallLog) {
             return new RestoreState(FINISHED_RESTORE, 0, 0, 0, 0, null, null);
         } else {
+            RunMetrics.start(config.trace);
+            RestoreState result = null;
             try {
                 service.acquireLocks();
-                return restore(config);
+                result = restore(refreshTokenIfExpiring(config));
+                updateCheckpoint(result);
+                return result;
             } finally {
                 service.releaseLocks();
+                finishRun(result);
             }
         }
     }
@@ -93,6 +125,7 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         final BackupImapStore imapStore = config.imapStore;
 
         int currentRestoredItem = config.currentRestoredItem;
+        imapStore.acquire();
         try {
             publishProgress(LOGIN);
             imapStore.checkSettings();
@@ -102,24 +135,26 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             final List<Message> msgs = new ArrayList<Message>();
 
             if (config.restoreSms) {
-                msgs.addAll(imapStore.getFolder(SMS).getMessages(config.maxRestore, config.restoreOnlyStarred, null));
+                msgs.addAll(getMessages(SMS, config));
             }
             if (config.restoreCallLog) {
-                msgs.addAll(imapStore.getFolder(CALLLOG).getMessages(config.maxRestore, config.restoreOnlyStarred, null));
+                msgs.addAll(getMessages(CALLLOG, config));
             }
 
             final int itemsToRestoreCount = config.maxRestore <= 0 ? msgs.size() : Math.min(msgs.size(), config.maxRestore);
 
+            if (currentRestoredItem == 0 && config.resumeFrom != null) {
+                currentRestoredItem = getResumePosition(msgs, config.resumeFrom);
+            }
+
             if (itemsToRestoreCount > 0) {
                 for (; currentRestoredItem < itemsToRestoreCount && !isCancelled(); currentRestoredItem++) {
-                    DataType dataType = importMessage(msgs.get(currentRestoredItem));
+                    final Message message = msgs.get(currentRestoredItem);
+                    DataType dataType = importMessage(message);
+                    commit(message, currentRestoredItem);
 
                     msgs.set(currentRestoredItem, null); // help gc
-                    publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
-                    if (currentRestoredItem % 50 == 0) {
-                        //clear cache periodically otherwise SD card fills up
-                        service.clearCache();
-                    }
+                    publishThrottled(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
                 }
                 if (!isCancelled()) {
                     publishProgress(UPDATING_THREADS);
@@ -129,12 +164,12 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
                 Log.d(TAG, "nothing to restore");
             }
 
-            final int restoredCount = smsIds.size() + callLogIds.size();
+            final int restoredCount = getRestoredCount();
             return new RestoreState(isCancelled() ? CANCELED_RESTORE : FINISHED_RESTORE,
                     currentRestoredItem,
                     itemsToRestoreCount,
                     restoredCount,
-                    uids.size() - restoredCount, null, null);
+                    getProcessedCount() - restoredCount, null, null);
         } catch (XOAuth2AuthenticationFailedException e) {
             return handleAuthError(config, currentRestoredItem, e);
         } catch (AuthenticationFailedException e) {
@@ -146,10 +181,108 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             // usually memory problems (Couldn't init cursor window)
             return transition(ERROR, e);
         } finally {
-            imapStore.closeFolders();
+            imapStore.release();
+        }
+    }
+
+    private List<ImapStore.ImapMessage> getMessages(DataType type, RestoreConfig config)
+            throws MessagingException {
+        final BackupImapStore.BackupFolder folder = config.imapStore.getFolder(type);
+        // needed to write checkpoints this run can later be resumed from
+        uidValidities.put(folder.getName(), folder.queryUidValidity());
+        final long start = RunMetrics.begin(Stage.SEARCH);
+        try {
+            return folder.getMessages(type, config.maxRestore, config.restoreOnlyStarred, null);
+        } finally {
+            RunMetrics.end(Stage.SEARCH, start);
+        }
+    }
+
+    /**
+     * @return the position right after the checkpointed message, or 0 if it cannot be found
+     *         (or the folder has been recreated since)
+     */
+    private int getResumePosition(List<Message> messages, RestoreCheckpoint resumeFrom) {
+        final Long uidValidity = uidValidities.get(resumeFrom.folder);
+        if (uidValidity == null || uidValidity != resumeFrom.uidValidity) {
+            Log.w(TAG, "UIDVALIDITY changed, not resuming from " + resumeFrom);
+            return 0;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            final Message message = messages.get(i);
+            if (resumeFrom.uid.equals(message.getUid()) && resumeFrom.folder.equals(getFolderName(message))) {
+                Log.d(TAG, "resuming restore at position " + (i + 1));
+                resumedFrom = resumeFrom;
+                return i + 1;
+            }
+        }
+        Log.w(TAG, "message not found, not resuming from " + resumeFrom);
+        return 0;
+    }
+
+    private void commit(Message message, int position) {
+        final long start = RunMetrics.begin(Stage.COMMIT);
+        try {
+            checkpoint(message, position);
+        } finally {
+            RunMetrics.end(Stage.COMMIT, start);
+        }
+    }
+
+    private void checkpoint(Message message, int position) {
+        final String folder = getFolderName(message);
+        if (folder == null || message.getUid() == null) return;
+
+        final Long uidValidity = uidValidities.get(folder);
+        checkpoint = new RestoreCheckpoint(folder,
+                uidValidity == null ? RestoreCheckpoint.UNKNOWN_UID_VALIDITY : uidValidity,
+                message.getUid(),
+                getProcessedCount(),
+                getRestoredCount());
+
+        if ((position + 1) % CHECKPOINT_INTERVAL == 0) {
+            checkpoint.save(service.getApplicationContext());
+        }
+    }
+
+    private void finishRun(RestoreState result) {
+        final RunMetrics metrics = RunMetrics.finish();
+        if (metrics == null) return;
+
+        service.appLog(R.string.app_log_metrics, metrics.summary(service));
+        if (metrics.getTrace() != null) {
+            service.appLogTrace(metrics.getTrace());
+        }
+        try {
+            runHistory.record(RunHistory.Run.from(metrics, RunHistory.Kind.RESTORE, null, result));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error recording run", e);
+        } finally {
+            runHistory.close();
+        }
+    }
+
+    private void updateCheckpoint(RestoreState result) {
+        if (result.state == FINISHED_RESTORE) {
+            RestoreCheckpoint.clear(service.getApplicationContext());
+        } else if (checkpoint != null) {
+            // canceled or failed, remember where we were
+            checkpoint.save(service.getApplicationContext());
         }
     }
 
+    private int getProcessedCount() {
+        return uids.size() + otherUids + (resumedFrom == null ? 0 : resumedFrom.processedCount);
+    }
+
+    private int getRestoredCount() {
+        return smsIds.size() + callLogIds.size() + (resumedFrom == null ? 0 : resumedFrom.restoredCount);
+    }
+
+    private static @Nullable String getFolderName(Message message) {
+        return message.getFolder() == null ? null : message.getFolder().getName();
+    }
+
     private RestoreState handleAuthError(RestoreConfig config, int currentRestoredItem, XOAuth2AuthenticationFailedException e) {
         if (e.getStatus() == 400) {
             Log.d(TAG, "need to perform xoauth2 token refresh");
@@ -173,12 +306,36 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         return transition(ERROR, e);
     }
 
+    /**
+     * @return config with a store using a new token, if the current one was about to expire
+     */
+    private RestoreConfig refreshTokenIfExpiring(RestoreConfig config) {
+        try {
+            if (tokenRefresher.refreshOAuth2TokenIfExpiring()) {
+                Log.d(TAG, "token about to expire, refreshed");
+                return config.withStore(service.getBackupImapStore());
+            }
+        } catch (TokenRefreshException e) {
+            // keep the current token, a failed login triggers another refresh attempt
+            Log.w(TAG, e);
+        } catch (MessagingException e) {
+            Log.w(TAG, e);
+        }
+        return config;
+    }
+
     private void publishProgress(SmsSyncState smsSyncState) {
         publishProgress(smsSyncState, null);
     }
 
     private void publishProgress(SmsSyncState smsSyncState, Exception exception) {
-        publishProgress(transition(smsSyncState, exception));
+        publishThrottled(transition(smsSyncState, exception));
+    }
+
+    private void publishThrottled(RestoreState state) {
+        if (progressThrottle.shouldPublish(state)) {
+            publishProgress(state);
+        }
     }
 
     private RestoreState transition(SmsSyncState smsSyncState, Exception exception) {
@@ -188,7 +345,7 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     @Override
     protected void onPostExecute(RestoreState result) {
         if (result != null) {
-            Log.d(TAG, "finished (" + result + "/" + uids.size() + ")");
+            Log.d(TAG, "finished (" + result + "/" + (uids.size() + otherUids) + ")");
             post(result);
         }
         App.bus.unregister(this);
@@ -214,15 +371,14 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     }
 
     private DataType importMessage(Message message) {
-        uids.add(message.getUid());
+        addUid(message.getUid());
 
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.BODY);
         DataType dataType = null;
         try {
             if (LOCAL_LOGV) Log.v(TAG, "fetching message uid " + message.getUid());
-            message.getFolder().fetch(Arrays.asList(message), fp, null);
+            fetchBody(message);
             dataType = converter.getDataType(message);
+            RunMetrics.count(dataType, 1, message.getSize());
             //only restore sms+call log for now
             switch (dataType) {
                 case CALLLOG:
@@ -242,10 +398,33 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             Log.e(TAG, "error", e);
         } catch (IOException e) {
             Log.e(TAG, "error", e);
+        } finally {
+            // free buffers / temp files now, rather than when the next message comes in
+            InMemoryBody.release(message);
         }
         return dataType;
     }
 
+    private void fetchBody(Message message) throws MessagingException {
+        final long start = RunMetrics.begin(Stage.FETCH);
+        try {
+            fetchBody(message, message.getFolder());
+        } finally {
+            RunMetrics.end(Stage.FETCH, start);
+        }
+    }
+
+    private void fetchBody(Message message, Folder folder) throws MessagingException {
+        if (folder instanceof BackupImapStore.BackupFolder && message instanceof ImapStore.ImapMessage &&
+            ((BackupImapStore.BackupFolder) folder).fetchInMemory((ImapStore.ImapMessage) message, bodyBufferPool)) {
+            return;
+        }
+        // too big (or unknown) for an in-memory fetch, use a temp file
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        folder.fetch(Arrays.asList(message), fp, null);
+    }
+
     private void importSms(final Message message) throws IOException, MessagingException {
         if (LOCAL_LOGV) Log.v(TAG, "importSms(" + message + ")");
         final ContentValues values = converter.messageToContentValues(message);
@@ -254,9 +433,9 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         // only restore inbox messages and sent messages - otherwise sms might get sent on restore
         if (type != null && (type == SmsConsts.MESSAGE_TYPE_INBOX || type == SmsConsts.MESSAGE_TYPE_SENT) && !smsExists(values)) {
 
-            final Uri uri = resolver.insert(Consts.SMS_PROVIDER, values);
+            final Uri uri = insert(Consts.SMS_PROVIDER, values);
             if (uri != null) {
-                smsIds.add(uri.getLastPathSegment());
+                smsIds.add(ContentUris.parseId(uri));
                 Long timestamp = values.getAsLong(SmsConsts.DATE);
 
                 if (timestamp != null && SMS.getMaxSyncedDate(service) < timestamp) {
@@ -274,52 +453,59 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         if (LOCAL_LOGV) Log.v(TAG, "importCallLog(" + message + ")");
         final ContentValues values = converter.messageToContentValues(message);
         if (!callLogExists(values)) {
-            final Uri uri = resolver.insert(Consts.CALLLOG_PROVIDER, values);
-            if (uri != null) callLogIds.add(uri.getLastPathSegment());
+            final Uri uri = insert(Consts.CALLLOG_PROVIDER, values);
+            if (uri != null) callLogIds.add(ContentUris.parseId(uri));
         } else {
             if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
         }
     }
 
     private boolean callLogExists(ContentValues values) {
-        Cursor c = resolver.query(Consts.CALLLOG_PROVIDER,
-            new String[] { "_id" },
+        return exists(Consts.CALLLOG_PROVIDER,
             "date = ? AND number = ? AND duration = ? AND type = ?",
             new String[]{
                 values.getAsString(CallLog.Calls.DATE),
                 values.getAsString(CallLog.Calls.NUMBER),
                 values.getAsString(CallLog.Calls.DURATION),
                 values.getAsString(CallLog.Calls.TYPE)
-            },
-            null
+            }
         );
-        boolean exists = false;
-        if (c != null) {
-            exists = c.getCount() > 0;
-            c.close();
-        }
-        return exists;
     }
 
     private boolean smsExists(ContentValues values) {
         // just assume equality on date+address+type
-        Cursor c = resolver.query(Consts.SMS_PROVIDER,
-            new String[] {"_id" },
+        return exists(Consts.SMS_PROVIDER,
             "date = ? AND address = ? AND type = ?",
             new String[] {
                 values.getAsString(SmsConsts.DATE),
                 values.getAsString(SmsConsts.ADDRESS),
                 values.getAsString(SmsConsts.TYPE)
-            },
-            null
+            }
         );
+    }
 
-        boolean exists = false;
-        if (c != null) {
-            exists = c.getCount() > 0;
-            c.close();
+    private boolean exists(Uri uri, String selection, String[] selectionArgs) {
+        final long start = RunMetrics.begin(Stage.QUERY);
+        try {
+            Cursor c = resolver.query(uri, new String[] { "_id" }, selection, selectionArgs, null);
+            boolean exists = false;
+            if (c != null) {
+                exists = c.getCount() > 0;
+                c.close();
+            }
+            return exists;
+        } finally {
+            RunMetrics.end(Stage.QUERY, start);
+        }
+    }
+
+    private @Nullable Uri insert(Uri uri, ContentValues values) {
+        final long start = RunMetrics.begin(Stage.INSERT);
+        try {
+            return resolver.insert(uri, values);
+        } finally {
+            RunMetrics.end(Stage.INSERT, start);
         }
-        return exists;
     }
 
     private void updateAllThreads() {
@@ -327,11 +513,24 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         // unfortunately there's no direct way to do that in the SDK, but passing a
         // negative conversation id to delete should to the trick
         Log.d(TAG, "updating threads");
-        resolver.delete(Uri.parse("content://sms/conversations/-1"), null, null);
+        final long start = RunMetrics.begin(Stage.UPDATE_THREADS);
+        try {
+            resolver.delete(Uri.parse("content://sms/conversations/-1"), null, null);
+        } finally {
+            RunMetrics.end(Stage.UPDATE_THREADS, start);
+        }
         Log.d(TAG, "finished");
     }
 
-    protected Set<String> getSmsIds() {
+    private void addUid(String uid) {
+        try {
+            uids.add(Long.parseLong(uid));
+        } catch (NumberFormatException e) {
+            otherUids++;
+        }
+    }
+
+    protected LongHashSet getSmsIds() {
         return smsIds;
     }
 }
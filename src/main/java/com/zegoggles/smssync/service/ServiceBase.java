@@ -25,6 +25,7 @@ import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.Environment;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.text.format.DateFormat;
@@ -34,6 +35,8 @@ import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.activity.MainActivity;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.ImapConnectionManager;
+import com.zegoggles.smssync.metrics.RunTrace;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.state.State;
@@ -41,6 +44,8 @@ import com.zegoggles.smssync.utils.AppLog;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -68,7 +73,7 @@ public abstract class ServiceBase extends Service {
             } catch (IllegalArgumentException e) {
                 format = new char[] { DateFormat.DATE };
             }
-            this.appLog = new AppLog(format);
+            this.appLog = new AppLog(this, format);
         }
         App.bus.register(this);
     }
@@ -105,7 +110,7 @@ public abstract class ServiceBase extends Service {
         if (!BackupImapStore.isValidUri(uri)) {
             throw new MessagingException("No valid IMAP URI: "+uri);
         }
-        return new BackupImapStore(getApplicationContext(), uri);
+        return ImapConnectionManager.getStore(this, uri, getPreferences().getImapKeepAliveSecs());
     }
 
     protected AuthPreferences getAuthPreferences() {
@@ -176,6 +181,21 @@ public abstract class ServiceBase extends Service {
         }
     }
 
+    /**
+     * Writes the timeline of a run next to the app log, replacing the previous one.
+     */
+    protected void appLogTrace(RunTrace trace) {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) return;
+
+        final File file = AppLog.getFile(App.TRACE);
+        try {
+            trace.writeTo(file);
+            appLog(R.string.app_log_trace_written, file.getName(), trace.size());
+        } catch (IOException e) {
+            Log.w(TAG, "error writing trace", e);
+        }
+    }
+
     protected NotificationManager getNotifier() {
         return (NotificationManager) getApplicationContext().getSystemService(NOTIFICATION_SERVICE);
     }
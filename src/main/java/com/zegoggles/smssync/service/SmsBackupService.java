@@ -47,7 +47,6 @@ import java.util.EnumSet;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
-import static com.zegoggles.smssync.service.BackupType.MANUAL;
 import static com.zegoggles.smssync.service.state.SmsSyncState.*;
 
 public class SmsBackupService extends ServiceBase {
@@ -56,6 +55,8 @@ public class SmsBackupService extends ServiceBase {
 
     @Nullable private static SmsBackupService service;
     @NotNull private BackupState mState = new BackupState();
+    /** set when background triggers arrived during a running backup */
+    private boolean mFollowUpRequested;
 
     @Override @NotNull
     public BackupState getState() {
@@ -89,8 +90,17 @@ public class SmsBackupService extends ServiceBase {
             if (getAuthPreferences().needsMigration()) {
                 runMigration();
             } else {
+                if (backupType != BackupType.INSTANT && backupType != BackupType.DRY_RUN) {
+                    // an instant backup only covers SMS and a dry run uploads nothing, the
+                    // pending backup is still needed
+                    getAlarms().clearPendingBackup();
+                }
                 backup(backupType, intent.getBooleanExtra(Consts.KEY_SKIP_MESSAGES, false));
             }
+        } else if (backupType.isBackground() && isWorking()) {
+            // don't lose the trigger, run once more when the current backup is done
+            mFollowUpRequested = true;
+            appLog(R.string.app_log_backup_follow_up);
         } else {
             appLog(R.string.app_log_skip_backup_already_running);
         }
@@ -103,6 +113,29 @@ public class SmsBackupService extends ServiceBase {
             // set initial state
             mState = new BackupState(INITIAL, 0, 0, backupType, null, null);
             EnumSet<DataType> enabledTypes = getEnabledBackupTypes();
+            if (backupType == BackupType.INSTANT) {
+                // only the message which just arrived, the incoming backup covers the rest
+                if (!enabledTypes.contains(DataType.SMS)) {
+                    appLog(R.string.app_log_skip_instant_backup);
+                    moveToState(mState.transition(FINISHED_BACKUP, null));
+                    return;
+                }
+                enabledTypes = EnumSet.of(DataType.SMS);
+            }
+            if (backupType == BackupType.DRY_RUN) {
+                // nothing leaves the device, no need for credentials or a connection
+                appLog(R.string.app_log_start_backup, backupType);
+                getBackupTask().execute(getDryRunConfig(backupType, enabledTypes));
+                return;
+            }
+            if (backupType == BackupType.REGULAR && !skip &&
+                !getChangeDetector().hasChanges(enabledTypes) &&
+                !new BackfillWatermarks(this).isActive(enabledTypes)) {
+                // nothing moved since the last backup, no need to log in
+                appLog(R.string.app_log_skip_backup_no_changes);
+                moveToState(mState.transition(FINISHED_BACKUP, null));
+                return;
+            }
             if (!skip) {
                 checkCredentials();
                 checkBackgroundDataSettings(backupType);
@@ -142,6 +175,20 @@ public class SmsBackupService extends ServiceBase {
         );
     }
 
+    private BackupConfig getDryRunConfig(BackupType backupType, EnumSet<DataType> enabledTypes) {
+        return new BackupConfig(
+            null,
+            0,
+            false,
+            getPreferences().getMaxItemsPerSync(),
+            getPreferences().getBackupContactGroup(),
+            backupType,
+            enabledTypes,
+            getPreferences().isAppLogDebug(),
+            true
+        );
+    }
+
     private EnumSet<DataType> getEnabledBackupTypes() throws BackupDisabledException {
         EnumSet<DataType> dataTypes = DataType.enabled(this);
         if (dataTypes.isEmpty()) {
@@ -201,7 +248,7 @@ public class SmsBackupService extends ServiceBase {
         }
 
         if (state.isRunning()) {
-            if (state.backupType == MANUAL) {
+            if (!state.backupType.isBackground()) {
                 notifyAboutBackup(state);
             }
         } else {
@@ -212,11 +259,25 @@ public class SmsBackupService extends ServiceBase {
                 Log.d(TAG, "scheduling next backup");
                 scheduleNextBackup();
             }
+            if (mFollowUpRequested || hasPendingBackfill(state)) {
+                mFollowUpRequested = false;
+                getAlarms().scheduleFollowUpBackup();
+            }
             stopForeground(true);
             stopSelf();
         }
     }
 
+    /**
+     * The backfill lane only gets a slice of each run, keep going until the history is done.
+     */
+    private boolean hasPendingBackfill(BackupState state) {
+        return state.state == FINISHED_BACKUP &&
+                state.backupType != BackupType.INSTANT &&
+                state.backupType != BackupType.DRY_RUN &&
+                new BackfillWatermarks(this).isActive(EnumSet.allOf(DataType.class));
+    }
+
     private void handleErrorState(BackupState state) {
         if (state.isAuthException()) {
             appLog(R.string.app_log_backup_failed_authentication, state.getDetailedErrorMessage(getResources()));
@@ -242,16 +303,17 @@ public class SmsBackupService extends ServiceBase {
     }
 
     private boolean shouldNotifyUser(BackupState state) {
-        return state.backupType == MANUAL ||
+        return !state.backupType.isBackground() ||
                (getPreferences().isNotificationEnabled() && !state.isConnectivityError());
     }
 
     private void notifyAboutBackup(BackupState state) {
+        final int title = state.backupType == BackupType.DRY_RUN ? R.string.status_dry_run : R.string.status_backup;
         if (notification == null) {
-            notification = createNotification(R.string.status_backup);
+            notification = createNotification(title);
         }
         notification.setLatestEventInfo(this,
-            getString(R.string.status_backup),
+            getString(title),
             state.getNotificationLabel(getResources()),
             getPendingIntent());
 
@@ -281,6 +343,10 @@ public class SmsBackupService extends ServiceBase {
         getNotifier().notify(notificationId, n);
     }
 
+    protected ChangeDetector getChangeDetector() {
+        return new ChangeDetector(this);
+    }
+
     protected Alarms getAlarms() {
         return new Alarms(this);
     }
@@ -14,7 +14,6 @@ import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.auth.OAuth2Client;
 import com.zegoggles.smssync.auth.TokenRefresher;
-import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.preferences.AuthPreferences;
@@ -84,8 +83,7 @@ public class SmsRestoreService extends ServiceBase {
             MessageConverter converter = new MessageConverter(service,
                     getPreferences(),
                     getAuthPreferences().getUserEmail(),
-                    new PersonLookup(getContentResolver()),
-                    ContactAccessor.Get.instance()
+                    new PersonLookup(getContentResolver())
             );
 
             RestoreConfig config = new RestoreConfig(
@@ -95,7 +93,9 @@ public class SmsRestoreService extends ServiceBase {
                 restoreCallLog,
                 getPreferences().isRestoreStarredOnly(),
                 getPreferences().getMaxItemsPerRestore(),
-                0
+                0,
+                RestoreCheckpoint.load(this),
+                getPreferences().isAppLogTrace()
             );
 
             final AuthPreferences authPreferences = new AuthPreferences(this);
@@ -120,7 +120,11 @@ public class SmsRestoreService extends ServiceBase {
         }.start();
     }
 
-    public synchronized void clearCache() {
+    /**
+     * Removes temp files left behind by a previous, interrupted restore. During a restore
+     * message bodies are released as soon as they have been processed.
+     */
+    private synchronized void clearCache() {
         File tmp = getCacheDir();
         if (tmp == null) return; // not sure why this would return null
 
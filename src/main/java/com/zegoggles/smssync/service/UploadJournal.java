@@ -0,0 +1,172 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.text.TextUtils;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Write-ahead journal for the batch currently being uploaded. Before a batch gets appended
+ * its Message-IDs and the watermark it would advance are written to disk, the server UIDs
+ * (APPENDUID, RFC 4315) are recorded once the append succeeded and the entry is dropped after
+ * the watermark has been moved. A backup interrupted in between can then be reconciled on the
+ * next run, instead of uploading the batch a second time.
+ */
+class UploadJournal {
+    private static final String PREFS = "upload_journal";
+    private static final String DATA_TYPE = "data_type";
+    private static final String MAX_DATE = "max_date";
+    private static final String MESSAGE_IDS = "message_ids";
+    private static final String SIZE = "size";
+    private static final String UIDS = "uids";
+    private static final String BACKFILL = "backfill";
+    private static final String SEPARATOR = "\n";
+
+    private final SharedPreferences preferences;
+
+    UploadJournal(Context context) {
+        this.preferences = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records a batch before it gets sent to the server.
+     *
+     * @param backfill true if the batch belongs to the backfill lane, which has its own watermark
+     */
+    void begin(@NotNull DataType type, long maxDate, @NotNull List<Message> messages, boolean backfill) {
+        final List<String> messageIds = new ArrayList<String>(messages.size());
+        for (Message message : messages) {
+            final String messageId = Headers.get(message, Headers.MESSAGE_ID);
+            if (messageId != null) {
+                messageIds.add(messageId);
+            }
+        }
+        // needs to be on disk before the upload starts
+        preferences.edit()
+                .putString(DATA_TYPE, type.name())
+                .putLong(MAX_DATE, maxDate)
+                .putString(MESSAGE_IDS, TextUtils.join(SEPARATOR, messageIds))
+                .putInt(SIZE, messages.size())
+                .putBoolean(BACKFILL, backfill)
+                .remove(UIDS)
+                .commit();
+    }
+
+    /**
+     * Records the UIDs assigned by the server, once the batch has been appended.
+     */
+    void appended(@Nullable Collection<String> uids) {
+        if (uids == null) return;
+        final List<String> serverUids = new ArrayList<String>(uids.size());
+        for (String uid : uids) {
+            if (uid != null) serverUids.add(uid);
+        }
+        // without the UIDs the batch gets confirmed by searching for its Message-IDs
+        apply(preferences.edit().putString(UIDS, TextUtils.join(SEPARATOR, serverUids)));
+    }
+
+    /**
+     * Drops the current entry, to be called once the watermark has been advanced.
+     */
+    void commit() {
+        // an entry which survives a crash gets reconciled again, which does no harm
+        apply(preferences.edit().clear());
+    }
+
+    /**
+     * @return the batch which was in flight when the last backup stopped, or null
+     */
+    @Nullable Entry getPending() {
+        final String type = preferences.getString(DATA_TYPE, null);
+        if (type == null) return null;
+        try {
+            return new Entry(DataType.valueOf(type),
+                    preferences.getLong(MAX_DATE, DataType.Defaults.MAX_SYNCED_DATE),
+                    split(preferences.getString(MESSAGE_IDS, null)),
+                    preferences.getInt(SIZE, 0),
+                    split(preferences.getString(UIDS, null)),
+                    preferences.getBoolean(BACKFILL, false));
+        } catch (IllegalArgumentException e) {
+            commit();
+            return null;
+        }
+    }
+
+    /**
+     * Writes in the background where possible, the batch is on disk already.
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void apply(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    private static List<String> split(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return Collections.emptyList();
+        } else {
+            return Arrays.asList(value.split(SEPARATOR));
+        }
+    }
+
+    static class Entry {
+        final DataType type;
+        final long maxDate;
+        final List<String> messageIds;
+        /** number of messages in the batch, including those without a Message-ID */
+        final int size;
+        final List<String> uids;
+        final boolean backfill;
+
+        Entry(DataType type, long maxDate, List<String> messageIds, int size, List<String> uids, boolean backfill) {
+            this.type = type;
+            this.maxDate = maxDate;
+            this.messageIds = messageIds;
+            this.size = Math.max(size, messageIds.size());
+            this.uids = uids;
+            this.backfill = backfill;
+        }
+
+        /**
+         * @return true if the server confirmed the complete batch
+         */
+        boolean isAppended() {
+            return !uids.isEmpty() && uids.size() >= size;
+        }
+
+        /**
+         * @param found the Message-IDs located on the server
+         * @return true if every message of the batch was found. Messages without a Message-ID
+         *         cannot be located, so a batch containing any is never confirmed this way.
+         */
+        boolean isConfirmedBy(Collection<String> found) {
+            return size > 0 && messageIds.size() == size && found.containsAll(messageIds);
+        }
+
+        @Override public String toString() {
+            return "Entry{" +
+                    "type=" + type +
+                    ", maxDate=" + maxDate +
+                    ", messageIds=" + messageIds +
+                    ", size=" + size +
+                    ", uids=" + uids +
+                    ", backfill=" + backfill +
+                    '}';
+        }
+    }
+}
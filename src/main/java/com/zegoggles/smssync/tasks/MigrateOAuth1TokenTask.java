@@ -46,7 +46,8 @@ public class MigrateOAuth1TokenTask extends AsyncTask<Void, Void, OAuth2Token> {
             authPreferences.setOauth2Token(
                 authPreferences.getUsername(),
                 oAuth2Token.accessToken,
-                oAuth2Token.refreshToken);
+                oAuth2Token.refreshToken,
+                oAuth2Token.expiresIn);
 
             authPreferences.clearOAuth1Data();
         }
@@ -13,29 +13,43 @@ import com.zegoggles.smssync.R;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.LineNumberReader;
 import java.io.PrintWriter;
 import java.util.Date;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
+/**
+ * The app log is kept in a ring file in private storage, and copied to a plain text file on the
+ * SD card when viewed, so it can be shared. If the ring file cannot be mapped lines are appended
+ * to the plain text file directly, which gets trimmed to its last {@link #MAX_SIZE} bytes once
+ * it has grown to twice that size.
+ */
 public class AppLog {
     // keep max 32k worth of logs
     static final int MAX_SIZE = 32 * 1024;
     public static final int ID = 1;
+    private static final long MINUTE = 60 * 1000L;
 
+    private final File file;
+    private LogRing ring;
     private PrintWriter writer;
+    /** length of the plain text file written to */
+    private long writtenLength;
     private String dateFormat;
+    // the timestamp only has minute resolution, format it once per minute
+    private long formattedMinute = -1;
+    private CharSequence formattedDate;
 
-    public AppLog(char[] format) {
-        this(App.LOG, format);
+    public AppLog(Context context, char[] format) {
+        this(context, App.LOG, format);
     }
 
-    private AppLog(String name, char[] format) {
+    private AppLog(Context context, String name, char[] format) {
         for (char c : format) {
             if (c == DateFormat.MONTH) {
                 dateFormat = "MM-dd kk:mm";
@@ -47,25 +61,34 @@ public class AppLog {
             }
         }
 
-        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            final File logFile = getFile(name);
-            if (logFile.isFile() && logFile.exists()) rotate(logFile);
-
-            try {
-                writer = new PrintWriter(new FileWriter(logFile, true));
-            } catch (IOException e) {
-                Log.w(TAG, "error opening app log", e);
+        file = getFile(name);
+        try {
+            ring = LogRing.get(getRingFile(context, name), file, MAX_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "error mapping app log, writing plain text", e);
+            if (isExternalStorageMounted()) {
+                openWriter();
             }
         }
     }
 
+    /**
+     * Queues the line for writing, the file is written in the background.
+     */
     public void append(String s) {
-        if (writer != null) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(format(new Date()))
-                    .append(" ").append(s);
-            writer.println(sb);
-            if (LOCAL_LOGV) Log.v(TAG, "[AppLog]: " + sb);
+        if (ring != null || writer != null) {
+            final String line = timestamp(System.currentTimeMillis()) + " " + s;
+            if (ring != null) {
+                ring.append(line + "\n");
+            } else {
+                writer.println(line);
+                writtenLength += line.length() + 1;
+                if (writtenLength > 2L * MAX_SIZE) {
+                    writer.close();
+                    openWriter();
+                }
+            }
+            if (LOCAL_LOGV) Log.v(TAG, "[AppLog]: " + line);
         }
     }
 
@@ -74,51 +97,59 @@ public class AppLog {
         close();
     }
 
+    /**
+     * Writes out queued lines. The underlying file stays mapped, it is shared with other
+     * instances, and the system writes it back to disk by itself.
+     */
     public void close() {
         if (LOCAL_LOGV) Log.v(TAG, "AppLog#close()");
+        if (ring != null) ring.flush();
         if (writer != null) writer.close();
     }
 
-    public CharSequence format(Date d) {
-        return DateFormat.format(dateFormat, d);
+    private void openWriter() {
+        try {
+            trim(file, MAX_SIZE);
+            writtenLength = file.length();
+            writer = new PrintWriter(new FileWriter(file, true));
+        } catch (IOException e) {
+            Log.w(TAG, "error opening app log", e);
+            writer = null;
+        }
     }
 
-    private void rotate(final File logFile) {
-        if (logFile.length() > MAX_SIZE) {
-            if (LOCAL_LOGV) Log.v(TAG, "rotating logfile " + logFile);
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        LineNumberReader r = new LineNumberReader(new FileReader(logFile));
-
-                        while (r.readLine() != null) ;
-                        r.close();
-
-                        int keep = Math.round(r.getLineNumber() * 0.3f);
-                        if (keep > 0) {
-                            r = new LineNumberReader(new FileReader(logFile));
-
-                            while (r.readLine() != null && r.getLineNumber() < keep) ;
-
-                            File newFile = new File(logFile.getAbsolutePath() + ".new");
-                            PrintWriter pw = new PrintWriter(new FileWriter(newFile));
-                            String line;
-                            while ((line = r.readLine()) != null) pw.println(line);
+    /**
+     * Cuts a plain text log down to its last lines fitting into maxSize, once it has grown to
+     * twice that size.
+     */
+    static void trim(File file, int maxSize) throws IOException {
+        if (file.length() <= 2L * maxSize) return;
+
+        final byte[] tail = LogRing.readTail(file, maxSize);
+        int start = 0;
+        // the first line is most likely cut
+        while (start < tail.length && tail[start] != '\n') start++;
+        start = Math.min(tail.length, start + 1);
+
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(tail, start, tail.length - start);
+        } finally {
+            out.close();
+        }
+    }
 
-                            pw.close();
-                            r.close();
+    public CharSequence format(Date d) {
+        return DateFormat.format(dateFormat, d);
+    }
 
-                            if (newFile.renameTo(logFile) && LOCAL_LOGV) {
-                                Log.v(TAG, "rotated file, new size = " + logFile.length());
-                            }
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "error rotating file " + logFile, e);
-                    }
-                }
-            }.start();
+    private synchronized CharSequence timestamp(long now) {
+        final long minute = now / MINUTE;
+        if (minute != formattedMinute) {
+            formattedDate = format(new Date(now));
+            formattedMinute = minute;
         }
+        return formattedDate;
     }
 
     public static Dialog displayAsDialog(String name, Context context) {
@@ -148,39 +179,65 @@ public class AppLog {
                 .create();
     }
 
+    /**
+     * Shows the log in the view, and updates its plain text copy on the SD card in the background.
+     */
     public static boolean readLog(String name, TextView view) {
+        if (view != null) {
+            final File ringFile = getRingFile(view.getContext(), name);
+            if (ringFile.exists()) {
+                if (isExternalStorageMounted()) {
+                    LogRing.export(ringFile, getFile(name));
+                }
+                return readLog(ringFile, view);
+            }
+        }
         return readLog(getFile(name), view);
     }
 
     public static boolean readLog(File f, TextView view) {
-        StringBuilder text = new StringBuilder();
+        CharSequence text = null;
         if (view != null && f.exists()) {
-            BufferedReader br = null;
             try {
-                br = new BufferedReader(new FileReader(f));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    text.append(line);
-                    text.append('\n');
+                text = LogRing.read(f);
+                if (text == null) {
+                    // not converted yet
+                    text = readText(f);
                 }
             } catch (IOException e) {
                 Log.e(TAG, "error reading", e);
-            } finally {
-                if (br != null) {
-                    try {
-                        br.close();
-                    } catch (IOException ignored) {
-                    }
-                }
             }
-            view.setText(text.length() > 0 ? text :
+            view.setText(text != null && text.length() > 0 ? text :
                     view.getContext().getString(R.string.app_log_empty));
         }
 
-        return text.length() > 0;
+        return text != null && text.length() > 0;
     }
 
-    static File getFile(String name) {
+    private static CharSequence readText(File f) throws IOException {
+        final StringBuilder text = new StringBuilder();
+        final BufferedReader br = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                text.append(line);
+                text.append('\n');
+            }
+        } finally {
+            br.close();
+        }
+        return text;
+    }
+
+    public static File getFile(String name) {
         return new File(Environment.getExternalStorageDirectory(), name);
     }
+
+    private static File getRingFile(Context context, String name) {
+        return new File(context.getFilesDir(), name);
+    }
+
+    private static boolean isExternalStorageMounted() {
+        return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
+    }
 }
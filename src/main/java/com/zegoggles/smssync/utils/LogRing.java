@@ -0,0 +1,316 @@
+package com.zegoggles.smssync.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Fixed size log file used as a ring buffer. New text overwrites the oldest, so the file never
+ * has to be rotated. The file is memory mapped, and appended text is collected in memory and
+ * written in batches on a background thread, so logging threads never wait for the disk.
+ * <p>
+ * Layout: a header with magic, capacity, write position and a wrapped flag, followed by the
+ * data area. The file is binary, {@link #export(File, File)} writes a plain text copy.
+ */
+class LogRing {
+    static final int MAGIC = 0x53425052; // SBPR
+    static final int HEADER_SIZE = 16;
+    private static final String UTF_8 = "UTF-8";
+
+    private static final Map<String, LogRing> RINGS = new HashMap<String, LogRing>();
+    private static final ExecutorService FLUSHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "AppLog");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    private final Object lock = new Object();
+    /** text appended since the last flush, guarded by lock */
+    private StringBuilder pending = new StringBuilder();
+    private boolean flushScheduled;
+    private int position;
+    private boolean wrapped;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @return the ring for the file, shared by all users in the process
+     */
+    static LogRing get(File file, File legacyFile, int capacity) throws IOException {
+        synchronized (RINGS) {
+            LogRing ring = RINGS.get(file.getAbsolutePath());
+            if (ring == null) {
+                ring = new LogRing(file, legacyFile, capacity);
+                RINGS.put(file.getAbsolutePath(), ring);
+            }
+            return ring;
+        }
+    }
+
+    /**
+     * @return the ring for the file if it is open in this process, or null
+     */
+    static LogRing getIfOpen(File file) {
+        synchronized (RINGS) {
+            return RINGS.get(file.getAbsolutePath());
+        }
+    }
+
+    LogRing(File file, int capacity) throws IOException {
+        this(file, file, capacity);
+    }
+
+    /**
+     * @param legacyFile plain text log whose tail gets copied over when the ring file is created
+     */
+    LogRing(File file, File legacyFile, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+
+        final byte[] legacy = isRing(file) || isRing(legacyFile) ? null : readTail(legacyFile, capacity);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (legacy != null) {
+                // plain text log written by an older version, its tail gets copied over
+                raf.setLength(0);
+            }
+            raf.setLength(HEADER_SIZE + capacity);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        } finally {
+            // the mapping stays valid after the file has been closed
+            raf.close();
+        }
+
+        if (legacy == null && buffer.getInt(4) == capacity) {
+            position = buffer.getInt(8);
+            wrapped = buffer.getInt(12) != 0;
+            if (position < 0 || position >= capacity) {
+                position = 0;
+                wrapped = false;
+            }
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, capacity);
+            position = 0;
+            wrapped = false;
+            if (legacy != null && legacy.length > 0) {
+                write(legacy);
+            }
+            writeHeader();
+        }
+    }
+
+    /**
+     * Queues text for writing, returns immediately.
+     */
+    void append(String text) {
+        synchronized (lock) {
+            pending.append(text);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                FLUSHER.execute(flushTask);
+            }
+        }
+    }
+
+    /**
+     * Writes all queued text to the mapped file.
+     */
+    void flush() {
+        final String text;
+        synchronized (lock) {
+            flushScheduled = false;
+            if (pending.length() == 0) return;
+            text = pending.toString();
+            pending = new StringBuilder();
+        }
+        synchronized (buffer) {
+            write(encode(text));
+            writeHeader();
+        }
+    }
+
+    /**
+     * @return the logged text, oldest first
+     */
+    String read() {
+        flush();
+        synchronized (buffer) {
+            return contents(buffer, capacity, position, wrapped);
+        }
+    }
+
+    /**
+     * Reads the ring file without opening it for writing.
+     *
+     * @return the logged text, or null if the file is not a log ring
+     */
+    static String read(File file) throws IOException {
+        final LogRing open = getIfOpen(file);
+        if (open != null) return open.read();
+
+        if (!isRing(file)) return null;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            final int capacity = buffer.getInt(4);
+            if (capacity != data.length - HEADER_SIZE) return null;
+            return contents(buffer, capacity, buffer.getInt(8), buffer.getInt(12) != 0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the text logged in the ring file to a plain text file in the background, replacing
+     * its contents. Text queued before the call is included.
+     */
+    static void export(final File file, final File target) {
+        FLUSHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final String text = read(file);
+                    if (text == null) return;
+                    final FileOutputStream out = new FileOutputStream(target);
+                    try {
+                        out.write(encode(text));
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "error exporting log to " + target, e);
+                }
+            }
+        });
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private void write(byte[] data) {
+        int offset = 0;
+        int length = data.length;
+        if (length > capacity) {
+            // only the end fits
+            offset = length - capacity;
+            length = capacity;
+        }
+        while (length > 0) {
+            final int chunk = Math.min(length, capacity - position);
+            buffer.position(HEADER_SIZE + position);
+            buffer.put(data, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+            position += chunk;
+            if (position == capacity) {
+                position = 0;
+                wrapped = true;
+            }
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(8, position);
+        buffer.putInt(12, wrapped ? 1 : 0);
+    }
+
+    private static String contents(ByteBuffer buffer, int capacity, int position, boolean wrapped) {
+        if (position < 0 || position > capacity) return "";
+
+        final byte[] data;
+        if (wrapped) {
+            data = new byte[capacity];
+            get(buffer, HEADER_SIZE + position, data, 0, capacity - position);
+            get(buffer, HEADER_SIZE, data, capacity - position, position);
+        } else {
+            data = new byte[position];
+            get(buffer, HEADER_SIZE, data, 0, position);
+        }
+
+        int start = 0;
+        if (wrapped) {
+            // the oldest line has been partly overwritten
+            while (start < data.length && data[start] != '\n') start++;
+            start = Math.min(data.length, start + 1);
+        }
+        try {
+            return new String(data, start, data.length - start, UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void get(ByteBuffer buffer, int index, byte[] dest, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = buffer.get(index + i);
+        }
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static boolean isRing(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) return false;
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.readInt() == MAGIC;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error reading " + file, e);
+            return false;
+        }
+    }
+
+    static byte[] readTail(File file, int max) throws IOException {
+        if (!file.isFile()) return null;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            final int size = (int) Math.min(length, max);
+            final byte[] tail = new byte[size];
+            raf.seek(length - size);
+            raf.readFully(tail);
+            return tail;
+        } finally {
+            raf.close();
+        }
+    }
+}
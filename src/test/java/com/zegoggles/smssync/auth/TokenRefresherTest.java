@@ -119,7 +119,7 @@ public class TokenRefresherTest {
 
         refresher.refreshOAuth2Token();
 
-        verify(authPreferences).setOauth2Token("username", "newToken", "refresh");
+        verify(authPreferences).setOauth2Token("username", "newToken", "refresh", 0);
     }
 
     @Test public void shouldUpdateRefreshTokenIfPresentInResponse() throws Exception {
@@ -131,6 +131,36 @@ public class TokenRefresherTest {
 
         refresher.refreshOAuth2Token();
 
-        verify(authPreferences).setOauth2Token("username", "newToken", "newRefresh");
+        verify(authPreferences).setOauth2Token("username", "newToken", "newRefresh", 0);
+    }
+
+    @Test public void shouldRefreshTokenAboutToExpire() throws Exception {
+        when(authPreferences.getOauth2Token()).thenReturn("token");
+        when(authPreferences.getOauth2RefreshToken()).thenReturn("refresh");
+        when(authPreferences.getUsername()).thenReturn("username");
+        when(authPreferences.getOauth2TokenExpiry()).thenReturn(System.currentTimeMillis() + 1000);
+        when(oauth2Client.refreshToken("refresh")).thenReturn(new OAuth2Token("newToken", "type", null, 3600, null));
+
+        assertThat(refresher.refreshOAuth2TokenIfExpiring()).isTrue();
+
+        verify(authPreferences).setOauth2Token("username", "newToken", "refresh", 3600);
+    }
+
+    @Test public void shouldNotRefreshValidToken() throws Exception {
+        when(authPreferences.getOauth2Token()).thenReturn("token");
+        when(authPreferences.getOauth2TokenExpiry()).thenReturn(System.currentTimeMillis() + 60 * 60 * 1000);
+
+        assertThat(refresher.refreshOAuth2TokenIfExpiring()).isFalse();
+
+        verifyZeroInteractions(oauth2Client);
+    }
+
+    @Test public void shouldNotRefreshTokenWithUnknownExpiry() throws Exception {
+        when(authPreferences.getOauth2Token()).thenReturn("token");
+        when(authPreferences.getOauth2TokenExpiry()).thenReturn(-1L);
+
+        assertThat(refresher.refreshOAuth2TokenIfExpiring()).isFalse();
+
+        verifyZeroInteractions(oauth2Client);
     }
 }
@@ -0,0 +1,71 @@
+package com.zegoggles.smssync.collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class LongHashSetTest {
+
+    @Test public void shouldBeEmptyInitially() throws Exception {
+        LongHashSet set = new LongHashSet();
+        assertThat(set.isEmpty()).isTrue();
+        assertThat(set.size()).isEqualTo(0);
+        assertThat(set.contains(0)).isFalse();
+        assertThat(set.toArray()).isEmpty();
+    }
+
+    @Test public void shouldAddValues() throws Exception {
+        LongHashSet set = new LongHashSet();
+        assertThat(set.add(42)).isTrue();
+        assertThat(set.add(42)).isFalse();
+        assertThat(set.add(-1)).isTrue();
+        assertThat(set.add(0)).isTrue();
+        assertThat(set.add(0)).isFalse();
+
+        assertThat(set.size()).isEqualTo(3);
+        assertThat(set.contains(42)).isTrue();
+        assertThat(set.contains(-1)).isTrue();
+        assertThat(set.contains(0)).isTrue();
+        assertThat(set.contains(43)).isFalse();
+    }
+
+    @Test public void shouldGrow() throws Exception {
+        LongHashSet set = new LongHashSet(2);
+        for (long i = 1; i <= 10000; i++) {
+            set.add(i * 31);
+        }
+        assertThat(set.size()).isEqualTo(10000);
+        for (long i = 1; i <= 10000; i++) {
+            assertThat(set.contains(i * 31)).isTrue();
+        }
+        assertThat(set.contains(30)).isFalse();
+    }
+
+    @Test public void shouldReturnAllValues() throws Exception {
+        LongHashSet set = new LongHashSet();
+        set.add(3);
+        set.add(0);
+        set.add(1);
+
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        assertThat(values).containsExactly(0L, 1L, 3L);
+        assertThat(set.toString()).isEqualTo("[0, 1, 3]");
+    }
+
+    @Test public void shouldClear() throws Exception {
+        LongHashSet set = new LongHashSet();
+        set.add(0);
+        set.add(5);
+        set.clear();
+
+        assertThat(set.isEmpty()).isTrue();
+        assertThat(set.contains(0)).isFalse();
+        assertThat(set.contains(5)).isFalse();
+    }
+}
@@ -0,0 +1,54 @@
+package com.zegoggles.smssync.collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class LongObjectHashMapTest {
+
+    @Test public void shouldPutAndGet() throws Exception {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        assertThat(map.put(1, "one")).isNull();
+        assertThat(map.put(1, "uno")).isEqualTo("one");
+        assertThat(map.put(0, "zero")).isNull();
+
+        assertThat(map.get(1)).isEqualTo("uno");
+        assertThat(map.get(0)).isEqualTo("zero");
+        assertThat(map.get(2)).isNull();
+        assertThat(map.size()).isEqualTo(2);
+    }
+
+    @Test public void shouldTellNullValuesFromMissingKeys() throws Exception {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(7, null);
+
+        assertThat(map.containsKey(7)).isTrue();
+        assertThat(map.get(7)).isNull();
+        assertThat(map.containsKey(8)).isFalse();
+    }
+
+    @Test public void shouldGrow() throws Exception {
+        LongObjectHashMap<Long> map = new LongObjectHashMap<Long>(2);
+        for (long i = -5000; i < 5000; i++) {
+            map.put(i, i * 2);
+        }
+        assertThat(map.size()).isEqualTo(10000);
+        for (long i = -5000; i < 5000; i++) {
+            assertThat(map.get(i)).isEqualTo(i * 2);
+        }
+    }
+
+    @Test public void shouldClear() throws Exception {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(0, "zero");
+        map.put(1, "one");
+        map.clear();
+
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.containsKey(0)).isFalse();
+        assertThat(map.get(1)).isNull();
+    }
+}
@@ -107,7 +107,7 @@ public class ContactAccessorPost20Test {
 
         ContactGroupIds ids = accessor.getGroupContactIds(resolver, new ContactGroup(1));
 
-        assertThat(ids.getIds().contains(123L));
-        assertThat(ids.getRawIds().contains(256L));
+        assertThat(ids.getIds()).contains(123L);
+        assertThat(ids.getRawIds()).contains(256L);
     }
 }
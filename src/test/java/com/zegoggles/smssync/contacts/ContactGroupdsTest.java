@@ -23,6 +23,12 @@ public class ContactGroupdsTest {
         assertThat(ids.getRawIds()).containsExactly(4L);
     }
 
+    @Test
+    public void shouldJoinIds() throws Exception {
+        assertThat(ContactGroupIds.join(new long[] { 1, 20, 300 })).isEqualTo("1,20,300");
+        assertThat(ContactGroupIds.join(new long[0])).isEqualTo("");
+    }
+
     @Test
     public void shouldCheckForPerson() throws Exception {
         ContactGroupIds ids = new ContactGroupIds();
@@ -34,4 +40,24 @@ public class ContactGroupdsTest {
 
         assertThat(ids.contains(record)).isTrue();
     }
+
+    @Test
+    public void shouldMatchNormalizedNumbers() throws Exception {
+        ContactGroupIds ids = new ContactGroupIds();
+        ids.addNumber("+49 (171) 123-4567");
+
+        assertThat(ids.containsNumber("01711234567")).isTrue();
+        assertThat(ids.containsNumber("+491711234567")).isTrue();
+        assertThat(ids.containsNumber("01711234568")).isFalse();
+        assertThat(ids.containsNumber("Amazon")).isFalse();
+        assertThat(ids.containsNumber(null)).isFalse();
+    }
+
+    @Test
+    public void shouldNormalizeNumbers() throws Exception {
+        assertThat(ContactGroupIds.normalizeNumber("+1 (212) 555-1234")).isEqualTo("5551234");
+        assertThat(ContactGroupIds.normalizeNumber("1234")).isEqualTo("1234");
+        assertThat(ContactGroupIds.normalizeNumber("Info")).isNull();
+        assertThat(ContactGroupIds.normalizeNumber(null)).isNull();
+    }
 }
@@ -0,0 +1,135 @@
+package com.zegoggles.smssync.dataset;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Picks the other party of a message or call. Traffic is spread over the address book with a
+ * Zipf distribution, so a few contacts account for most of it, like on real phones. The rest
+ * goes to numbers not in the address book and to a handful of short codes (banks, carriers).
+ * <p>
+ * Contact numbers are stored in international format, but show up in messages in the formats
+ * phones actually produce (international, national, with spaces), so lookups can't simply
+ * match strings.
+ */
+public class AddressDistribution {
+    static final String OWN_NUMBER = "+4915900000000";
+    private static final long CONTACT_BASE = 10000000L;
+    private static final int SHORT_CODES = 20;
+    /** distinct unknown numbers per contact */
+    private static final int UNKNOWN_PER_CONTACT = 5;
+
+    private final int contacts;
+    private final double unknownShare;
+    private final double shortCodeShare;
+    /** cumulative Zipf weights, normalized to 1 */
+    private final double[] cumulative;
+
+    AddressDistribution(int contacts, double exponent, double unknownShare, double shortCodeShare) {
+        this.contacts = contacts;
+        this.unknownShare = contacts == 0 ? 1 - shortCodeShare : unknownShare;
+        this.shortCodeShare = shortCodeShare;
+        this.cumulative = new double[contacts];
+        double sum = 0;
+        for (int rank = 0; rank < contacts; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < contacts; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    /**
+     * @param uniform uniformly distributed in [0, 1)
+     * @return the contact index, or -1 for an unknown number or short code
+     */
+    int pickContact(double uniform) {
+        if (uniform < shortCodeShare + unknownShare) return -1;
+        final double u = (uniform - shortCodeShare - unknownShare) / (1 - shortCodeShare - unknownShare);
+        int low = 0, high = contacts - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (cumulative[mid] < u) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param uniform picks the party, see {@link #pickContact(double)}
+     * @param random  picks number, format and short code
+     */
+    String pickAddress(double uniform, long random) {
+        final int contact = pickContact(uniform);
+        if (contact >= 0) {
+            return format(contactNumber(contact), (int) ((random >>> 8) % 10));
+        } else if (uniform < shortCodeShare) {
+            return String.valueOf(80000 + (random >>> 8) % SHORT_CODES * 111);
+        } else {
+            final long unknown = (random >>> 8) % (Math.max(1, contacts) * (long) UNKNOWN_PER_CONTACT);
+            return String.format(Locale.ENGLISH, "+49170%08d", unknown);
+        }
+    }
+
+    /**
+     * @return the number in international format, digits only after the plus
+     */
+    static String contactNumber(int contact) {
+        return "+49151" + (CONTACT_BASE + contact);
+    }
+
+    /**
+     * @return the contact the number belongs to, or -1
+     */
+    int lookup(@Nullable String number) {
+        final String normalized = normalize(number);
+        if (normalized == null || !normalized.startsWith("49151") || normalized.length() != 13) return -1;
+        final long contact = Long.parseLong(normalized.substring(5)) - CONTACT_BASE;
+        return contact >= 0 && contact < contacts ? (int) contact : -1;
+    }
+
+    /**
+     * @return thread id for conversations with the address, stable across formats
+     */
+    long threadId(String address) {
+        final String normalized = normalize(address);
+        if (normalized == null) return 0;
+        final int contact = lookup(address);
+        return contact >= 0 ? contact + 1 : contacts + 1 + (Long.parseLong(normalized) & 0xffffff);
+    }
+
+    /**
+     * 70% international, 20% national, 10% with spaces.
+     */
+    private static String format(String international, int variant) {
+        if (variant < 7) {
+            return international;
+        } else if (variant < 9) {
+            return "0" + international.substring(3);
+        } else {
+            return international.substring(0, 3) + " " + international.substring(3, 6) + " " + international.substring(6);
+        }
+    }
+
+    /**
+     * @return digits in international form (leading national 0 replaced by the country code), or null
+     */
+    static @Nullable String normalize(@Nullable String number) {
+        if (number == null) return null;
+        final StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') digits.append(c);
+        }
+        if (digits.length() == 0) return null;
+        if (digits.charAt(0) == '0' && !number.startsWith("+")) {
+            digits.replace(0, 1, "49");
+        }
+        return digits.toString();
+    }
+}
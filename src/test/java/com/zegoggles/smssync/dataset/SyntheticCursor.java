@@ -0,0 +1,125 @@
+package com.zegoggles.smssync.dataset;
+
+import android.database.AbstractCursor;
+
+/**
+ * Cursor computing its values on access, so the result of a query over millions of rows only
+ * holds the row indices (or just a range of them).
+ */
+class SyntheticCursor extends AbstractCursor {
+    interface Rows {
+        Object get(int row, String column);
+    }
+
+    private final String[] columns;
+    private final Rows rows;
+    /** row indices, or null for the range [first, first + count) */
+    private final int[] indices;
+    private final int first;
+    private final int count;
+    private final boolean descending;
+
+    SyntheticCursor(String[] columns, Rows rows, int first, int count, boolean descending) {
+        this.columns = columns;
+        this.rows = rows;
+        this.indices = null;
+        this.first = first;
+        this.count = count;
+        this.descending = descending;
+    }
+
+    SyntheticCursor(String[] columns, Rows rows, int[] indices, int count) {
+        this.columns = columns;
+        this.rows = rows;
+        this.indices = indices;
+        this.first = 0;
+        this.count = count;
+        this.descending = false;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columns;
+    }
+
+    @Override
+    public String getString(int column) {
+        final Object value = get(column);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        final Object value = get(column);
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        final Object value = get(column);
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value == null) return 0;
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+
+    @Override
+    public int getType(int column) {
+        final Object value = get(column);
+        if (value == null) return FIELD_TYPE_NULL;
+        if (value instanceof Float || value instanceof Double) return FIELD_TYPE_FLOAT;
+        if (value instanceof Number) return FIELD_TYPE_INTEGER;
+        return FIELD_TYPE_STRING;
+    }
+
+    private Object get(int column) {
+        final int position = getPosition();
+        if (position < 0 || position >= count) {
+            throw new IndexOutOfBoundsException("position " + position + ", count " + count);
+        }
+        if (column < 0 || column >= columns.length) {
+            throw new IndexOutOfBoundsException("column " + column);
+        }
+        final int row;
+        if (indices != null) {
+            row = indices[position];
+        } else {
+            row = descending ? first + count - 1 - position : first + position;
+        }
+        return rows.get(row, columns[column]);
+    }
+}
@@ -0,0 +1,525 @@
+package com.zegoggles.smssync.dataset;
+
+import android.provider.CallLog;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.SmsConsts;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Describes the contents of the phone's SMS, MMS, call log and contacts providers. Rows are
+ * computed from their index and the seed when they are read, nothing is stored, so datasets
+ * with millions of rows cost no memory and the same seed always yields the same data.
+ * <p>
+ * Items of each type are spread evenly over {@link #withSpan(long, long) the time span}, so dates
+ * increase with the row index. {@link SyntheticProvider} relies on that to answer the date
+ * range queries of the backup without scanning.
+ * <pre>
+ *     SyntheticDataset dataset = new SyntheticDataset()
+ *         .withSms(1000000)
+ *         .withMms(20000)
+ *         .withCalls(200000)
+ *         .withContacts(800);
+ * </pre>
+ */
+public class SyntheticDataset {
+    public enum Table {
+        SMS, MMS, CALLS
+    }
+
+    public static final String[] SMS_COLUMNS = {
+            SmsConsts.ID, SmsConsts.THREAD_ID, SmsConsts.ADDRESS, SmsConsts.PERSON, SmsConsts.DATE, "date_sent",
+            SmsConsts.PROTOCOL, SmsConsts.READ, SmsConsts.STATUS, SmsConsts.TYPE, "reply_path_present",
+            "subject", SmsConsts.BODY, SmsConsts.SERVICE_CENTER, "locked", "error_code", "seen"
+    };
+
+    public static final String[] MMS_COLUMNS = {
+            MmsConsts.ID, MmsConsts.THREAD_ID, MmsConsts.DATE, "date_sent", "msg_box", MmsConsts.READ,
+            MmsConsts.MESSAGE_ID, MmsConsts.SUBJECT, "sub_cs", "ct_t", MmsConsts.TYPE, "m_size", "tr_id",
+            "seen", "locked"
+    };
+
+    public static final String[] ADDR_COLUMNS = {
+            "_id", "msg_id", "contact_id", "address", "type", "charset"
+    };
+
+    public static final String[] PART_COLUMNS = {
+            "_id", "mid", "seq", "ct", "name", "chset", "cd", "fn", "cid", "cl", "ctt_s", "ctt_t", "_data", "text"
+    };
+
+    public static final String[] CALL_COLUMNS = {
+            CallLog.Calls._ID, CallLog.Calls.NUMBER, CallLog.Calls.DATE, CallLog.Calls.DURATION,
+            CallLog.Calls.TYPE, CallLog.Calls.NEW, CallLog.Calls.CACHED_NAME,
+            CallLog.Calls.CACHED_NUMBER_TYPE, CallLog.Calls.CACHED_NUMBER_LABEL
+    };
+
+    /** part ids are mms id * PART_STRIDE + part index */
+    static final int PART_STRIDE = 16;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final String[] WORDS = {
+            "ok", "see", "you", "later", "on", "my", "way", "thanks", "call", "me", "when", "home", "running",
+            "late", "sorry", "love", "tonight", "tomorrow", "dinner", "where", "are", "what", "time", "meeting",
+            "can't", "talk", "now", "sure", "yes", "no", "maybe", "great", "the", "train", "is", "delayed",
+            "happy", "birthday", "Grüße", "schön", "ça", "va", "😀", "👍", "haha", "lol"
+    };
+    private static final String[] FIRST_NAMES = {
+            "Anna", "Ben", "Clara", "David", "Emma", "Felix", "Greta", "Hannes", "Ida", "Jonas",
+            "Karla", "Leon", "Mia", "Noah", "Olga", "Paul", "Rosa", "Sven", "Tina", "Umut"
+    };
+    private static final String[] LAST_NAMES = {
+            "Müller", "Schmidt", "Schneider", "Fischer", "Weber", "Meyer", "Wagner", "Becker", "Schulz",
+            "Hoffmann", "Koch", "Richter", "Klein", "Wolf", "Schröder", "Neumann", "Yılmaz", "Nowak"
+    };
+    private static final String[][] ATTACHMENT_TYPES = {
+            // content type, file name pattern, weight in percent
+            {"image/jpeg", "IMG_%04d.jpg", "70"},
+            {"image/png", "Screenshot_%04d.png", "10"},
+            {"video/3gpp", "VID_%04d.3gp", "10"},
+            {"audio/amr", "Audio_%04d.amr", "5"},
+            {"text/x-vCard", "contact_%04d.vcf", "5"},
+    };
+
+    private long seed = 42;
+    private int sms = 1000;
+    private int mms = 100;
+    private int calls = 500;
+    private int contacts = 200;
+    private long end = 1420070400000L; // 2015-01-01
+    private long span = 5 * 365 * DAY;
+    private double zipfExponent = 1.1;
+    private double unknownShare = 0.15;
+    private double shortCodeShare = 0.03;
+    private int attachmentSize = 64 * 1024;
+    private int maxAttachments = 2;
+    private double emailShare = 0.3;
+    private AddressDistribution addresses;
+
+    public SyntheticDataset withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public SyntheticDataset withSms(int count) {
+        this.sms = count;
+        return this;
+    }
+
+    public SyntheticDataset withMms(int count) {
+        this.mms = count;
+        return this;
+    }
+
+    public SyntheticDataset withCalls(int count) {
+        this.calls = count;
+        return this;
+    }
+
+    public SyntheticDataset withContacts(int count) {
+        this.contacts = count;
+        addresses = null;
+        return this;
+    }
+
+    /**
+     * @param end  date of the most recent items, in ms
+     * @param span time covered by the items, in ms
+     */
+    public SyntheticDataset withSpan(long end, long span) {
+        this.end = end;
+        this.span = span;
+        return this;
+    }
+
+    /**
+     * @param exponent    skew of the traffic over the address book, 1 is classic Zipf
+     * @param unknownShare share of traffic with numbers not in the address book
+     * @param shortCodeShare share of traffic with short codes
+     */
+    public SyntheticDataset withAddressDistribution(double exponent, double unknownShare, double shortCodeShare) {
+        this.zipfExponent = exponent;
+        this.unknownShare = unknownShare;
+        this.shortCodeShare = shortCodeShare;
+        addresses = null;
+        return this;
+    }
+
+    /**
+     * @param averageSize average attachment size in bytes, actual sizes vary between half and 1.5 times that
+     * @param max         maximum number of attachments per MMS
+     */
+    public SyntheticDataset withAttachments(int averageSize, int max) {
+        this.attachmentSize = averageSize;
+        this.maxAttachments = max;
+        return this;
+    }
+
+    public int getCount(Table table) {
+        switch (table) {
+            case SMS:   return sms;
+            case MMS:   return mms;
+            case CALLS: return calls;
+            default:    throw new IllegalArgumentException();
+        }
+    }
+
+    public int getContactCount() {
+        return contacts;
+    }
+
+    AddressDistribution getAddresses() {
+        if (addresses == null) {
+            addresses = new AddressDistribution(contacts, zipfExponent, unknownShare, shortCodeShare);
+        }
+        return addresses;
+    }
+
+    // rows
+
+    /**
+     * @return the date of the row in provider units (seconds for MMS), increasing with the index
+     */
+    public long getDate(Table table, int index) {
+        final long date = getDateMillis(table, index);
+        return table == Table.MMS ? date / 1000 : date;
+    }
+
+    private long getDateMillis(Table table, int index) {
+        final int count = Math.max(1, getCount(table));
+        final long step = Math.max(1, span / count);
+        return end - span + index * step + random(table, index, 1) % step;
+    }
+
+    /**
+     * @return index of the first row with a date after the given one, or the count if there is none
+     */
+    public int indexAfter(Table table, long date) {
+        int low = 0, high = getCount(table);
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getDate(table, mid) <= date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public Object getSms(int index, String column) {
+        final int c = column(SMS_COLUMNS, column);
+        final boolean inbox = random(Table.SMS, index, 2) % 100 < 55;
+        switch (c) {
+            case 0:  return (long) index + 1;
+            case 1:  return getAddresses().threadId(getAddress(Table.SMS, index));
+            case 2:  return getAddress(Table.SMS, index);
+            case 3:  return 0;
+            case 4:  return getDateMillis(Table.SMS, index);
+            case 5:  return inbox ? getDateMillis(Table.SMS, index) - random(Table.SMS, index, 3) % 60000 : 0;
+            case 6:  return 0;
+            case 7:  return inbox && random(Table.SMS, index, 4) % 100 < 3 ? 0 : 1;
+            case 8:  return -1;
+            case 9:  return inbox ? SmsConsts.MESSAGE_TYPE_INBOX : SmsConsts.MESSAGE_TYPE_SENT;
+            case 10: return 0;
+            case 11: return null;
+            case 12: return getText(Table.SMS, index);
+            case 13: return inbox ? "+491770610000" : null;
+            case 14: return 0;
+            case 15: return 0;
+            case 16: return 1;
+            default: return null;
+        }
+    }
+
+    public Object getMms(int index, String column) {
+        final int c = column(MMS_COLUMNS, column);
+        final boolean inbox = isInbound(index);
+        switch (c) {
+            case 0:  return (long) index + 1;
+            case 1:  return getAddresses().threadId(getAddress(Table.MMS, index));
+            case 2:  return getDate(Table.MMS, index);
+            case 3:  return inbox ? getDate(Table.MMS, index) - 5 : 0;
+            case 4:  return inbox ? MmsConsts.MESSAGE_BOX_INBOX : MmsConsts.MESSAGE_BOX_SENT;
+            case 5:  return 1;
+            case 6:  return String.format(Locale.ENGLISH, "%016x@mms.example.com", random(Table.MMS, index, 5));
+            case 7:  return random(Table.MMS, index, 6) % 10 == 0 ? "Photo" : null;
+            case 8:  return 106;
+            case 9:  return "application/vnd.wap.multipart.related";
+            case 10: return inbox ? 132 : 128;
+            case 11: return getAttachmentCount(index) * (long) attachmentSize;
+            case 12: return String.format(Locale.ENGLISH, "T%x", random(Table.MMS, index, 7));
+            case 13: return 1;
+            case 14: return 0;
+            default: return null;
+        }
+    }
+
+    public Object getCall(int index, String column) {
+        final int c = column(CALL_COLUMNS, column);
+        final int type = getCallType(index);
+        switch (c) {
+            case 0:  return (long) index + 1;
+            case 1:  return getAddress(Table.CALLS, index);
+            case 2:  return getDateMillis(Table.CALLS, index);
+            case 3:  return type == CallLog.Calls.MISSED_TYPE ? 0 : duration(index);
+            case 4:  return type;
+            case 5:  return 0;
+            case 6:  return getContactName(getAddresses().lookup(getAddress(Table.CALLS, index)));
+            case 7:  return getAddresses().lookup(getAddress(Table.CALLS, index)) >= 0 ? 2 : 0;
+            case 8:  return null;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return the number of addr rows of the MMS
+     */
+    public int getAddrCount(int mmsIndex) {
+        return 1 + getRecipientCount(mmsIndex);
+    }
+
+    /**
+     * Inbound: sender (type 137) and the own number (151). Outbound: the insert address token
+     * (137) and one or more recipients (151).
+     */
+    public Object getAddr(int mmsIndex, int row, String column) {
+        final int c = column(ADDR_COLUMNS, column);
+        final boolean inbound = isInbound(mmsIndex);
+        final String address;
+        if (row == 0) {
+            address = inbound ? getAddress(Table.MMS, mmsIndex) : MmsConsts.INSERT_ADDRESS_TOKEN;
+        } else if (inbound) {
+            address = AddressDistribution.OWN_NUMBER;
+        } else {
+            address = row == 1 ? getAddress(Table.MMS, mmsIndex) : getAddresses().pickAddress(
+                    uniform(random(Table.MMS, mmsIndex, 20 + row)), random(Table.MMS, mmsIndex, 40 + row));
+        }
+        switch (c) {
+            case 0: return (long) (mmsIndex + 1) * PART_STRIDE + row;
+            case 1: return (long) mmsIndex + 1;
+            case 2: return null;
+            case 3: return address;
+            case 4: return row == 0 ? 137 : 151;
+            case 5: return 106;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return the number of part rows of the MMS: SMIL, optional text, attachments
+     */
+    public int getPartCount(int mmsIndex) {
+        return 1 + (hasText(mmsIndex) ? 1 : 0) + getAttachmentCount(mmsIndex);
+    }
+
+    public Object getPart(int mmsIndex, int row, String column) {
+        final int c = column(PART_COLUMNS, column);
+        final long id = (long) (mmsIndex + 1) * PART_STRIDE + row;
+        final String contentType;
+        final String name;
+        String text = null;
+        if (row == 0) {
+            contentType = "application/smil";
+            name = "smil.xml";
+            text = "<smil><head><layout/></head><body><par dur=\"5000ms\"/></body></smil>";
+        } else if (row == 1 && hasText(mmsIndex)) {
+            contentType = "text/plain";
+            name = "text_0.txt";
+            text = getText(Table.MMS, mmsIndex);
+        } else {
+            final String[] type = getAttachmentType(mmsIndex, row);
+            contentType = type[0];
+            name = String.format(Locale.ENGLISH, type[1], (mmsIndex * PART_STRIDE + row) % 10000);
+        }
+        switch (c) {
+            case 0:  return id;
+            case 1:  return (long) mmsIndex + 1;
+            case 2:  return row == 0 ? -1 : row - 1;
+            case 3:  return contentType;
+            case 4:  return name;
+            case 5:  return text == null ? null : 106;
+            case 6:  return null;
+            case 7:  return null;
+            case 8:  return "<" + name + ">";
+            case 9:  return name;
+            case 10: return null;
+            case 11: return null;
+            case 12: return text == null ? "/data/user/0/com.android.providers.telephony/app_parts/PART_" + id : null;
+            case 13: return text;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return size of the attachment in bytes, or -1 if the part is not an attachment
+     */
+    public int getAttachmentSize(long partId) {
+        final int mmsIndex = (int) (partId / PART_STRIDE) - 1;
+        final int row = (int) (partId % PART_STRIDE);
+        if (mmsIndex < 0 || mmsIndex >= mms || row >= getPartCount(mmsIndex) || row < (hasText(mmsIndex) ? 2 : 1)) {
+            return -1;
+        }
+        return (int) (attachmentSize / 2 + random(Table.MMS, mmsIndex, 60 + row) % Math.max(1, attachmentSize));
+    }
+
+    /**
+     * @return the attachment data, incompressible like real media, or null if there is no such part
+     */
+    public @Nullable InputStream openAttachment(long partId) {
+        final int size = getAttachmentSize(partId);
+        return size < 0 ? null : new AttachmentStream(seed ^ partId, size);
+    }
+
+    // contacts
+
+    public @Nullable String getContactName(int contact) {
+        if (contact < 0 || contact >= contacts) return null;
+        return FIRST_NAMES[contact % FIRST_NAMES.length] + " " +
+               LAST_NAMES[(contact / FIRST_NAMES.length) % LAST_NAMES.length] +
+               (contact >= FIRST_NAMES.length * LAST_NAMES.length ? " " + contact : "");
+    }
+
+    public @Nullable String getContactEmail(int contact) {
+        if (contact < 0 || contact >= contacts || uniform(mix(seed ^ 0x5eedL, contact)) >= emailShare) return null;
+        return String.format(Locale.ENGLISH, "contact%d@example.com", contact);
+    }
+
+    /**
+     * @return the contact the phone number belongs to, or -1
+     */
+    public int lookupContact(String number) {
+        return getAddresses().lookup(number);
+    }
+
+    // helpers
+
+    String getAddress(Table table, int index) {
+        return getAddresses().pickAddress(uniform(random(table, index, 8)), random(table, index, 9));
+    }
+
+    private boolean isInbound(int mmsIndex) {
+        return random(Table.MMS, mmsIndex, 10) % 100 < 60;
+    }
+
+    private int getRecipientCount(int mmsIndex) {
+        // 10% of outbound MMS go to groups
+        if (isInbound(mmsIndex) || random(Table.MMS, mmsIndex, 11) % 10 != 0) return 1;
+        return 2 + (int) (random(Table.MMS, mmsIndex, 12) % 6);
+    }
+
+    private boolean hasText(int mmsIndex) {
+        return random(Table.MMS, mmsIndex, 13) % 100 < 40;
+    }
+
+    private int getAttachmentCount(int mmsIndex) {
+        if (maxAttachments <= 0) return 0;
+        return 1 + (int) (random(Table.MMS, mmsIndex, 14) % maxAttachments);
+    }
+
+    private String[] getAttachmentType(int mmsIndex, int row) {
+        int pick = (int) (random(Table.MMS, mmsIndex, 80 + row) % 100);
+        for (String[] type : ATTACHMENT_TYPES) {
+            pick -= Integer.parseInt(type[2]);
+            if (pick < 0) return type;
+        }
+        return ATTACHMENT_TYPES[0];
+    }
+
+    private int getCallType(int index) {
+        final long pick = random(Table.CALLS, index, 15) % 100;
+        return pick < 45 ? CallLog.Calls.INCOMING_TYPE : pick < 85 ? CallLog.Calls.OUTGOING_TYPE : CallLog.Calls.MISSED_TYPE;
+    }
+
+    /**
+     * Mostly short calls, with a long tail.
+     */
+    private long duration(int index) {
+        final double u = uniform(random(Table.CALLS, index, 16));
+        return (long) (-90 * Math.log(1 - u));
+    }
+
+    /**
+     * Mostly short texts, 10% long enough to be sent as multipart SMS.
+     */
+    private String getText(Table table, int index) {
+        final long random = random(table, index, 17);
+        final int length = random % 10 == 0 ? 160 + (int) ((random >>> 8) % 600) : 5 + (int) ((random >>> 8) % 120);
+        final StringBuilder sb = new StringBuilder(length + 16);
+        long r = random;
+        while (sb.length() < length) {
+            r = mix(r, sb.length());
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(WORDS[(int) ((r >>> 1) % WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static int column(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return a non-negative pseudo random number for the row and purpose
+     */
+    long random(Table table, int index, int salt) {
+        return mix(seed ^ ((long) table.ordinal() << 56) ^ ((long) salt << 40), index) >>> 1;
+    }
+
+    private static double uniform(long random) {
+        return (random >>> 10) / (double) (1L << 53);
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    static long mix(long seed, long value) {
+        long z = seed + value * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Pseudo random bytes with a JPEG magic number, generated while reading.
+     */
+    static class AttachmentStream extends InputStream {
+        private static final byte[] MAGIC = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0};
+        private final long seed;
+        private final int size;
+        private int position;
+
+        AttachmentStream(long seed, int size) {
+            this.seed = seed;
+            this.size = size;
+        }
+
+        @Override
+        public int read() {
+            if (position >= size) return -1;
+            final int b = position < MAGIC.length ? MAGIC[position] & 0xff :
+                    (int) (mix(seed, position >>> 3) >>> ((position & 7) * 8)) & 0xff;
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position >= size) return -1;
+            final int n = Math.min(length, size - position);
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] = (byte) read();
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return size - position;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package com.zegoggles.smssync.dataset;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import com.zegoggles.smssync.dataset.SyntheticDataset.Table;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Serves a {@link SyntheticDataset} under the URIs of the system providers: content://sms,
+ * content://mms (with addr and part rows and attachment data), content://call_log/calls and
+ * the phone lookup and email tables of content://com.android.contacts.
+ * <p>
+ * Selections are understood as far as the app uses them: clauses on the date column narrow the
+ * row range by binary search, other <code>column op value</code> clauses joined with AND filter
+ * rows. Parenthesized clauses (the contact group filter) are ignored. "DESC" and "LIMIT n" in
+ * the sort order are honored, rows are always in date order.
+ * <p>
+ * Inserts (from a restore) are only counted.
+ * <pre>
+ *     SyntheticProvider provider = new SyntheticProvider(dataset);
+ *     ContentResolver resolver = provider.newContentResolver();
+ *     Context context = provider.newContext(Robolectric.application);
+ * </pre>
+ */
+public class SyntheticProvider extends ContentProvider {
+    private static final int SMS = 1;
+    private static final int SMS_ID = 2;
+    private static final int MMS = 3;
+    private static final int MMS_ID = 4;
+    private static final int MMS_ADDR = 5;
+    private static final int MMS_PARTS = 6;
+    private static final int MMS_PART = 7;
+    private static final int CALLS = 8;
+    private static final int PHONE_LOOKUP = 9;
+    private static final int EMAILS = 10;
+    private static final int SMS_CONVERSATIONS = 11;
+
+    private static final String[] PHONE_LOOKUP_COLUMNS = {"_id", "display_name", "number"};
+    private static final String[] EMAIL_COLUMNS = {"data1", "contact_id", "is_primary"};
+
+    private static final Pattern CLAUSE = Pattern.compile("(\\w+)\\s*(<>|!=|<=|>=|=|<|>)\\s*(\\?|-?\\d+|'[^']*')");
+    private static final Pattern LIMIT = Pattern.compile("LIMIT\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    private final SyntheticDataset dataset;
+    private final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+    private final int[] inserted = new int[Table.values().length];
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger attachmentReads = new AtomicInteger();
+
+    public SyntheticProvider(SyntheticDataset dataset) {
+        this.dataset = dataset;
+        matcher.addURI("sms", null, SMS);
+        matcher.addURI("sms", "#", SMS_ID);
+        matcher.addURI("sms", "conversations/#", SMS_CONVERSATIONS);
+        matcher.addURI("mms", null, MMS);
+        matcher.addURI("mms", "#", MMS_ID);
+        matcher.addURI("mms", "#/addr", MMS_ADDR);
+        matcher.addURI("mms", "#/part", MMS_PARTS);
+        matcher.addURI("mms", "part/#", MMS_PART);
+        matcher.addURI("call_log", "calls", CALLS);
+        matcher.addURI("com.android.contacts", "phone_lookup/*", PHONE_LOOKUP);
+        matcher.addURI("com.android.contacts", "data/emails", EMAILS);
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    public SyntheticDataset getDataset() {
+        return dataset;
+    }
+
+    /**
+     * @return a resolver backed by this provider
+     */
+    public ContentResolver newContentResolver() {
+        return mock(ContentResolver.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final String method = invocation.getMethod().getName();
+                final Object[] args = invocation.getArguments();
+                if ("query".equals(method) && args.length >= 5) {
+                    return query((Uri) args[0], (String[]) args[1], (String) args[2], (String[]) args[3], (String) args[4]);
+                } else if ("insert".equals(method)) {
+                    return insert((Uri) args[0], (ContentValues) args[1]);
+                } else if ("delete".equals(method)) {
+                    return delete((Uri) args[0], (String) args[1], (String[]) args[2]);
+                } else if ("update".equals(method)) {
+                    return update((Uri) args[0], (ContentValues) args[1], (String) args[2], (String[]) args[3]);
+                } else if ("openInputStream".equals(method)) {
+                    return openInputStream((Uri) args[0]);
+                } else {
+                    return RETURNS_DEFAULTS.answer(invocation);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a context whose content resolver is backed by this provider
+     */
+    public Context newContext(Context base) {
+        final ContentResolver resolver = newContentResolver();
+        return new ContextWrapper(base) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        };
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        queries.incrementAndGet();
+        final int match = matcher.match(uri);
+        switch (match) {
+            case SMS:
+                return queryTable(Table.SMS, projection, selection, selectionArgs, sortOrder);
+            case MMS:
+                return queryTable(Table.MMS, projection, selection, selectionArgs, sortOrder);
+            case CALLS:
+                return queryTable(Table.CALLS, projection, selection, selectionArgs, sortOrder);
+            case SMS_ID:
+                return queryRow(Table.SMS, projection, ContentUris.parseId(uri) - 1);
+            case MMS_ID:
+                return queryRow(Table.MMS, projection, ContentUris.parseId(uri) - 1);
+            case MMS_ADDR:
+                return queryAddr(projection, Integer.parseInt(uri.getPathSegments().get(0)) - 1);
+            case MMS_PARTS:
+                return queryParts(projection, Integer.parseInt(uri.getPathSegments().get(0)) - 1, -1);
+            case MMS_PART: {
+                final long partId = ContentUris.parseId(uri);
+                return queryParts(projection, (int) (partId / SyntheticDataset.PART_STRIDE) - 1,
+                        (int) (partId % SyntheticDataset.PART_STRIDE));
+            }
+            case PHONE_LOOKUP:
+                lookups.incrementAndGet();
+                return queryPhoneLookup(projection, uri.getLastPathSegment());
+            case EMAILS:
+                return queryEmails(projection, selection, selectionArgs);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        final Table table = getTable(matcher.match(uri));
+        if (table == null) return null;
+        final int id;
+        synchronized (inserted) {
+            id = dataset.getCount(table) + ++inserted[table.ordinal()];
+        }
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    public InputStream openInputStream(Uri uri) throws FileNotFoundException {
+        if (matcher.match(uri) == MMS_PART) {
+            final InputStream stream = dataset.openAttachment(ContentUris.parseId(uri));
+            if (stream != null) {
+                attachmentReads.incrementAndGet();
+                return stream;
+            }
+        }
+        throw new FileNotFoundException(String.valueOf(uri));
+    }
+
+    /**
+     * @return the number of rows inserted into the table
+     */
+    public int getInsertCount(Table table) {
+        synchronized (inserted) {
+            return inserted[table.ordinal()];
+        }
+    }
+
+    public int getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * @return the number of phone lookups, i.e. contact queries not answered from a cache
+     */
+    public int getLookupCount() {
+        return lookups.get();
+    }
+
+    public int getAttachmentReadCount() {
+        return attachmentReads.get();
+    }
+
+    private Cursor queryTable(final Table table, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        final String[] columns = projection == null ? getColumns(table) : projection;
+        final SyntheticCursor.Rows rows = rows(table);
+
+        int from = 0;
+        int to = dataset.getCount(table);
+        final List<String[]> filters = new ArrayList<String[]>();
+        for (String[] clause : parseSelection(selection, selectionArgs)) {
+            final String column = clause[0], op = clause[1];
+            if (!"date".equals(column) || op.equals("<>") || op.equals("!=")) {
+                filters.add(clause);
+                continue;
+            }
+            final long value = Long.parseLong(clause[2]);
+            if (op.equals(">") || op.equals(">=") || op.equals("=")) {
+                from = Math.max(from, dataset.indexAfter(table, op.equals(">") ? value : value - 1));
+            }
+            if (op.equals("<") || op.equals("<=") || op.equals("=")) {
+                to = Math.min(to, dataset.indexAfter(table, op.equals("<") ? value - 1 : value));
+            }
+        }
+        to = Math.max(from, to);
+
+        final boolean descending = sortOrder != null && sortOrder.toUpperCase(Locale.ENGLISH).contains(" DESC");
+        int limit = Integer.MAX_VALUE;
+        if (sortOrder != null) {
+            final Matcher m = LIMIT.matcher(sortOrder);
+            if (m.find()) limit = Integer.parseInt(m.group(1));
+        }
+
+        if (filters.isEmpty()) {
+            final int count = Math.min(to - from, limit);
+            return new SyntheticCursor(columns, rows, descending ? to - count : from, count, descending);
+        }
+
+        int[] indices = new int[Math.min(to - from, Math.min(limit, 1024))];
+        int count = 0;
+        for (int i = 0; i < to - from && count < limit; i++) {
+            final int row = descending ? to - 1 - i : from + i;
+            if (matches(rows, row, filters)) {
+                if (count == indices.length) {
+                    indices = Arrays.copyOf(indices, Math.max(16, indices.length * 2));
+                }
+                indices[count++] = row;
+            }
+        }
+        return new SyntheticCursor(columns, rows, indices, count);
+    }
+
+    private Cursor queryRow(Table table, String[] projection, long index) {
+        final String[] columns = projection == null ? getColumns(table) : projection;
+        final boolean exists = index >= 0 && index < dataset.getCount(table);
+        return new SyntheticCursor(columns, rows(table), (int) Math.max(0, index), exists ? 1 : 0, false);
+    }
+
+    private Cursor queryAddr(String[] projection, final int mmsIndex) {
+        final String[] columns = projection == null ? SyntheticDataset.ADDR_COLUMNS : projection;
+        if (mmsIndex < 0 || mmsIndex >= dataset.getCount(Table.MMS)) return new MatrixCursor(columns);
+        return new SyntheticCursor(columns, new SyntheticCursor.Rows() {
+            @Override
+            public Object get(int row, String column) {
+                return dataset.getAddr(mmsIndex, row, column);
+            }
+        }, 0, dataset.getAddrCount(mmsIndex), false);
+    }
+
+    /**
+     * @param part a single part, or -1 for all parts of the message
+     */
+    private Cursor queryParts(String[] projection, final int mmsIndex, int part) {
+        final String[] columns = projection == null ? SyntheticDataset.PART_COLUMNS : projection;
+        if (mmsIndex < 0 || mmsIndex >= dataset.getCount(Table.MMS)) return new MatrixCursor(columns);
+        final int parts = dataset.getPartCount(mmsIndex);
+        final SyntheticCursor.Rows rows = new SyntheticCursor.Rows() {
+            @Override
+            public Object get(int row, String column) {
+                return dataset.getPart(mmsIndex, row, column);
+            }
+        };
+        if (part < 0) {
+            return new SyntheticCursor(columns, rows, 0, parts, false);
+        } else {
+            return new SyntheticCursor(columns, rows, part, part < parts ? 1 : 0, false);
+        }
+    }
+
+    private Cursor queryPhoneLookup(String[] projection, String number) {
+        final String[] columns = projection == null ? PHONE_LOOKUP_COLUMNS : projection;
+        final MatrixCursor cursor = new MatrixCursor(columns);
+        final int contact = dataset.lookupContact(number);
+        if (contact >= 0) {
+            final Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                if ("_id".equals(columns[i])) {
+                    row[i] = contact + 1;
+                } else if ("display_name".equals(columns[i])) {
+                    row[i] = dataset.getContactName(contact);
+                } else if ("number".equals(columns[i])) {
+                    row[i] = AddressDistribution.contactNumber(contact);
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private Cursor queryEmails(String[] projection, String selection, String[] selectionArgs) {
+        final String[] columns = projection == null ? EMAIL_COLUMNS : projection;
+        final MatrixCursor cursor = new MatrixCursor(columns);
+        for (String[] clause : parseSelection(selection, selectionArgs)) {
+            if ("contact_id".equals(clause[0]) && "=".equals(clause[1])) {
+                final int contact = Integer.parseInt(clause[2]) - 1;
+                final String email = dataset.getContactEmail(contact);
+                if (email != null) {
+                    final Object[] row = new Object[columns.length];
+                    for (int i = 0; i < columns.length; i++) {
+                        if ("data1".equals(columns[i])) row[i] = email;
+                        else if ("contact_id".equals(columns[i])) row[i] = contact + 1;
+                        else if ("is_primary".equals(columns[i])) row[i] = 1;
+                    }
+                    cursor.addRow(row);
+                }
+            }
+        }
+        return cursor;
+    }
+
+    private SyntheticCursor.Rows rows(final Table table) {
+        return new SyntheticCursor.Rows() {
+            @Override
+            public Object get(int row, String column) {
+                switch (table) {
+                    case SMS: return dataset.getSms(row, column);
+                    case MMS: return dataset.getMms(row, column);
+                    default:  return dataset.getCall(row, column);
+                }
+            }
+        };
+    }
+
+    private static String[] getColumns(Table table) {
+        switch (table) {
+            case SMS: return SyntheticDataset.SMS_COLUMNS;
+            case MMS: return SyntheticDataset.MMS_COLUMNS;
+            default:  return SyntheticDataset.CALL_COLUMNS;
+        }
+    }
+
+    private static Table getTable(int match) {
+        switch (match) {
+            case SMS:
+            case SMS_ID:
+                return Table.SMS;
+            case MMS:
+            case MMS_ID:
+                return Table.MMS;
+            case CALLS:
+                return Table.CALLS;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean matches(SyntheticCursor.Rows rows, int row, List<String[]> filters) {
+        for (String[] filter : filters) {
+            final Object value = rows.get(row, filter[0]);
+            final String op = filter[1];
+            final int compare = compare(value, filter[2]);
+            final boolean match;
+            if (op.equals("=")) {
+                match = compare == 0;
+            } else if (op.equals("<>") || op.equals("!=")) {
+                match = compare != 0;
+            } else if (op.equals("<")) {
+                match = compare < 0;
+            } else if (op.equals("<=")) {
+                match = compare <= 0;
+            } else if (op.equals(">")) {
+                match = compare > 0;
+            } else {
+                match = compare >= 0;
+            }
+            if (!match) return false;
+        }
+        return true;
+    }
+
+    private static int compare(Object value, String other) {
+        if (value == null) return other == null ? 0 : -1;
+        if (value instanceof Number) {
+            try {
+                final long l = ((Number) value).longValue(), r = Long.parseLong(other);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            } catch (NumberFormatException e) {
+                // compare as strings
+            }
+        }
+        return value.toString().compareTo(other);
+    }
+
+    /**
+     * @return column, operator and value of the top level AND clauses
+     */
+    static List<String[]> parseSelection(String selection, String[] selectionArgs) {
+        final List<String[]> clauses = new ArrayList<String[]>();
+        if (selection == null) return clauses;
+
+        int arg = 0;
+        for (String part : splitAnd(selection)) {
+            final String clause = part.trim();
+            if (clause.startsWith("(")) {
+                // unsupported (contact group filter), skip its arguments
+                for (int i = 0; i < clause.length(); i++) {
+                    if (clause.charAt(i) == '?') arg++;
+                }
+                continue;
+            }
+            final Matcher m = CLAUSE.matcher(clause);
+            if (!m.matches()) continue;
+            String value = m.group(3);
+            if ("?".equals(value)) {
+                value = selectionArgs == null || arg >= selectionArgs.length ? null : selectionArgs[arg++];
+            } else if (value.startsWith("'")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            clauses.add(new String[]{m.group(1), m.group(2), value});
+        }
+        return clauses;
+    }
+
+    private static List<String> splitAnd(String selection) {
+        final List<String> parts = new ArrayList<String>();
+        int depth = 0, start = 0;
+        final String upper = selection.toUpperCase(Locale.ENGLISH);
+        for (int i = 0; i < selection.length(); i++) {
+            final char c = selection.charAt(i);
+            if (c == '(') depth++;
+            if (c == ')') depth--;
+            if (depth == 0 && upper.startsWith(" AND ", i)) {
+                parts.add(selection.substring(start, i));
+                start = i + 5;
+                i += 4;
+            }
+        }
+        parts.add(selection.substring(start));
+        return parts;
+    }
+}
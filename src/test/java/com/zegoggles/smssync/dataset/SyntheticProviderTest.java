@@ -0,0 +1,176 @@
+package com.zegoggles.smssync.dataset;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.dataset.SyntheticDataset.Table;
+import com.zegoggles.smssync.mail.PersonLookup;
+import com.zegoggles.smssync.mail.PersonRecord;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.InputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyntheticProviderTest {
+    private static final Uri SMS = Uri.parse("content://sms");
+    private static final Uri MMS = Uri.parse("content://mms");
+    private static final Uri CALLS = Uri.parse("content://call_log/calls");
+
+    SyntheticDataset dataset;
+    SyntheticProvider provider;
+    ContentResolver resolver;
+
+    @Before public void before() {
+        dataset = new SyntheticDataset().withSms(5000).withMms(200).withCalls(1000).withContacts(100);
+        provider = new SyntheticProvider(dataset);
+        resolver = provider.newContentResolver();
+    }
+
+    @Test public void shouldGenerateSameRowsForSameSeed() throws Exception {
+        final SyntheticDataset other = new SyntheticDataset().withSms(5000).withMms(200).withCalls(1000).withContacts(100);
+        for (String column : SyntheticDataset.SMS_COLUMNS) {
+            assertThat(other.getSms(1234, column)).isEqualTo(dataset.getSms(1234, column));
+        }
+        for (String column : SyntheticDataset.MMS_COLUMNS) {
+            assertThat(other.getMms(123, column)).isEqualTo(dataset.getMms(123, column));
+        }
+        assertThat(other.withSeed(43).getSms(1234, SmsConsts.BODY)).isNotEqualTo(dataset.getSms(1234, SmsConsts.BODY));
+    }
+
+    @Test public void shouldGenerateIncreasingDates() throws Exception {
+        for (Table table : Table.values()) {
+            for (int i = 1; i < dataset.getCount(table); i++) {
+                assertThat(dataset.getDate(table, i)).isGreaterThanOrEqualTo(dataset.getDate(table, i - 1));
+            }
+        }
+    }
+
+    @Test public void shouldQueryAllRows() throws Exception {
+        assertThat(count(resolver.query(SMS, null, null, null, null))).isEqualTo(5000);
+        assertThat(count(resolver.query(MMS, null, null, null, null))).isEqualTo(200);
+        assertThat(count(resolver.query(CALLS, null, null, null, null))).isEqualTo(1000);
+    }
+
+    @Test public void shouldQueryDateRangeWithLimit() throws Exception {
+        final long after = dataset.getDate(Table.SMS, 999);
+        final Cursor cursor = resolver.query(SMS, new String[]{SmsConsts.ID, SmsConsts.DATE},
+                "date > ? AND type <> ?", new String[]{String.valueOf(after), "3"}, "date LIMIT 100");
+
+        assertThat(cursor.getCount()).isEqualTo(100);
+        long last = after;
+        while (cursor.moveToNext()) {
+            assertThat(cursor.getLong(1)).isGreaterThan(last);
+            last = cursor.getLong(1);
+        }
+        cursor.moveToFirst();
+        assertThat(cursor.getLong(0)).isEqualTo(1001L);
+    }
+
+    @Test public void shouldQueryMostRecentItem() throws Exception {
+        final Cursor cursor = resolver.query(CALLS, new String[]{"date"}, null, null, "date DESC LIMIT 1");
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.getCount()).isEqualTo(1);
+        assertThat(cursor.getLong(0)).isEqualTo(dataset.getDate(Table.CALLS, 999));
+    }
+
+    @Test public void shouldFindExistingMessage() throws Exception {
+        final Cursor cursor = resolver.query(SMS, new String[]{"_id"}, "date = ? AND address = ? AND type = ?",
+                new String[]{
+                        String.valueOf(dataset.getSms(42, SmsConsts.DATE)),
+                        String.valueOf(dataset.getSms(42, SmsConsts.ADDRESS)),
+                        String.valueOf(dataset.getSms(42, SmsConsts.TYPE))
+                }, null);
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.getLong(0)).isEqualTo(43L);
+
+        final Cursor missing = resolver.query(SMS, new String[]{"_id"}, "date = ? AND address = ? AND type = ?",
+                new String[]{String.valueOf(dataset.getSms(42, SmsConsts.DATE)), "12345", "1"}, null);
+        assertThat(missing.getCount()).isEqualTo(0);
+    }
+
+    @Test public void shouldSkewTrafficTowardsFewContacts() throws Exception {
+        final int[] perContact = new int[dataset.getContactCount()];
+        int unknown = 0;
+        for (int i = 0; i < dataset.getCount(Table.SMS); i++) {
+            final int contact = dataset.lookupContact((String) dataset.getSms(i, SmsConsts.ADDRESS));
+            if (contact >= 0) {
+                perContact[contact]++;
+            } else {
+                unknown++;
+            }
+        }
+        assertThat(perContact[0]).isGreaterThan(10 * perContact[50]);
+        assertThat(unknown).isGreaterThan(0).isLessThan(5000 / 4);
+    }
+
+    @Test public void shouldServeMmsAddressesPartsAndAttachments() throws Exception {
+        final Cursor addr = resolver.query(Uri.parse("content://mms/8/addr"), null, null, null, null);
+        assertThat(addr.getCount()).isEqualTo(dataset.getAddrCount(7));
+        assertThat(addr.getColumnIndex("address")).isGreaterThanOrEqualTo(0);
+
+        final Cursor parts = resolver.query(Uri.parse("content://mms/8/part"), null, null, null, null);
+        assertThat(parts.getCount()).isEqualTo(dataset.getPartCount(7));
+
+        int attachments = 0;
+        while (parts.moveToNext()) {
+            final long id = parts.getLong(parts.getColumnIndex("_id"));
+            final int size = dataset.getAttachmentSize(id);
+            if (size < 0) {
+                assertThat(parts.getString(parts.getColumnIndex("text"))).isNotNull();
+                continue;
+            }
+            attachments++;
+            final InputStream in = resolver.openInputStream(Uri.parse("content://mms/part/" + id));
+            assertThat(drain(in)).isEqualTo(size);
+        }
+        assertThat(attachments).isGreaterThan(0);
+        assertThat(provider.getAttachmentReadCount()).isEqualTo(attachments);
+    }
+
+    @Test public void shouldLookupContactsInAllNumberFormats() throws Exception {
+        final PersonLookup lookup = new PersonLookup(resolver);
+        final String international = AddressDistribution.contactNumber(7);
+
+        final PersonRecord record = lookup.lookupPerson(international);
+        assertThat(record.isUnknown()).isFalse();
+        assertThat(record.getName()).isEqualTo(dataset.getContactName(7));
+
+        final PersonRecord national = lookup.lookupPerson("0" + international.substring(3));
+        assertThat(national.getContactId()).isEqualTo(record.getContactId());
+
+        assertThat(lookup.lookupPerson("+4917000000001").isUnknown()).isTrue();
+    }
+
+    @Test public void shouldCountInserts() throws Exception {
+        final Uri uri = resolver.insert(SMS, new ContentValues());
+        resolver.insert(SMS, new ContentValues());
+        resolver.insert(CALLS, new ContentValues());
+
+        assertThat(uri.getLastPathSegment()).isEqualTo("5001");
+        assertThat(provider.getInsertCount(Table.SMS)).isEqualTo(2);
+        assertThat(provider.getInsertCount(Table.CALLS)).isEqualTo(1);
+        assertThat(provider.getInsertCount(Table.MMS)).isEqualTo(0);
+    }
+
+    private static int count(Cursor cursor) {
+        int count = 0;
+        while (cursor.moveToNext()) count++;
+        cursor.close();
+        return count;
+    }
+
+    private static int drain(InputStream in) throws Exception {
+        final byte[] buffer = new byte[8192];
+        int total = 0, n;
+        while ((n = in.read(buffer)) != -1) total += n;
+        in.close();
+        return total;
+    }
+}
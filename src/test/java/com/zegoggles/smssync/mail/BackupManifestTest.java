@@ -0,0 +1,80 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackupManifestTest {
+    BackupManifest manifest;
+
+    @Before public void before() {
+        manifest = new BackupManifest(Robolectric.application);
+    }
+
+    @Test public void shouldParseEntryFromHeaders() throws Exception {
+        BackupManifest.Entry entry = BackupManifest.Entry.fromHeaders(12, 345,
+                "Message-ID: <1234@sms-backup-plus.local>\r\n" +
+                "X-smssync-datatype: SMS\r\n" +
+                "X-smssync-date: 1000\r\n" +
+                "X-smssync-address: +4917\r\n" +
+                "\r\n");
+
+        assertThat(entry.uid).isEqualTo(12);
+        assertThat(entry.size).isEqualTo(345);
+        assertThat(entry.messageId).isEqualTo("<1234@sms-backup-plus.local>");
+        assertThat(entry.type).isEqualTo(DataType.SMS);
+        assertThat(entry.date).isEqualTo(1000);
+        assertThat(entry.address).isEqualTo("+4917");
+    }
+
+    @Test public void shouldDetectLegacyTypes() throws Exception {
+        assertThat(BackupManifest.getDataType(null, "1")).isEqualTo(DataType.SMS);
+        assertThat(BackupManifest.getDataType(null, "mms")).isEqualTo(DataType.MMS);
+        assertThat(BackupManifest.getDataType(null, null)).isNull();
+        assertThat(BackupManifest.getDataType("calllog", null)).isEqualTo(DataType.CALLLOG);
+    }
+
+    @Test public void shouldReturnMissingUidsAndDropDeletedOnes() throws Exception {
+        manifest.validate("SMS", 1);
+        manifest.insert("SMS", Arrays.asList(
+                entry(1, "<1>", 100),
+                entry(2, "<2>", 200)));
+
+        assertThat(manifest.sync("SMS", new HashSet<Long>(Arrays.asList(2L, 3L)))).containsOnly(3L);
+        assertThat(manifest.getUids("SMS", DataType.SMS, -1)).containsExactly("2");
+    }
+
+    @Test public void shouldPlanRestoreWithoutDuplicates() throws Exception {
+        manifest.validate("SMS", 1);
+        manifest.insert("SMS", Arrays.asList(
+                entry(1, "<1>", 100),
+                entry(2, "<2>", 200),
+                entry(3, "<2>", 200),
+                entry(4, "<3>", 300)));
+
+        assertThat(manifest.getUids("SMS", DataType.SMS, -1)).containsExactly("1", "2", "4");
+        assertThat(manifest.getUids("SMS", DataType.SMS, 2)).containsExactly("2", "4");
+        assertThat(manifest.estimate(DataType.SMS).count).isEqualTo(3);
+    }
+
+    @Test public void shouldDropEntriesWhenUidValidityChanges() throws Exception {
+        assertThat(manifest.validate("SMS", 1)).isFalse();
+        manifest.insert("SMS", Arrays.asList(entry(1, "<1>", 100)));
+        assertThat(manifest.validate("SMS", 1)).isTrue();
+
+        assertThat(manifest.validate("SMS", 2)).isFalse();
+        assertThat(manifest.getUids("SMS", DataType.SMS, -1)).isEmpty();
+    }
+
+    private static BackupManifest.Entry entry(long uid, String messageId, long date) {
+        return new BackupManifest.Entry(uid, messageId, DataType.SMS, date, "+4917", 10);
+    }
+}
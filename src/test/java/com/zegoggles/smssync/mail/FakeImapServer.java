@@ -0,0 +1,1277 @@
+package com.zegoggles.smssync.mail;
+
+import android.util.Base64;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In-process IMAP server for tests, listening on localhost. It implements the part of IMAP4rev1
+ * used by k9 and {@link BackupImapStore}: LOGIN / AUTHENTICATE PLAIN, LIST, CREATE, SELECT,
+ * STATUS, APPEND, SEARCH, SORT, FETCH and STORE, plus the UIDPLUS, LITERAL+ and COMPRESS=DEFLATE
+ * extensions. Messages are kept in memory.
+ * <p>
+ * Latency (per command), bandwidth (per connection and direction) and throttling (every n-th
+ * command answered with <code>NO [THROTTLED]</code>, like Gmail does) can be configured to
+ * simulate real servers.
+ */
+public class FakeImapServer {
+    public static final String USER = "test@example.com";
+    public static final String PASSWORD = "secret";
+    public static final String DEFAULT_CAPABILITIES = "IMAP4rev1 UIDPLUS LITERAL+ COMPRESS=DEFLATE SORT";
+
+    private static final String CHARSET = "ISO-8859-1";
+    private static final String CRLF = "\r\n";
+
+    private final Map<String, Mailbox> mailboxes = new LinkedHashMap<String, Mailbox>();
+    private final Map<String, AtomicInteger> commandCounts = new HashMap<String, AtomicInteger>();
+    private final List<Socket> connections = Collections.synchronizedList(new ArrayList<Socket>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger throttleCount = new AtomicInteger();
+
+    private volatile String capabilities = DEFAULT_CAPABILITIES;
+    private volatile long latencyMs;
+    private volatile long bytesPerSecond;
+    private volatile String throttledCommand;
+    private volatile int throttleEvery;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    /**
+     * @param latencyMs delay before each command completes
+     */
+    public FakeImapServer withLatency(long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond limit for each connection and direction, 0 for unlimited
+     */
+    public FakeImapServer withBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    public FakeImapServer withCapabilities(String... capabilities) {
+        final StringBuilder sb = new StringBuilder("IMAP4rev1");
+        for (String capability : capabilities) {
+            sb.append(' ').append(capability);
+        }
+        this.capabilities = sb.toString();
+        return this;
+    }
+
+    /**
+     * Answers every n-th command with the given name (e.g. APPEND) with <code>NO [THROTTLED]</code>.
+     */
+    public FakeImapServer throttle(String command, int every) {
+        this.throttledCommand = command.toUpperCase(Locale.ENGLISH);
+        this.throttleEvery = every;
+        return this;
+    }
+
+    public FakeImapServer start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread("FakeImapServer") {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.add(socket);
+                        connectionCount.incrementAndGet();
+                        final Thread session = new Thread(new Session(socket), "FakeImapSession");
+                        session.setDaemon(true);
+                        session.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return this;
+    }
+
+    public void stop() throws IOException {
+        if (serverSocket != null) serverSocket.close();
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                socket.close();
+            }
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return a plain text store uri for {@link BackupImapStore}
+     */
+    public String getStoreUri() {
+        try {
+            return "imap://PLAIN:" + URLEncoder.encode(USER, "UTF-8") + ":" + PASSWORD + "@127.0.0.1:" + getPort();
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public Mailbox createMailbox(String name) {
+        synchronized (mailboxes) {
+            Mailbox mailbox = mailboxes.get(name);
+            if (mailbox == null) {
+                mailbox = new Mailbox(name, 1 + mailboxes.size());
+                mailboxes.put(name, mailbox);
+            }
+            return mailbox;
+        }
+    }
+
+    public @Nullable Mailbox getMailbox(String name) {
+        synchronized (mailboxes) {
+            return mailboxes.get(name);
+        }
+    }
+
+    /**
+     * @return how often a command (e.g. "UID FETCH", "APPEND") has been received
+     */
+    public int getCommandCount(String command) {
+        synchronized (commandCounts) {
+            final AtomicInteger count = commandCounts.get(command.toUpperCase(Locale.ENGLISH));
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of commands answered with <code>NO [THROTTLED]</code>
+     */
+    public int getThrottleCount() {
+        return throttleCount.get();
+    }
+
+    private boolean hasCapability(String capability) {
+        return Arrays.asList(capabilities.toUpperCase(Locale.ENGLISH).split(" ")).contains(capability);
+    }
+
+    private void countCommand(String command) {
+        synchronized (commandCounts) {
+            AtomicInteger count = commandCounts.get(command);
+            if (count == null) {
+                count = new AtomicInteger();
+                commandCounts.put(command, count);
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private boolean shouldThrottle(String command) {
+        if (throttleEvery > 0 && command.equals(throttledCommand) &&
+            getCommandCount(command) % throttleEvery == 0) {
+            throttleCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public static class Mailbox {
+        public final String name;
+        public final long uidValidity;
+        private final List<StoredMessage> messages = new ArrayList<StoredMessage>();
+        private long nextUid = 1;
+
+        Mailbox(String name, long uidValidity) {
+            this.name = name;
+            this.uidValidity = uidValidity;
+        }
+
+        public synchronized StoredMessage add(byte[] data, Set<String> flags, Date internalDate) {
+            final StoredMessage message = new StoredMessage(nextUid++, data, flags, internalDate);
+            messages.add(message);
+            return message;
+        }
+
+        public synchronized List<StoredMessage> getMessages() {
+            return new ArrayList<StoredMessage>(messages);
+        }
+
+        public synchronized int size() {
+            return messages.size();
+        }
+
+        synchronized long getNextUid() {
+            return nextUid;
+        }
+
+        synchronized List<Integer> expunge() {
+            final List<Integer> expunged = new ArrayList<Integer>();
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                if (messages.get(i).hasFlag("\\Deleted")) {
+                    messages.remove(i);
+                    expunged.add(i + 1);
+                }
+            }
+            return expunged;
+        }
+    }
+
+    public static class StoredMessage {
+        public final long uid;
+        public final byte[] data;
+        public final Date internalDate;
+        private final Set<String> flags;
+        private Map<String, List<String>> headers;
+
+        StoredMessage(long uid, byte[] data, Set<String> flags, Date internalDate) {
+            this.uid = uid;
+            this.data = data;
+            this.flags = new LinkedHashSet<String>(flags);
+            this.internalDate = internalDate;
+        }
+
+        public synchronized boolean hasFlag(String flag) {
+            for (String f : flags) {
+                if (f.equalsIgnoreCase(flag)) return true;
+            }
+            return false;
+        }
+
+        public synchronized Set<String> getFlags() {
+            return new LinkedHashSet<String>(flags);
+        }
+
+        synchronized void setFlags(String operation, List<String> newFlags) {
+            if (operation.startsWith("+")) {
+                flags.addAll(newFlags);
+            } else if (operation.startsWith("-")) {
+                for (String flag : newFlags) {
+                    for (String f : new ArrayList<String>(flags)) {
+                        if (f.equalsIgnoreCase(flag)) flags.remove(f);
+                    }
+                }
+            } else {
+                flags.clear();
+                flags.addAll(newFlags);
+            }
+        }
+
+        /**
+         * @return the first value of the header, unfolded, or null
+         */
+        public @Nullable String getHeader(String name) {
+            final List<String> values = getHeaders().get(name.toLowerCase(Locale.ENGLISH));
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        int getHeaderLength() {
+            for (int i = 0; i < data.length - 3; i++) {
+                if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                    return i + 4;
+                }
+            }
+            for (int i = 0; i < data.length - 1; i++) {
+                if (data[i] == '\n' && data[i + 1] == '\n') return i + 2;
+            }
+            return data.length;
+        }
+
+        synchronized Map<String, List<String>> getHeaders() {
+            if (headers == null) {
+                headers = new HashMap<String, List<String>>();
+                final String text = string(data, 0, getHeaderLength());
+                String name = null;
+                StringBuilder value = null;
+                for (String line : text.split("\r?\n")) {
+                    if (line.length() > 0 && (line.charAt(0) == ' ' || line.charAt(0) == '\t') && value != null) {
+                        value.append(' ').append(line.trim());
+                        continue;
+                    }
+                    if (name != null) addHeader(name, value.toString());
+                    final int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                        value = new StringBuilder(line.substring(colon + 1).trim());
+                    } else {
+                        name = null;
+                        value = null;
+                    }
+                }
+                if (name != null) addHeader(name, value.toString());
+            }
+            return headers;
+        }
+
+        private void addHeader(String name, String value) {
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                headers.put(name, values);
+            }
+            values.add(value);
+        }
+
+        /**
+         * @return the raw header lines of the given fields, followed by an empty line
+         */
+        byte[] getHeaderFields(List<String> fields, boolean not) {
+            final String text = string(data, 0, getHeaderLength());
+            final StringBuilder sb = new StringBuilder();
+            boolean include = false;
+            for (String line : text.split("\r?\n")) {
+                if (line.length() == 0) continue;
+                if (line.charAt(0) != ' ' && line.charAt(0) != '\t') {
+                    final int colon = line.indexOf(':');
+                    final String name = colon > 0 ? line.substring(0, colon).trim() : line;
+                    include = containsIgnoreCase(fields, name) != not;
+                }
+                if (include) sb.append(line).append(CRLF);
+            }
+            sb.append(CRLF);
+            return bytes(sb.toString());
+        }
+    }
+
+    /**
+     * One client connection, commands are handled sequentially.
+     */
+    private class Session implements Runnable {
+        private final Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private int pushback = -1;
+        private boolean authenticated;
+        private Mailbox selected;
+        private boolean readOnly;
+
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                in = new BufferedInputStream(new RateLimitedInputStream(socket.getInputStream(), bytesPerSecond));
+                out = new BufferedOutputStream(new RateLimitedOutputStream(socket.getOutputStream(), bytesPerSecond));
+                send("* OK [CAPABILITY " + capabilities + "] fake IMAP server ready");
+                out.flush();
+
+                List<Object> command;
+                while ((command = readCommand()) != null) {
+                    if (command.isEmpty()) continue;
+                    final boolean keepGoing = handle(command);
+                    out.flush();
+                    if (!keepGoing) break;
+                }
+            } catch (SocketException ignored) {
+                // connection closed
+            } catch (IOException ignored) {
+                // client went away
+            } finally {
+                connections.remove(socket);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private boolean handle(List<Object> command) throws IOException {
+            final String tag = string(command.get(0));
+            if (command.size() < 2) {
+                send(tag + " BAD missing command");
+                return true;
+            }
+            String name = string(command.get(1)).toUpperCase(Locale.ENGLISH);
+            int args = 2;
+            boolean uid = false;
+            if ("UID".equals(name) && command.size() > 2) {
+                uid = true;
+                name = string(command.get(2)).toUpperCase(Locale.ENGLISH);
+                args = 3;
+            }
+            final String countedName = uid ? "UID " + name : name;
+            countCommand(countedName);
+            final List<Object> arguments = command.subList(args, command.size());
+
+            if (latencyMs > 0) {
+                sleep(latencyMs);
+            }
+            if (shouldThrottle(countedName)) {
+                send(tag + " NO [THROTTLED] Too many requests, slow down");
+                return true;
+            }
+
+            try {
+                if ("CAPABILITY".equals(name)) {
+                    send("* CAPABILITY " + capabilities);
+                    ok(tag, "CAPABILITY completed");
+                } else if ("NOOP".equals(name)) {
+                    ok(tag, "NOOP completed");
+                } else if ("LOGOUT".equals(name)) {
+                    send("* BYE logging out");
+                    ok(tag, "LOGOUT completed");
+                    return false;
+                } else if ("LOGIN".equals(name)) {
+                    login(tag, string(arguments.get(0)), string(arguments.get(1)));
+                } else if ("AUTHENTICATE".equals(name)) {
+                    authenticate(tag, arguments);
+                } else if ("COMPRESS".equals(name)) {
+                    compress(tag, arguments);
+                } else if (!authenticated) {
+                    send(tag + " NO not authenticated");
+                } else if ("LIST".equals(name) || "LSUB".equals(name)) {
+                    listMailboxes(tag, name, string(arguments.get(0)), string(arguments.get(1)));
+                } else if ("CREATE".equals(name)) {
+                    create(tag, string(arguments.get(0)));
+                } else if ("SELECT".equals(name) || "EXAMINE".equals(name)) {
+                    select(tag, name, string(arguments.get(0)));
+                } else if ("STATUS".equals(name)) {
+                    status(tag, string(arguments.get(0)), list(arguments.get(1)));
+                } else if ("APPEND".equals(name)) {
+                    append(tag, arguments);
+                } else if (selected == null) {
+                    send(tag + " NO no mailbox selected");
+                } else if ("CLOSE".equals(name)) {
+                    if (!readOnly) selected.expunge();
+                    selected = null;
+                    ok(tag, "CLOSE completed");
+                } else if ("EXPUNGE".equals(name)) {
+                    for (Integer seq : selected.expunge()) {
+                        send("* " + seq + " EXPUNGE");
+                    }
+                    ok(tag, "EXPUNGE completed");
+                } else if ("SEARCH".equals(name)) {
+                    search(tag, uid, arguments);
+                } else if ("SORT".equals(name) && hasCapability("SORT")) {
+                    sort(tag, uid, arguments);
+                } else if ("FETCH".equals(name)) {
+                    fetch(tag, uid, arguments);
+                } else if ("STORE".equals(name)) {
+                    store(tag, uid, arguments);
+                } else {
+                    send(tag + " BAD unknown command " + name);
+                }
+            } catch (IndexOutOfBoundsException e) {
+                send(tag + " BAD missing arguments");
+            } catch (IllegalArgumentException e) {
+                send(tag + " BAD " + e.getMessage());
+            }
+            return true;
+        }
+
+        private void login(String tag, String user, String password) throws IOException {
+            if (USER.equals(user) && PASSWORD.equals(password)) {
+                authenticated = true;
+                ok(tag, "[CAPABILITY " + capabilities + "] logged in");
+            } else {
+                send(tag + " NO [AUTHENTICATIONFAILED] invalid credentials");
+            }
+        }
+
+        private void authenticate(String tag, List<Object> arguments) throws IOException {
+            final String mechanism = string(arguments.get(0)).toUpperCase(Locale.ENGLISH);
+            String response;
+            if (arguments.size() > 1) {
+                response = string(arguments.get(1));
+            } else {
+                send("+ ");
+                out.flush();
+                response = readLine();
+            }
+            if (response == null) return;
+
+            final String decoded = string(Base64.decode(response, Base64.DEFAULT));
+            if ("PLAIN".equals(mechanism)) {
+                // [authzid] NUL authcid NUL passwd
+                final String[] parts = decoded.split("\u0000", -1);
+                login(tag, parts[parts.length - 2], parts[parts.length - 1]);
+            } else if ("XOAUTH2".equals(mechanism)) {
+                // user=... ^A auth=Bearer ... ^A ^A
+                if (decoded.startsWith("user=" + USER + "\u0001")) {
+                    authenticated = true;
+                    ok(tag, "[CAPABILITY " + capabilities + "] authenticated");
+                } else {
+                    send(tag + " NO [AUTHENTICATIONFAILED] invalid credentials");
+                }
+            } else {
+                send(tag + " NO unsupported mechanism " + mechanism);
+            }
+        }
+
+        private void compress(String tag, List<Object> arguments) throws IOException {
+            if (!hasCapability("COMPRESS=DEFLATE") || !"DEFLATE".equalsIgnoreCase(string(arguments.get(0)))) {
+                send(tag + " NO compression not supported");
+                return;
+            }
+            ok(tag, "DEFLATE active");
+            out.flush();
+            // raw deflate in both directions from now on, flushed after every response
+            in = new BufferedInputStream(new InflaterInputStream(in, new Inflater(true)));
+            out = new BufferedOutputStream(new DeflaterOutputStream(out,
+                    new Deflater(Deflater.DEFAULT_COMPRESSION, true), true));
+        }
+
+        private void listMailboxes(String tag, String command, String reference, String pattern) throws IOException {
+            if (pattern.length() == 0) {
+                send("* " + command + " (\\Noselect) \"/\" \"\"");
+            } else {
+                final String regex = (reference + pattern)
+                        .replace("\\", "\\\\").replace(".", "\\.")
+                        .replace("*", ".*").replace("%", "[^/]*");
+                synchronized (mailboxes) {
+                    for (Mailbox mailbox : mailboxes.values()) {
+                        if (mailbox.name.matches(regex)) {
+                            send("* " + command + " (\\HasNoChildren) \"/\" " + quote(mailbox.name));
+                        }
+                    }
+                }
+            }
+            ok(tag, command + " completed");
+        }
+
+        private void create(String tag, String name) throws IOException {
+            if (getMailbox(name) != null) {
+                send(tag + " NO [ALREADYEXISTS] mailbox exists");
+            } else {
+                createMailbox(name);
+                ok(tag, "CREATE completed");
+            }
+        }
+
+        private void select(String tag, String command, String name) throws IOException {
+            final Mailbox mailbox = getMailbox(name);
+            if (mailbox == null) {
+                selected = null;
+                send(tag + " NO [NONEXISTENT] unknown mailbox");
+                return;
+            }
+            selected = mailbox;
+            readOnly = "EXAMINE".equals(command);
+            send("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)");
+            send("* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft \\*)] flags permitted");
+            send("* " + mailbox.size() + " EXISTS");
+            send("* 0 RECENT");
+            send("* OK [UIDVALIDITY " + mailbox.uidValidity + "] UIDs valid");
+            send("* OK [UIDNEXT " + mailbox.getNextUid() + "] predicted next UID");
+            ok(tag, (readOnly ? "[READ-ONLY] " : "[READ-WRITE] ") + command + " completed");
+        }
+
+        private void status(String tag, String name, List<Object> items) throws IOException {
+            final Mailbox mailbox = getMailbox(name);
+            if (mailbox == null) {
+                send(tag + " NO [NONEXISTENT] unknown mailbox");
+                return;
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (Object item : items) {
+                final String key = string(item).toUpperCase(Locale.ENGLISH);
+                final long value;
+                if ("MESSAGES".equals(key)) {
+                    value = mailbox.size();
+                } else if ("UIDNEXT".equals(key)) {
+                    value = mailbox.getNextUid();
+                } else if ("UIDVALIDITY".equals(key)) {
+                    value = mailbox.uidValidity;
+                } else if ("UNSEEN".equals(key)) {
+                    int unseen = 0;
+                    for (StoredMessage message : mailbox.getMessages()) {
+                        if (!message.hasFlag("\\Seen")) unseen++;
+                    }
+                    value = unseen;
+                } else if ("RECENT".equals(key)) {
+                    value = 0;
+                } else {
+                    throw new IllegalArgumentException("unknown status item " + key);
+                }
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(key).append(' ').append(value);
+            }
+            send("* STATUS " + quote(name) + " (" + sb + ")");
+            ok(tag, "STATUS completed");
+        }
+
+        private void append(String tag, List<Object> arguments) throws IOException {
+            final Mailbox mailbox = getMailbox(string(arguments.get(0)));
+            final Object literal = arguments.get(arguments.size() - 1);
+            if (!(literal instanceof byte[])) {
+                throw new IllegalArgumentException("message literal expected");
+            }
+            if (mailbox == null) {
+                send(tag + " NO [TRYCREATE] unknown mailbox");
+                return;
+            }
+            final List<String> flags = new ArrayList<String>();
+            Date internalDate = new Date();
+            for (Object argument : arguments.subList(1, arguments.size() - 1)) {
+                if (argument instanceof List) {
+                    for (Object flag : (List<?>) argument) flags.add(string(flag));
+                } else {
+                    internalDate = parseDate(INTERNAL_DATE_FORMAT, string(argument), internalDate);
+                }
+            }
+            final StoredMessage message = mailbox.add((byte[]) literal, new LinkedHashSet<String>(flags), internalDate);
+            if (hasCapability("UIDPLUS")) {
+                ok(tag, "[APPENDUID " + mailbox.uidValidity + " " + message.uid + "] APPEND completed");
+            } else {
+                ok(tag, "APPEND completed");
+            }
+        }
+
+        private void search(String tag, boolean uid, List<Object> arguments) throws IOException {
+            int start = 0;
+            if (arguments.size() > 1 && "CHARSET".equalsIgnoreCase(string(arguments.get(0)))) {
+                start = 2;
+            }
+            final List<StoredMessage> messages = selected.getMessages();
+            final List<Integer> matches = matches(messages, arguments.subList(start, arguments.size()));
+            final StringBuilder sb = new StringBuilder("* SEARCH");
+            for (Integer seq : matches) {
+                sb.append(' ').append(uid ? messages.get(seq - 1).uid : seq);
+            }
+            send(sb.toString());
+            ok(tag, "SEARCH completed");
+        }
+
+        private void sort(String tag, boolean uid, List<Object> arguments) throws IOException {
+            final List<Object> criteria = list(arguments.get(0));
+            // arguments.get(1) is the charset
+            final List<StoredMessage> messages = selected.getMessages();
+            final List<Integer> matches = matches(messages, arguments.subList(2, arguments.size()));
+            Collections.sort(matches, sortOrder(messages, criteria));
+
+            final StringBuilder sb = new StringBuilder("* SORT");
+            for (Integer seq : matches) {
+                sb.append(' ').append(uid ? messages.get(seq - 1).uid : seq);
+            }
+            send(sb.toString());
+            ok(tag, "SORT completed");
+        }
+
+        private void fetch(String tag, boolean uid, List<Object> arguments) throws IOException {
+            final List<StoredMessage> messages = selected.getMessages();
+            final List<Integer> sequence = resolveSet(string(arguments.get(0)), messages, uid);
+            final List<Object> items = arguments.get(1) instanceof List ?
+                    list(arguments.get(1)) : arguments.subList(1, arguments.size());
+
+            for (Integer seq : sequence) {
+                final StoredMessage message = messages.get(seq - 1);
+                final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                write(response, "* " + seq + " FETCH (");
+                boolean first = true;
+                if (uid) {
+                    write(response, "UID " + message.uid);
+                    first = false;
+                }
+                for (Object item : expandMacros(items)) {
+                    final String name = string(item).toUpperCase(Locale.ENGLISH);
+                    if (uid && "UID".equals(name)) continue;
+                    if (!first) write(response, " ");
+                    first = false;
+                    fetchItem(response, message, name);
+                }
+                write(response, ")" + CRLF);
+                response.writeTo(out);
+            }
+            ok(tag, "FETCH completed");
+        }
+
+        private void fetchItem(ByteArrayOutputStream response, StoredMessage message, String item) throws IOException {
+            if ("UID".equals(item)) {
+                write(response, "UID " + message.uid);
+            } else if ("FLAGS".equals(item)) {
+                write(response, "FLAGS " + flags(message.getFlags()));
+            } else if ("RFC822.SIZE".equals(item)) {
+                write(response, "RFC822.SIZE " + message.data.length);
+            } else if ("INTERNALDATE".equals(item)) {
+                write(response, "INTERNALDATE \"" + format(INTERNAL_DATE_FORMAT, message.internalDate) + "\"");
+            } else if ("RFC822".equals(item)) {
+                markSeen(message);
+                literal(response, "RFC822", message.data);
+            } else if ("RFC822.HEADER".equals(item)) {
+                literal(response, "RFC822.HEADER", Arrays.copyOfRange(message.data, 0, message.getHeaderLength()));
+            } else if ("RFC822.TEXT".equals(item)) {
+                markSeen(message);
+                literal(response, "RFC822.TEXT", Arrays.copyOfRange(message.data, message.getHeaderLength(), message.data.length));
+            } else if (item.startsWith("BODY[") || item.startsWith("BODY.PEEK[")) {
+                fetchSection(response, message, item);
+            } else {
+                throw new IllegalArgumentException("unsupported fetch item " + item);
+            }
+        }
+
+        /**
+         * BODY[section]&lt;partial&gt;, with section one of "", HEADER, TEXT,
+         * HEADER.FIELDS (...) and HEADER.FIELDS.NOT (...)
+         */
+        private void fetchSection(ByteArrayOutputStream response, StoredMessage message, String item) throws IOException {
+            final boolean peek = item.startsWith("BODY.PEEK[");
+            final int open = item.indexOf('[');
+            final int close = item.lastIndexOf(']');
+            final String section = item.substring(open + 1, close);
+            final String partial = item.substring(close + 1);
+
+            byte[] data;
+            if (section.length() == 0) {
+                data = message.data;
+            } else if ("HEADER".equals(section)) {
+                data = Arrays.copyOfRange(message.data, 0, message.getHeaderLength());
+            } else if ("TEXT".equals(section)) {
+                data = Arrays.copyOfRange(message.data, message.getHeaderLength(), message.data.length);
+            } else if (section.startsWith("HEADER.FIELDS")) {
+                final String fields = section.substring(section.indexOf('(') + 1, section.lastIndexOf(')'));
+                data = message.getHeaderFields(Arrays.asList(fields.trim().split("\\s+")),
+                        section.startsWith("HEADER.FIELDS.NOT"));
+            } else {
+                throw new IllegalArgumentException("unsupported section " + section);
+            }
+
+            String origin = "";
+            if (partial.startsWith("<")) {
+                final String[] range = partial.substring(1, partial.length() - 1).split("\\.");
+                final int offset = Math.min(data.length, Integer.parseInt(range[0]));
+                final int length = range.length > 1 ? Integer.parseInt(range[1]) : data.length;
+                data = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + length));
+                origin = "<" + offset + ">";
+            }
+            if (!peek) markSeen(message);
+            literal(response, "BODY[" + section + "]" + origin, data);
+        }
+
+        private void store(String tag, boolean uid, List<Object> arguments) throws IOException {
+            final List<StoredMessage> messages = selected.getMessages();
+            final List<Integer> sequence = resolveSet(string(arguments.get(0)), messages, uid);
+            final String operation = string(arguments.get(1)).toUpperCase(Locale.ENGLISH);
+            final List<String> flags = new ArrayList<String>();
+            for (Object flag : arguments.get(2) instanceof List ? list(arguments.get(2)) : arguments.subList(2, arguments.size())) {
+                flags.add(string(flag));
+            }
+            if (!operation.replace(".SILENT", "").matches("[+-]?FLAGS")) {
+                throw new IllegalArgumentException("unknown store operation " + operation);
+            }
+            for (Integer seq : sequence) {
+                final StoredMessage message = messages.get(seq - 1);
+                message.setFlags(operation, flags);
+                if (!operation.endsWith(".SILENT")) {
+                    send("* " + seq + " FETCH (" + (uid ? "UID " + message.uid + " " : "") +
+                            "FLAGS " + flags(message.getFlags()) + ")");
+                }
+            }
+            ok(tag, "STORE completed");
+        }
+
+        private void markSeen(StoredMessage message) {
+            if (!readOnly && !message.hasFlag("\\Seen")) {
+                message.setFlags("+FLAGS", Arrays.asList("\\Seen"));
+            }
+        }
+
+        private void ok(String tag, String text) throws IOException {
+            send(tag + " OK " + text);
+        }
+
+        private void send(String line) throws IOException {
+            out.write(bytes(line + CRLF));
+        }
+
+        private void literal(ByteArrayOutputStream response, String name, byte[] data) throws IOException {
+            write(response, name + " {" + data.length + "}" + CRLF);
+            response.write(data);
+        }
+
+        // parsing
+
+        /**
+         * Reads one command. Atoms and quoted strings are returned as String, literals as
+         * byte[] and parenthesized lists as List.
+         *
+         * @return the tokens or null at the end of the stream
+         */
+        private List<Object> readCommand() throws IOException {
+            final List<Object> tokens = new ArrayList<Object>();
+            final int end = readTokens(tokens, '\n');
+            return end == -1 && tokens.isEmpty() ? null : tokens;
+        }
+
+        private int readTokens(List<Object> tokens, char close) throws IOException {
+            while (true) {
+                final int c = read();
+                if (c == -1 || c == close) return c;
+                if (c == '\n') throw new IOException("unexpected end of line");
+                if (c == ' ' || c == '\r') continue;
+
+                if (c == '(') {
+                    final List<Object> list = new ArrayList<Object>();
+                    if (readTokens(list, ')') == -1) return -1;
+                    tokens.add(list);
+                } else if (c == '"') {
+                    tokens.add(readQuoted());
+                } else if (c == '{') {
+                    tokens.add(readLiteral());
+                } else {
+                    tokens.add(readAtom(c));
+                }
+            }
+        }
+
+        private String readQuoted() throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = read()) != -1 && c != '"') {
+                if (c == '\\') c = read();
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        private byte[] readLiteral() throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = read()) != -1 && c != '}') {
+                sb.append((char) c);
+            }
+            // CRLF
+            read();
+            read();
+            final boolean nonSynchronizing = sb.charAt(sb.length() - 1) == '+';
+            final int size = Integer.parseInt(nonSynchronizing ? sb.substring(0, sb.length() - 1) : sb.toString());
+            if (!nonSynchronizing) {
+                send("+ Ready for literal data");
+                out.flush();
+            }
+            final byte[] data = new byte[size];
+            int read = 0;
+            while (read < size) {
+                final int n = in.read(data, read, size - read);
+                if (n == -1) throw new IOException("unexpected end of literal");
+                read += n;
+            }
+            return data;
+        }
+
+        /**
+         * Atoms may contain brackets with spaces and parentheses, e.g. BODY[HEADER.FIELDS (DATE)].
+         */
+        private String readAtom(int first) throws IOException {
+            final StringBuilder sb = new StringBuilder().append((char) first);
+            int depth = first == '[' ? 1 : 0;
+            int c;
+            while ((c = read()) != -1) {
+                if (depth == 0 && (c == ' ' || c == '(' || c == ')' || c == '\r' || c == '\n')) {
+                    pushback = c;
+                    break;
+                }
+                if (c == '[') depth++;
+                if (c == ']') depth--;
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        private String readLine() throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = read()) != -1 && c != '\n') {
+                if (c != '\r') sb.append((char) c);
+            }
+            return c == -1 && sb.length() == 0 ? null : sb.toString();
+        }
+
+        private int read() throws IOException {
+            if (pushback != -1) {
+                final int c = pushback;
+                pushback = -1;
+                return c;
+            }
+            return in.read();
+        }
+    }
+
+    // searching
+
+    private interface Criterion {
+        boolean matches(StoredMessage message, int seq, int count);
+    }
+
+    private static List<Integer> matches(List<StoredMessage> messages, List<Object> criteria) {
+        final Criterion criterion = and(criteria);
+        final List<Integer> matches = new ArrayList<Integer>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (criterion.matches(messages.get(i), i + 1, messages.size())) {
+                matches.add(i + 1);
+            }
+        }
+        return matches;
+    }
+
+    private static Criterion and(List<Object> tokens) {
+        final List<Criterion> criteria = new ArrayList<Criterion>();
+        final int[] position = {0};
+        while (position[0] < tokens.size()) {
+            criteria.add(parseCriterion(tokens, position));
+        }
+        return new Criterion() {
+            @Override
+            public boolean matches(StoredMessage message, int seq, int count) {
+                for (Criterion criterion : criteria) {
+                    if (!criterion.matches(message, seq, count)) return false;
+                }
+                return true;
+            }
+        };
+    }
+
+    private static Criterion parseCriterion(List<Object> tokens, int[] position) {
+        final Object token = tokens.get(position[0]++);
+        if (token instanceof List) {
+            return and(list(token));
+        }
+        final String key = string(token).toUpperCase(Locale.ENGLISH);
+        if ("ALL".equals(key)) {
+            return new Criterion() {
+                @Override public boolean matches(StoredMessage message, int seq, int count) {
+                    return true;
+                }
+            };
+        } else if ("NOT".equals(key)) {
+            final Criterion criterion = parseCriterion(tokens, position);
+            return new Criterion() {
+                @Override public boolean matches(StoredMessage message, int seq, int count) {
+                    return !criterion.matches(message, seq, count);
+                }
+            };
+        } else if ("OR".equals(key)) {
+            final Criterion left = parseCriterion(tokens, position);
+            final Criterion right = parseCriterion(tokens, position);
+            return new Criterion() {
+                @Override public boolean matches(StoredMessage message, int seq, int count) {
+                    return left.matches(message, seq, count) || right.matches(message, seq, count);
+                }
+            };
+        } else if ("HEADER".equals(key)) {
+            return header(string(tokens.get(position[0]++)), string(tokens.get(position[0]++)));
+        } else if ("SUBJECT".equals(key) || "FROM".equals(key) || "TO".equals(key)) {
+            return header(key, string(tokens.get(position[0]++)));
+        } else if ("KEYWORD".equals(key) || "UNKEYWORD".equals(key)) {
+            return flag(string(tokens.get(position[0]++)), "KEYWORD".equals(key));
+        } else if (key.matches("UN(ANSWERED|DELETED|DRAFT|FLAGGED|SEEN)")) {
+            return flag("\\" + key.substring(2), false);
+        } else if (key.matches("ANSWERED|DELETED|DRAFT|FLAGGED|SEEN")) {
+            return flag("\\" + key, true);
+        } else if (key.matches("(SENT)?(SINCE|BEFORE|ON)")) {
+            return date(key, string(tokens.get(position[0]++)));
+        } else if ("UID".equals(key)) {
+            return sequenceSet(string(tokens.get(position[0]++)), true);
+        } else if (key.matches("[0-9*:,]+")) {
+            return sequenceSet(key, false);
+        } else {
+            throw new IllegalArgumentException("unsupported search key " + key);
+        }
+    }
+
+    private static Criterion header(final String name, final String value) {
+        final String lowerValue = value.toLowerCase(Locale.ENGLISH);
+        return new Criterion() {
+            @Override public boolean matches(StoredMessage message, int seq, int count) {
+                final List<String> values = message.getHeaders().get(name.toLowerCase(Locale.ENGLISH));
+                if (values == null) return false;
+                for (String v : values) {
+                    if (v.toLowerCase(Locale.ENGLISH).contains(lowerValue)) return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static Criterion flag(final String flag, final boolean set) {
+        return new Criterion() {
+            @Override public boolean matches(StoredMessage message, int seq, int count) {
+                return message.hasFlag(flag) == set;
+            }
+        };
+    }
+
+    private static Criterion date(final String key, String value) {
+        final Date day = parseDate(SEARCH_DATE_FORMAT, value, null);
+        if (day == null) throw new IllegalArgumentException("invalid date " + value);
+        final long start = day.getTime();
+        final long end = start + 24 * 60 * 60 * 1000L;
+        return new Criterion() {
+            @Override public boolean matches(StoredMessage message, int seq, int count) {
+                final Date date = key.startsWith("SENT") ?
+                        parseDate(HEADER_DATE_FORMAT, message.getHeader("Date"), null) : message.internalDate;
+                if (date == null) return false;
+                final long time = date.getTime();
+                if (key.endsWith("SINCE")) return time >= start;
+                if (key.endsWith("BEFORE")) return time < start;
+                return time >= start && time < end;
+            }
+        };
+    }
+
+    private static Criterion sequenceSet(final String set, final boolean uid) {
+        return new Criterion() {
+            @Override public boolean matches(StoredMessage message, int seq, int count) {
+                return inSet(set, uid ? message.uid : seq, uid ? Long.MAX_VALUE : count);
+            }
+        };
+    }
+
+    /**
+     * @param max value of *
+     */
+    private static boolean inSet(String set, long value, long max) {
+        for (String range : set.split(",")) {
+            final String[] bounds = range.split(":");
+            final long low = "*".equals(bounds[0]) ? max : Long.parseLong(bounds[0]);
+            final long high = bounds.length == 1 ? low : "*".equals(bounds[1]) ? max : Long.parseLong(bounds[1]);
+            if (value >= Math.min(low, high) && value <= Math.max(low, high)) return true;
+        }
+        return false;
+    }
+
+    private static List<Integer> resolveSet(String set, List<StoredMessage> messages, boolean uid) {
+        final long maxUid = messages.isEmpty() ? 0 : messages.get(messages.size() - 1).uid;
+        final List<Integer> sequence = new ArrayList<Integer>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (inSet(set, uid ? messages.get(i).uid : i + 1, uid ? maxUid : messages.size())) {
+                sequence.add(i + 1);
+            }
+        }
+        return sequence;
+    }
+
+    private static Comparator<Integer> sortOrder(final List<StoredMessage> messages, final List<Object> criteria) {
+        return new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                boolean reverse = false;
+                for (Object criterion : criteria) {
+                    final String key = string(criterion).toUpperCase(Locale.ENGLISH);
+                    if ("REVERSE".equals(key)) {
+                        reverse = true;
+                        continue;
+                    }
+                    final int result = compareBy(key, messages.get(lhs - 1), messages.get(rhs - 1));
+                    if (result != 0) return reverse ? -result : result;
+                    reverse = false;
+                }
+                return lhs.compareTo(rhs);
+            }
+        };
+    }
+
+    private static int compareBy(String key, StoredMessage lhs, StoredMessage rhs) {
+        if ("ARRIVAL".equals(key)) {
+            return lhs.internalDate.compareTo(rhs.internalDate);
+        } else if ("DATE".equals(key)) {
+            final Date left = parseDate(HEADER_DATE_FORMAT, lhs.getHeader("Date"), lhs.internalDate);
+            final Date right = parseDate(HEADER_DATE_FORMAT, rhs.getHeader("Date"), rhs.internalDate);
+            return left.compareTo(right);
+        } else if ("SIZE".equals(key)) {
+            return lhs.data.length < rhs.data.length ? -1 : (lhs.data.length == rhs.data.length ? 0 : 1);
+        } else if ("SUBJECT".equals(key) || "FROM".equals(key) || "TO".equals(key) || "CC".equals(key)) {
+            return String.valueOf(lhs.getHeader(key)).compareToIgnoreCase(String.valueOf(rhs.getHeader(key)));
+        } else {
+            throw new IllegalArgumentException("unsupported sort key " + key);
+        }
+    }
+
+    private static List<Object> expandMacros(List<Object> items) {
+        if (items.size() == 1) {
+            final String macro = string(items.get(0)).toUpperCase(Locale.ENGLISH);
+            if ("FAST".equals(macro) || "ALL".equals(macro) || "FULL".equals(macro)) {
+                return Arrays.<Object>asList("FLAGS", "INTERNALDATE", "RFC822.SIZE");
+            }
+        }
+        return items;
+    }
+
+    // helpers
+
+    private static final String INTERNAL_DATE_FORMAT = "dd-MMM-yyyy HH:mm:ss Z";
+    private static final String SEARCH_DATE_FORMAT = "d-MMM-yyyy";
+    private static final String HEADER_DATE_FORMAT = "EEE, d MMM yyyy HH:mm:ss Z";
+
+    private static Date parseDate(String format, String value, Date defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return new SimpleDateFormat(format, Locale.US).parse(value.trim());
+        } catch (ParseException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String format(String format, Date date) {
+        return new SimpleDateFormat(format, Locale.US).format(date);
+    }
+
+    private static String flags(Set<String> flags) {
+        final StringBuilder sb = new StringBuilder("(");
+        for (String flag : flags) {
+            if (sb.length() > 1) sb.append(' ');
+            sb.append(flag);
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static boolean containsIgnoreCase(List<String> list, String value) {
+        for (String s : list) {
+            if (s.equalsIgnoreCase(value)) return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(Object token) {
+        if (!(token instanceof List)) throw new IllegalArgumentException("list expected");
+        return (List<Object>) token;
+    }
+
+    private static String string(Object token) {
+        if (token instanceof byte[]) return string((byte[]) token);
+        if (token instanceof String) return (String) token;
+        throw new IllegalArgumentException("string expected");
+    }
+
+    private static String string(byte[] data) {
+        return string(data, 0, data.length);
+    }
+
+    private static String string(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        final byte[] data = bytes(s);
+        out.write(data, 0, data.length);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delays transfers so they don't exceed the given rate.
+     */
+    private static class RateLimit {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long transferred;
+
+        RateLimit(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void transferred(int bytes) {
+            if (bytesPerSecond <= 0 || bytes <= 0) return;
+            transferred += bytes;
+            final long due = transferred * 1000L / bytesPerSecond;
+            final long elapsed = (System.nanoTime() - start) / 1000000L;
+            if (due > elapsed) sleep(due - elapsed);
+        }
+    }
+
+    private static class RateLimitedInputStream extends FilterInputStream {
+        private final RateLimit limit;
+
+        RateLimitedInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            limit = new RateLimit(bytesPerSecond);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if (c != -1) limit.transferred(1);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            limit.transferred(n);
+            return n;
+        }
+    }
+
+    private static class RateLimitedOutputStream extends FilterOutputStream {
+        private final RateLimit limit;
+
+        RateLimitedOutputStream(OutputStream out, long bytesPerSecond) {
+            super(out);
+            limit = new RateLimit(bytesPerSecond);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            limit.transferred(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            limit.transferred(len);
+        }
+    }
+}
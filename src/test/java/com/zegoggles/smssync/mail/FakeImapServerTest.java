@@ -0,0 +1,256 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class FakeImapServerTest {
+    private static final String MESSAGE = "Date: Fri, 9 Jan 2015 00:24:16 +0100\r\n" +
+            "Message-ID: <1@sms-backup-plus.local>\r\n" +
+            "X-smssync-datatype: SMS\r\n" +
+            "\r\n" +
+            "Hello World";
+
+    FakeImapServer server;
+    Client client;
+
+    @Before public void before() throws Exception {
+        server = new FakeImapServer().start();
+    }
+
+    @After public void after() throws Exception {
+        if (client != null) client.close();
+        server.stop();
+    }
+
+    @Test public void shouldAdvertiseCapabilities() throws Exception {
+        client = new Client(server.getPort());
+        assertThat(client.readLine()).contains("UIDPLUS LITERAL+ COMPRESS=DEFLATE SORT");
+        assertThat(client.command("CAPABILITY")).contains("* CAPABILITY " + FakeImapServer.DEFAULT_CAPABILITIES);
+    }
+
+    @Test public void shouldRejectInvalidCredentials() throws Exception {
+        client = new Client(server.getPort());
+        client.readLine();
+        assertThat(client.last(client.command("LOGIN \"" + FakeImapServer.USER + "\" \"wrong\""))).contains("NO [AUTHENTICATIONFAILED]");
+        assertThat(client.last(client.command("SELECT \"INBOX\""))).contains("NO not authenticated");
+    }
+
+    @Test public void shouldAppendWithNonSynchronizingLiteral() throws Exception {
+        server.createMailbox("SMS");
+        client = login();
+
+        final List<String> response = client.append("SMS", MESSAGE, true);
+
+        assertThat(client.last(response)).contains("OK [APPENDUID 1 1]");
+        assertThat(server.getMailbox("SMS").size()).isEqualTo(1);
+        assertThat(server.getMailbox("SMS").getMessages().get(0).getHeader("Message-ID")).isEqualTo("<1@sms-backup-plus.local>");
+        assertThat(server.getCommandCount("APPEND")).isEqualTo(1);
+    }
+
+    @Test public void shouldAppendWithSynchronizingLiteral() throws Exception {
+        server.stop();
+        server = new FakeImapServer().withCapabilities("UIDPLUS").start();
+        server.createMailbox("SMS");
+        client = login();
+
+        assertThat(client.last(client.append("SMS", MESSAGE, false))).contains("OK [APPENDUID 1 1]");
+        assertThat(server.getMailbox("SMS").size()).isEqualTo(1);
+    }
+
+    @Test public void shouldAskToCreateMissingMailbox() throws Exception {
+        client = login();
+        assertThat(client.last(client.append("SMS", MESSAGE, true))).contains("NO [TRYCREATE]");
+        assertThat(client.last(client.command("CREATE \"SMS\""))).contains("OK");
+        assertThat(client.last(client.append("SMS", MESSAGE, true))).contains("OK [APPENDUID");
+    }
+
+    @Test public void shouldSearchHeadersAndKeywords() throws Exception {
+        final FakeImapServer.Mailbox mailbox = server.createMailbox("SMS");
+        mailbox.add(bytes(MESSAGE), Collections.<String>emptySet(), new Date());
+        mailbox.add(bytes(MESSAGE.replace("SMS", "CALLLOG")), Collections.<String>emptySet(), new Date());
+        mailbox.add(bytes(MESSAGE), Collections.singleton("\\Deleted"), new Date());
+        client = login();
+        client.command("SELECT \"SMS\"");
+
+        assertThat(client.command("UID SEARCH 1:* (OR HEADER X-SMSSYNC-DATATYPE \"SMS\" (NOT HEADER X-SMSSYNC-DATATYPE \"\")) UNDELETED"))
+                .contains("* SEARCH 1");
+        assertThat(client.command("UID SEARCH HEADER MESSAGE-ID \"<1@sms-backup-plus.local>\""))
+                .contains("* SEARCH 1 2 3");
+
+        client.command("UID STORE 1,2 +FLAGS.SILENT (sms)");
+        assertThat(client.command("UID SEARCH 1:* KEYWORD sms UNDELETED")).contains("* SEARCH 1 2");
+        assertThat(client.command("UID SEARCH 1:* UNKEYWORD sms")).contains("* SEARCH 3");
+    }
+
+    @Test public void shouldFetchPartialBodies() throws Exception {
+        server.createMailbox("SMS").add(bytes(MESSAGE), Collections.<String>emptySet(), new Date());
+        client = login();
+        client.command("SELECT \"SMS\"");
+
+        final List<String> response = client.command("UID FETCH 1 (UID RFC822.SIZE BODY.PEEK[]<0.10>)");
+        assertThat(response.get(0)).isEqualTo("* 1 FETCH (UID 1 RFC822.SIZE " + MESSAGE.length() + " BODY[]<0> {10}");
+        assertThat(response.get(1)).isEqualTo("Date: Fri,)");
+    }
+
+    @Test public void shouldFetchHeaderFields() throws Exception {
+        server.createMailbox("SMS").add(bytes(MESSAGE), Collections.<String>emptySet(), new Date());
+        client = login();
+        client.command("SELECT \"SMS\"");
+
+        final List<String> response = client.command("UID FETCH 1:* (UID BODY.PEEK[HEADER.FIELDS (MESSAGE-ID)])");
+        final String fields = "Message-ID: <1@sms-backup-plus.local>\r\n\r\n";
+        assertThat(response.get(0)).isEqualTo("* 1 FETCH (UID 1 BODY[HEADER.FIELDS (MESSAGE-ID)] {" + fields.length() + "}");
+        assertThat(response.get(1)).isEqualTo("Message-ID: <1@sms-backup-plus.local>");
+    }
+
+    @Test public void shouldSortByDate() throws Exception {
+        final FakeImapServer.Mailbox mailbox = server.createMailbox("SMS");
+        mailbox.add(bytes(MESSAGE.replace("9 Jan", "10 Jan")), Collections.<String>emptySet(), new Date());
+        mailbox.add(bytes(MESSAGE), Collections.<String>emptySet(), new Date());
+        client = login();
+        client.command("SELECT \"SMS\"");
+
+        assertThat(client.command("UID SORT (DATE) US-ASCII ALL")).contains("* SORT 2 1");
+        assertThat(client.command("UID SORT (REVERSE DATE) US-ASCII ALL")).contains("* SORT 1 2");
+    }
+
+    @Test public void shouldThrottleEveryNthCommand() throws Exception {
+        server.throttle("APPEND", 2);
+        server.createMailbox("SMS");
+        client = login();
+
+        assertThat(client.last(client.append("SMS", MESSAGE, true))).contains("OK");
+        assertThat(client.last(client.append("SMS", MESSAGE, true))).contains("NO [THROTTLED]");
+        assertThat(client.last(client.append("SMS", MESSAGE, true))).contains("OK");
+        assertThat(server.getMailbox("SMS").size()).isEqualTo(2);
+        assertThat(server.getThrottleCount()).isEqualTo(1);
+    }
+
+    @Test public void shouldCompressAfterCompressDeflate() throws Exception {
+        server.createMailbox("SMS");
+        client = login();
+
+        assertThat(client.last(client.command("COMPRESS DEFLATE"))).contains("OK");
+        client.compress();
+
+        assertThat(client.last(client.append("SMS", MESSAGE, true))).contains("OK [APPENDUID");
+        assertThat(client.command("STATUS \"SMS\" (MESSAGES UIDNEXT)")).contains("* STATUS \"SMS\" (MESSAGES 1 UIDNEXT 2)");
+    }
+
+    @Test public void shouldRefuseCompressionIfNotAdvertised() throws Exception {
+        server.stop();
+        server = new FakeImapServer().withCapabilities("UIDPLUS").start();
+        client = login();
+
+        assertThat(client.last(client.command("COMPRESS DEFLATE"))).contains("NO");
+        assertThat(client.last(client.command("NOOP"))).contains("OK");
+    }
+
+    private Client login() throws IOException {
+        final Client client = new Client(server.getPort());
+        client.readLine();
+        assertThat(client.last(client.command("LOGIN \"" + FakeImapServer.USER + "\" \"" + FakeImapServer.PASSWORD + "\"")))
+                .contains("OK");
+        return client;
+    }
+
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    private static class Client {
+        private final Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private int tag;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * @return all response lines, the tagged completion last
+         */
+        List<String> command(String command) throws IOException {
+            final String tag = nextTag();
+            write(tag + " " + command + "\r\n");
+            return readResponse(tag);
+        }
+
+        List<String> append(String mailbox, String message, boolean nonSynchronizing) throws IOException {
+            final String tag = nextTag();
+            final String literal = "{" + message.length() + (nonSynchronizing ? "+}" : "}");
+            write(tag + " APPEND \"" + mailbox + "\" (\\Seen) " + literal + "\r\n");
+            if (!nonSynchronizing) {
+                assertThat(readLine()).startsWith("+");
+            }
+            write(message + "\r\n");
+            return readResponse(tag);
+        }
+
+        void compress() throws IOException {
+            in = new BufferedInputStream(new InflaterInputStream(in, new Inflater(true)));
+            out = new BufferedOutputStream(new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true), true));
+        }
+
+        String last(List<String> response) {
+            return response.get(response.size() - 1);
+        }
+
+        String readLine() throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        private List<String> readResponse(String tag) throws IOException {
+            final List<String> lines = new ArrayList<String>();
+            String line;
+            do {
+                line = readLine();
+                lines.add(line);
+            } while (!line.startsWith(tag + " "));
+            return lines;
+        }
+
+        private void write(String s) throws IOException {
+            out.write(bytes(s));
+            out.flush();
+        }
+
+        private String nextTag() {
+            return "A" + (++tag);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.internet.MimeMessage;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class InMemoryBodyTest {
+    private static final String RAW =
+            "Message-ID: <1234@sms-backup-plus.local>\r\n" +
+            "Subject: SMS with\r\n" +
+            " Foo\r\n" +
+            "X-smssync-datatype: SMS\r\n" +
+            "Content-Transfer-Encoding: quoted-printable\r\n" +
+            "\r\n" +
+            "K=C3=A4se\r\n";
+
+    @Test public void shouldParseHeadersAndBody() throws Exception {
+        BodyBufferPool pool = new BodyBufferPool(1024);
+        MimeMessage message = new MimeMessage();
+
+        assertThat(InMemoryBody.parse(message, RAW, pool)).isTrue();
+
+        assertThat(Headers.get(message, Headers.DATATYPE)).isEqualTo("SMS");
+        assertThat(Headers.get(message, "Subject")).isEqualTo("SMS with Foo");
+        assertThat(IOUtils.toString(message.getBody().getInputStream(), "UTF-8")).isEqualTo("Käse\r\n");
+    }
+
+    @Test public void shouldNotParseMessagesLargerThanBuffer() throws Exception {
+        MimeMessage message = new MimeMessage();
+        assertThat(InMemoryBody.parse(message, RAW, new BodyBufferPool(4))).isFalse();
+        assertThat(message.getBody()).isNull();
+    }
+
+    @Test public void shouldReplaceExistingHeaders() throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.addHeader("Message-ID", "<1234@sms-backup-plus.local>");
+        message.addHeader(Headers.DATATYPE, "SMS");
+
+        assertThat(InMemoryBody.parse(message, RAW, new BodyBufferPool(1024))).isTrue();
+
+        assertThat(message.getHeader("Message-ID")).hasSize(1);
+        assertThat(message.getHeader(Headers.DATATYPE)).hasSize(1);
+    }
+
+    @Test public void shouldNotParseMessagesWith8BitContent() throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.addHeader(Headers.DATATYPE, "SMS");
+
+        assertThat(InMemoryBody.parse(message, RAW.replace("K=C3=A4se", "K\u00e4se"), new BodyBufferPool(1024))).isFalse();
+
+        assertThat(message.getBody()).isNull();
+        assertThat(message.getHeader(Headers.DATATYPE)).hasSize(1);
+    }
+
+    @Test public void shouldReturnBufferToPoolOnRelease() throws Exception {
+        BodyBufferPool pool = new BodyBufferPool(1024);
+        MimeMessage message = new MimeMessage();
+        InMemoryBody.parse(message, RAW, pool);
+        assertThat(pool.pooled()).isEqualTo(0);
+
+        InMemoryBody.release(message);
+
+        assertThat(pool.pooled()).isEqualTo(1);
+    }
+}
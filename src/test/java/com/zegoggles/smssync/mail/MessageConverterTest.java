@@ -9,7 +9,6 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.zegoggles.smssync.SmsConsts;
-import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.preferences.AddressStyle;
 import com.zegoggles.smssync.preferences.MarkAsReadTypes;
 import com.zegoggles.smssync.preferences.Preferences;
@@ -34,14 +33,13 @@ public class MessageConverterTest {
     private MessageConverter messageConverter;
     @Mock private Preferences preferences;
     @Mock private PersonLookup personLookup;
-    @Mock private ContactAccessor contactAccessor;
 
     @Before
     public void setUp() throws Exception {
         initMocks(this);
         BinaryTempFileBody.setTempDirectory(Robolectric.application.getCacheDir());
         messageConverter = new MessageConverter(Robolectric.application,
-                preferences, "foo@example.com", personLookup, contactAccessor);
+                preferences, "foo@example.com", personLookup);
     }
 
     @Test(expected = MessagingException.class)
@@ -116,7 +114,7 @@ public class MessageConverterTest {
         when(preferences.getMarkAsReadType()).thenReturn(MarkAsReadTypes.MESSAGE_STATUS);
 
         messageConverter = new MessageConverter(Robolectric.application,
-                preferences, "foo@example.com", personLookup, contactAccessor);
+                preferences, "foo@example.com", personLookup);
 
         ConversionResult res = messageConverter.convertMessages(cursor, DataType.SMS);
         assertThat(res.getMessages().get(0).isSet(Flag.SEEN)).isFalse();
@@ -138,7 +136,7 @@ public class MessageConverterTest {
         when(preferences.getMarkAsReadType()).thenReturn(MarkAsReadTypes.UNREAD);
 
         messageConverter = new MessageConverter(Robolectric.application,
-                preferences, "foo@example.com", personLookup, contactAccessor);
+                preferences, "foo@example.com", personLookup);
 
         ConversionResult res = messageConverter.convertMessages(cursor, DataType.SMS);
         assertThat(res.getMessages().get(0).isSet(Flag.SEEN)).isFalse();
@@ -160,7 +158,7 @@ public class MessageConverterTest {
         when(preferences.getMarkAsReadType()).thenReturn(MarkAsReadTypes.READ);
 
         messageConverter = new MessageConverter(Robolectric.application,
-                preferences, "foo@example.com", personLookup, contactAccessor);
+                preferences, "foo@example.com", personLookup);
 
         ConversionResult res = messageConverter.convertMessages(cursor, DataType.SMS);
         assertThat(res.getMessages().get(0).isSet(Flag.SEEN)).isTrue();
@@ -6,7 +6,6 @@ import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.zegoggles.smssync.SmsConsts;
-import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.preferences.AddressStyle;
 import org.apache.james.mime4j.util.MimeUtil;
 import org.junit.Before;
@@ -36,7 +35,6 @@ public class MessageGeneratorTest {
     @Mock private HeaderGenerator headerGenerator;
     @Mock private MmsSupport mmsSupport;
     @Mock private Address me;
-    @Mock private ContactGroupIds groupIds;
 
     @Before public void before() {
         initMocks(this);
@@ -47,7 +45,6 @@ public class MessageGeneratorTest {
                 headerGenerator,
                 personLookup,
                 false,
-                null,
                 mmsSupport
         );
     }
@@ -208,26 +205,6 @@ public class MessageGeneratorTest {
         assertThat(msg.getSubject()).isEqualTo("SMS with 1234");
     }
 
-    @Test public void shouldOnlyIncludePeopleFromContactIdsIfSpecified() throws Exception {
-        MessageGenerator generator = new MessageGenerator(Robolectric.application,
-                me,
-                AddressStyle.NAME,
-                headerGenerator,
-                personLookup,
-                false,
-                groupIds,
-                mmsSupport
-        );
-        PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Map<String, String> map = mockMessage("1234", record);
-        map.put(SmsConsts.TYPE, "1");
-
-        when(groupIds.contains(record)).thenReturn(false);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNull();
-        when(groupIds.contains(record)).thenReturn(true);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNotNull();
-    }
-
     private Map<String, String> mockMessage(String address, PersonRecord record) {
         Map<String, String> map = new HashMap<String, String>();
         map.put(SmsConsts.ADDRESS, address);
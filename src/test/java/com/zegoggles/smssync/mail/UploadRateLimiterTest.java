@@ -0,0 +1,138 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.MessagingException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.net.SocketException;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UploadRateLimiterTest {
+    long now;
+    long slept;
+
+    @Before public void before() {
+        now = 1000;
+        slept = 0;
+    }
+
+    @Test public void shouldNotWaitWithinBurst() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        limiter.acquire(20, 0);
+        assertThat(slept).isEqualTo(0);
+    }
+
+    @Test public void shouldWaitOnceBudgetIsUsedUp() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        limiter.acquire(20, 0);
+        limiter.acquire(10, 0);
+        assertThat(slept).isEqualTo(1000);
+    }
+
+    @Test public void shouldLimitBytes() throws Exception {
+        UploadRateLimiter limiter = limiter(-1, 1000);
+        limiter.acquire(1, 2000);
+        limiter.acquire(1, 500);
+        assertThat(slept).isEqualTo(500);
+    }
+
+    @Test public void shouldNotLimitIfDisabled() throws Exception {
+        UploadRateLimiter limiter = limiter(-1, -1);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(100, 100000);
+        }
+        assertThat(slept).isEqualTo(0);
+    }
+
+    @Test public void shouldStartLimitingAtObservedRateWhenThrottled() throws Exception {
+        UploadRateLimiter limiter = limiter(0, 0);
+        assertThat(limiter.isLimited()).isFalse();
+        // 10 messages/s
+        limiter.acquire(10, 10000);
+        now += 1000;
+
+        limiter.onError(new MessagingException("NO [THROTTLED] Please slow down"));
+        assertThat(limiter.isLimited()).isTrue();
+
+        // half of the observed rate, after the burst
+        limiter.acquire(10, 0);
+        limiter.acquire(5, 0);
+        assertThat(slept).isEqualTo(1000);
+    }
+
+    @Test public void shouldStartLimitingWhenServerSaysBye() throws Exception {
+        UploadRateLimiter limiter = limiter(0, 0);
+        limiter.onError(new MessagingException("* BYE System busy"));
+        assertThat(limiter.isLimited()).isTrue();
+    }
+
+    @Test public void shouldNotMistakeMessageTextForResponseCodes() throws Exception {
+        assertThat(UploadRateLimiter.isThrottled(new MessagingException("NO mailbox THROTTLED-ARCHIVE not found"))).isFalse();
+        assertThat(UploadRateLimiter.isBye(new MessagingException("NO say BYE"))).isFalse();
+    }
+
+    @Test public void shouldHalveRateWhenThrottled() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        limiter.onError(new MessagingException("NO [THROTTLED] Please slow down"));
+        assertThat(limiter.getFactor()).isEqualTo(0.5);
+
+        limiter.acquire(10, 0);
+        limiter.acquire(5, 0);
+        assertThat(slept).isEqualTo(1000);
+    }
+
+    @Test public void shouldSlowDownOnConnectionErrors() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        limiter.onError(new MessagingException("IO Error", new SocketException("reset")));
+        assertThat(limiter.getFactor()).isEqualTo(0.75);
+    }
+
+    @Test public void shouldIgnoreOtherErrors() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        limiter.onError(new MessagingException("NO [OVERQUOTA]"));
+        assertThat(limiter.getFactor()).isEqualTo(1.0);
+    }
+
+    @Test public void shouldRecoverAfterFastUploads() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        limiter.onError(new MessagingException("NO [THROTTLED]"));
+        limiter.onSuccess(1, 100);
+        assertThat(limiter.getFactor()).isGreaterThan(0.5);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess(1, 100);
+        }
+        assertThat(limiter.getFactor()).isEqualTo(1.0);
+    }
+
+    @Test public void shouldSlowDownAfterSlowUploads() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        limiter.onSuccess(1, UploadRateLimiter.SLOW_APPEND_MS + 1);
+        assertThat(limiter.getFactor()).isLessThan(1.0);
+    }
+
+    @Test public void shouldNotGoBelowMinimumRate() throws Exception {
+        UploadRateLimiter limiter = limiter(10, -1);
+        for (int i = 0; i < 20; i++) {
+            limiter.onError(new MessagingException("NO [THROTTLED]"));
+        }
+        assertThat(limiter.getFactor()).isEqualTo(UploadRateLimiter.MIN_FACTOR);
+    }
+
+    private UploadRateLimiter limiter(double messagesPerSecond, double bytesPerSecond) {
+        return new UploadRateLimiter(messagesPerSecond, bytesPerSecond) {
+            @Override protected long now() {
+                return now;
+            }
+
+            @Override protected void sleep(long ms) {
+                slept += ms;
+                now += ms;
+            }
+        };
+    }
+}
@@ -0,0 +1,57 @@
+package com.zegoggles.smssync.metrics;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HistogramTest {
+
+    @Test public void shouldBeEmptyInitially() throws Exception {
+        Histogram histogram = new Histogram();
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getTotalNanos()).isEqualTo(0);
+        assertThat(histogram.getPercentileMicros(50)).isEqualTo(0);
+    }
+
+    @Test public void shouldTrackCountTotalAndMax() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+        histogram.record(5000);
+        histogram.record(3000);
+
+        assertThat(histogram.getCount()).isEqualTo(3);
+        assertThat(histogram.getTotalNanos()).isEqualTo(9000);
+        assertThat(histogram.getMaxNanos()).isEqualTo(5000);
+    }
+
+    @Test public void shouldMapMicrosToPowerOfTwoBuckets() throws Exception {
+        assertThat(Histogram.bucketFor(0)).isEqualTo(0);
+        assertThat(Histogram.bucketFor(1)).isEqualTo(0);
+        assertThat(Histogram.bucketFor(2)).isEqualTo(1);
+        assertThat(Histogram.bucketFor(3)).isEqualTo(2);
+        assertThat(Histogram.bucketFor(4)).isEqualTo(2);
+        assertThat(Histogram.bucketFor(1024)).isEqualTo(10);
+        assertThat(Histogram.bucketFor(1025)).isEqualTo(11);
+        assertThat(Histogram.bucketFor(Long.MAX_VALUE)).isEqualTo(Histogram.BUCKETS - 1);
+    }
+
+    @Test public void shouldEstimatePercentiles() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 95; i++) {
+            histogram.record(100 * 1000); // 100 µs
+        }
+        for (int i = 0; i < 5; i++) {
+            histogram.record(10 * 1000 * 1000); // 10 ms
+        }
+        assertThat(histogram.getPercentileMicros(50)).isEqualTo(128);
+        assertThat(histogram.getPercentileMicros(95)).isEqualTo(128);
+        assertThat(histogram.getPercentileMicros(99)).isEqualTo(10000);
+    }
+
+    @Test public void shouldIgnoreNegativeDurations() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertThat(histogram.getCount()).isEqualTo(1);
+        assertThat(histogram.getTotalNanos()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,123 @@
+package com.zegoggles.smssync.metrics;
+
+import com.zegoggles.smssync.service.BackupType;
+import com.zegoggles.smssync.service.state.SmsSyncState;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static com.zegoggles.smssync.mail.DataType.SMS;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class RunHistoryTest {
+    RunHistory history;
+
+    @Before public void before() {
+        history = new RunHistory(Robolectric.application);
+    }
+
+    @Test public void shouldRecordRuns() throws Exception {
+        history.record(backup(BackupType.REGULAR, 10000, 100));
+        history.record(new RunHistory.Run(RunHistory.Kind.RESTORE, null, SmsSyncState.ERROR,
+                2000, 500, 0, 0, 3, 1024, 2, "connection reset"));
+
+        List<RunHistory.Run> runs = history.getRuns(null, 10);
+        assertThat(runs).hasSize(2);
+
+        RunHistory.Run restore = runs.get(0);
+        assertThat(restore.kind).isEqualTo(RunHistory.Kind.RESTORE);
+        assertThat(restore.trigger).isNull();
+        assertThat(restore.state).isEqualTo(SmsSyncState.ERROR);
+        assertThat(restore.callLogItems).isEqualTo(3);
+        assertThat(restore.bytes).isEqualTo(1024);
+        assertThat(restore.retries).isEqualTo(2);
+        assertThat(restore.error).isEqualTo("connection reset");
+
+        RunHistory.Run backup = runs.get(1);
+        assertThat(backup.trigger).isEqualTo(BackupType.REGULAR);
+        assertThat(backup.getItems()).isEqualTo(100);
+        assertThat(backup.getThroughput()).isEqualTo(10f);
+    }
+
+    @Test public void shouldFilterRunsByKind() throws Exception {
+        history.record(backup(BackupType.MANUAL, 1000, 1));
+        history.record(new RunHistory.Run(RunHistory.Kind.RESTORE, null, SmsSyncState.FINISHED_RESTORE,
+                0, 1000, 1, 0, 0, 0, 0, null));
+
+        assertThat(history.getRuns(RunHistory.Kind.BACKUP, 10)).hasSize(1);
+        assertThat(history.getRuns(RunHistory.Kind.RESTORE, 10)).hasSize(1);
+    }
+
+    @Test public void shouldKeepOnlyMostRecentRuns() throws Exception {
+        for (int i = 0; i < RunHistory.MAX_RUNS + 5; i++) {
+            history.record(backup(BackupType.INCOMING, 1000 + i, 1));
+        }
+        List<RunHistory.Run> runs = history.getRuns(null, RunHistory.MAX_RUNS * 2);
+        assertThat(runs).hasSize(RunHistory.MAX_RUNS);
+        assertThat(runs.get(0).duration).isEqualTo(1000 + RunHistory.MAX_RUNS + 4);
+    }
+
+    @Test public void shouldCalculateDurationPercentiles() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            history.record(backup(BackupType.REGULAR, i * 1000, 1));
+        }
+        RunHistory.Stats stats = history.getStats(RunHistory.Kind.BACKUP);
+        assertThat(stats.count).isEqualTo(10);
+        assertThat(stats.getDurationPercentile(50)).isEqualTo(5000);
+        assertThat(stats.getDurationPercentile(90)).isEqualTo(9000);
+        assertThat(stats.getDurationPercentile(100)).isEqualTo(10000);
+    }
+
+    @Test public void shouldCompareRecentThroughputWithPreviousRuns() throws Exception {
+        for (int i = 0; i < RunHistory.TREND_WINDOW; i++) {
+            history.record(backup(BackupType.REGULAR, 1000, 20));
+        }
+        for (int i = 0; i < RunHistory.TREND_WINDOW; i++) {
+            history.record(backup(BackupType.REGULAR, 1000, 15));
+        }
+        RunHistory.Stats stats = history.getStats(RunHistory.Kind.BACKUP);
+        assertThat(stats.getRecentThroughput()).isEqualTo(15f);
+        assertThat(stats.getPreviousThroughput()).isEqualTo(20f);
+        assertThat(stats.getTrend()).isEqualTo(-0.25f);
+    }
+
+    @Test public void shouldIgnoreEmptyRunsForThroughput() throws Exception {
+        history.record(backup(BackupType.REGULAR, 1000, 10));
+        history.record(backup(BackupType.REGULAR, 1000, 0));
+
+        RunHistory.Stats stats = history.getStats(RunHistory.Kind.BACKUP);
+        assertThat(stats.getRecentThroughput()).isEqualTo(10f);
+        assertThat(stats.getPreviousThroughput()).isEqualTo(0f);
+        assertThat(stats.getTrend()).isEqualTo(0f);
+    }
+
+    @Test public void shouldCreateRunFromMetrics() throws Exception {
+        RunMetrics metrics = new RunMetrics(0);
+        metrics.addCount(SMS, 4, 400);
+
+        RunHistory.Run run = RunHistory.Run.from(metrics, RunHistory.Kind.BACKUP, BackupType.MANUAL, null);
+        assertThat(run.smsItems).isEqualTo(4);
+        assertThat(run.bytes).isEqualTo(400);
+        assertThat(run.state).isNull();
+        assertThat(run.error).isEqualTo("incomplete");
+    }
+
+    @Test public void shouldSummarizeRuns() throws Exception {
+        assertThat(history.summary(Robolectric.application, 5)).isEqualTo("No runs recorded yet.");
+
+        history.record(backup(BackupType.MANUAL, 2000, 10));
+        assertThat(history.summary(Robolectric.application, 5))
+                .contains("Backups: 1 runs")
+                .contains("10 items in 2.0 s (5.0/s)");
+    }
+
+    private static RunHistory.Run backup(BackupType type, long duration, int items) {
+        return new RunHistory.Run(RunHistory.Kind.BACKUP, type, SmsSyncState.FINISHED_BACKUP,
+                System.currentTimeMillis(), duration, items, 0, 0, items * 100, 0, null);
+    }
+}
@@ -0,0 +1,86 @@
+package com.zegoggles.smssync.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class RunMetricsTest {
+
+    @After public void after() {
+        RunMetrics.finish();
+    }
+
+    @Test public void shouldIgnoreRecordingWithoutActiveRun() throws Exception {
+        RunMetrics.end(Stage.QUERY, RunMetrics.begin(Stage.QUERY));
+        RunMetrics.count(SMS, 1, 100);
+        assertThat(RunMetrics.finish()).isNull();
+    }
+
+    @Test public void shouldRecordStagesOfActiveRun() throws Exception {
+        RunMetrics metrics = RunMetrics.start();
+        RunMetrics.end(Stage.QUERY, RunMetrics.begin(Stage.QUERY));
+        RunMetrics.end(Stage.QUERY, RunMetrics.begin(Stage.QUERY));
+        RunMetrics.end(Stage.APPEND, RunMetrics.begin(Stage.APPEND));
+
+        assertThat(metrics.getHistogram(Stage.QUERY).getCount()).isEqualTo(2);
+        assertThat(metrics.getHistogram(Stage.APPEND).getCount()).isEqualTo(1);
+        assertThat(metrics.getHistogram(Stage.FETCH)).isNull();
+    }
+
+    @Test public void shouldCountItemsAndBytesPerDataType() throws Exception {
+        RunMetrics metrics = RunMetrics.start();
+        RunMetrics.count(SMS, 2, 300);
+        RunMetrics.count(SMS, 1, 200);
+        RunMetrics.count(null, 1, 200);
+
+        assertThat(metrics.getItems(SMS)).isEqualTo(3);
+        assertThat(metrics.getBytes(SMS)).isEqualTo(500);
+        assertThat(metrics.getItems(CALLLOG)).isEqualTo(0);
+    }
+
+    @Test public void shouldMakeFinishedRunAvailable() throws Exception {
+        RunMetrics metrics = RunMetrics.start();
+        assertThat(RunMetrics.finish()).isSameAs(metrics);
+        assertThat(RunMetrics.getLast()).isSameAs(metrics);
+
+        RunMetrics.end(Stage.QUERY, RunMetrics.begin(Stage.QUERY));
+        assertThat(metrics.getHistogram(Stage.QUERY)).isNull();
+    }
+
+    @Test public void shouldNotTraceByDefault() throws Exception {
+        assertThat(RunMetrics.start().getTrace()).isNull();
+    }
+
+    @Test public void shouldTraceIfRequested() throws Exception {
+        assertThat(RunMetrics.start(true).getTrace()).isNotNull();
+    }
+
+    @Test public void shouldDetermineDominantStage() throws Exception {
+        RunMetrics metrics = new RunMetrics(0);
+        assertThat(metrics.getDominantStage()).isNull();
+
+        metrics.add(Stage.QUERY, 1000);
+        metrics.add(Stage.APPEND, 5000);
+        metrics.add(Stage.APPEND, 1000);
+        metrics.add(Stage.MIME_BUILD, 3000);
+
+        assertThat(metrics.getDominantStage()).isEqualTo(Stage.APPEND);
+    }
+
+    @Test public void shouldBuildSummary() throws Exception {
+        RunMetrics metrics = new RunMetrics(0);
+        metrics.add(Stage.APPEND, 2000 * 1000);
+        metrics.addCount(SMS, 10, 4096);
+
+        String summary = metrics.summary(Robolectric.application);
+        assertThat(summary).contains("SMS: 10 items, 4096 bytes");
+        assertThat(summary).contains("Upload: n=1");
+    }
+}
@@ -0,0 +1,59 @@
+package com.zegoggles.smssync.metrics;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.StringWriter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class RunTraceTest {
+
+    @Test public void shouldWriteChromeTraceEvents() throws Exception {
+        RunTrace trace = new RunTrace(1000000L, false);
+        trace.end(Stage.QUERY, 2000000L, 5000000L);
+        trace.end(Stage.APPEND, 6000000L, 16000000L);
+        trace.finish(20000000L);
+
+        StringWriter writer = new StringWriter();
+        trace.writeTo(writer);
+
+        JSONArray events = new JSONObject(writer.toString()).getJSONArray("traceEvents");
+        assertThat(events.length()).isEqualTo(4);
+
+        assertThat(events.getJSONObject(0).getString("ph")).isEqualTo("M");
+
+        JSONObject run = events.getJSONObject(1);
+        assertThat(run.getString("name")).isEqualTo("run");
+        assertThat(run.getLong("ts")).isEqualTo(0);
+        assertThat(run.getLong("dur")).isEqualTo(19000);
+
+        JSONObject query = events.getJSONObject(2);
+        assertThat(query.getString("name")).isEqualTo("QUERY");
+        assertThat(query.getString("ph")).isEqualTo("X");
+        assertThat(query.getLong("ts")).isEqualTo(1000);
+        assertThat(query.getLong("dur")).isEqualTo(3000);
+
+        JSONObject append = events.getJSONObject(3);
+        assertThat(append.getString("name")).isEqualTo("APPEND");
+        assertThat(append.getLong("ts")).isEqualTo(5000);
+        assertThat(append.getLong("dur")).isEqualTo(10000);
+    }
+
+    @Test public void shouldDropSpansBeyondLimit() throws Exception {
+        RunTrace trace = new RunTrace(0, false);
+        for (int i = 0; i < RunTrace.MAX_SPANS + 10; i++) {
+            trace.end(Stage.READ_ROW, i, i + 1);
+        }
+        assertThat(trace.size()).isEqualTo(RunTrace.MAX_SPANS);
+        assertThat(trace.getDropped()).isEqualTo(10);
+    }
+
+    @Test public void shouldEscapeStrings() throws Exception {
+        assertThat(RunTrace.escape("a\"b\\c\n")).isEqualTo("a\\\"b\\\\c\\u000a");
+    }
+}
@@ -53,6 +53,12 @@ public class SmsBroadcastReceiverTest {
         verify(alarms, times(1)).scheduleIncomingBackup();
     }
 
+    @Test public void shouldScheduleInstantBackupAfterIncomingMessage() throws Exception {
+        mockScheduled();
+        receiver.onReceive(context, new Intent().setAction("android.provider.Telephony.SMS_RECEIVED"));
+        verify(alarms, times(1)).scheduleInstantBackup();
+    }
+
     @Test public void shouldNotScheduleIfAutoSyncIsDisabled() throws Exception {
         mockScheduled();
         when(preferences.isEnableAutoSync()).thenReturn(false);
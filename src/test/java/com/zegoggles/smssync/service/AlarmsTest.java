@@ -55,6 +55,19 @@ public class AlarmsTest {
         verifyAlarmScheduled(scheduled, "INCOMING");
     }
 
+    @Test public void shouldScheduleInstantBackup() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(preferences.isInstantBackupEnabled()).thenReturn(true);
+        long scheduled = alarms.scheduleInstantBackup();
+        verifyAlarmScheduled(scheduled, "INSTANT");
+    }
+
+    @Test public void shouldNotScheduleInstantBackupIfDisabled() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(preferences.isInstantBackupEnabled()).thenReturn(false);
+        assertThat(alarms.scheduleInstantBackup()).isEqualTo(-1);
+    }
+
     @Test public void shouldNotScheduleRegularBackupIfAutoBackupIsDisabled() throws Exception {
         when(preferences.isEnableAutoSync()).thenReturn(false);
         assertThat(alarms.scheduleRegularBackup()).isEqualTo(-1);
@@ -66,6 +79,19 @@ public class AlarmsTest {
     }
 
     @Test public void shouldScheduleIntentsWithUniqueActions() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(preferences.getRegularTimeoutSecs()).thenReturn(2000);
+
+        long scheduled = alarms.scheduleRegularBackup();
+        Intent intent1 = verifyAlarmScheduled(scheduled, "REGULAR");
+
+        long scheduled2 = alarms.scheduleRegularBackup();
+        Intent intent2 = verifyAlarmScheduled(scheduled2, "REGULAR");
+
+        assertThat(intent1.getAction()).isNotEqualTo(intent2.getAction());
+    }
+
+    @Test public void shouldCoalesceIncomingBackups() throws Exception {
         when(preferences.isEnableAutoSync()).thenReturn(true);
         when(preferences.getIncomingTimeoutSecs()).thenReturn(2000);
 
@@ -75,7 +101,31 @@ public class AlarmsTest {
         long scheduled2 = alarms.scheduleIncomingBackup();
         Intent intent2 = verifyAlarmScheduled(scheduled2, "INCOMING");
 
-        assertThat(intent1.getAction()).isNotEqualTo(intent2.getAction());
+        assertThat(intent1.getAction()).isEqualTo(intent2.getAction());
+        assertThat(scheduled2).isGreaterThanOrEqualTo(scheduled);
+    }
+
+    @Test public void shouldCoalesceInstantBackups() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(preferences.isInstantBackupEnabled()).thenReturn(true);
+
+        Intent intent1 = verifyAlarmScheduled(alarms.scheduleInstantBackup(), "INSTANT");
+        Intent intent2 = verifyAlarmScheduled(alarms.scheduleInstantBackup(), "INSTANT");
+
+        assertThat(intent1.getAction()).isEqualTo(intent2.getAction());
+    }
+
+    @Test public void shouldBoundDelayOfCoalescedBackups() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(preferences.getIncomingTimeoutSecs()).thenReturn(2000);
+
+        final long pendingSince = System.currentTimeMillis() - 5000 * 1000l;
+        Robolectric.application.getSharedPreferences("alarms", Context.MODE_PRIVATE)
+                .edit().putLong("pending_incoming_since", pendingSince).commit();
+
+        long scheduled = alarms.scheduleIncomingBackup();
+        assertThat(scheduled).isLessThanOrEqualTo(
+                pendingSince + Alarms.MAX_INCOMING_DELAY_FACTOR * 2000 * 1000l + 1000);
     }
 
     private Intent verifyAlarmScheduled(long scheduled, String expectedType) {
@@ -0,0 +1,85 @@
+package com.zegoggles.smssync.service;
+
+import com.zegoggles.smssync.mail.DataType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.EnumSet;
+
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.MMS;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackfillWatermarksTest {
+    BackfillWatermarks watermarks;
+
+    @Before public void before() {
+        watermarks = new BackfillWatermarks(Robolectric.application);
+    }
+
+    @Test public void shouldNotBeActiveInitially() throws Exception {
+        assertThat(watermarks.isActive(SMS)).isFalse();
+        assertThat(watermarks.isActive(EnumSet.allOf(DataType.class))).isFalse();
+    }
+
+    @Test public void shouldStartRange() throws Exception {
+        watermarks.start(SMS, -1, 5000);
+
+        assertThat(watermarks.isActive(SMS)).isTrue();
+        assertThat(watermarks.isActive(EnumSet.of(MMS, SMS))).isTrue();
+        assertThat(watermarks.isActive(CALLLOG)).isFalse();
+        assertThat(watermarks.getLower(SMS)).isEqualTo(-1);
+        assertThat(watermarks.getUpper(SMS)).isEqualTo(5000);
+    }
+
+    @Test public void shouldAdvanceLowerWatermark() throws Exception {
+        watermarks.start(SMS, -1, 5000);
+        watermarks.advance(SMS, 1000);
+        assertThat(watermarks.getLower(SMS)).isEqualTo(1000);
+
+        watermarks.advance(SMS, 500);
+        assertThat(watermarks.getLower(SMS)).isEqualTo(1000);
+    }
+
+    @Test public void shouldAdvanceWithinItemsSharingDate() throws Exception {
+        watermarks.start(SMS, -1, 5000);
+        watermarks.advance(SMS, 1000, 7);
+        assertThat(watermarks.getLower(SMS)).isEqualTo(1000);
+        assertThat(watermarks.getLowerId(SMS)).isEqualTo(7);
+
+        watermarks.advance(SMS, 1000, 3);
+        assertThat(watermarks.getLowerId(SMS)).isEqualTo(7);
+
+        watermarks.advance(SMS, 1000, 9);
+        assertThat(watermarks.getLowerId(SMS)).isEqualTo(9);
+
+        watermarks.advance(SMS, 2000, 1);
+        assertThat(watermarks.getLower(SMS)).isEqualTo(2000);
+        assertThat(watermarks.getLowerId(SMS)).isEqualTo(1);
+    }
+
+    @Test public void shouldNotFinishBeforeAllItemsAtUpperWatermark() throws Exception {
+        watermarks.start(SMS, -1, 5000);
+        watermarks.advance(SMS, 5000, 7);
+        assertThat(watermarks.isActive(SMS)).isTrue();
+        assertThat(watermarks.getLowerId(SMS)).isEqualTo(7);
+    }
+
+    @Test public void shouldFinishWhenReachingUpperWatermark() throws Exception {
+        watermarks.start(SMS, -1, 5000);
+        watermarks.advance(SMS, 5000);
+        assertThat(watermarks.isActive(SMS)).isFalse();
+    }
+
+    @Test public void shouldClear() throws Exception {
+        watermarks.start(SMS, -1, 5000);
+        watermarks.start(MMS, -1, 5);
+        BackfillWatermarks.clear(Robolectric.application);
+        assertThat(watermarks.isActive(EnumSet.of(SMS, MMS))).isFalse();
+    }
+}
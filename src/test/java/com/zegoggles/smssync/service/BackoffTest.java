@@ -0,0 +1,51 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.MessagingException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.cert.CertificateException;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackoffTest {
+    @Test public void shouldIncreaseDelayExponentially() throws Exception {
+        Backoff backoff = new Backoff(1000, new Random(42));
+
+        assertThat(backoff.getDelay(0)).isGreaterThanOrEqualTo(500).isLessThanOrEqualTo(1000);
+        assertThat(backoff.getDelay(1)).isGreaterThanOrEqualTo(1000).isLessThanOrEqualTo(2000);
+        assertThat(backoff.getDelay(3)).isGreaterThanOrEqualTo(4000).isLessThanOrEqualTo(8000);
+    }
+
+    @Test public void shouldCapDelay() throws Exception {
+        Backoff backoff = new Backoff(1000, new Random(42));
+        assertThat(backoff.getDelay(30)).isLessThanOrEqualTo(Backoff.MAX_DELAY);
+    }
+
+    @Test public void shouldTreatNetworkErrorsAsTransient() throws Exception {
+        assertThat(Backoff.isTransient(new MessagingException("IO Error", new SocketException("reset")))).isTrue();
+        assertThat(Backoff.isTransient(new MessagingException("Read timed out", new SocketTimeoutException()))).isTrue();
+        assertThat(Backoff.isTransient(new MessagingException("* BYE Connection closed"))).isTrue();
+        assertThat(Backoff.isTransient(new MessagingException("NO [THROTTLED] Too many requests"))).isTrue();
+    }
+
+    @Test public void shouldTreatOtherErrorsAsPermanent() throws Exception {
+        assertThat(Backoff.isTransient(new AuthenticationFailedException("invalid credentials"))).isFalse();
+        assertThat(Backoff.isTransient(new MessagingException("NO [OVERQUOTA] mailbox full"))).isFalse();
+        assertThat(Backoff.isTransient(new MessagingException("IO Error", new IOException("unexpected response")))).isFalse();
+        assertThat(Backoff.isTransient(new MessagingException("NO folder BYE2014 doesn't exist"))).isFalse();
+        assertThat(Backoff.isTransient(new MessagingException("NO message not THROTTLED"))).isFalse();
+
+        SSLHandshakeException handshakeException = new SSLHandshakeException("untrusted");
+        handshakeException.initCause(new CertificateException("untrusted"));
+        assertThat(Backoff.isTransient(new MessagingException("IO Error", handshakeException))).isFalse();
+    }
+}
@@ -9,6 +9,7 @@ import org.robolectric.RobolectricTestRunner;
 
 import java.util.EnumSet;
 
+import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
 @RunWith(RobolectricTestRunner.class)
@@ -52,4 +53,32 @@ public class BackupConfigTest {
                 EnumSet.of(DataType.MMS),
                 false);
     }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireStoreUnlessDryRun() throws Exception {
+        new BackupConfig(null,
+                0,
+                false,
+                -1,
+                ContactGroup.EVERYBODY,
+                BackupType.MANUAL,
+                EnumSet.of(DataType.SMS),
+                false,
+                false);
+    }
+
+    @Test
+    public void shouldNotRequireStoreForDryRun() throws Exception {
+        BackupConfig config = new BackupConfig(null,
+                0,
+                false,
+                -1,
+                ContactGroup.EVERYBODY,
+                BackupType.MANUAL,
+                EnumSet.of(DataType.SMS),
+                false,
+                true);
+        assertThat(config.dryRun).isTrue();
+        assertThat(config.imapStore).isNull();
+    }
 }
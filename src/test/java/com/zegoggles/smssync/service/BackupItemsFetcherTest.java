@@ -83,6 +83,21 @@ public class BackupItemsFetcherTest {
         assertThat(fetcher.getMostRecentTimestamp(CALLLOG)).isEqualTo(23L);
     }
 
+    @Test public void shouldDetectNewItems() throws Exception {
+        SMS.setMaxSyncedDate(context, 22L);
+        mockMostRecentTimestampForType(SMS, 23L);
+        assertThat(fetcher.hasNewItems(SMS)).isTrue();
+
+        SMS.setMaxSyncedDate(context, 23L);
+        assertThat(fetcher.hasNewItems(SMS)).isFalse();
+    }
+
+    @Test public void shouldNotDetectNewItemsIfProviderIsEmpty() throws Exception {
+        for (DataType type : DataType.values()) {
+            assertThat(fetcher.hasNewItems(type)).isFalse();
+        }
+    }
+
     private void mockMostRecentTimestampForType(DataType type, long max) {
         MatrixCursor cursor = new MatrixCursor(new String[]{"date"});
         cursor.addRow(new Object[] { max });
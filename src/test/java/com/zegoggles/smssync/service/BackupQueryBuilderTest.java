@@ -84,6 +84,29 @@ public class BackupQueryBuilderTest {
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
     }
 
+    @Test public void shouldBuildRangeQueryForSMS() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildRangeQueryForDataType(DataType.SMS, null, 1000, 5000, 50);
+
+        assertThat(query.selection).isEqualTo("date > ? AND type <> ? AND date <= ?");
+        assertThat(query.selectionArgs).isEqualTo(new String[] { "1000", "3", "5000"} );
+        assertThat(query.sortOrder).isEqualTo("date LIMIT 50");
+    }
+
+    @Test public void shouldBuildRangeQueryForSMSIncludingItemsAtSameDate() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildRangeQueryForDataType(DataType.SMS, null, 1000, 12, 5000, 50);
+
+        assertThat(query.selection).isEqualTo("(date > ? OR (date = ? AND _id > ?)) AND type <> ? AND date <= ?");
+        assertThat(query.selectionArgs).isEqualTo(new String[] { "1000", "1000", "12", "3", "5000"} );
+        assertThat(query.sortOrder).isEqualTo("date, _id LIMIT 50");
+    }
+
+    @Test public void shouldBuildRangeQueryForCallLog() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildRangeQueryForDataType(DataType.CALLLOG, null, 1000, 5000, 50);
+
+        assertThat(query.selection).isEqualTo("date > ? AND date <= ?");
+        assertThat(query.selectionArgs).isEqualTo(new String[] { "1000", "5000" } );
+    }
+
     @Test public void shouldBuildMostRecentQueryForSMS() throws Exception {
         BackupQueryBuilder.Query query = builder.buildMostRecentQueryForDataType(DataType.SMS);
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
@@ -1,10 +1,12 @@
 package com.zegoggles.smssync.service;
 
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.store.XOAuth2AuthenticationFailedException;
 import com.zegoggles.smssync.auth.TokenRefreshException;
@@ -15,6 +17,7 @@ import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
@@ -29,8 +32,12 @@ import org.mockito.stubbing.Answer;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Random;
 
 import static com.zegoggles.smssync.mail.DataType.CALLLOG;
 import static com.zegoggles.smssync.mail.DataType.MMS;
@@ -39,8 +46,10 @@ import static com.zegoggles.smssync.service.BackupItemsFetcher.emptyCursor;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
+import static org.mockito.Mockito.anyCollectionOf;
 import static org.mockito.Mockito.anyListOf;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -73,13 +82,18 @@ public class BackupTaskTest {
         config = getBackupConfig(EnumSet.of(SMS));
         when(service.getApplicationContext()).thenReturn(Robolectric.application);
         when(service.getState()).thenReturn(state);
+        when(fetcher.hasNewItems(any(DataType.class))).thenReturn(true);
 
         task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher);
         context = Robolectric.application;
     }
 
     private BackupConfig getBackupConfig(EnumSet<DataType> types) {
-        return new BackupConfig(store, 0, false, 100, new ContactGroup(-1), BackupType.MANUAL, types,
+        return getBackupConfig(types, BackupType.MANUAL);
+    }
+
+    private BackupConfig getBackupConfig(EnumSet<DataType> types, BackupType backupType) {
+        return new BackupConfig(store, 0, false, 100, new ContactGroup(-1), backupType, types,
                 false
         );
     }
@@ -133,7 +147,20 @@ public class BackupTaskTest {
 
         assertThat(finalState.currentSyncedItems).isEqualTo(3);
 
-        verify(folder, times(3)).appendMessages(anyListOf(Message.class));
+        // one batch per type
+        verify(folder, times(2)).appendMessages(anyListOf(Message.class));
+    }
+
+    @Test public void shouldUploadItemsInBatches() throws Exception {
+        mockFetch(SMS, BackupTask.UPLOAD_BATCH_SIZE + 1);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+
+        BackupState finalState = task.doInBackground(config);
+
+        assertThat(finalState.currentSyncedItems).isEqualTo(BackupTask.UPLOAD_BATCH_SIZE + 1);
+        verify(folder, times(2)).appendMessages(anyListOf(Message.class));
+        assertThat(new UploadJournal(context).getPending()).isNull();
     }
 
     @Test public void shouldCreateFoldersLazilyOnlyForNeededTypes() throws Exception {
@@ -165,6 +192,75 @@ public class BackupTaskTest {
         verifyZeroInteractions(store);
     }
 
+    @Test public void shouldNotOpenCursorsIfThereAreNoNewItems() throws Exception {
+        when(fetcher.hasNewItems(any(DataType.class))).thenReturn(false);
+
+        BackupState finalState = task.doInBackground(config);
+
+        verify(fetcher, never()).getItemsForDataType(any(DataType.class), any(ContactGroupIds.class), anyInt());
+        verifyZeroInteractions(accessor);
+        verifyZeroInteractions(store);
+        verify(service).transition(SmsSyncState.FINISHED_BACKUP, null);
+    }
+
+    @Test public void shouldNotVerifyStoreSettingsForInstantBackup() throws Exception {
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(SMS)).thenReturn(folder);
+
+        task.doInBackground(new BackupConfig(store, 0, false, 100, new ContactGroup(-1), BackupType.INSTANT,
+                EnumSet.of(SMS), false));
+
+        verify(store, never()).checkSettings();
+        verify(folder).appendMessages(anyListOf(Message.class));
+    }
+
+    @Test public void shouldWaitForReceivedMessageForInstantBackup() throws Exception {
+        when(fetcher.hasNewItems(SMS)).thenReturn(false, true);
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(SMS)).thenReturn(folder);
+
+        task.doInBackground(new BackupConfig(store, 0, false, 100, new ContactGroup(-1), BackupType.INSTANT,
+                EnumSet.of(SMS), false));
+
+        verify(fetcher, times(2)).hasNewItems(SMS);
+        verify(folder).appendMessages(anyListOf(Message.class));
+    }
+
+    @Test public void shouldRetryBatchAfterTransientError() throws Exception {
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                new Backoff(0, new Random()));
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(folder.findMessageIds(anyCollectionOf(String.class))).thenReturn(Collections.<String>emptySet());
+        when(folder.appendMessages(anyListOf(Message.class)))
+                .thenThrow(new MessagingException("IO Error", new SocketException("Connection reset")))
+                .thenReturn(Collections.<String, String>emptyMap());
+
+        BackupState finalState = task.doInBackground(config);
+
+        verify(folder, times(2)).appendMessages(anyListOf(Message.class));
+        assertThat(finalState.isFinished()).isTrue();
+        assertThat(finalState.currentSyncedItems).isEqualTo(1);
+    }
+
+    @Test public void shouldNotRetryBatchAfterPermanentError() throws Exception {
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                new Backoff(0, new Random()));
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        MessagingException exception = new MessagingException("NO [OVERQUOTA] mailbox full");
+        when(folder.appendMessages(anyListOf(Message.class))).thenThrow(exception);
+
+        task.doInBackground(config);
+
+        verify(folder, times(1)).appendMessages(anyListOf(Message.class));
+        verify(service).transition(SmsSyncState.ERROR, exception);
+    }
+
     @Test public void shouldSkipItems() throws Exception {
         when(fetcher.getMostRecentTimestamp(any(DataType.class))).thenReturn(-23L);
 
@@ -201,6 +297,23 @@ public class BackupTaskTest {
         verify(service).releaseLocks();
     }
 
+    @Test public void shouldRefreshTokenBeforeItExpires() throws Exception {
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(tokenRefresher.refreshOAuth2TokenIfExpiring()).thenReturn(true);
+
+        BackupImapStore newStore = mock(BackupImapStore.class);
+        when(newStore.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(service.getBackupImapStore()).thenReturn(newStore);
+
+        task.doInBackground(config);
+
+        verify(newStore).checkSettings();
+        verify(folder).appendMessages(anyListOf(Message.class));
+        verify(store, never()).checkSettings();
+        verify(tokenRefresher, never()).refreshOAuth2Token();
+    }
+
     @Test public void shouldHandleAuthErrorAndTokenCouldBeRefreshed() throws Exception {
         mockFetch(SMS, 1);
         when(converter.convertMessages(any(Cursor.class), notNull(DataType.class))).thenReturn(result(SMS, 1));
@@ -224,6 +337,238 @@ public class BackupTaskTest {
         verify(service).releaseLocks();
     }
 
+    @Test public void shouldAdvanceWatermarkOfConfirmedJournalBatch() throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setHeader(Headers.MESSAGE_ID, "<1234@sms-backup-plus.local>");
+        UploadJournal journal = new UploadJournal(context);
+        journal.begin(SMS, 1234L, Collections.<Message>singletonList(message), false);
+        journal.appended(Collections.singletonList("42"));
+
+        mockAllFetchEmpty();
+        task.doInBackground(config);
+
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(1234L);
+        assertThat(journal.getPending()).isNull();
+        verifyZeroInteractions(store);
+    }
+
+    @Test public void shouldNotAdvanceWatermarkOfUnconfirmableJournalBatch() throws Exception {
+        new UploadJournal(context).begin(SMS, 1234L, Collections.<Message>singletonList(new MimeMessage()), false);
+
+        mockAllFetchEmpty();
+        task.doInBackground(config);
+
+        assertThat(SMS.getMaxSyncedDate(context)).isNotEqualTo(1234L);
+        assertThat(new UploadJournal(context).getPending()).isNotNull();
+    }
+
+    @Test public void shouldNotUploadMessagesFoundOnServerAgain() throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setHeader(Headers.MESSAGE_ID, "<1234@sms-backup-plus.local>");
+        MimeMessage other = new MimeMessage();
+        other.setHeader(Headers.MESSAGE_ID, "<5678@sms-backup-plus.local>");
+        new UploadJournal(context).begin(SMS, 1234L, Arrays.<Message>asList(message, other), false);
+
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(folder.findMessageIds(anyCollectionOf(String.class)))
+                .thenReturn(Collections.singleton("<1234@sms-backup-plus.local>"));
+        mockFetch(SMS, 1);
+        ConversionResult result = new ConversionResult(SMS);
+        result.add(message, new HashMap<String, String>());
+        result.add(other, new HashMap<String, String>());
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result);
+
+        task.doInBackground(config);
+
+        verify(folder).appendMessages(Collections.<Message>singletonList(other));
+    }
+
+    @Test public void shouldSkipItemsOutsideContactGroupBeforeConversion() throws Exception {
+        ContactGroupIds group = new ContactGroupIds();
+        group.add(1L, 2L);
+        group.addNumber("01711234567");
+        when(accessor.getGroupContactIds(any(ContentResolver.class), any(ContactGroup.class))).thenReturn(group);
+
+        final MatrixCursor cursor = new MatrixCursor(new String[] {"_id", "address", "date"});
+        cursor.addRow(new Object[] { "1", "555", 1000L });
+        cursor.addRow(new Object[] { "2", "+49 171 1234567", 2000L });
+        when(fetcher.getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyInt())).thenReturn(cursor);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+
+        BackupState finalState = task.doInBackground(config);
+
+        verify(converter, times(1)).convertMessages(any(Cursor.class), eq(SMS));
+        verify(accessor, times(1)).getGroupContactIds(any(ContentResolver.class), any(ContactGroup.class));
+        assertThat(finalState.currentSyncedItems).isEqualTo(1);
+        assertThat(finalState.itemsToSync).isEqualTo(1);
+    }
+
+    @Test public void shouldHandOldHistoryToBackfillLane() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(fetcher.getOldestUnsyncedTimestamp(SMS)).thenReturn(1000L);
+        when(service.transition(SmsSyncState.FINISHED_BACKUP, null))
+                .thenReturn(new BackupState(SmsSyncState.FINISHED_BACKUP, 0, 0, BackupType.REGULAR, null, null));
+        mockAllFetchEmpty();
+        when(fetcher.getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyLong(), anyLong(), anyLong(), eq(BackupTask.BACKFILL_BATCH_SIZE)))
+                .thenReturn(datedMessages(1000L, 2000L), emptyCursor());
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+
+        BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS), BackupType.REGULAR));
+
+        assertThat(SMS.getMaxSyncedDate(context)).isGreaterThan(System.currentTimeMillis() - BackupTask.RECENT_WINDOW_MS - 60000);
+        assertThat(new BackfillWatermarks(context).isActive(SMS)).isFalse();
+        verify(folder, times(1)).appendMessages(anyListOf(Message.class));
+        assertThat(finalState.state).isEqualTo(SmsSyncState.FINISHED_BACKUP);
+        assertThat(finalState.currentSyncedItems).isEqualTo(2);
+    }
+
+    @Test public void shouldRecordNewestObservedItem() throws Exception {
+        when(fetcher.getMostRecentTimestamp(SMS)).thenReturn(1234L);
+        mockAllFetchEmpty();
+
+        task.doInBackground(config);
+
+        assertThat(new BackfillWatermarks(context).getObserved(SMS)).isEqualTo(1234L);
+    }
+
+    @Test public void shouldOnlyBackUpItemsAfterLastObservedForInstantBackup() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        new BackfillWatermarks(context).setObserved(SMS, 5000L);
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS), BackupType.INSTANT));
+
+        final BackfillWatermarks watermarks = new BackfillWatermarks(context);
+        assertThat(watermarks.isActive(SMS)).isTrue();
+        assertThat(watermarks.getLower(SMS)).isEqualTo(-1);
+        assertThat(watermarks.getUpper(SMS)).isEqualTo(5000L);
+        assertThat(SMS.getMaxSyncedDate(context)).isGreaterThanOrEqualTo(5000L);
+        verify(fetcher, never()).getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyLong(), anyLong(), anyLong(), anyInt());
+    }
+
+    @Test public void shouldNotSplitBacklogOfInstantBackupWhileBackfilling() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        final BackfillWatermarks watermarks = new BackfillWatermarks(context);
+        watermarks.start(SMS, -1, 1000L);
+        watermarks.setObserved(SMS, 5000L);
+        mockAllFetchEmpty();
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS), BackupType.INSTANT));
+
+        assertThat(watermarks.getUpper(SMS)).isEqualTo(1000L);
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(-1);
+    }
+
+    @Test public void shouldNotSplitRecentBacklog() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(fetcher.getOldestUnsyncedTimestamp(SMS)).thenReturn(System.currentTimeMillis() - 60000);
+        mockAllFetchEmpty();
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS), BackupType.REGULAR));
+
+        assertThat(new BackfillWatermarks(context).isActive(SMS)).isFalse();
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(-1);
+    }
+
+    @Test public void shouldNotSplitBacklogOfManualBackup() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(true);
+        when(fetcher.getOldestUnsyncedTimestamp(SMS)).thenReturn(1000L);
+        mockAllFetchEmpty();
+
+        task.doInBackground(config);
+
+        assertThat(new BackfillWatermarks(context).isActive(SMS)).isFalse();
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(-1);
+    }
+
+    @Test public void shouldNotSplitBacklogWithoutAutoSync() throws Exception {
+        when(preferences.isEnableAutoSync()).thenReturn(false);
+        when(fetcher.getOldestUnsyncedTimestamp(SMS)).thenReturn(1000L);
+        mockAllFetchEmpty();
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS), BackupType.REGULAR));
+
+        assertThat(new BackfillWatermarks(context).isActive(SMS)).isFalse();
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(-1);
+    }
+
+    @Test public void shouldNotBackfillDuringInstantBackup() throws Exception {
+        new BackfillWatermarks(context).start(SMS, -1, 5000);
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+
+        task.doInBackground(new BackupConfig(store, 0, false, 100, new ContactGroup(-1), BackupType.INSTANT,
+                EnumSet.of(SMS), false));
+
+        verify(fetcher, never()).getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyLong(), anyLong(), anyLong(), anyInt());
+        assertThat(new BackfillWatermarks(context).getLower(SMS)).isEqualTo(-1);
+    }
+
+    @Test public void shouldKeepBackfillWatermarkOfConfirmedJournalBatch() throws Exception {
+        new BackfillWatermarks(context).start(SMS, -1, 5000);
+        MimeMessage message = new MimeMessage();
+        message.setHeader(Headers.MESSAGE_ID, "<1234@sms-backup-plus.local>");
+        UploadJournal journal = new UploadJournal(context);
+        journal.begin(SMS, 1234L, Collections.<Message>singletonList(message), true);
+        journal.appended(Collections.singletonList("42"));
+
+        mockAllFetchEmpty();
+        task.doInBackground(getBackupConfig(EnumSet.of(MMS)));
+
+        assertThat(new BackfillWatermarks(context).getLower(SMS)).isEqualTo(-1);
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(-1);
+        assertThat(journal.getPending()).isNotNull();
+    }
+
+    @Test public void shouldSkipConfirmedJournalBatchInBackfillLane() throws Exception {
+        new BackfillWatermarks(context).start(SMS, -1, 5000);
+        MimeMessage message = new MimeMessage();
+        message.setHeader(Headers.MESSAGE_ID, "<1234@sms-backup-plus.local>");
+        UploadJournal journal = new UploadJournal(context);
+        journal.begin(SMS, 1234L, Collections.<Message>singletonList(message), true);
+        journal.appended(Collections.singletonList("42"));
+
+        ConversionResult result = new ConversionResult(SMS);
+        result.add(message, new HashMap<String, String>());
+        when(service.transition(SmsSyncState.FINISHED_BACKUP, null))
+                .thenReturn(new BackupState(SmsSyncState.FINISHED_BACKUP, 0, 0, BackupType.MANUAL, null, null));
+        mockAllFetchEmpty();
+        when(fetcher.getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenReturn(datedMessages(1234L), emptyCursor());
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS)));
+
+        verify(folder, never()).appendMessages(anyListOf(Message.class));
+        verify(fetcher).getItemsForDataType(eq(SMS), any(ContactGroupIds.class), eq(-1L),
+                eq(BackupQueryBuilder.ALL_IDS), eq(5000L), anyInt());
+        verify(fetcher).getItemsForDataType(eq(SMS), any(ContactGroupIds.class), eq(1234L), eq(12345L), eq(5000L), anyInt());
+        assertThat(new BackfillWatermarks(context).isActive(SMS)).isFalse();
+        assertThat(journal.getPending()).isNull();
+    }
+
+    @Test public void shouldSerializeItemsWithoutUploadingInDryRun() throws Exception {
+        when(fetcher.getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyLong(), anyLong(), anyInt()))
+                .thenReturn(datedMessages(1000L, 2000L));
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+
+        BackupState finalState = task.doInBackground(new BackupConfig(null, 0, false, 100, new ContactGroup(-1),
+                BackupType.DRY_RUN, EnumSet.of(SMS), false, true));
+
+        assertThat(finalState.isFinished()).isTrue();
+        assertThat(finalState.currentSyncedItems).isEqualTo(2);
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(-1);
+        assertThat(new UploadJournal(context).getPending()).isNull();
+        verify(fetcher).getItemsForDataType(eq(SMS), any(ContactGroupIds.class), eq(-1L), eq(-1L), eq(100));
+        verify(fetcher, never()).getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyInt());
+        verify(service, never()).transition(SmsSyncState.LOGIN, null);
+    }
 
     private ConversionResult result(DataType type, int n) {
         ConversionResult result = new ConversionResult(type);
@@ -252,6 +597,16 @@ public class BackupTaskTest {
     }
 
 
+    private Cursor datedMessages(long... dates) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"_id", "date"} );
+        for (long date : dates) {
+            cursor.addRow(new Object[]{
+                    "12345", date
+            });
+        }
+        return cursor;
+    }
+
     private void mockAllFetchEmpty() {
         when(fetcher.getItemsForDataType(any(DataType.class), any(ContactGroupIds.class), anyInt())).thenReturn(emptyCursor());
     }
@@ -56,6 +56,16 @@ public class BulkFetcherTest {
     }
 
 
+    @Test public void shouldFetchItemsFromStart() throws Exception {
+        when(fetcher.getItemsForDataType(SMS, null, -1L, -1L, 50)).thenReturn(cursor(3));
+        when(fetcher.getItemsForDataType(MMS, null, -1L, -1L, 47)).thenReturn(cursor(5));
+
+        BackupCursors cursors = bulkFetcher.fetchFromStart(EnumSet.of(SMS, MMS), null, 50);
+
+        assertThat(cursors.count()).isEqualTo(8);
+        verify(fetcher, never()).getItemsForDataType(any(DataType.class), any(ContactGroupIds.class), anyInt());
+    }
+
     @Test public void shouldFetchAllItemsEmptyList() throws Exception {
         BackupCursors cursors = bulkFetcher.fetch(EnumSet.noneOf(DataType.class), null, 50);
         assertThat(cursors.count()).isEqualTo(0);
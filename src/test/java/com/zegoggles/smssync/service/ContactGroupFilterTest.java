@@ -0,0 +1,107 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.CallLog;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.contacts.ContactGroupIds;
+import com.zegoggles.smssync.mail.DataType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class ContactGroupFilterTest {
+    @Mock ContentResolver resolver;
+    ContactGroupIds group;
+    ContactGroupFilter filter;
+
+    @Before public void before() {
+        initMocks(this);
+        group = new ContactGroupIds();
+        group.add(1L, 2L);
+        group.addNumber("+49 171 1234567");
+        filter = new ContactGroupFilter(resolver, group);
+    }
+
+    @Test public void shouldIncludeEverythingWithoutGroup() throws Exception {
+        filter = new ContactGroupFilter(resolver, null);
+        assertThat(filter.include(row(SmsConsts.ADDRESS, "555"), DataType.SMS)).isTrue();
+        assertThat(filter.include(row(MmsConsts.ID, "1"), DataType.MMS)).isTrue();
+        verifyZeroInteractions(resolver);
+    }
+
+    @Test public void shouldFilterSmsByAddress() throws Exception {
+        assertThat(filter.include(row(SmsConsts.ADDRESS, "01711234567"), DataType.SMS)).isTrue();
+        assertThat(filter.include(row(SmsConsts.ADDRESS, "555"), DataType.SMS)).isFalse();
+    }
+
+    @Test public void shouldFilterCallLogByNumber() throws Exception {
+        assertThat(filter.include(row(CallLog.Calls.NUMBER, "01711234567"), DataType.CALLLOG)).isTrue();
+        assertThat(filter.include(row(CallLog.Calls.NUMBER, "555"), DataType.CALLLOG)).isFalse();
+    }
+
+    @Test public void shouldFilterMmsByAnyAddress() throws Exception {
+        MatrixCursor addresses = new MatrixCursor(new String[] { SmsConsts.ADDRESS });
+        addresses.addRow(new Object[] { MmsConsts.INSERT_ADDRESS_TOKEN });
+        addresses.addRow(new Object[] { "555" });
+        addresses.addRow(new Object[] { "01711234567" });
+        when(resolver.query(eq(Uri.parse("content://mms/42/addr")), any(String[].class),
+                anyString(), any(String[].class), anyString())).thenReturn(addresses);
+
+        assertThat(filter.include(row(MmsConsts.ID, "42"), DataType.MMS)).isTrue();
+        assertThat(filter.include(row(MmsConsts.ID, "43"), DataType.MMS)).isFalse();
+    }
+
+    @Test public void shouldFilterMmsByThreadRecipients() throws Exception {
+        MatrixCursor addresses = new MatrixCursor(new String[] { "_id", SmsConsts.ADDRESS });
+        addresses.addRow(new Object[] { 1L, "555" });
+        addresses.addRow(new Object[] { 2L, "01711234567" });
+        when(resolver.query(eq(Consts.CANONICAL_ADDRESSES_PROVIDER), any(String[].class),
+                anyString(), any(String[].class), anyString())).thenReturn(addresses);
+        MatrixCursor threads = new MatrixCursor(new String[] { "_id", "recipient_ids" });
+        threads.addRow(new Object[] { 10L, "1" });
+        threads.addRow(new Object[] { 11L, "1 2" });
+        when(resolver.query(eq(Consts.THREADS_PROVIDER), any(String[].class),
+                anyString(), any(String[].class), anyString())).thenReturn(threads);
+
+        assertThat(filter.include(mms("42", "11"), DataType.MMS)).isTrue();
+        assertThat(filter.include(mms("43", "10"), DataType.MMS)).isFalse();
+        assertThat(filter.include(mms("44", "11"), DataType.MMS)).isTrue();
+
+        verify(resolver, times(1)).query(eq(Consts.THREADS_PROVIDER), any(String[].class),
+                anyString(), any(String[].class), anyString());
+        verify(resolver, never()).query(eq(Uri.parse("content://mms/42/addr")), any(String[].class),
+                anyString(), any(String[].class), anyString());
+    }
+
+    private static MatrixCursor mms(String id, String threadId) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { MmsConsts.ID, MmsConsts.THREAD_ID });
+        cursor.addRow(new Object[] { id, threadId });
+        cursor.moveToFirst();
+        return cursor;
+    }
+
+    private static MatrixCursor row(String column, String value) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { column });
+        cursor.addRow(new Object[] { value });
+        cursor.moveToFirst();
+        return cursor;
+    }
+}
@@ -0,0 +1,214 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.CallLog;
+import android.util.Log;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.auth.TokenRefresher;
+import com.zegoggles.smssync.contacts.ContactAccessor;
+import com.zegoggles.smssync.contacts.ContactGroup;
+import com.zegoggles.smssync.contacts.ContactGroupIds;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.FakeImapServer;
+import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.PersonLookup;
+import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.service.state.BackupState;
+import com.zegoggles.smssync.service.state.RestoreState;
+import com.zegoggles.smssync.service.state.SmsSyncState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.MMS;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+import static com.zegoggles.smssync.service.BackupItemsFetcher.emptyCursor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Backs up and restores through {@link FakeImapServer}, with real message conversion and IMAP
+ * traffic. Volume and server latency can be raised to measure throughput, the results are
+ * logged:
+ * <pre>
+ *     mvn test -Dtest=ImapThroughputTest -Dimap.throughput.items=5000 -Dimap.throughput.latency=20 \
+ *         -Drobolectric.logging=stdout
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ImapThroughputTest {
+    /** items per data type */
+    private static final int ITEMS = Integer.getInteger("imap.throughput.items", 50);
+    /** server latency per command, in ms */
+    private static final long LATENCY = Long.getLong("imap.throughput.latency", 0);
+
+    FakeImapServer server;
+    BackupImapStore store;
+    Preferences preferences;
+    MessageConverter converter;
+    @Mock SmsBackupService backupService;
+    @Mock SmsRestoreService restoreService;
+    @Mock BackupState backupState;
+    @Mock RestoreState restoreState;
+    @Mock BackupItemsFetcher fetcher;
+    @Mock CalendarSyncer syncer;
+    @Mock AuthPreferences authPreferences;
+    @Mock ContactAccessor accessor;
+    @Mock TokenRefresher tokenRefresher;
+    @Mock ContentResolver resolver;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        BinaryTempFileBody.setTempDirectory(Robolectric.application.getCacheDir());
+
+        server = new FakeImapServer().withLatency(LATENCY).start();
+        store = new BackupImapStore(Robolectric.application, server.getStoreUri());
+        preferences = new Preferences(Robolectric.application);
+        converter = new MessageConverter(Robolectric.application, preferences, FakeImapServer.USER,
+                new PersonLookup(Robolectric.application.getContentResolver()));
+
+        when(backupService.getApplicationContext()).thenReturn(Robolectric.application);
+        when(backupService.getState()).thenReturn(backupState);
+        when(restoreService.getApplicationContext()).thenReturn(Robolectric.application);
+        when(restoreService.getState()).thenReturn(restoreState);
+
+        when(fetcher.hasNewItems(any(DataType.class))).thenReturn(true);
+        when(fetcher.getItemsForDataType(eq(MMS), any(ContactGroupIds.class), anyInt())).thenReturn(emptyCursor());
+        when(fetcher.getItemsForDataType(eq(SMS), any(ContactGroupIds.class), anyInt())).then(new Answer<Cursor>() {
+            @Override public Cursor answer(InvocationOnMock invocation) throws Throwable {
+                return smsCursor(ITEMS);
+            }
+        });
+        when(fetcher.getItemsForDataType(eq(CALLLOG), any(ContactGroupIds.class), anyInt())).then(new Answer<Cursor>() {
+            @Override public Cursor answer(InvocationOnMock invocation) throws Throwable {
+                return callLogCursor(ITEMS);
+            }
+        });
+
+        final AtomicLong ids = new AtomicLong();
+        when(resolver.insert(any(Uri.class), any(ContentValues.class))).then(new Answer<Uri>() {
+            @Override public Uri answer(InvocationOnMock invocation) throws Throwable {
+                return Uri.withAppendedPath((Uri) invocation.getArguments()[0], String.valueOf(ids.incrementAndGet()));
+            }
+        });
+    }
+
+    @After public void after() throws Exception {
+        store.closeFolders();
+        server.stop();
+    }
+
+    @Test public void shouldBackupAndRestoreAllItems() throws Exception {
+        final long backupStart = System.nanoTime();
+        final BackupState backup = backup(new Backoff());
+        report("backup", 2 * ITEMS, backupStart);
+
+        assertThat(backup.state).isEqualTo(SmsSyncState.FINISHED_BACKUP);
+        assertThat(backup.currentSyncedItems).isEqualTo(2 * ITEMS);
+        assertThat(server.getMailbox(SMS.getFolder(Robolectric.application)).size()).isEqualTo(ITEMS);
+        assertThat(server.getMailbox(CALLLOG.getFolder(Robolectric.application)).size()).isEqualTo(ITEMS);
+
+        final long restoreStart = System.nanoTime();
+        final RestoreState restore = restore();
+        report("restore", 2 * ITEMS, restoreStart);
+
+        assertThat(restore.state).isEqualTo(SmsSyncState.FINISHED_RESTORE);
+        assertThat(restore.restoredCount).isEqualTo(2 * ITEMS);
+    }
+
+    @Test public void shouldRetryThrottledAppendsWithoutDuplicates() throws Exception {
+        // rarely enough for the upload rate to stay usable once limited to the observed rate
+        server.throttle("APPEND", 40);
+
+        final BackupState backup = backup(new Backoff(0, new Random(0)));
+
+        assertThat(backup.state).isEqualTo(SmsSyncState.FINISHED_BACKUP);
+        assertThat(server.getThrottleCount()).isGreaterThan(0);
+
+        final FakeImapServer.Mailbox mailbox = server.getMailbox(SMS.getFolder(Robolectric.application));
+        final Set<String> messageIds = new HashSet<String>();
+        for (FakeImapServer.StoredMessage message : mailbox.getMessages()) {
+            messageIds.add(message.getHeader("Message-ID"));
+        }
+        assertThat(mailbox.size()).isEqualTo(ITEMS);
+        assertThat(messageIds).hasSize(ITEMS);
+    }
+
+    private BackupState backup(Backoff backoff) {
+        final BackupConfig config = new BackupConfig(store, 0, false, -1, new ContactGroup(-1), BackupType.MANUAL,
+                EnumSet.of(SMS, MMS, CALLLOG), false);
+        return new BackupTask(backupService, fetcher, converter, syncer, authPreferences, preferences, accessor,
+                tokenRefresher, backoff).doInBackground(config);
+    }
+
+    private RestoreState restore() {
+        final RestoreConfig config = new RestoreConfig(store, 0, true, true, false, -1, 0);
+        return new RestoreTask(restoreService, converter, resolver, tokenRefresher).doInBackground(config);
+    }
+
+    private static void report(String what, int items, long startNanos) {
+        final long ms = Math.max(1, (System.nanoTime() - startNanos) / 1000000L);
+        Log.i(TAG, String.format(Locale.ENGLISH, "%s: %d items in %d ms, %.1f items/s",
+                what, items, ms, items * 1000f / ms));
+    }
+
+    private static Cursor smsCursor(int count) {
+        final MatrixCursor cursor = new MatrixCursor(new String[]{
+                SmsConsts.ID, SmsConsts.THREAD_ID, SmsConsts.ADDRESS, SmsConsts.DATE, SmsConsts.TYPE,
+                SmsConsts.BODY, SmsConsts.READ, SmsConsts.STATUS
+        });
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            cursor.addRow(new Object[]{
+                    i + 1, i % 20, address(i), now - (count - i) * 1000L,
+                    i % 2 == 0 ? SmsConsts.MESSAGE_TYPE_INBOX : SmsConsts.MESSAGE_TYPE_SENT,
+                    "Message number " + i, 1, -1
+            });
+        }
+        return cursor;
+    }
+
+    private static Cursor callLogCursor(int count) {
+        final MatrixCursor cursor = new MatrixCursor(new String[]{
+                CallLog.Calls._ID, CallLog.Calls.NUMBER, CallLog.Calls.DURATION, CallLog.Calls.DATE, CallLog.Calls.TYPE
+        });
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            cursor.addRow(new Object[]{
+                    i + 1, address(i), i * 7, now - (count - i) * 1000L,
+                    i % 3 == 0 ? CallLog.Calls.MISSED_TYPE : CallLog.Calls.INCOMING_TYPE
+            });
+        }
+        return cursor;
+    }
+
+    private static String address(int i) {
+        return String.format(Locale.ENGLISH, "+4917%07d", i % 50);
+    }
+}
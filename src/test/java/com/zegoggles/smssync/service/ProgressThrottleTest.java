@@ -0,0 +1,54 @@
+package com.zegoggles.smssync.service;
+
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.service.state.BackupState;
+import com.zegoggles.smssync.service.state.SmsSyncState;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.zegoggles.smssync.service.state.SmsSyncState.BACKUP;
+import static com.zegoggles.smssync.service.state.SmsSyncState.CALC;
+import static com.zegoggles.smssync.service.state.SmsSyncState.ERROR;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProgressThrottleTest {
+    ProgressThrottle throttle;
+
+    @Before public void before() {
+        throttle = new ProgressThrottle(250);
+    }
+
+    @Test public void shouldPublishFirstUpdate() throws Exception {
+        assertThat(throttle.shouldPublish(progress(1, DataType.SMS), 1000)).isTrue();
+    }
+
+    @Test public void shouldDropUpdatesWithinInterval() throws Exception {
+        assertThat(throttle.shouldPublish(progress(1, DataType.SMS), 1000)).isTrue();
+        assertThat(throttle.shouldPublish(progress(2, DataType.SMS), 1100)).isFalse();
+        assertThat(throttle.shouldPublish(progress(3, DataType.SMS), 1249)).isFalse();
+        assertThat(throttle.shouldPublish(progress(4, DataType.SMS), 1250)).isTrue();
+    }
+
+    @Test public void shouldAlwaysPublishTransitions() throws Exception {
+        assertThat(throttle.shouldPublish(state(CALC, null), 1000)).isTrue();
+        assertThat(throttle.shouldPublish(progress(1, DataType.SMS), 1001)).isTrue();
+        assertThat(throttle.shouldPublish(progress(2, DataType.MMS), 1002)).isTrue();
+        assertThat(throttle.shouldPublish(state(ERROR, new Exception()), 1003)).isTrue();
+    }
+
+    @Test public void shouldAlwaysPublishErrors() throws Exception {
+        assertThat(throttle.shouldPublish(state(ERROR, new Exception()), 1000)).isTrue();
+        assertThat(throttle.shouldPublish(state(ERROR, new Exception()), 1001)).isTrue();
+    }
+
+    private static BackupState progress(int current, DataType type) {
+        return new BackupState(BACKUP, current, 100, BackupType.MANUAL, type, null);
+    }
+
+    private static BackupState state(SmsSyncState state, Exception e) {
+        return new BackupState(state, 0, 0, BackupType.MANUAL, null, e);
+    }
+}
@@ -0,0 +1,180 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.zegoggles.smssync.auth.TokenRefresher;
+import com.zegoggles.smssync.contacts.ContactAccessor;
+import com.zegoggles.smssync.contacts.ContactGroup;
+import com.zegoggles.smssync.dataset.SyntheticDataset;
+import com.zegoggles.smssync.dataset.SyntheticDataset.Table;
+import com.zegoggles.smssync.dataset.SyntheticProvider;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.FakeImapServer;
+import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.PersonLookup;
+import com.zegoggles.smssync.metrics.RunMetrics;
+import com.zegoggles.smssync.preferences.AuthPreferences;
+import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.service.state.BackupState;
+import com.zegoggles.smssync.service.state.RestoreState;
+import com.zegoggles.smssync.service.state.SmsSyncState;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.MMS;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Runs fetching, conversion, backup and restore over a {@link SyntheticProvider}. The defaults
+ * keep the test quick, raise the volume to profile memory and time at the scale of heavy users
+ * (the results are logged):
+ * <pre>
+ *     mvn test -Dtest=ProviderScaleTest -Dprovider.scale.sms=1000000 -Dprovider.scale.mms=20000 \
+ *         -Dprovider.scale.calls=200000 -Dprovider.scale.contacts=800 -Drobolectric.logging=stdout
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProviderScaleTest {
+    private static final int SMS_ITEMS = Integer.getInteger("provider.scale.sms", 2000);
+    private static final int MMS_ITEMS = Integer.getInteger("provider.scale.mms", 100);
+    private static final int CALL_ITEMS = Integer.getInteger("provider.scale.calls", 1000);
+    private static final int CONTACTS = Integer.getInteger("provider.scale.contacts", 200);
+
+    SyntheticProvider provider;
+    Context context;
+    Preferences preferences;
+    MessageConverter converter;
+    @Mock SmsBackupService backupService;
+    @Mock SmsRestoreService restoreService;
+    @Mock BackupState backupState;
+    @Mock RestoreState restoreState;
+    @Mock CalendarSyncer syncer;
+    @Mock AuthPreferences authPreferences;
+    @Mock ContactAccessor accessor;
+    @Mock TokenRefresher tokenRefresher;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        BinaryTempFileBody.setTempDirectory(Robolectric.application.getCacheDir());
+
+        provider = new SyntheticProvider(new SyntheticDataset()
+                .withSms(SMS_ITEMS)
+                .withMms(MMS_ITEMS)
+                .withCalls(CALL_ITEMS)
+                .withContacts(CONTACTS)
+                .withAttachments(16 * 1024, 2));
+        context = provider.newContext(Robolectric.application);
+        preferences = new Preferences(context);
+        converter = new MessageConverter(context, preferences, FakeImapServer.USER,
+                new PersonLookup(context.getContentResolver()));
+
+        when(backupService.getApplicationContext()).thenReturn(context);
+        when(backupService.getState()).thenReturn(backupState);
+        when(restoreService.getApplicationContext()).thenReturn(context);
+        when(restoreService.getState()).thenReturn(restoreState);
+    }
+
+    @Test public void shouldFetchAndConvertAllItems() throws Exception {
+        final BackupItemsFetcher fetcher = new BackupItemsFetcher(context, context.getContentResolver(),
+                new BackupQueryBuilder(context));
+        final CountingOutputStream sink = new CountingOutputStream();
+        final long memoryBefore = usedMemory();
+
+        RunMetrics.start();
+        final long start = System.nanoTime();
+        final BackupCursors cursors = new BulkFetcher(fetcher).fetch(EnumSet.of(SMS, MMS, CALLLOG), null, -1);
+        int converted = 0;
+        try {
+            while (cursors.hasNext()) {
+                final BackupCursors.CursorAndType item = cursors.next();
+                final ConversionResult result = converter.convertMessages(item.cursor, item.type);
+                for (Message message : result.getMessages()) {
+                    message.writeTo(sink);
+                }
+                converted += result.size();
+            }
+        } finally {
+            cursors.close();
+        }
+        final RunMetrics metrics = RunMetrics.finish();
+        report("fetch and convert", converted, start);
+        Log.i(TAG, String.format(Locale.ENGLISH, "%d bytes, %d KiB heap, %d queries, %d lookups",
+                sink.count, (usedMemory() - memoryBefore) / 1024, provider.getQueryCount(), provider.getLookupCount()));
+        Log.i(TAG, metrics.summary(Robolectric.application));
+
+        assertThat(converted).isEqualTo(SMS_ITEMS + MMS_ITEMS + CALL_ITEMS);
+        assertThat(provider.getAttachmentReadCount()).isGreaterThanOrEqualTo(MMS_ITEMS);
+    }
+
+    @Test public void shouldBackupAndRestoreAllItems() throws Exception {
+        final FakeImapServer server = new FakeImapServer().start();
+        final BackupImapStore store = new BackupImapStore(Robolectric.application, server.getStoreUri());
+        try {
+            final long backupStart = System.nanoTime();
+            final BackupState backup = new BackupTask(backupService,
+                    new BackupItemsFetcher(context, context.getContentResolver(), new BackupQueryBuilder(context)),
+                    converter, syncer, authPreferences, preferences, accessor, tokenRefresher, new Backoff())
+                    .doInBackground(new BackupConfig(store, 0, false, -1, new ContactGroup(-1), BackupType.MANUAL,
+                            EnumSet.of(SMS, MMS, CALLLOG), false));
+            report("backup", backup.currentSyncedItems, backupStart);
+
+            assertThat(backup.state).isEqualTo(SmsSyncState.FINISHED_BACKUP);
+            assertThat(backup.currentSyncedItems).isEqualTo(SMS_ITEMS + MMS_ITEMS + CALL_ITEMS);
+
+            // restore into empty providers, so every message is inserted
+            final SyntheticProvider target = new SyntheticProvider(new SyntheticDataset()
+                    .withSms(0).withMms(0).withCalls(0).withContacts(CONTACTS));
+            final long restoreStart = System.nanoTime();
+            final RestoreState restore = new RestoreTask(restoreService, converter, target.newContentResolver(),
+                    tokenRefresher).doInBackground(new RestoreConfig(store, 0, true, true, false, -1, 0));
+            report("restore", restore.restoredCount, restoreStart);
+
+            assertThat(restore.state).isEqualTo(SmsSyncState.FINISHED_RESTORE);
+            assertThat(target.getInsertCount(Table.SMS)).isEqualTo(SMS_ITEMS);
+            assertThat(target.getInsertCount(Table.CALLS)).isEqualTo(CALL_ITEMS);
+        } finally {
+            store.closeFolders();
+            server.stop();
+        }
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String what, int items, long startNanos) {
+        final long ms = Math.max(1, (System.nanoTime() - startNanos) / 1000000L);
+        Log.i(TAG, String.format(Locale.ENGLISH, "%s: %d items in %d ms, %.1f items/s",
+                what, items, ms, items * 1000f / ms));
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override public void write(int b) {
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.zegoggles.smssync.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class RestoreCheckpointTest {
+
+    @Test public void shouldNotExistInitially() throws Exception {
+        assertThat(RestoreCheckpoint.exists(Robolectric.application)).isFalse();
+        assertThat(RestoreCheckpoint.load(Robolectric.application)).isNull();
+    }
+
+    @Test public void shouldSaveAndLoad() throws Exception {
+        new RestoreCheckpoint("SMS", 1234L, "42", 11, 9).save(Robolectric.application);
+
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.load(Robolectric.application);
+        assertThat(checkpoint).isNotNull();
+        assertThat(checkpoint.folder).isEqualTo("SMS");
+        assertThat(checkpoint.uidValidity).isEqualTo(1234L);
+        assertThat(checkpoint.uid).isEqualTo("42");
+        assertThat(checkpoint.processedCount).isEqualTo(11);
+        assertThat(checkpoint.restoredCount).isEqualTo(9);
+    }
+
+    @Test public void shouldClear() throws Exception {
+        new RestoreCheckpoint("SMS", 1234L, "42", 11, 9).save(Robolectric.application);
+        RestoreCheckpoint.clear(Robolectric.application);
+        assertThat(RestoreCheckpoint.exists(Robolectric.application)).isFalse();
+    }
+}
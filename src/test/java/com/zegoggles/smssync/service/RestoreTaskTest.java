@@ -30,6 +30,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -71,9 +72,10 @@ public class RestoreTaskTest {
         verify(store).checkSettings();
     }
 
-    @Test public void shouldCloseFolders() throws Exception {
+    @Test public void shouldReleaseStore() throws Exception {
         task.doInBackground(config);
-        verify(store).closeFolders();
+        verify(store).acquire();
+        verify(store).release();
     }
 
     @Test
@@ -91,7 +93,7 @@ public class RestoreTaskTest {
 
         messages.add(mockMessage);
 
-        when(folder.getMessages(anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
+        when(folder.getMessages(any(DataType.class), anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
         when(resolver.insert(Consts.SMS_PROVIDER, values)).thenReturn(Uri.parse("content://sms/123"));
         task.doInBackground(config);
 
@@ -99,8 +101,45 @@ public class RestoreTaskTest {
         verify(resolver).delete(Uri.parse("content://sms/conversations/-1"), null, null);
 
         assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(now.getTime());
-        assertThat(task.getSmsIds()).containsExactly("123");
+        assertThat(task.getSmsIds().toArray()).containsExactly(123L);
 
-        verify(store).closeFolders();
+        verify(store).release();
+    }
+
+    @Test public void shouldResumeFromCheckpointOfPreviousRun() throws Exception {
+        when(folder.getName()).thenReturn("SMS");
+        when(folder.queryUidValidity()).thenReturn(42L);
+        ContentValues values = new ContentValues();
+        values.put(SmsConsts.TYPE, SmsConsts.MESSAGE_TYPE_INBOX);
+        values.put(SmsConsts.DATE, new Date().getTime());
+
+        List<ImapStore.ImapMessage> messages = new ArrayList<ImapStore.ImapMessage>();
+        for (int i = 1; i <= 3; i++) {
+            ImapStore.ImapMessage message = mock(ImapStore.ImapMessage.class);
+            when(message.getUid()).thenReturn(String.valueOf(i));
+            when(message.getFolder()).thenReturn(folder);
+            when(converter.getDataType(message)).thenReturn(DataType.SMS);
+            when(converter.messageToContentValues(message)).thenReturn(values);
+            messages.add(message);
+        }
+        when(converter.getDataType(messages.get(2))).thenThrow(new IllegalStateException("interrupted"));
+        when(folder.getMessages(any(DataType.class), anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
+        when(resolver.insert(Consts.SMS_PROVIDER, values)).thenReturn(Uri.parse("content://sms/123"));
+
+        task.doInBackground(config);
+
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.load(context);
+        assertThat(checkpoint).isNotNull();
+        assertThat(checkpoint.uid).isEqualTo("2");
+        assertThat(checkpoint.uidValidity).isEqualTo(42L);
+
+        when(converter.getDataType(messages.get(2))).thenReturn(DataType.SMS);
+        new RestoreTask(service, converter, resolver, tokenRefresher)
+                .doInBackground(new RestoreConfig(store, 0, true, false, false, -1, 0, checkpoint));
+
+        verify(converter, times(1)).messageToContentValues(messages.get(0));
+        verify(converter, times(1)).messageToContentValues(messages.get(1));
+        verify(converter, times(1)).messageToContentValues(messages.get(2));
+        assertThat(RestoreCheckpoint.exists(context)).isFalse();
     }
 }
@@ -0,0 +1,41 @@
+package com.zegoggles.smssync.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class AppLogTest {
+    File file;
+
+    @Before public void before() throws Exception {
+        file = File.createTempFile("app_log", ".txt");
+    }
+
+    @After public void after() {
+        file.delete();
+    }
+
+    @Test public void shouldTrimPlainTextLogToLastLines() throws Exception {
+        FileUtils.writeStringToFile(file, "aaaaaa\nbbbbbb\ncccccc\n", "UTF-8");
+
+        AppLog.trim(file, 10);
+
+        assertThat(FileUtils.readFileToString(file, "UTF-8")).isEqualTo("cccccc\n");
+    }
+
+    @Test public void shouldNotTrimLogBelowTwiceTheSize() throws Exception {
+        FileUtils.writeStringToFile(file, "aaaaaa\nbbbbbb\n", "UTF-8");
+
+        AppLog.trim(file, 10);
+
+        assertThat(FileUtils.readFileToString(file, "UTF-8")).isEqualTo("aaaaaa\nbbbbbb\n");
+    }
+}
@@ -0,0 +1,121 @@
+package com.zegoggles.smssync.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class LogRingTest {
+    File file;
+
+    @Before public void before() throws Exception {
+        file = File.createTempFile("log_ring", ".txt");
+        file.delete();
+    }
+
+    @After public void after() {
+        file.delete();
+    }
+
+    @Test public void shouldReadAppendedText() throws Exception {
+        LogRing ring = new LogRing(file, 64);
+        ring.append("first\n");
+        ring.append("second\n");
+
+        assertThat(ring.read()).isEqualTo("first\nsecond\n");
+        assertThat(LogRing.isRing(file)).isTrue();
+        assertThat(file.length()).isEqualTo(LogRing.HEADER_SIZE + 64);
+    }
+
+    @Test public void shouldDropOldestLinesWhenFull() throws Exception {
+        LogRing ring = new LogRing(file, 16);
+        ring.append("aaaaaa\n");
+        ring.append("bbbbbb\n");
+        ring.append("cccccc\n");
+
+        assertThat(ring.read()).isEqualTo("bbbbbb\ncccccc\n");
+    }
+
+    @Test public void shouldKeepEndOfTextLargerThanCapacity() throws Exception {
+        LogRing ring = new LogRing(file, 8);
+        ring.append("0123456789\nabc\n");
+
+        assertThat(ring.read()).isEqualTo("abc\n");
+    }
+
+    @Test public void shouldPersistAcrossReopening() throws Exception {
+        LogRing ring = new LogRing(file, 16);
+        ring.append("aaaaaa\n");
+        ring.append("bbbbbb\n");
+        ring.append("cccccc\n");
+        ring.flush();
+
+        assertThat(LogRing.read(file)).isEqualTo("bbbbbb\ncccccc\n");
+
+        LogRing reopened = new LogRing(file, 16);
+        reopened.append("dddddd\n");
+        assertThat(reopened.read()).isEqualTo("cccccc\ndddddd\n");
+    }
+
+    @Test public void shouldMigratePlainTextLog() throws Exception {
+        FileWriter writer = new FileWriter(file);
+        writer.write("old line 1\nold line 2\n");
+        writer.close();
+
+        assertThat(LogRing.read(file)).isNull();
+
+        LogRing ring = new LogRing(file, 64);
+        ring.append("new line\n");
+        assertThat(ring.read()).isEqualTo("old line 1\nold line 2\nnew line\n");
+    }
+
+    @Test public void shouldMigratePlainTextLogFromOtherFile() throws Exception {
+        File legacy = File.createTempFile("log_ring", ".log");
+        try {
+            FileWriter writer = new FileWriter(legacy);
+            writer.write("old line\n");
+            writer.close();
+
+            LogRing ring = new LogRing(file, legacy, 64);
+            ring.append("new line\n");
+            assertThat(ring.read()).isEqualTo("old line\nnew line\n");
+            assertThat(LogRing.isRing(legacy)).isFalse();
+        } finally {
+            legacy.delete();
+        }
+    }
+
+    @Test public void shouldExportPlainText() throws Exception {
+        File exported = File.createTempFile("log_ring", ".log");
+        try {
+            LogRing ring = new LogRing(file, 16);
+            ring.append("aaaaaa\n");
+            ring.append("bbbbbb\n");
+            ring.append("cccccc\n");
+            LogRing.export(file, exported);
+            waitFor(exported, "bbbbbb\ncccccc\n".length());
+
+            assertThat(LogRing.isRing(exported)).isFalse();
+            assertThat(exported.length()).isEqualTo("bbbbbb\ncccccc\n".length());
+        } finally {
+            exported.delete();
+        }
+    }
+
+    @Test public void shouldReturnNullForMissingFile() throws Exception {
+        assertThat(LogRing.read(file)).isNull();
+    }
+
+    private static void waitFor(File file, long length) throws InterruptedException {
+        for (int i = 0; i < 50 && file.length() != length; i++) {
+            Thread.sleep(20);
+        }
+    }
+}